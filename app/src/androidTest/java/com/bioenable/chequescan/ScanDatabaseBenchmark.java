@@ -0,0 +1,164 @@
+package com.bioenable.chequescan;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.bioenable.chequescan.records.ScanRecord;
+import com.bioenable.chequescan.records.ScanStatus;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Lookup latency of {@link ScanDatabase} with a million records, on the device's own SQLite and
+ * flash. Filling the database takes a minute or two. The timings go to logcat under the tag
+ * ScanDatabaseBenchmark and are not asserted, they depend on the device.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ScanDatabaseBenchmark {
+
+    private static final String TAG = "ScanDatabaseBenchmark";
+    private static final String NAME = "benchmark-scans.db";
+    private static final int ROWS = 1000000;
+    private static final int ACCOUNTS = 20000;
+    private static final int FILL_BATCH = 10000;
+    private static final int LOOKUPS = 2000;
+    private static final int BATCH = 200;
+    // one scan every 30 seconds, a million of them cover about a year
+    private static final long START = 1500000000000L;
+    private static final long INTERVAL = 30000L;
+
+    private Context context;
+    private ScanDatabase database;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getTargetContext();
+        context.deleteDatabase(NAME);
+        database = new ScanDatabase(context, NAME);
+    }
+
+    @After
+    public void tearDown() {
+        database.close();
+        context.deleteDatabase(NAME);
+    }
+
+    @Test
+    public void batchIsOneTransaction() {
+        List<ScanRecord> batch = new ArrayList<>(BATCH);
+        for (int i = 0; i < BATCH; i++) {
+            batch.add(record(i));
+        }
+        long start = System.nanoTime();
+        for (ScanRecord record : batch) {
+            database.put(record);
+        }
+        long single = System.nanoTime() - start;
+        List<ScanRecord> second = new ArrayList<>(BATCH);
+        for (int i = BATCH; i < 2 * BATCH; i++) {
+            second.add(record(i));
+        }
+        start = System.nanoTime();
+        database.putAll(second);
+        long batched = System.nanoTime() - start;
+
+        assertEquals(2 * BATCH, database.count());
+        log("%d cheques: %.1f ms one transaction each, %.1f ms in one transaction",
+                BATCH, single / 1e6, batched / 1e6);
+    }
+
+    @Test
+    public void lookupsAtMillionRows() {
+        long start = System.nanoTime();
+        List<ScanRecord> batch = new ArrayList<>(FILL_BATCH);
+        for (int i = 0; i < ROWS; i++) {
+            batch.add(record(i));
+            if (batch.size() == FILL_BATCH) {
+                database.putAll(batch);
+                batch.clear();
+            }
+        }
+        database.putAll(batch);
+        log("filled %d rows in %.1f s", ROWS, (System.nanoTime() - start) / 1e9);
+        assertEquals(ROWS, database.count());
+
+        Random random = new Random(1);
+        start = System.nanoTime();
+        for (int i = 0; i < LOOKUPS; i++) {
+            assertNotNull(database.get(key(random.nextInt(ROWS))));
+        }
+        logLookups("by key", start);
+
+        start = System.nanoTime();
+        for (int i = 0; i < LOOKUPS; i++) {
+            assertFalse(database.findByChequeNumber(chequeNumber(random.nextInt(ROWS))).isEmpty());
+        }
+        logLookups("by cheque number", start);
+
+        start = System.nanoTime();
+        for (int i = 0; i < LOOKUPS; i++) {
+            assertFalse(database.findByAccountNumber(accountNumber(random.nextInt(ROWS)), 20).isEmpty());
+        }
+        logLookups("by account, newest 20", start);
+
+        start = System.nanoTime();
+        for (int i = 0; i < LOOKUPS; i++) {
+            // a day of scans, cut off at 100
+            long from = START + random.nextInt(ROWS - 3000) * INTERVAL;
+            assertEquals(100, database.findScannedBetween(from, from + 24 * 60 * 60 * 1000L, 100).size());
+        }
+        logLookups("by date range, 100 of a day", start);
+
+        start = System.nanoTime();
+        for (int i = 0; i < LOOKUPS; i++) {
+            assertTrue(database.updateStatus(key(random.nextInt(ROWS)), ScanStatus.UPLOADED, START));
+        }
+        logLookups("status updates", start);
+    }
+
+    private static ScanRecord record(int i) {
+        long time = START + i * INTERVAL;
+        return new ScanRecord(key(i), "021000021", accountNumber(i), chequeNumber(i), 1000L + i % 100000,
+                time, time, ScanStatus.PROCESSED);
+    }
+
+    /**
+     * Content hashes are 64 hex digits, spread like SHA-256.
+     */
+    private static String key(int i) {
+        long mixed = i * 0x9E3779B97F4A7C15L;
+        String half = String.format(Locale.US, "%016x%016x", mixed, Long.reverse(mixed));
+        return half + half;
+    }
+
+    private static String accountNumber(int i) {
+        return String.format(Locale.US, "%010d", 4000000000L + i % ACCOUNTS);
+    }
+
+    private static String chequeNumber(int i) {
+        return String.format(Locale.US, "%06d", i / ACCOUNTS);
+    }
+
+    private static void logLookups(String what, long start) {
+        log("%s: %.1f us each", what, (System.nanoTime() - start) / 1e3 / LOOKUPS);
+    }
+
+    private static void log(String format, Object... arguments) {
+        Log.i(TAG, String.format(Locale.US, format, arguments));
+    }
+}
@@ -0,0 +1,62 @@
+package com.bioenable.chequescan;
+
+import android.net.Uri;
+
+import com.google.android.gms.auth.api.signin.GoogleSignInAccount;
+
+/**
+ * What the launcher shows of the signed in account. It is remembered in the preferences, so that
+ * the next start can draw the account before the silent sign in has finished.
+ */
+final class AccountSnapshot {
+
+    private final String email;
+    private final String displayName;
+    private final Uri photoUrl;
+
+    /**
+     * @param email       email of the account, the uploads go to its Drive
+     * @param displayName name of the user, may be null
+     * @param photoUrl    profile picture, may be null
+     */
+    AccountSnapshot(String email, String displayName, Uri photoUrl) {
+        this.email = email;
+        this.displayName = displayName;
+        this.photoUrl = photoUrl;
+    }
+
+    static AccountSnapshot of(GoogleSignInAccount account) {
+        return new AccountSnapshot(account.getEmail(), account.getDisplayName(), account.getPhotoUrl());
+    }
+
+    String getEmail() {
+        return email;
+    }
+
+    String getDisplayName() {
+        return displayName;
+    }
+
+    Uri getPhotoUrl() {
+        return photoUrl;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof AccountSnapshot)) {
+            return false;
+        }
+        AccountSnapshot other = (AccountSnapshot) o;
+        return equal(email, other.email) && equal(displayName, other.displayName)
+                && equal(photoUrl, other.photoUrl);
+    }
+
+    @Override
+    public int hashCode() {
+        return email != null ? email.hashCode() : 0;
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
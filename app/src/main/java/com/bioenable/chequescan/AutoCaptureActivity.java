@@ -0,0 +1,324 @@
+package com.bioenable.chequescan;
+
+import android.Manifest;
+import android.app.Activity;
+import android.content.pm.PackageManager;
+import android.graphics.ImageFormat;
+import android.hardware.Camera;
+import android.os.Bundle;
+import android.support.annotation.NonNull;
+import android.support.v4.app.ActivityCompat;
+import android.util.Log;
+import android.view.SurfaceHolder;
+import android.view.SurfaceView;
+import android.view.View;
+import android.widget.Button;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import com.bioenable.chequescan.capture.PreviewFrameAnalyzer;
+import com.bioenable.chequescan.geometry.Quad;
+import com.bioenable.chequescan.quality.QualityIssue;
+import com.bioenable.chequescan.quality.QualityReport;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Shows the camera preview and takes the photo by itself as soon as a sharp cheque has been held
+ * still in the frame for a moment. The preview frames are analysed by a PreviewFrameAnalyzer, fed
+ * through Camera.setPreviewCallbackWithBuffer with the analyzer's ring of buffers, so that the
+ * preview does not allocate. A hint above the preview tells the user what is still wrong and the
+ * Capture button takes the photo straight away.
+ * <p>
+ * The JPEG is written to the file given in {@link #EXTRA_OUTPUT}. When the camera cannot be opened
+ * the activity finishes with {@link #RESULT_NO_CAMERA}, so that the caller can fall back to the
+ * camera app.
+ */
+public class AutoCaptureActivity extends Activity implements SurfaceHolder.Callback,
+        Camera.PreviewCallback, PreviewFrameAnalyzer.Listener {
+
+    /**
+     * Absolute path of the file the JPEG is written to
+     */
+    public static final String EXTRA_OUTPUT = "com.bioenable.chequescan.extra.OUTPUT";
+
+    /**
+     * Result code when the camera could not be opened
+     */
+    public static final int RESULT_NO_CAMERA = RESULT_FIRST_USER;
+
+    private static final String TAG = "AutoCaptureActivity";
+    private static final int CAMERA_PERMISSION = 1999;
+    // preview size the frames are analysed at, the closest supported size is used
+    private static final int PREVIEW_WIDTH = 1280;
+    private static final int PREVIEW_HEIGHT = 720;
+
+    private File output;
+    private SurfaceHolder holder;
+    private TextView hint;
+    private boolean surfaceReady;
+    private boolean capturing;
+    private volatile Camera camera;
+    private PreviewFrameAnalyzer analyzer;
+    private ExecutorService writer;
+    // used on the analysis thread only
+    private Set<QualityIssue> lastIssues;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.auto_capture_activity);
+        output = new File(getIntent().getStringExtra(EXTRA_OUTPUT));
+        writer = Executors.newSingleThreadExecutor();
+        hint = (TextView) findViewById(R.id.hint);
+        holder = ((SurfaceView) findViewById(R.id.preview)).getHolder();
+        holder.addCallback(this);
+        Button shutter = (Button) findViewById(R.id.shutter_btn);
+        shutter.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View view) {
+                takePicture();
+            }
+        });
+        if (ActivityCompat.checkSelfPermission(this, Manifest.permission.CAMERA) != PackageManager.PERMISSION_GRANTED) {
+            ActivityCompat.requestPermissions(this, new String[]{Manifest.permission.CAMERA}, CAMERA_PERMISSION);
+        }
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        if (surfaceReady) {
+            openCamera();
+        }
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        releaseCamera();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        writer.shutdown();
+    }
+
+    @Override
+    public void onRequestPermissionsResult(int requestCode, @NonNull String permissions[], @NonNull int[] grantResults) {
+        if (requestCode != CAMERA_PERMISSION) {
+            return;
+        }
+        if (grantResults.length > 0 && grantResults[0] == PackageManager.PERMISSION_GRANTED) {
+            if (surfaceReady) {
+                openCamera();
+            }
+        } else {
+            Toast.makeText(getApplicationContext(), "Permission to use the camera was denied.", Toast.LENGTH_SHORT).show();
+            setResult(RESULT_CANCELED);
+            finish();
+        }
+    }
+
+    @Override
+    public void surfaceCreated(SurfaceHolder surfaceHolder) {
+        surfaceReady = true;
+        openCamera();
+    }
+
+    @Override
+    public void surfaceChanged(SurfaceHolder surfaceHolder, int format, int width, int height) {
+    }
+
+    @Override
+    public void surfaceDestroyed(SurfaceHolder surfaceHolder) {
+        surfaceReady = false;
+        releaseCamera();
+    }
+
+    /**
+     * Opens the back camera and starts the preview with the analyzer's buffers.
+     */
+    private void openCamera() {
+        if (camera != null || isFinishing()
+                || ActivityCompat.checkSelfPermission(this, Manifest.permission.CAMERA) != PackageManager.PERMISSION_GRANTED) {
+            return;
+        }
+        Camera opened;
+        try {
+            opened = Camera.open();
+        } catch (RuntimeException e) {
+            opened = null;
+        }
+        if (opened == null) {
+            setResult(RESULT_NO_CAMERA);
+            finish();
+            return;
+        }
+        try {
+            Camera.Parameters parameters = opened.getParameters();
+            Camera.Size previewSize = closestSize(parameters.getSupportedPreviewSizes(),
+                    PREVIEW_WIDTH * PREVIEW_HEIGHT);
+            Camera.Size pictureSize = closestSize(parameters.getSupportedPictureSizes(), Integer.MAX_VALUE);
+            parameters.setPreviewSize(previewSize.width, previewSize.height);
+            parameters.setPreviewFormat(ImageFormat.NV21);
+            parameters.setPictureSize(pictureSize.width, pictureSize.height);
+            parameters.setPictureFormat(ImageFormat.JPEG);
+            if (parameters.getSupportedFocusModes().contains(Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE)) {
+                parameters.setFocusMode(Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE);
+            }
+            opened.setParameters(parameters);
+            opened.setPreviewDisplay(holder);
+
+            analyzer = new PreviewFrameAnalyzer(previewSize.width, previewSize.height, this);
+            for (byte[] buffer : analyzer.getBuffers()) {
+                opened.addCallbackBuffer(buffer);
+            }
+            opened.setPreviewCallbackWithBuffer(this);
+            opened.startPreview();
+            camera = opened;
+            capturing = false;
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Could not start the preview", e);
+            opened.release();
+            if (analyzer != null) {
+                analyzer.close();
+                analyzer = null;
+            }
+            setResult(RESULT_NO_CAMERA);
+            finish();
+        }
+    }
+
+    private void releaseCamera() {
+        Camera released = camera;
+        if (released == null) {
+            return;
+        }
+        camera = null;
+        released.setPreviewCallbackWithBuffer(null);
+        released.stopPreview();
+        released.release();
+        analyzer.close();
+        analyzer = null;
+    }
+
+    /**
+     * @param sizes  sizes supported by the camera
+     * @param pixels wanted number of pixels
+     * @return the size whose number of pixels is closest to the wanted one
+     */
+    private static Camera.Size closestSize(List<Camera.Size> sizes, int pixels) {
+        Camera.Size best = sizes.get(0);
+        for (Camera.Size size : sizes) {
+            if (Math.abs((long) size.width * size.height - pixels)
+                    < Math.abs((long) best.width * best.height - pixels)) {
+                best = size;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Called on the main thread with every filled preview buffer. A frame the analyzer does not
+     * take goes straight back to the camera.
+     */
+    @Override
+    public void onPreviewFrame(byte[] data, Camera previewCamera) {
+        if (analyzer == null || !analyzer.offer(data)) {
+            previewCamera.addCallbackBuffer(data);
+        }
+    }
+
+    @Override
+    public void onFrameAnalyzed(byte[] frame, QualityReport report) {
+        Camera current = camera;
+        if (current != null) {
+            try {
+                current.addCallbackBuffer(frame);
+            } catch (RuntimeException e) {
+                // released on the main thread in the meantime
+            }
+        }
+        final Set<QualityIssue> issues = report.getIssues();
+        if (!issues.equals(lastIssues)) {
+            lastIssues = issues;
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    hint.setText(issues.isEmpty() ? "Hold still" : QualityChecker.describe(issues));
+                }
+            });
+        }
+    }
+
+    @Override
+    public void onChequeStable(Quad corners) {
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                takePicture();
+            }
+        });
+    }
+
+    private void takePicture() {
+        final Camera current = camera;
+        if (current == null || capturing) {
+            return;
+        }
+        capturing = true;
+        hint.setText("Capturing...");
+        current.takePicture(null, null, new Camera.PictureCallback() {
+            @Override
+            public void onPictureTaken(byte[] data, Camera pictureCamera) {
+                writePicture(data);
+            }
+        });
+    }
+
+    /**
+     * Writes the JPEG to the output file off the main thread and finishes once it is on disk.
+     */
+    private void writePicture(final byte[] jpeg) {
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean written;
+                try (FileOutputStream out = new FileOutputStream(output)) {
+                    out.write(jpeg);
+                    written = true;
+                } catch (IOException e) {
+                    Log.w(TAG, "Could not write the photo", e);
+                    written = false;
+                }
+                final boolean success = written;
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (success) {
+                            setResult(RESULT_OK);
+                            finish();
+                            return;
+                        }
+                        Toast.makeText(getApplicationContext(), "Could not save the photo", Toast.LENGTH_SHORT).show();
+                        capturing = false;
+                        Camera current = camera;
+                        if (current != null) {
+                            // takePicture stops the preview
+                            current.startPreview();
+                            analyzer.rearm();
+                        }
+                    }
+                });
+            }
+        });
+    }
+}
@@ -0,0 +1,446 @@
+package com.bioenable.chequescan;
+
+import android.database.sqlite.SQLiteException;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.bioenable.chequescan.archive.ArchiveWriter;
+import com.bioenable.chequescan.batch.BatchCheque;
+import com.bioenable.chequescan.batch.BatchPipeline;
+import com.bioenable.chequescan.batch.ChequeProcessingStage;
+import com.bioenable.chequescan.batch.ChequeRejectedException;
+import com.bioenable.chequescan.batch.ManifestStage;
+import com.bioenable.chequescan.export.CashLetterHeader;
+import com.bioenable.chequescan.export.CashLetterItem;
+import com.bioenable.chequescan.export.CashLetterWriter;
+import com.bioenable.chequescan.export.ImageFormat;
+import com.bioenable.chequescan.micr.MicrLine;
+import com.bioenable.chequescan.records.ScanRecord;
+import com.bioenable.chequescan.records.ScanStatus;
+import com.bioenable.chequescan.remote.UploadQueue;
+import com.bioenable.chequescan.store.ContentStore;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A batch scanning session: the photos of a stack of cheques go through a BatchPipeline of four
+ * stages while the teller photographs the next cheque.
+ * <p>
+ * 1. store: moves the photo into the ContentStore
+ * 2. decode: decodes it at full resolution into gray pixels
+ * 3. process: straightens, binarizes and reads the code line (ChequeProcessingStage)
+ * 4. persist: appends the result to the session manifest (ManifestStage)
+ * <p>
+ * Processed cheques and, at the end, the manifest are queued for upload to Drive. The records of
+ * all cheques go into the ScanDatabase in one transaction when the session ends. When the bank
+ * details are set up, the processed cheques are also written to an X9.37 cash letter next to the
+ * manifest, which is uploaded as well. Every processed cheque gets a Group 4 archive copy in the
+ * archive directory.
+ * <p>
+ * The queues hold one cheque each, a decoded 12 MP photo takes 12 MB. When the pipeline is full,
+ * {@link #add(File)} waits on a background thread and {@link Callback#onReadyForNext()} only comes
+ * once the photo was taken, so the camera is not opened again before there is room. All callbacks
+ * run on the main thread.
+ * <p>
+ * The session outlives the activity which started it, it is kept by the ChequeScanApplication so
+ * that turning the phone between two photos does not end it. While the activity is recreated the
+ * callback is detached; the last onReadyForNext and onFinished are handed to the next callback.
+ */
+final class BatchScanSession {
+
+    private static final String TAG = "BatchScanSession";
+    private static final int QUEUE_CAPACITY = 1;
+    private static final int DECODE_ROWS = 64;
+    // how long interrupted stages get to stop before they are given up
+    private static final int STOP_TIMEOUT_SECONDS = 5;
+
+    interface Callback {
+
+        /**
+         * The last photo was taken by the pipeline, the next one can be captured.
+         */
+        void onReadyForNext();
+
+        /**
+         * @param cheque the cheque which left the pipeline
+         * @param error  why it failed or null if it was processed
+         */
+        void onChequeDone(BatchCheque cheque, String error);
+
+        /**
+         * @param summary number of cheques, failures and the throughput of the session
+         */
+        void onFinished(String summary);
+    }
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final ExecutorService feeder = Executors.newSingleThreadExecutor();
+    private final File manifest;
+    private final String name;
+    private final UploadQueue uploads;
+    private final ScanDatabase records;
+    private final CashLetterHeader cashLetterHeader;
+    // guarded by this
+    private List<ScanRecord> pendingRecords = new ArrayList<>();
+    // guarded by this
+    private final List<CashLetterItem> cashLetterItems = new ArrayList<>();
+    private final ChequeProcessingStage processingStage;
+    private final ManifestStage manifestStage;
+    private final BatchPipeline<BatchCheque> pipeline;
+    private int captured;
+    // used on the main thread only
+    private Callback callback;
+    private File capture;
+    private boolean readyForNext;
+    private String summary;
+
+    /**
+     * Starts the stage threads. Opens the manifest, so it has to be called on a worker thread.
+     *
+     * @param store    store the photos are moved into
+     * @param manifest file the results are written to, its name without extension names the batch
+     * @param uploads  queue the processed cheques and the manifest are uploaded by
+     * @param records  database the records of the cheques are written to
+     * @param header   sender and receiver of the cash letter or null to write none
+     * @param archive  directory the archive copies of the processed cheques are written to
+     * @throws IOException if the manifest cannot be created
+     */
+    BatchScanSession(final ContentStore store, File manifest, UploadQueue uploads, ScanDatabase records,
+                     CashLetterHeader header, File archive) throws IOException {
+        this.manifest = manifest;
+        this.name = manifest.getName().replaceFirst("\\.csv$", "");
+        this.uploads = uploads;
+        this.records = records;
+        this.cashLetterHeader = header;
+        manifestStage = new ManifestStage(new OutputStreamWriter(new FileOutputStream(manifest), "UTF-8"));
+        processingStage = new ChequeProcessingStage(Runtime.getRuntime().availableProcessors(), archive);
+        pipeline = new BatchPipeline<>(QUEUE_CAPACITY, new BatchPipeline.Listener<BatchCheque>() {
+            @Override
+            public void onCompleted(BatchCheque cheque) {
+                upload(cheque.getEntry().getFile(), name + "_" + cheque.getSequence() + ".jpg");
+                record(cheque, ScanStatus.PROCESSED);
+                post(cheque, null);
+            }
+
+            @Override
+            public void onFailed(BatchCheque cheque, String stage, Exception e) {
+                Log.w(TAG, cheque + " failed in " + stage, e);
+                if (cheque.getEntry() != null) {
+                    record(cheque, ScanStatus.FAILED);
+                }
+                post(cheque, e.getMessage() != null ? e.getMessage() : stage + " failed");
+            }
+        });
+        pipeline.addStage("store", new BatchPipeline.Stage<BatchCheque>() {
+            @Override
+            public void process(BatchCheque cheque) throws IOException {
+                cheque.setEntry(store.commit(cheque.getCapture(), null));
+            }
+        }).addStage("decode", new DecodeStage())
+                .addStage("process", processingStage)
+                .addStage("persist", manifestStage)
+                .start();
+    }
+
+    /**
+     * Hands a photo to the pipeline. Has to be called on the main thread.
+     *
+     * @param capture file the photo was written to
+     */
+    void add(File capture) {
+        final BatchCheque cheque = new BatchCheque(++captured, capture);
+        feeder.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    pipeline.submit(cheque);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (callback != null) {
+                            callback.onReadyForNext();
+                        } else {
+                            readyForNext = true;
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Attaches the activity which follows the session, or detaches it while it is recreated. Has to
+     * be called on the main thread.
+     *
+     * @param callback told about the progress from now on, null to hold the events back
+     */
+    void setCallback(Callback callback) {
+        this.callback = callback;
+        if (callback == null) {
+            return;
+        }
+        if (readyForNext) {
+            readyForNext = false;
+            callback.onReadyForNext();
+        }
+        if (summary != null) {
+            callback.onFinished(summary);
+        }
+    }
+
+    /**
+     * @return file the camera is writing the next photo to, null if the camera is not open
+     */
+    File getCapture() {
+        return capture;
+    }
+
+    /**
+     * @param capture file the camera writes the next photo to
+     */
+    void setCapture(File capture) {
+        this.capture = capture;
+    }
+
+    /**
+     * @return number of photos handed to the session
+     */
+    int getCaptured() {
+        return captured;
+    }
+
+    /**
+     * Lets the cheques in the pipeline finish, then reports the summary. Stages still busy after a
+     * minute are interrupted. They are released, and the manifest is uploaded, only once their
+     * threads have stopped.
+     */
+    void finish() {
+        feeder.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean stopped;
+                try {
+                    pipeline.finish();
+                    stopped = pipeline.awaitTermination(1, TimeUnit.MINUTES) || stop();
+                } catch (InterruptedException e) {
+                    // aborted, abort() releases the stages
+                    return;
+                }
+                if (stopped) {
+                    release();
+                }
+                writeRecords();
+                writeCashLetter();
+                if (stopped) {
+                    upload(manifest, manifest.getName());
+                }
+                final String result = String.format(Locale.US, "%d cheques scanned, %d failed, %.1f cheques/min",
+                        pipeline.getCompleted(), pipeline.getFailed(), pipeline.getItemsPerMinute());
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        summary = result;
+                        if (callback != null) {
+                            callback.onFinished(result);
+                        }
+                    }
+                });
+            }
+        });
+        feeder.shutdown();
+    }
+
+    /**
+     * Stops the session straight away, cheques still in the pipeline are not processed.
+     */
+    void abort() {
+        feeder.shutdownNow();
+        pipeline.close();
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (stop()) {
+                        release();
+                    }
+                } catch (InterruptedException e) {
+                    Log.w(TAG, "Interrupted while the stages stopped, they are not released");
+                }
+                // the cheques which made it through are kept
+                writeRecords();
+            }
+        });
+    }
+
+    /**
+     * Interrupts the stages and waits for their threads. A stage must not be released while its
+     * thread still runs, it would lose its buffers or the manifest in the middle of a cheque.
+     *
+     * @return whether every stage stopped
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    private boolean stop() throws InterruptedException {
+        pipeline.close();
+        if (pipeline.awaitTermination(STOP_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            return true;
+        }
+        Log.w(TAG, "Stages did not stop, their buffers and the manifest are left open");
+        return false;
+    }
+
+    private void release() {
+        processingStage.close();
+        try {
+            manifestStage.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Could not close the manifest", e);
+        }
+    }
+
+    private synchronized void record(BatchCheque cheque, ScanStatus status) {
+        ScanRecord record = ScanRecord.of(cheque.getEntry().getHash(), cheque.getMicr(), status,
+                System.currentTimeMillis());
+        pendingRecords.add(record);
+        // only the numbers and the file are kept, the image is read again when the letter is written
+        MicrLine micr = cheque.getMicr();
+        if (status == ScanStatus.PROCESSED && cashLetterHeader != null && micr != null && cheque.getArchive() != null
+                && CashLetterHeader.isRoutingNumber(micr.getRoutingNumber())) {
+            // the archive is turned into the Group 4 page of the letter when it is written
+            cashLetterItems.add(new CashLetterItem(micr.getRoutingNumber(), micr.getAccountNumber(),
+                    micr.getChequeNumber(), record.getAmount() != null ? record.getAmount() : 0, micr.isComplete(),
+                    cheque.getArchive(), ImageFormat.TIFF_G4));
+        }
+    }
+
+    /**
+     * Writes the processed cheques with a readable routing number to name.x937 and queues it for
+     * upload. The others have to be presented by hand. The image of each cheque is the bitonal page
+     * of its archive copy, written to a scratch file just before the cheque goes into the letter.
+     */
+    private void writeCashLetter() {
+        List<CashLetterItem> items;
+        synchronized (this) {
+            items = new ArrayList<>(cashLetterItems);
+        }
+        if (items.isEmpty()) {
+            return;
+        }
+        File file = new File(manifest.getParentFile(), name + ".x937");
+        File page = new File(manifest.getParentFile(), name + ".page.tif");
+        ArchiveWriter pageWriter = new ArchiveWriter();
+        try {
+            CashLetterWriter writer = new CashLetterWriter(new FileOutputStream(file), cashLetterHeader);
+            try {
+                for (CashLetterItem item : items) {
+                    pageWriter.writePage(item.getImage(), page);
+                    writer.add(new CashLetterItem(item.getRoutingNumber(), item.getAccountNumber(),
+                            item.getChequeNumber(), item.getAmount(), item.isMicrValid(), page, item.getFormat()));
+                }
+            } finally {
+                writer.close();
+                if (page.exists() && !page.delete()) {
+                    Log.w(TAG, "Could not delete " + page);
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not write the cash letter", e);
+            if (!file.delete()) {
+                Log.w(TAG, "Could not delete " + file);
+            }
+            return;
+        }
+        upload(file, file.getName());
+    }
+
+    /**
+     * Writes the records collected so far in one transaction.
+     */
+    private void writeRecords() {
+        List<ScanRecord> batch;
+        synchronized (this) {
+            batch = pendingRecords;
+            pendingRecords = new ArrayList<>();
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            records.putAll(batch);
+        } catch (SQLiteException e) {
+            // the cheques are still in the manifest
+            Log.w(TAG, "Could not record " + batch.size() + " cheques", e);
+        }
+    }
+
+    private void upload(File file, String uploadName) {
+        try {
+            uploads.enqueue(file, uploadName);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not queue " + uploadName + " for upload", e);
+        }
+    }
+
+    private void post(final BatchCheque cheque, final String error) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (callback != null) {
+                    callback.onChequeDone(cheque, error);
+                }
+            }
+        });
+    }
+
+    /**
+     * Decodes the stored photo at full resolution. RGB_565 halves the size of the bitmap, the gray
+     * pixels are converted a band of rows at a time so that no full size ARGB array is needed.
+     */
+    private static class DecodeStage implements BatchPipeline.Stage<BatchCheque> {
+
+        private int[] rows = new int[0];
+
+        @Override
+        public void process(BatchCheque cheque) throws ChequeRejectedException {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inPreferredConfig = Bitmap.Config.RGB_565;
+            Bitmap bitmap = BitmapFactory.decodeFile(cheque.getEntry().getFile().getAbsolutePath(), options);
+            if (bitmap == null) {
+                throw new ChequeRejectedException("The photo could not be decoded");
+            }
+            int width = bitmap.getWidth();
+            int height = bitmap.getHeight();
+            if (rows.length < width * DECODE_ROWS) {
+                rows = new int[width * DECODE_ROWS];
+            }
+            byte[] gray = new byte[width * height];
+            for (int top = 0; top < height; top += DECODE_ROWS) {
+                int count = Math.min(DECODE_ROWS, height - top);
+                bitmap.getPixels(rows, 0, width, 0, top, width, count);
+                for (int i = 0, o = top * width, end = count * width; i < end; i++, o++) {
+                    int pixel = rows[i];
+                    // the same luma weights as ChequePreprocessor
+                    gray[o] = (byte) ((77 * ((pixel >> 16) & 0xFF) + 150 * ((pixel >> 8) & 0xFF)
+                            + 29 * (pixel & 0xFF) + 128) >> 8);
+                }
+            }
+            bitmap.recycle();
+            cheque.setGray(gray, width, height);
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package com.bioenable.chequescan;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.DisplayMetrics;
+import android.util.Log;
+import android.view.ViewGroup;
+import android.widget.ImageView;
+
+import com.bioenable.chequescan.jpeg.JpegHeader;
+import com.bioenable.chequescan.jpeg.Orientation;
+import com.bioenable.chequescan.metrics.ScanCounter;
+import com.bioenable.chequescan.metrics.ScanMetrics;
+import com.bioenable.chequescan.metrics.ScanStage;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Decodes downsampled previews of the captured images on a worker thread and delivers them to an
+ * ImageView on the main thread.
+ * <p>
+ * The images from the camera are 8 - 13 MP. Decoding them at full resolution takes around 50 MB of
+ * memory and blocks the UI thread, just to fill a thumbnail sized view. The loader first reads only
+ * the bounds of the image and then decodes it with the largest power of two sample size which still
+ * covers the size of the target view. The full resolution file stays untouched on disk for the
+ * analysis.
+ * <p>
+ * Before that the thumbnail camera apps embed in the EXIF segment is shown, which only needs the
+ * header of the file and is on screen long before the preview is decoded. Both are drawn turned by
+ * the EXIF orientation through an {@link OrientedBitmapDrawable}, so portrait photos stand upright
+ * without a rotated copy of the bitmap.
+ * <p>
+ * Decodes reuse bitmaps from the {@link BitmapPool}. When a view gets a new preview the one it
+ * showed before goes back to the pool.
+ *
+ * @see <a href="https://developer.android.com/topic/performance/graphics/load-bitmap.html">Loading Large Bitmaps Efficiently</a>
+ */
+class BitmapLoader {
+
+    private static final String TAG = "BitmapLoader";
+    // the header segments of a camera JPEG, EXIF with its thumbnail included, fit into a few reads
+    private static final int HEADER_BUFFER = 16 * 1024;
+
+    private final ExecutorService executor;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final BitmapPool pool;
+    // previews this loader has put into views, only touched on the main thread
+    private final Map<ImageView, Bitmap> shown = new WeakHashMap<>();
+
+    BitmapLoader(BitmapPool pool) {
+        this.pool = pool;
+        // Decodes run one after the other, two full size decodes at once would double the peak memory
+        this.executor = Executors.newSingleThreadExecutor();
+    }
+
+    /**
+     * Decodes the image at path in the background and shows it in target. If load is called again
+     * for the same view before the decode has finished, the older result is dropped.
+     *
+     * @param path   path to the full resolution image
+     * @param target    view the preview is shown in. Its size decides how much the image is
+     *                  downsampled.
+     * @param scanStart value of {@link ScanMetrics#start()} when the user asked for the image, the
+     *                  {@link ScanStage#TOTAL} latency is recorded when the preview is shown
+     */
+    void load(final String path, final ImageView target, final long scanStart) {
+        final int reqWidth = targetWidth(target);
+        final int reqHeight = targetHeight(target);
+        target.setTag(path);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long decodeStart = ScanMetrics.start();
+                JpegHeader header = readHeader(path);
+                Orientation orientation = header != null ? header.getOrientation() : Orientation.NORMAL;
+                if (header != null && header.getThumbnail() != null) {
+                    Bitmap thumbnail = decodeThumbnail(header.getThumbnail(), pool);
+                    if (thumbnail != null) {
+                        deliver(path, target, thumbnail, orientation, ScanMetrics.start(), scanStart, true);
+                    }
+                }
+                // the view's size applies to the turned image
+                boolean transposed = orientation.isTransposed();
+                Bitmap bitmap = decodeSampled(path, transposed ? reqHeight : reqWidth,
+                        transposed ? reqWidth : reqHeight, pool);
+                ScanMetrics.record(ScanStage.DECODE, decodeStart);
+                deliver(path, target, bitmap, orientation, ScanMetrics.start(), scanStart, false);
+            }
+        });
+    }
+
+    /**
+     * Shows a decoded image in target on the main thread, unless another image has been asked for
+     * since. The preview replaces the thumbnail, which arrives before it.
+     */
+    private void deliver(final String path, final ImageView target, final Bitmap bitmap,
+                         final Orientation orientation, final long displayStart, final long scanStart,
+                         final boolean thumbnail) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (bitmap == null) {
+                    Log.w(TAG, "Could not decode " + path);
+                    return;
+                }
+                if (!path.equals(target.getTag())) {
+                    pool.put(bitmap);
+                    return;
+                }
+                target.setImageDrawable(new OrientedBitmapDrawable(bitmap, orientation));
+                pool.put(shown.put(target, bitmap));
+                if (thumbnail) {
+                    ScanMetrics.record(ScanStage.THUMBNAIL, scanStart);
+                } else {
+                    ScanMetrics.record(ScanStage.DISPLAY, displayStart);
+                    ScanMetrics.record(ScanStage.TOTAL, scanStart);
+                }
+            }
+        });
+    }
+
+    /**
+     * Reads the header of a JPEG, without its image data. Has to be called on a worker thread.
+     *
+     * @param path path to the image file
+     * @return the header or null if the file is not a JPEG or cannot be read
+     */
+    static JpegHeader readHeader(String path) {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(path), HEADER_BUFFER)) {
+            return JpegHeader.read(in);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param jpeg the embedded EXIF thumbnail
+     * @param pool pool the bitmap to decode into is taken from
+     * @return the decoded thumbnail or null if it is broken
+     */
+    private static Bitmap decodeThumbnail(byte[] jpeg, BitmapPool pool) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        options.inJustDecodeBounds = false;
+        options.inMutable = true;
+        options.inBitmap = pool.getForDecode(options.outWidth, options.outHeight);
+        Bitmap bitmap;
+        try {
+            bitmap = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
+        } catch (IllegalArgumentException e) {
+            pool.put(options.inBitmap);
+            options.inBitmap = null;
+            bitmap = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
+        }
+        if (bitmap == null) {
+            pool.put(options.inBitmap);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Stops the decode thread. Pending decodes are not delivered anymore.
+     */
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Decodes the image at path so that it is at least reqWidth x reqHeight large, but not more than
+     * twice that in either dimension. Has to be called on a worker thread.
+     *
+     * @param path      path to the image file
+     * @param reqWidth  width of the view the image is shown in
+     * @param reqHeight height of the view the image is shown in
+     * @param pool      pool the bitmap to decode into is taken from
+     * @return the decoded bitmap or null if the file is not an image
+     */
+    static Bitmap decodeSampled(String path, int reqWidth, int reqHeight, BitmapPool pool) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        options.inSampleSize = calculateInSampleSize(options.outWidth, options.outHeight,
+                reqWidth, reqHeight);
+        options.inJustDecodeBounds = false;
+        options.inMutable = true;
+        options.inBitmap = pool.getForDecode(
+                divideRoundingUp(options.outWidth, options.inSampleSize),
+                divideRoundingUp(options.outHeight, options.inSampleSize));
+        Bitmap bitmap;
+        try {
+            bitmap = BitmapFactory.decodeFile(path, options);
+        } catch (IllegalArgumentException e) {
+            // the pooled bitmap could not be reused for this image after all
+            pool.put(options.inBitmap);
+            options.inBitmap = null;
+            bitmap = BitmapFactory.decodeFile(path, options);
+        }
+        if (bitmap == null) {
+            pool.put(options.inBitmap);
+            return null;
+        }
+        ScanMetrics.add(ScanCounter.IMAGES_DECODED, 1);
+        ScanMetrics.add(ScanCounter.SOURCE_PIXELS, (long) options.outWidth * options.outHeight);
+        ScanMetrics.add(ScanCounter.DECODED_PIXELS, (long) bitmap.getWidth() * bitmap.getHeight());
+        return bitmap;
+    }
+
+    private static int divideRoundingUp(int value, int divisor) {
+        return (value + divisor - 1) / divisor;
+    }
+
+    /**
+     * Calculates the largest power of two sample size which keeps both dimensions of the decoded
+     * image at or above the requested size.
+     *
+     * @param width     width of the full image
+     * @param height    height of the full image
+     * @param reqWidth  requested width
+     * @param reqHeight requested height
+     * @return sample size to pass in BitmapFactory.Options.inSampleSize
+     */
+    static int calculateInSampleSize(int width, int height, int reqWidth, int reqHeight) {
+        int inSampleSize = 1;
+        if (height > reqHeight || width > reqWidth) {
+            int halfHeight = height / 2;
+            int halfWidth = width / 2;
+            while ((halfHeight / inSampleSize) >= reqHeight && (halfWidth / inSampleSize) >= reqWidth) {
+                inSampleSize *= 2;
+            }
+        }
+        return inSampleSize;
+    }
+
+    /*
+     * The view may not be laid out yet when an image arrives (for example right after the activity
+     * was recreated behind the camera). Then the size from the layout params is used and if that is
+     * not fixed either, the size of the screen.
+     */
+
+    private static int targetWidth(ImageView view) {
+        if (view.getWidth() > 0) {
+            return view.getWidth();
+        }
+        ViewGroup.LayoutParams params = view.getLayoutParams();
+        if (params != null && params.width > 0) {
+            return params.width;
+        }
+        return displayMetrics(view).widthPixels;
+    }
+
+    private static int targetHeight(ImageView view) {
+        if (view.getHeight() > 0) {
+            return view.getHeight();
+        }
+        ViewGroup.LayoutParams params = view.getLayoutParams();
+        if (params != null && params.height > 0) {
+            return params.height;
+        }
+        return displayMetrics(view).heightPixels;
+    }
+
+    private static DisplayMetrics displayMetrics(ImageView view) {
+        return view.getResources().getDisplayMetrics();
+    }
+}
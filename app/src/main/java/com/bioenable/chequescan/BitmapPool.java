@@ -0,0 +1,112 @@
+package com.bioenable.chequescan;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.util.Log;
+
+import com.bioenable.chequescan.cache.BucketedLruPool;
+
+/**
+ * App wide pool of mutable bitmaps. Previews which are not shown anymore and scratch bitmaps are
+ * returned here and reused by the next decode (through BitmapFactory.Options.inBitmap) or
+ * transformation, instead of allocating new bitmaps for every scanned cheque.
+ * <p>
+ * Since KitKat a bitmap can be reused for any image whose pixels fit into its allocation, so the pool
+ * is bucketed by allocation size only. Bitmaps evicted because of the byte budget are recycled.
+ * The hit, miss and eviction counters of {@link BucketedLruPool} show how well the budget fits the
+ * scanning sessions.
+ */
+class BitmapPool extends BucketedLruPool<Bitmap> {
+
+    private static final String TAG = "BitmapPool";
+
+    private static BitmapPool instance;
+
+    /**
+     * @return the pool shared by all activities. An eighth of the heap is used as its budget.
+     */
+    static synchronized BitmapPool getInstance() {
+        if (instance == null) {
+            instance = new BitmapPool(Runtime.getRuntime().maxMemory() / 8);
+        }
+        return instance;
+    }
+
+    BitmapPool(long maxBytes) {
+        super(maxBytes);
+    }
+
+    /**
+     * Gives a mutable bitmap of exactly the given size and config. Its pixels are cleared.
+     *
+     * @param width  width of the bitmap
+     * @param height height of the bitmap
+     * @param config pixel config, ARGB_8888 if null
+     * @return a pooled bitmap or a newly allocated one if the pool has nothing suitable
+     */
+    Bitmap get(int width, int height, Bitmap.Config config) {
+        if (config == null) {
+            config = Bitmap.Config.ARGB_8888;
+        }
+        Bitmap bitmap = acquire(width * height * bytesPerPixel(config));
+        if (bitmap == null) {
+            return Bitmap.createBitmap(width, height, config);
+        }
+        bitmap.reconfigure(width, height, config);
+        bitmap.eraseColor(Color.TRANSPARENT);
+        return bitmap;
+    }
+
+    /**
+     * Gives a bitmap which can be passed to BitmapFactory.Options.inBitmap to decode an image of the
+     * given size into. The decoder reconfigures it, so its current size does not matter.
+     *
+     * @param width  width of the decoded image
+     * @param height height of the decoded image
+     * @return a pooled bitmap or null if the pool has nothing large enough
+     */
+    Bitmap getForDecode(int width, int height) {
+        return acquire(width * height * bytesPerPixel(Bitmap.Config.ARGB_8888));
+    }
+
+    /**
+     * Returns a bitmap to the pool. Immutable and recycled bitmaps cannot be reused and are ignored.
+     *
+     * @param bitmap bitmap which is not referenced by any view anymore
+     */
+    void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()) {
+            return;
+        }
+        release(bitmap);
+    }
+
+    @Override
+    protected int sizeOf(Bitmap bitmap) {
+        return bitmap.getAllocationByteCount();
+    }
+
+    @Override
+    protected void onEvicted(Bitmap bitmap) {
+        bitmap.recycle();
+    }
+
+    /**
+     * Writes the pool counters to logcat.
+     */
+    void logStats() {
+        Log.i(TAG, toString());
+    }
+
+    private static int bytesPerPixel(Bitmap.Config config) {
+        switch (config) {
+            case ALPHA_8:
+                return 1;
+            case RGB_565:
+            case ARGB_4444:
+                return 2;
+            default:
+                return 4;
+        }
+    }
+}
@@ -0,0 +1,405 @@
+package com.bioenable.chequescan;
+
+import android.app.Application;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.sqlite.SQLiteException;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Build;
+import android.os.Environment;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.bioenable.chequescan.duplicate.DuplicateIndex;
+import com.bioenable.chequescan.export.CashLetterHeader;
+import com.bioenable.chequescan.metrics.StartupTrace;
+import com.bioenable.chequescan.records.ScanStatus;
+import com.bioenable.chequescan.remote.HttpUploadTransport;
+import com.bioenable.chequescan.remote.UploadItem;
+import com.bioenable.chequescan.remote.UploadQueue;
+import com.bioenable.chequescan.store.ContentStore;
+import com.bioenable.chequescan.store.StorageManager;
+import com.bioenable.chequescan.store.StorageQuota;
+import com.bioenable.chequescan.transfer.TransferEngine;
+import com.google.android.gms.common.api.GoogleApiClient;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Holds the state which lives as long as the process and is shared by the activities.
+ */
+public class ChequeScanApplication extends Application {
+
+    /**
+     * Number of images downloaded or copied at the same time
+     */
+    static final int TRANSFER_THREADS = 3;
+
+    private static final String TAG = "ChequeScanApplication";
+    private static final String STORE_DIRECTORY = "store";
+    private static final String FINGERPRINTS = "fingerprints.log";
+    private static final String ARCHIVE_DIRECTORY = "archive";
+    private static final String UPLOAD_JOURNAL = "uploads.log";
+    private static final String PREFERENCES = "chequescan";
+    private static final String UPLOAD_ACCOUNT = "upload_account";
+    private static final String ACCOUNT_NAME = "account_name";
+    private static final String ACCOUNT_PHOTO = "account_photo";
+    // routing numbers and names of the bank of first deposit and of the bank it clears through
+    private static final String ORIGIN_ROUTING = "origin_routing";
+    private static final String ORIGIN_NAME = "origin_name";
+    private static final String DESTINATION_ROUTING = "destination_routing";
+    private static final String DESTINATION_NAME = "destination_name";
+    // limits of the image store, the kiosks run for months without anybody clearing them
+    private static final String STORAGE_MAX_MB = "storage_max_mb";
+    private static final String STORAGE_MAX_DAYS = "storage_max_days";
+    private static final int DEFAULT_STORAGE_MAX_MB = 2048;
+    private static final int DEFAULT_STORAGE_MAX_DAYS = 30;
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+    private static final long EVICTION_PERIOD_MILLIS = 30 * 60 * 1000L;
+    // captures and downloads nobody came back for within a day are dropped
+    private static final long PENDING_MAX_AGE_MILLIS = DAY_MILLIS;
+    // start of the process on devices which cannot tell it, the first app code which runs
+    private static final long CLASS_LOADED = SystemClock.uptimeMillis();
+
+    // written under the lock once it is open, read without it by getOpenContentStore
+    private volatile ContentStore contentStore;
+    private UploadQueue uploadQueue;
+    private DuplicateIndex duplicateIndex;
+    private ScanDatabase scanDatabase;
+    private StorageManager storageManager;
+    private StartupTrace startupTrace;
+    private TransferEngine transferEngine;
+    // used on the main thread only
+    private BatchScanSession batchSession;
+    private ImageImport imageImport;
+    private FolderImport folderImport;
+    private GoogleApiClient driveClient;
+
+    /**
+     * Starts the trace of the cold start and the load of the preferences, which the launcher reads
+     * for its first frame.
+     */
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        startupTrace = new StartupTrace(Build.VERSION.SDK_INT >= Build.VERSION_CODES.N
+                ? Process.getStartUptimeMillis() : CLASS_LOADED);
+        // the file is read on a background thread from here, the first read only waits for the rest
+        getSharedPreferences(PREFERENCES, MODE_PRIVATE);
+    }
+
+    /**
+     * @param context any context of the app
+     * @return the application object
+     */
+    static ChequeScanApplication get(Context context) {
+        return (ChequeScanApplication) context.getApplicationContext();
+    }
+
+    /**
+     * Opens the image store on first use, which reads its index and so has to be on a worker
+     * thread. It lives in the app's private pictures directory on
+     * external storage, where the camera app can write into it through the FileProvider.
+     *
+     * @return the store of the cheque images
+     * @throws IOException if external storage is not available or the store cannot be read
+     */
+    synchronized ContentStore getContentStore() throws IOException {
+        if (contentStore == null) {
+            File pictures = getExternalFilesDir(Environment.DIRECTORY_PICTURES);
+            if (pictures == null) {
+                throw new IOException("External storage is not available");
+            }
+            ContentStore store = new ContentStore(new File(pictures, STORE_DIRECTORY));
+            store.purgePending(PENDING_MAX_AGE_MILLIS);
+            contentStore = store;
+        }
+        return contentStore;
+    }
+
+    /**
+     * @return the image store if it is open already, null if {@link #getContentStore()} still has
+     * to open it. Does not wait while another thread opens it, for the main thread.
+     */
+    ContentStore getOpenContentStore() {
+        return contentStore;
+    }
+
+    /**
+     * @return the running batch session or null. It is kept here and not by the activity, which is
+     * recreated when the phone is turned between two photos.
+     */
+    BatchScanSession getBatchSession() {
+        return batchSession;
+    }
+
+    /**
+     * @param batchSession the session which was started, null once it has ended
+     */
+    void setBatchSession(BatchScanSession batchSession) {
+        this.batchSession = batchSession;
+    }
+
+    /**
+     * @return the running image import or null. Like the batch session it is kept here, so that a
+     * download goes on when the activity is recreated.
+     */
+    ImageImport getImageImport() {
+        return imageImport;
+    }
+
+    /**
+     * @param imageImport the import which was started, null once its result was taken
+     */
+    void setImageImport(ImageImport imageImport) {
+        this.imageImport = imageImport;
+    }
+
+    /**
+     * @return the running import of a Drive folder or null, kept here like the image import
+     */
+    FolderImport getFolderImport() {
+        return folderImport;
+    }
+
+    /**
+     * @param folderImport the import which was started, null once it has ended
+     */
+    void setFolderImport(FolderImport folderImport) {
+        this.folderImport = folderImport;
+    }
+
+    /**
+     * Hands the Drive client of an activity which is being recreated to the next instance, the
+     * imports it has running go on with the same connection.
+     *
+     * @param driveClient the connected client, null to clear it
+     */
+    void setDriveClient(GoogleApiClient driveClient) {
+        this.driveClient = driveClient;
+    }
+
+    /**
+     * @return the client left by the previous instance of the activity or null, it is only handed
+     * out once
+     */
+    GoogleApiClient takeDriveClient() {
+        GoogleApiClient client = driveClient;
+        driveClient = null;
+        return client;
+    }
+
+    /**
+     * Starts the transfer threads on first use. They live as long as the process, like the threads
+     * of the upload queue, so that an import is not stopped when the activity is recreated.
+     *
+     * @return the engine which copies the imported images into the store
+     */
+    synchronized TransferEngine getTransferEngine() {
+        if (transferEngine == null) {
+            transferEngine = new TransferEngine(TRANSFER_THREADS);
+        }
+        return transferEngine;
+    }
+
+    /**
+     * Opens the index of the cheques seen so far on first use. It is kept next to the image store
+     * and read completely when it is opened, so it must be called on a worker thread.
+     *
+     * @return the index of the perceptual hashes of the accepted cheques
+     * @throws IOException if the store is not available or the index cannot be read
+     */
+    synchronized DuplicateIndex getDuplicateIndex() throws IOException {
+        if (duplicateIndex == null) {
+            duplicateIndex = new DuplicateIndex(new File(getContentStore().getRoot(), FINGERPRINTS));
+        }
+        return duplicateIndex;
+    }
+
+    /**
+     * The archive copies of the processed cheques, Group 4 TIFF files named by the hash of their
+     * photo, are kept next to the image store.
+     *
+     * @return the directory of the archive copies
+     * @throws IOException if the store is not available or the directory cannot be created
+     */
+    File getArchiveDirectory() throws IOException {
+        File directory = new File(getContentStore().getRoot(), ARCHIVE_DIRECTORY);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        return directory;
+    }
+
+    /**
+     * The database itself is opened on its first use, which has to be on a worker thread.
+     *
+     * @return the records of the scanned cheques
+     */
+    synchronized ScanDatabase getScanDatabase() {
+        if (scanDatabase == null) {
+            scanDatabase = new ScanDatabase(this, ScanDatabase.NAME);
+        }
+        return scanDatabase;
+    }
+
+    /**
+     * Opens the upload queue on first use. Its journal is in the app's private files, so uploads
+     * which did not finish before the process died carry on. Nothing is uploaded before somebody has
+     * signed in.
+     *
+     * @return the queue of files going to Drive
+     * @throws IOException if the journal cannot be read
+     */
+    synchronized UploadQueue getUploadQueue() throws IOException {
+        if (uploadQueue == null) {
+            uploadQueue = new UploadQueue(new File(getFilesDir(), UPLOAD_JOURNAL),
+                    new HttpUploadTransport(HttpUploadTransport.DRIVE_UPLOAD_URL, null, new DriveAuthorizer(this)),
+                    new UploadQueue.Listener() {
+                        @Override
+                        public void onUploaded(UploadItem item) {
+                            Log.i(TAG, "Uploaded " + item);
+                            // photos are queued straight from the store, their file name is the key
+                            String key = item.getFile().getName();
+                            if (!key.matches("[0-9a-f]+")) {
+                                // a manifest or cash letter, there is no record of it
+                                return;
+                            }
+                            try {
+                                getScanDatabase().updateStatus(key, ScanStatus.UPLOADED, System.currentTimeMillis());
+                            } catch (SQLiteException e) {
+                                Log.w(TAG, "Could not record the upload of " + item, e);
+                            }
+                        }
+
+                        @Override
+                        public void onRejected(UploadItem item, IOException e) {
+                            Log.w(TAG, "Drive refused " + item, e);
+                        }
+                    });
+            if (getUploadAccount() != null) {
+                uploadQueue.start();
+            }
+        }
+        return uploadQueue;
+    }
+
+    /**
+     * Starts the upload queue again if it is open and somebody is signed in. The queue stops when
+     * the user has to grant access to Drive, this resumes it once they are back in the app.
+     */
+    void resumeUploads() {
+        UploadQueue queue;
+        synchronized (this) {
+            queue = uploadQueue;
+        }
+        if (queue != null && getUploadAccount() != null) {
+            queue.start();
+        }
+    }
+
+    /**
+     * Starts the storage manager on first use. It runs every half hour on its own thread and keeps
+     * the image store within the quota of the preferences.
+     *
+     * @return the manager which evicts photos from the image store
+     * @throws IOException if the store or the upload queue cannot be opened
+     */
+    synchronized StorageManager getStorageManager() throws IOException {
+        if (storageManager == null) {
+            storageManager = new StorageManager(getContentStore(), getStorageQuota(),
+                    new StoreRetention(getScanDatabase(), getUploadQueue(), getArchiveDirectory()));
+            storageManager.start(EVICTION_PERIOD_MILLIS);
+        }
+        return storageManager;
+    }
+
+    /**
+     * @return the limits of the image store, 0 in the preferences stands for no limit
+     */
+    StorageQuota getStorageQuota() {
+        SharedPreferences preferences = getSharedPreferences(PREFERENCES, MODE_PRIVATE);
+        long megabytes = preferences.getInt(STORAGE_MAX_MB, DEFAULT_STORAGE_MAX_MB);
+        long days = preferences.getInt(STORAGE_MAX_DAYS, DEFAULT_STORAGE_MAX_DAYS);
+        return new StorageQuota(megabytes > 0 ? megabytes * 1024 * 1024 : StorageQuota.UNLIMITED,
+                days > 0 ? days * DAY_MILLIS : StorageQuota.UNLIMITED);
+    }
+
+    /**
+     * @return sender and receiver of a cash letter written now, or null if the bank details are not
+     * set up, in which case no cash letters are written
+     */
+    CashLetterHeader getCashLetterHeader() {
+        SharedPreferences preferences = getSharedPreferences(PREFERENCES, MODE_PRIVATE);
+        String originRouting = preferences.getString(ORIGIN_ROUTING, null);
+        String destinationRouting = preferences.getString(DESTINATION_ROUTING, null);
+        if (!CashLetterHeader.isRoutingNumber(originRouting) || !CashLetterHeader.isRoutingNumber(destinationRouting)) {
+            return null;
+        }
+        return new CashLetterHeader(destinationRouting, preferences.getString(DESTINATION_NAME, null),
+                originRouting, preferences.getString(ORIGIN_NAME, null), System.currentTimeMillis(), false);
+    }
+
+    /**
+     * @return the trace of the cold start the first time it is asked for, null after that or when the
+     * launcher was created again
+     */
+    StartupTrace takeStartupTrace() {
+        StartupTrace trace = startupTrace;
+        startupTrace = null;
+        return trace;
+    }
+
+    /**
+     * @return name of the account the uploads go to or null if nobody is signed in
+     */
+    String getUploadAccount() {
+        return getSharedPreferences(PREFERENCES, MODE_PRIVATE).getString(UPLOAD_ACCOUNT, null);
+    }
+
+    /**
+     * @return the account which was signed in when the app last knew, null if nobody was
+     */
+    AccountSnapshot getAccountSnapshot() {
+        SharedPreferences preferences = getSharedPreferences(PREFERENCES, MODE_PRIVATE);
+        String email = preferences.getString(UPLOAD_ACCOUNT, null);
+        if (email == null) {
+            return null;
+        }
+        String photo = preferences.getString(ACCOUNT_PHOTO, null);
+        return new AccountSnapshot(email, preferences.getString(ACCOUNT_NAME, null),
+                photo != null ? Uri.parse(photo) : null);
+    }
+
+    /**
+     * Remembers the signed in account, whose Drive the uploads go to, and starts the queue for it.
+     * Files queued while nobody is signed in wait, with the backoff of the queue, until somebody is.
+     *
+     * @param account the signed in account or null after sign out
+     */
+    void setSignedInAccount(AccountSnapshot account) {
+        SharedPreferences.Editor editor = getSharedPreferences(PREFERENCES, MODE_PRIVATE).edit();
+        if (account == null) {
+            editor.remove(UPLOAD_ACCOUNT).remove(ACCOUNT_NAME).remove(ACCOUNT_PHOTO).apply();
+            return;
+        }
+        editor.putString(UPLOAD_ACCOUNT, account.getEmail())
+                .putString(ACCOUNT_NAME, account.getDisplayName())
+                .putString(ACCOUNT_PHOTO, account.getPhotoUrl() != null ? account.getPhotoUrl().toString() : null)
+                .apply();
+        // the journal is read off the main thread
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    getUploadQueue().start();
+                } catch (IOException e) {
+                    Log.w(TAG, "Could not open the upload queue", e);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,46 @@
+package com.bioenable.chequescan;
+
+import android.app.Activity;
+import android.os.Bundle;
+import android.util.Log;
+
+/**
+ * Full screen, zoomable view of one stored cheque, to check the MICR line and the signature at
+ * full resolution. The image is shown by a {@link TiledImageView}, which decodes only the tiles it
+ * needs at the current zoom.
+ */
+public class ChequeViewerActivity extends Activity {
+
+    /**
+     * Absolute path of the image to show
+     */
+    public static final String EXTRA_PATH = "com.bioenable.chequescan.extra.PATH";
+
+    private static final String TAG = "ChequeViewerActivity";
+
+    private TiledImageView image;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.cheque_viewer_activity);
+        image = (TiledImageView) findViewById(R.id.tiled_image);
+        final String path = getIntent().getStringExtra(EXTRA_PATH);
+        // the preview is decoded to the size of the view, which is only known after the layout
+        image.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!isFinishing()) {
+                    image.setImage(path, BitmapPool.getInstance(), Runtime.getRuntime().maxMemory() / 8);
+                }
+            }
+        });
+    }
+
+    @Override
+    protected void onDestroy() {
+        Log.i(TAG, image.getStats());
+        image.close();
+        super.onDestroy();
+    }
+}
@@ -1,12 +1,12 @@
 package com.bioenable.chequescan;
 
 import android.graphics.Bitmap;
-import android.graphics.BitmapShader;
-import android.graphics.Canvas;
-import android.graphics.Paint;
 
+import com.bioenable.chequescan.processing.CircleCrop;
 import com.squareup.picasso.Transformation;
 
+import java.util.concurrent.ConcurrentLinkedQueue;
+
 
 /**
  * This code was taken from the link mentioned below. We acknowledge the curator of this class for
@@ -21,39 +21,50 @@ import com.squareup.picasso.Transformation;
  */
 public class CircleTransformation implements Transformation {
 
+    // pixel buffers above this are dropped after use instead of being kept for the next image
+    private static final int MAX_KEPT_PIXELS = 1024 * 1024;
+
+    // Picasso transforms on several threads at once, each takes a scratch of its own
+    private final ConcurrentLinkedQueue<Scratch> scratch = new ConcurrentLinkedQueue<>();
+
     /**
      * Overriden method from Transformation interface of Picasso Library.
+     * <p>
+     * Only the centre square of the source is read, the circle is masked in place by
+     * {@link CircleCrop} and written into a bitmap from the BitmapPool. The pixel buffer and the
+     * mask are reused by the next image, so nothing but the pooled bitmap is allocated.
      *
      * @param source source image being passed in which has to be processed
      * @return processed circular image with minimum loss of data
      */
     @Override
     public Bitmap transform(Bitmap source) {
-        int size = Math.min(source.getWidth(), source.getHeight());
+        int size = CircleCrop.size(source.getWidth(), source.getHeight());
 
-        // x, y are the center coordinates
+        // x, y are the top left corner of the centre square
         int x = (source.getWidth() - size) / 2;
         int y = (source.getHeight() - size) / 2;
 
-        // source is cropped from the centre in a square shape of maximum size
-        Bitmap squaredBitmap = Bitmap.createBitmap(source, x, y, size, size);
-        if (squaredBitmap != source) {
-            source.recycle();
+        Scratch taken = scratch.poll();
+        if (taken == null) {
+            taken = new Scratch();
         }
+        int[] pixels = taken.pixels(size * size);
+        source.getPixels(pixels, 0, size, x, y, size, size);
+        taken.crop.crop(pixels, size, size, pixels, 0);
 
-        Bitmap bitmap = Bitmap.createBitmap(size, size, source.getConfig());
-
-        Canvas canvas = new Canvas(bitmap);
-        Paint paint = new Paint();
-        BitmapShader shader = new BitmapShader(squaredBitmap,
-                BitmapShader.TileMode.CLAMP, BitmapShader.TileMode.CLAMP);
-        paint.setShader(shader);
-        paint.setAntiAlias(true);
-
-        float r = size / 2f;
-        canvas.drawCircle(r, r, r, paint);
+        // the corners are transparent, whatever the config of the source
+        Bitmap bitmap = BitmapPool.getInstance().get(size, size, Bitmap.Config.ARGB_8888);
+        bitmap.setHasAlpha(true);
+        bitmap.setPixels(pixels, 0, size, 0, 0, size, size);
+        if (pixels.length > MAX_KEPT_PIXELS) {
+            taken.pixels = null;
+        }
+        scratch.offer(taken);
 
-        squaredBitmap.recycle();
+        // Picasso requires the source to be recycled when a new bitmap is returned, so it cannot go
+        // back into the pool
+        source.recycle();
         return bitmap;
     }
 
@@ -61,4 +72,17 @@ public class CircleTransformation implements Transformation {
     public String key() {
         return "circle";
     }
-}
\ No newline at end of file
+
+    private static final class Scratch {
+
+        final CircleCrop crop = new CircleCrop();
+        int[] pixels;
+
+        int[] pixels(int length) {
+            if (pixels == null || pixels.length < length) {
+                pixels = new int[length];
+            }
+            return pixels;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.bioenable.chequescan;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+
+import com.bioenable.chequescan.transfer.StreamSource;
+import com.bioenable.chequescan.transfer.TransferSource;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads an image picked from the gallery (or any other content provider) through the
+ * ContentResolver. The provider is asked for a file descriptor first: the stream over it is a
+ * FileInputStream, which the TransferEngine copies zero copy through its FileChannel. Providers
+ * which cannot hand out a descriptor (for example galleries backed by a cloud service) are read
+ * through openInputStream instead.
+ * <p>
+ * Both calls can block for a long time, so the source must only be opened on a worker thread,
+ * which is what the TransferEngine does.
+ */
+class ContentUriSource implements TransferSource {
+
+    private final ContentResolver resolver;
+    private final Uri uri;
+
+    ContentUriSource(ContentResolver resolver, Uri uri) {
+        this.resolver = resolver;
+        this.uri = uri;
+    }
+
+    @Override
+    public InputStream open(long offset) throws IOException {
+        InputStream in;
+        try {
+            ParcelFileDescriptor descriptor = resolver.openFileDescriptor(uri, "r");
+            if (descriptor == null) {
+                throw new FileNotFoundException("No descriptor for " + uri);
+            }
+            in = new ParcelFileDescriptor.AutoCloseInputStream(descriptor);
+        } catch (FileNotFoundException | SecurityException e) {
+            in = resolver.openInputStream(uri);
+            if (in == null) {
+                throw new FileNotFoundException("Cannot open " + uri);
+            }
+        }
+        return offset > 0 ? new StreamSource(in, -1).open(offset) : in;
+    }
+
+    @Override
+    public long length() {
+        return -1;
+    }
+}
@@ -0,0 +1,63 @@
+package com.bioenable.chequescan;
+
+import android.accounts.Account;
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+
+import com.bioenable.chequescan.remote.HttpUploadTransport;
+import com.bioenable.chequescan.remote.UploadAuthorizationException;
+import com.google.android.gms.auth.GoogleAuthException;
+import com.google.android.gms.auth.GoogleAuthUtil;
+import com.google.android.gms.auth.UserRecoverableAuthException;
+
+import java.io.IOException;
+
+/**
+ * Authorizes the Drive uploads with an OAuth token of the signed in account, for the drive.file
+ * scope GoogleSignIn asks for. GoogleAuthUtil caches the token, a refused one is cleared so that
+ * the next request gets a fresh one. When the user has to grant the access first, the consent screen
+ * is opened and the upload queue stops until the app resumes it. Only called on the upload threads,
+ * getToken blocks.
+ */
+final class DriveAuthorizer implements HttpUploadTransport.Authorizer {
+
+    private static final String TAG = "DriveAuthorizer";
+    private static final String SCOPE = "oauth2:https://www.googleapis.com/auth/drive.file";
+    private static final String BEARER = "Bearer ";
+
+    private final Context context;
+
+    DriveAuthorizer(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    @Override
+    public String getAuthorization() throws IOException {
+        String accountName = ChequeScanApplication.get(context).getUploadAccount();
+        if (accountName == null) {
+            throw new IOException("Nobody is signed in");
+        }
+        try {
+            return BEARER + GoogleAuthUtil.getToken(context,
+                    new Account(accountName, GoogleAuthUtil.GOOGLE_ACCOUNT_TYPE), SCOPE);
+        } catch (UserRecoverableAuthException e) {
+            Intent recovery = e.getIntent();
+            if (recovery != null) {
+                context.startActivity(recovery.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK));
+            }
+            throw new UploadAuthorizationException(accountName + " has not granted access to Drive", e);
+        } catch (GoogleAuthException e) {
+            throw new IOException("No Drive token for " + accountName, e);
+        }
+    }
+
+    @Override
+    public void invalidate(String authorization) {
+        try {
+            GoogleAuthUtil.clearToken(context, authorization.substring(BEARER.length()));
+        } catch (IOException | GoogleAuthException e) {
+            Log.w(TAG, "Could not clear the token", e);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.bioenable.chequescan;
+
+import com.bioenable.chequescan.remote.RemoteFile;
+import com.bioenable.chequescan.remote.RemoteTransport;
+import com.bioenable.chequescan.transfer.StreamSource;
+import com.bioenable.chequescan.transfer.TransferSource;
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.drive.DriveApi;
+import com.google.android.gms.drive.DriveContents;
+import com.google.android.gms.drive.DriveFile;
+import com.google.android.gms.drive.DriveId;
+import com.google.android.gms.drive.Metadata;
+import com.google.android.gms.drive.MetadataBuffer;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A RemoteTransport for a Google Drive folder. Folders and files are identified by their encoded
+ * DriveId. The Drive API calls block with await(), so the methods must only be called on worker
+ * threads, which is where BulkImport calls them.
+ */
+final class DriveFolderTransport implements RemoteTransport {
+
+    private static final long TIMEOUT_SECONDS = 60;
+
+    private final GoogleApiClient client;
+
+    /**
+     * @param client connected client with the Drive API
+     */
+    DriveFolderTransport(GoogleApiClient client) {
+        this.client = client;
+    }
+
+    /**
+     * Gives the key the ContentStore remembers a Drive file by. The resource id is stable across
+     * sessions, files which are not synced yet only have the encoded DriveId.
+     *
+     * @param driveId id of the Drive file
+     * @return source key of the file
+     */
+    static String sourceKey(DriveId driveId) {
+        String resourceId = driveId.getResourceId();
+        return "drive:" + (resourceId != null ? resourceId : driveId.encodeToString());
+    }
+
+    /**
+     * @param folder encoded DriveId of the folder
+     * @return the images directly in the folder
+     * @throws IOException if the folder cannot be listed
+     */
+    @Override
+    public List<RemoteFile> list(String folder) throws IOException {
+        DriveApi.MetadataBufferResult result = DriveId.decodeFromString(folder).asDriveFolder()
+                .listChildren(client).await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        if (!result.getStatus().isSuccess()) {
+            throw new IOException("Could not list the folder: " + result.getStatus().getStatusMessage());
+        }
+        List<RemoteFile> files = new ArrayList<>();
+        MetadataBuffer buffer = result.getMetadataBuffer();
+        try {
+            for (Metadata metadata : buffer) {
+                String mimeType = metadata.getMimeType();
+                if (metadata.isFolder() || mimeType == null || !mimeType.startsWith("image/")) {
+                    continue;
+                }
+                DriveId driveId = metadata.getDriveId();
+                files.add(new RemoteFile(sourceKey(driveId), driveId.encodeToString(),
+                        metadata.getTitle(), metadata.getFileSize()));
+            }
+        } finally {
+            buffer.release();
+        }
+        return files;
+    }
+
+    @Override
+    public TransferSource source(final RemoteFile file) {
+        return new TransferSource() {
+            @Override
+            public InputStream open(long offset) throws IOException {
+                DriveApi.DriveContentsResult result = DriveId.decodeFromString(file.getId()).asDriveFile()
+                        .open(client, DriveFile.MODE_READ_ONLY, null).await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                if (!result.getStatus().isSuccess()) {
+                    throw new IOException("Could not open " + file.getName() + ": "
+                            + result.getStatus().getStatusMessage());
+                }
+                final DriveContents contents = result.getDriveContents();
+                InputStream in;
+                try {
+                    // Drive streams cannot seek, the bytes present locally are skipped
+                    in = new StreamSource(contents.getInputStream(), -1).open(offset);
+                } catch (IOException e) {
+                    contents.discard(client);
+                    throw e;
+                }
+                return new FilterInputStream(in) {
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            super.close();
+                        } finally {
+                            contents.discard(client);
+                        }
+                    }
+                };
+            }
+
+            @Override
+            public long length() {
+                return file.getSize();
+            }
+        };
+    }
+}
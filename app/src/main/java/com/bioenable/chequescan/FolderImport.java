@@ -0,0 +1,192 @@
+package com.bioenable.chequescan;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.bioenable.chequescan.remote.BulkImport;
+import com.bioenable.chequescan.remote.RemoteFile;
+import com.bioenable.chequescan.store.ContentStore;
+import com.bioenable.chequescan.store.StoreEntry;
+import com.bioenable.chequescan.transfer.TransferEngine;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * The import of all images of a Drive folder. Like an {@link ImageImport} it is kept by
+ * ChequeScanApplication, so that it goes on when ImageProvider is recreated. It lists the folder on
+ * a transfer thread and imports the images with a BulkImport, whose events are handed to the main
+ * thread. The end of the import is kept for the next listener while none is attached.
+ * <p>
+ * Used on the main thread only.
+ */
+class FolderImport implements BulkImport.Listener {
+
+    /**
+     * Receives the events of a folder import on the main thread.
+     */
+    interface Listener {
+
+        /**
+         * @param filesDone  files imported or failed so far
+         * @param filesTotal number of images in the folder
+         * @param bytesDone  bytes downloaded so far, over all files
+         * @param bytesTotal sum of the known file sizes
+         */
+        void onProgress(int filesDone, int filesTotal, long bytesDone, long bytesTotal);
+
+        /**
+         * @param e why the folder could not be listed, nothing was imported
+         */
+        void onListFailed(IOException e);
+
+        /**
+         * Called once at the end, also after {@link #cancel()}.
+         *
+         * @param imported files which are in the store now
+         * @param failed   files which could not be imported
+         */
+        void onFinished(int imported, int failed);
+    }
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final ContentStore store;
+    private final TransferEngine engine;
+    private final DriveFolderTransport transport;
+    private final String folder;
+    private BulkImport bulkImport;
+    private boolean cancelled;
+    private Listener listener;
+    // the end of the import, kept while no listener is attached
+    private Runnable result;
+
+    /**
+     * @param store     store the images go into
+     * @param engine    engine running the listing and the downloads
+     * @param transport Drive connection of the import
+     * @param folder    encoded DriveId of the folder
+     */
+    FolderImport(ContentStore store, TransferEngine engine, DriveFolderTransport transport, String folder) {
+        this.store = store;
+        this.engine = engine;
+        this.transport = transport;
+        this.folder = folder;
+    }
+
+    /**
+     * Lists the folder on a transfer thread, then starts downloading its images.
+     */
+    void start() {
+        engine.execute(new Runnable() {
+            @Override
+            public void run() {
+                final List<RemoteFile> files;
+                try {
+                    files = transport.list(folder);
+                } catch (final IOException e) {
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            deliver(new Runnable() {
+                                @Override
+                                public void run() {
+                                    listener.onListFailed(e);
+                                }
+                            });
+                        }
+                    });
+                    return;
+                }
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (cancelled) {
+                            onFinished(0, 0);
+                            return;
+                        }
+                        bulkImport = new BulkImport(store, engine, transport, files,
+                                ChequeScanApplication.TRANSFER_THREADS, BulkImport.DEFAULT_MAX_ATTEMPTS,
+                                BulkImport.DEFAULT_BACKOFF_MILLIS, FolderImport.this);
+                        bulkImport.start();
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Stops the running downloads, or the import before it starts when the folder is still being
+     * listed.
+     */
+    void cancel() {
+        cancelled = true;
+        if (bulkImport != null) {
+            bulkImport.cancel();
+        }
+    }
+
+    /**
+     * @param listener receives the events from now on, and the end straight away if the import
+     *                 finished while no listener was attached
+     */
+    void attach(Listener listener) {
+        this.listener = listener;
+        if (result != null) {
+            Runnable ended = result;
+            result = null;
+            ended.run();
+        }
+    }
+
+    /**
+     * Called by an activity which is destroyed while the import runs. Progress is dropped until the
+     * next listener attaches, the end is kept for it.
+     */
+    void detach() {
+        listener = null;
+    }
+
+    @Override
+    public void onProgress(final int filesDone, final int filesTotal, final long bytesDone,
+                           final long bytesTotal) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (listener != null) {
+                    listener.onProgress(filesDone, filesTotal, bytesDone, bytesTotal);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void onFileImported(RemoteFile file, StoreEntry entry) {
+    }
+
+    @Override
+    public void onFileFailed(RemoteFile file, IOException e) {
+    }
+
+    @Override
+    public void onFinished(final int imported, final int failed) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                deliver(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onFinished(imported, failed);
+                    }
+                });
+            }
+        });
+    }
+
+    private void deliver(Runnable ended) {
+        if (listener != null) {
+            ended.run();
+        } else {
+            result = ended;
+        }
+    }
+}
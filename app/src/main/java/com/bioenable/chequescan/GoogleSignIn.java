@@ -1,34 +1,44 @@
 package com.bioenable.chequescan;
 
 import android.content.Intent;
-import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.SystemClock;
+import android.os.Trace;
 import android.support.annotation.NonNull;
 import android.support.design.widget.FloatingActionButton;
 import android.support.v7.app.AppCompatActivity;
 import android.view.View;
+import android.view.ViewTreeObserver;
 import android.widget.Button;
 import android.widget.ImageView;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import com.bioenable.chequescan.metrics.StartupTrace;
 import com.google.android.gms.auth.api.Auth;
-import com.google.android.gms.auth.api.signin.GoogleSignInAccount;
 import com.google.android.gms.auth.api.signin.GoogleSignInOptions;
 import com.google.android.gms.auth.api.signin.GoogleSignInResult;
 import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.SignInButton;
+import com.google.android.gms.common.api.CommonStatusCodes;
 import com.google.android.gms.common.api.GoogleApiClient;
 import com.google.android.gms.common.api.OptionalPendingResult;
 import com.google.android.gms.common.api.ResultCallback;
 import com.google.android.gms.common.api.Status;
-import com.squareup.picasso.Picasso;
+import com.google.android.gms.drive.Drive;
 
 /**
  * This activity is responsible for Google Sign In feature. If the user is already signed in OR if
  * they sign in, it displays their google profile picture (rounded), their name and sign out button.
  * Otherwise it displays the google sign in button and unknown user picture.
  * <p>
+ * This is the launcher, so its first frame is what a cold start waits for. It is drawn from the
+ * account remembered from the last run, without waiting for Google Play services. The silent sign
+ * in only starts once that frame is out and updates the screen when it ends. In debug builds the
+ * times to the first frame and to the end of the silent sign in are appended to
+ * metrics/startup.csv on every cold start.
+ * <p>
  * Libraries used:
  * 1. Google sign in sdk
  * 2. Picasso
@@ -47,51 +57,75 @@ public class GoogleSignIn extends AppCompatActivity
     private SignInButton signInButton;
     private Button signOutButton;
     private ImageView userProfilePicture;
-    private Uri userProfilePictureUri;
-    private String userDisplayName;
     private TextView userNameView;
     private FloatingActionButton nextButton;
+    // the account on screen, null while signed out
+    private AccountSnapshot shownAccount;
+    private boolean uiShown;
+    // only set in the first launcher of the process
+    private StartupTrace startupTrace;
 
     /**
-     * Initialises all components and sets button listeners. Check if any users are already signed in.
+     * Initialises all components and sets button listeners. Shows the account remembered from the
+     * last run and checks whether it is still signed in once the first frame is drawn.
      *
      * @param savedInstanceState bundle
      */
     @Override
     protected void onCreate(Bundle savedInstanceState) {
+        Trace.beginSection("GoogleSignIn.onCreate");
         super.onCreate(savedInstanceState);
         setContentView(R.layout.log_in_activity);
+        ChequeScanApplication application = ChequeScanApplication.get(this);
+        startupTrace = application.takeStartupTrace();
 
         initialiseComponents();
         initialiseButtonListeners();
-        checkSilentSignIn();
+        AccountSnapshot remembered = application.getAccountSnapshot();
+        if (startupTrace != null) {
+            startupTrace.setCachedAccount(remembered != null);
+        }
+        updateUI(remembered);
+        whenFirstFrameDrawn(new Runnable() {
+            @Override
+            public void run() {
+                checkSilentSignIn();
+            }
+        });
+        Trace.endSection();
     }
 
     /**
-     * Updates the UI based on whether the user is logged in or not.
+     * Updates the UI based on whether the user is logged in or not. Nothing changes if the account is
+     * on screen already, so the profile picture does not flash when the silent sign in confirms it.
      *
-     * @param loggedIn boolean value denoting whether user is logged in.
+     * @param account the signed in account, null if nobody is signed in
      */
-    private void updateUI(boolean loggedIn) {
-        if (loggedIn) {
+    private void updateUI(AccountSnapshot account) {
+        if (uiShown && (account == null ? shownAccount == null : account.equals(shownAccount))) {
+            return;
+        }
+        uiShown = true;
+        shownAccount = account;
+        if (account != null) {
             signInButton.setVisibility(View.INVISIBLE);
             signOutButton.setVisibility(View.VISIBLE);
             userNameView.setVisibility(View.VISIBLE);
-            userNameView.setText((userDisplayName == null) ? "" : userDisplayName);
+            userNameView.setText((account.getDisplayName() == null) ? "" : account.getDisplayName());
             nextButton.setVisibility(View.VISIBLE);
 
-            if (userProfilePicture == null) {
-                Picasso.with(this).load(R.drawable.unknown_user).into(userProfilePicture);
+            if (account.getPhotoUrl() == null) {
+                ImageLoader.get(this).load(R.drawable.unknown_user).into(userProfilePicture);
             } else {
-                Picasso.with(this).load(userProfilePictureUri)
-                        .transform(new CircleTransformation())
+                ImageLoader.get(this).load(account.getPhotoUrl())
+                        .transform(ImageLoader.CIRCLE)
                         .into(userProfilePicture);
             }
         } else {
             userNameView.setVisibility(View.INVISIBLE);
             signOutButton.setVisibility(View.INVISIBLE);
             signInButton.setVisibility(View.VISIBLE);
-            Picasso.with(this).load(R.drawable.unknown_user).into(userProfilePicture);
+            ImageLoader.get(this).load(R.drawable.unknown_user).into(userProfilePicture);
             nextButton.setVisibility(View.INVISIBLE);
         }
     }
@@ -130,12 +164,15 @@ public class GoogleSignIn extends AppCompatActivity
          * Configure sign-in to request the user's ID, email address, and basic profile. ID and
          * basic profile are included in DEFAULT_SIGN_IN.
          *
+         * The drive.file scope lets the processed cheques be uploaded to the user's Drive.
+         *
          * Note: If you want to request additional information from the user, specify them with
          * requestScopes. See the url below to more information.
          * https://developers.google.com/identity/sign-in/android/sign-in#configure_google_sign-in_and_the_googleapiclient_object
          */
         GoogleSignInOptions googleSignInOptions = new GoogleSignInOptions.Builder(GoogleSignInOptions.DEFAULT_SIGN_IN)
                 .requestEmail()
+                .requestScopes(Drive.SCOPE_FILE)
                 .build();
 
         // Build a GoogleApiClient with access to the Google Sign-In API and the
@@ -180,10 +217,9 @@ public class GoogleSignIn extends AppCompatActivity
      */
     private void handleSignInResult(GoogleSignInResult result) {
         if (result.isSuccess()) {
-            GoogleSignInAccount acct = result.getSignInAccount();
-            userProfilePictureUri = acct.getPhotoUrl();
-            userDisplayName = acct.getDisplayName();
-            updateUI(true);
+            AccountSnapshot account = AccountSnapshot.of(result.getSignInAccount());
+            ChequeScanApplication.get(this).setSignedInAccount(account);
+            updateUI(account);
         } else {
             Toast.makeText(this, "Could not Sign In", Toast.LENGTH_SHORT).show();
         }
@@ -205,22 +241,103 @@ public class GoogleSignIn extends AppCompatActivity
                 new ResultCallback<Status>() {
                     @Override
                     public void onResult(Status status) {
-                        updateUI(false);
+                        ChequeScanApplication.get(GoogleSignIn.this).setSignedInAccount(null);
+                        updateUI(null);
                     }
                 });
     }
 
     /**
-     * Checks if any user was already signed in and if so updates UI accordingly. Pulls the user
-     * information and starts handleResult method.
+     * Checks if any user was already signed in and updates the UI accordingly, right away if Play
+     * services has the result cached, otherwise when the sign in ends.
      */
     private void checkSilentSignIn() {
         OptionalPendingResult<GoogleSignInResult> opr = Auth.GoogleSignInApi.silentSignIn(mGoogleApiClient);
         if (opr.isDone()) {
-            handleSignInResult(opr.get());
+            handleSilentSignInResult(opr.get());
         } else {
-            updateUI(false);
+            opr.setResultCallback(new ResultCallback<GoogleSignInResult>() {
+                @Override
+                public void onResult(@NonNull GoogleSignInResult result) {
+                    handleSilentSignInResult(result);
+                }
+            });
+        }
+    }
+
+    /**
+     * Brings the remembered account and the screen in line with the result of the silent sign in.
+     * Only an answer that nobody is signed in signs the remembered account out; without network the
+     * sign in fails as well, and the account stays.
+     *
+     * @param result Google Sign In result object which holds all data
+     */
+    private void handleSilentSignInResult(GoogleSignInResult result) {
+        if (isFinishing()) {
+            return;
+        }
+        ChequeScanApplication application = ChequeScanApplication.get(this);
+        if (result.isSuccess()) {
+            AccountSnapshot account = AccountSnapshot.of(result.getSignInAccount());
+            application.setSignedInAccount(account);
+            updateUI(account);
+        } else if (result.getStatus().getStatusCode() == CommonStatusCodes.SIGN_IN_REQUIRED) {
+            application.setSignedInAccount(null);
+            updateUI(null);
+        }
+        if (startupTrace != null) {
+            startupTrace.signInResolved(SystemClock.uptimeMillis(), result.isSuccess());
+            reportStartup();
+        }
+    }
+
+    /**
+     * Runs action once the first frame of the activity is drawn, after the frame.
+     */
+    private void whenFirstFrameDrawn(final Runnable action) {
+        final View content = findViewById(android.R.id.content);
+        content.getViewTreeObserver().addOnDrawListener(new ViewTreeObserver.OnDrawListener() {
+            private boolean drawn;
+
+            @Override
+            public void onDraw() {
+                if (drawn) {
+                    return;
+                }
+                drawn = true;
+                if (startupTrace != null) {
+                    startupTrace.firstFrame(SystemClock.uptimeMillis());
+                }
+                // a listener cannot be removed while it is called, the post runs after the frame
+                final ViewTreeObserver.OnDrawListener listener = this;
+                content.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        content.getViewTreeObserver().removeOnDrawListener(listener);
+                        action.run();
+                        reportStartup();
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Writes the trace of the cold start once it is complete.
+     */
+    private void reportStartup() {
+        if (startupTrace == null || !startupTrace.isComplete()) {
+            return;
         }
+        final StartupTrace trace = startupTrace;
+        startupTrace = null;
+        final ChequeScanApplication application = ChequeScanApplication.get(this);
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                MetricsReporter.appendStartup(application, trace);
+            }
+        });
     }
 
     /**
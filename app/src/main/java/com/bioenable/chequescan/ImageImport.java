@@ -0,0 +1,135 @@
+package com.bioenable.chequescan;
+
+import com.bioenable.chequescan.transfer.Transfer;
+import com.bioenable.chequescan.transfer.TransferListener;
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.drive.DriveContents;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * The import of one image from Drive or the gallery into the ContentStore. It is kept by
+ * ChequeScanApplication and not by ImageProvider, so that it goes on when the activity is recreated
+ * while the image downloads. The instance which is shown attaches its listener, a result which
+ * arrived while no instance was attached is delivered when the next one attaches.
+ * <p>
+ * The DriveContents of a Drive download are discarded as soon as the transfer ends, whether a
+ * listener is attached or not. Used on the main thread only, the transfer reports to it through a
+ * {@link MainThreadTransferListener}.
+ */
+class ImageImport implements TransferListener {
+
+    private final String title;
+    private final DriveContents contents;
+    private final GoogleApiClient client;
+    private Transfer transfer;
+    private TransferListener listener;
+    // the end of the transfer, kept while no listener is attached
+    private Runnable result;
+
+    /**
+     * @param title    title of the progress dialog
+     * @param contents contents being downloaded from Drive, null for other sources
+     * @param client   client the contents were opened with, null for other sources
+     */
+    ImageImport(String title, DriveContents contents, GoogleApiClient client) {
+        this.title = title;
+        this.contents = contents;
+        this.client = client;
+    }
+
+    /**
+     * @param transfer the transfer which reports to this import
+     */
+    void setTransfer(Transfer transfer) {
+        this.transfer = transfer;
+    }
+
+    String getTitle() {
+        return title;
+    }
+
+    void cancel() {
+        transfer.cancel();
+    }
+
+    /**
+     * @param listener receives the events from now on, and the result straight away if the transfer
+     *                 ended while no listener was attached
+     */
+    void attach(TransferListener listener) {
+        this.listener = listener;
+        if (result != null) {
+            Runnable ended = result;
+            result = null;
+            ended.run();
+        }
+    }
+
+    /**
+     * Called by an activity which is destroyed while the transfer runs. Progress is dropped until
+     * the next listener attaches, the result is kept for it.
+     */
+    void detach() {
+        listener = null;
+    }
+
+    @Override
+    public void onProgress(long bytesTransferred, long totalBytes) {
+        if (listener != null) {
+            listener.onProgress(bytesTransferred, totalBytes);
+        }
+    }
+
+    @Override
+    public void onComplete(final File target, final long totalBytes) {
+        release();
+        deliver(new Runnable() {
+            @Override
+            public void run() {
+                listener.onComplete(target, totalBytes);
+            }
+        });
+    }
+
+    @Override
+    public void onCancelled() {
+        release();
+        deliver(new Runnable() {
+            @Override
+            public void run() {
+                listener.onCancelled();
+            }
+        });
+    }
+
+    @Override
+    public void onFailed(final IOException e) {
+        release();
+        deliver(new Runnable() {
+            @Override
+            public void run() {
+                listener.onFailed(e);
+            }
+        });
+    }
+
+    private void deliver(Runnable ended) {
+        if (listener != null) {
+            ended.run();
+        } else {
+            result = ended;
+        }
+    }
+
+    /**
+     * The engine has closed the stream of the contents already. A client which was disconnected in
+     * the meantime has released its contents with the connection.
+     */
+    private void release() {
+        if (contents != null && client.isConnected()) {
+            contents.discard(client);
+        }
+    }
+}
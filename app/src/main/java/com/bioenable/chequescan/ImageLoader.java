@@ -0,0 +1,114 @@
+package com.bioenable.chequescan;
+
+import android.content.Context;
+import android.net.Uri;
+import android.net.http.HttpResponseCache;
+import android.util.Log;
+
+import com.squareup.picasso.LruCache;
+import com.squareup.picasso.Picasso;
+import com.squareup.picasso.Transformation;
+import com.squareup.picasso.UrlConnectionDownloader;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * The app wide Picasso, which loads the profile picture and other small images. It has
+ * <p>
+ * 1. a memory cache of a sixteenth of the heap, which holds the images after their transformation,
+ * keyed by the uri, the size and the keys of the transformations
+ * 2. an HTTP cache of {@link #DISK_CACHE_BYTES} in the app's cache directory for downloaded images
+ * <p>
+ * Picasso coalesces requests with the same key while one of them is loading, so a second request
+ * for the avatar waits for the first instead of downloading it again. Transformations have to be
+ * shared instances with a stable key, like {@link #CIRCLE}, for the cache to find their results.
+ * <p>
+ * The HTTP cache is installed for the whole process, so every HttpURLConnection which does not
+ * call setUseCaches(false) goes through it. The Drive transports in the remote package do, so that
+ * downloaded cheques and upload sessions never fill it or get answered from it.
+ * <p>
+ * The hit counts of both caches are part of the metrics dump, see {@link #getStats()}.
+ */
+final class ImageLoader {
+
+    private static final String TAG = "ImageLoader";
+    private static final String DISK_CACHE = "images";
+    private static final long DISK_CACHE_BYTES = 16 * 1024 * 1024;
+
+    /**
+     * Crops images to a circle, the cached results are shared by every request which uses it
+     */
+    static final Transformation CIRCLE = new CircleTransformation();
+
+    // the cache is opened on a download thread, without holding up get() on the main thread
+    private static final Object DISK_CACHE_LOCK = new Object();
+
+    private static Picasso instance;
+    private static LruCache memoryCache;
+
+    private ImageLoader() {
+    }
+
+    /**
+     * @param context any context of the app
+     * @return the Picasso shared by all activities
+     */
+    static synchronized Picasso get(Context context) {
+        if (instance == null) {
+            final Context application = context.getApplicationContext();
+            memoryCache = new LruCache((int) Math.min(Runtime.getRuntime().maxMemory() / 16, Integer.MAX_VALUE));
+            instance = new Picasso.Builder(application)
+                    .memoryCache(memoryCache)
+                    .downloader(new UrlConnectionDownloader(application) {
+                        @Override
+                        public Response load(Uri uri, int networkPolicy) throws IOException {
+                            // the journal of the cache is read here, on the download thread
+                            installDiskCache(application);
+                            return super.load(uri, networkPolicy);
+                        }
+                    })
+                    .build();
+        }
+        return instance;
+    }
+
+    /**
+     * @return hit and miss counts of the memory and the disk cache
+     */
+    static synchronized String getStats() {
+        if (memoryCache == null) {
+            return "Image cache not used";
+        }
+        int hits = memoryCache.hitCount();
+        int misses = memoryCache.missCount();
+        StringBuilder stats = new StringBuilder(String.format(Locale.US,
+                "Image memory cache: %d hits, %d misses (%.0f%% hits), %d evictions, %d of %d KB",
+                hits, misses, hits + misses > 0 ? 100.0 * hits / (hits + misses) : 0.0,
+                memoryCache.evictionCount(), memoryCache.size() / 1024, memoryCache.maxSize() / 1024));
+        HttpResponseCache disk = HttpResponseCache.getInstalled();
+        if (disk != null) {
+            stats.append(String.format(Locale.US, "\nImage disk cache: %d hits, %d from the network, %d of %d KB",
+                    disk.getHitCount(), disk.getNetworkCount(), disk.size() / 1024, disk.maxSize() / 1024));
+        }
+        return stats.toString();
+    }
+
+    /**
+     * Installs the HTTP cache, unless there is one already. Without it images are downloaded every
+     * time, which is slower but works.
+     */
+    private static void installDiskCache(Context context) {
+        synchronized (DISK_CACHE_LOCK) {
+            if (HttpResponseCache.getInstalled() != null) {
+                return;
+            }
+            try {
+                HttpResponseCache.install(new File(context.getCacheDir(), DISK_CACHE), DISK_CACHE_BYTES);
+            } catch (IOException e) {
+                Log.w(TAG, "Could not open the image cache", e);
+            }
+        }
+    }
+}
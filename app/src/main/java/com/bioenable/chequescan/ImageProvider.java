@@ -1,26 +1,39 @@
 package com.bioenable.chequescan;
 
 import android.app.Activity;
+import android.app.AlertDialog;
 import android.app.ProgressDialog;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.IntentSender;
 import android.content.pm.PackageManager;
-import android.database.Cursor;
-import android.graphics.BitmapFactory;
+import android.database.sqlite.SQLiteException;
 import android.net.Uri;
 import android.os.Bundle;
-import android.os.Environment;
 import android.provider.MediaStore;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.design.widget.FloatingActionButton;
 import android.support.v4.app.ActivityCompat;
 import android.support.v4.content.FileProvider;
+import android.util.Log;
 import android.view.View;
 import android.widget.Button;
 import android.widget.ImageView;
 import android.widget.Toast;
 
+import com.bioenable.chequescan.batch.BatchCheque;
+import com.bioenable.chequescan.duplicate.Fingerprint;
+import com.bioenable.chequescan.metrics.ScanMetrics;
+import com.bioenable.chequescan.metrics.ScanStage;
+import com.bioenable.chequescan.quality.QualityReport;
+import com.bioenable.chequescan.records.ScanRecord;
+import com.bioenable.chequescan.records.ScanStatus;
+import com.bioenable.chequescan.store.ContentStore;
+import com.bioenable.chequescan.store.StoreEntry;
+import com.bioenable.chequescan.transfer.StreamSource;
+import com.bioenable.chequescan.transfer.TransferEngine;
+import com.bioenable.chequescan.transfer.TransferListener;
 import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.GooglePlayServicesUtil;
 import com.google.android.gms.common.api.GoogleApiClient;
@@ -30,17 +43,16 @@ import com.google.android.gms.drive.Drive;
 import com.google.android.gms.drive.DriveApi;
 import com.google.android.gms.drive.DriveContents;
 import com.google.android.gms.drive.DriveFile;
+import com.google.android.gms.drive.DriveFolder;
 import com.google.android.gms.drive.DriveId;
 import com.google.android.gms.drive.OpenFileActivityBuilder;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * The activity is used to get the image for analysis for the app. This class provides all the methods
@@ -49,9 +61,20 @@ import java.util.Date;
  * 2. Gallery
  * 3. Google Drive
  * <p>
- * Note : The image irrespective of the source is saved in a file in external storage which is
- * private to the app. The path to that file is held by pathToPhoto by the end of onActivityResult
- * method. This has been done so that high resolution images can be stored and analysed.
+ * Note : The image irrespective of the source is saved in the ContentStore, in external storage
+ * which is private to the app. The path to that file is held by pathToPhoto once the image is
+ * stored. The same image is only stored once, and a Drive file which was downloaded before is not
+ * downloaded again. This has been done so that high resolution images can be stored and analysed. Only a
+ * downsampled preview of that file is decoded (by BitmapLoader, off the UI thread) to fill pic.
+ * A tap on pic opens the file in the ChequeViewerActivity, which can zoom into it.
+ * <p>
+ * Before that, a small proxy of every stored image is checked by the QualityChecker. A blurry photo,
+ * one with glare or one where the cheque is missing or too far away is not accepted, the user is
+ * asked to retake it instead.
+ * <p>
+ * A long press on the camera button starts a batch session for a stack of cheques: the camera
+ * opens again as soon as the previous photo is handed to the BatchScanSession, which stores and
+ * processes the photos in the background. Leaving the camera ends the session.
  *
  * @author Ayush Ranjan
  * @since 13/08/17.
@@ -60,11 +83,16 @@ public class ImageProvider extends Activity implements ConnectionCallbacks,
         GoogleApiClient.OnConnectionFailedListener {
 
     // constants
+    private static final String TAG = "ImageProvider";
     private static final int CAMERA_CODE = 4818;
+    private static final int BATCH_CAMERA_CODE = 4819;
     private static final int LIBRARY_CODE = 1469;
     private static final int DRIVE_CODE = 1470;
+    private static final int DRIVE_FOLDER_CODE = 1471;
     private static final int RESOLVE_CONNECTION_REQUEST_CODE = 123;
     private static final int PICK_FROM_GALLERY_PERMISSION = 1998;
+    private static final String FOLDER_IMPORT_TITLE = "Importing folder from Google Drive";
+    private static final String[] IMAGE_MIME_TYPES = {"image/jpeg", "image/jpg", "image/png"};
 
     // Instance variables
     private String pathToPhoto;
@@ -72,9 +100,26 @@ public class ImageProvider extends Activity implements ConnectionCallbacks,
     private Button galleryButton;
     private Button googleDriveButton;
     private GoogleApiClient googleApiClient;
-    private ProgressDialog waitingDrivePhotoDownload;
+    private ProgressDialog importProgress;
+    // null until the store is open
+    private ContentStore contentStore;
+    // results which arrived before the store was open, used on the main thread only
+    private final List<Runnable> untilStoreOpen = new ArrayList<>();
+    private ExecutorService storeExecutor;
+    private File pendingCapture;
+    private TransferEngine transferEngine;
+    private ImageImport imageImport;
+    private FolderImport folderImport;
+    private BitmapLoader bitmapLoader;
+    // used on storeExecutor only
+    private QualityChecker qualityChecker;
+    private ImageSource lastSource;
+    private BatchScanSession batchSession;
+    private boolean startingBatch;
     private FloatingActionButton backButton;
     private ImageView pic;
+    // value of ScanMetrics.start() when the user last asked for an image
+    private long scanStart;
 
     // Enum represents the mode in which the user wants to get the image.
     private enum ImageSource {
@@ -89,18 +134,179 @@ public class ImageProvider extends Activity implements ConnectionCallbacks,
     @Override
     protected void onCreate(@Nullable Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        ScanMetrics.setEnabled(BuildConfig.DEBUG);
         setContentView(R.layout.get_image_activity);
         initialiseComponents();
         setButtonListeners();
+        openStore();
+        ChequeScanApplication application = ChequeScanApplication.get(this);
+        googleApiClient = application.takeDriveClient();
+        if (googleApiClient != null) {
+            googleApiClient.registerConnectionCallbacks(this);
+            googleApiClient.registerConnectionFailedListener(this);
+        }
+        // a batch which was running before the activity was recreated goes on
+        batchSession = application.getBatchSession();
+        if (batchSession != null) {
+            batchSession.setCallback(new BatchCallback());
+        }
+        // so does an image import, whose result may have arrived while no instance was there
+        imageImport = application.getImageImport();
+        if (imageImport != null) {
+            importProgress.setTitle(imageImport.getTitle());
+            importProgress.setIndeterminate(true);
+            importProgress.show();
+            imageImport.attach(new ImportListener());
+        }
+        folderImport = application.getFolderImport();
+        if (folderImport != null) {
+            importProgress.setTitle(FOLDER_IMPORT_TITLE);
+            importProgress.setIndeterminate(true);
+            importProgress.show();
+            folderImport.attach(new FolderImportListener());
+        }
+    }
+
+    /**
+     * Reading the index of the store is disk I/O, the first activity opens it on storeExecutor and
+     * keeps the buttons disabled until it is open. A recreated activity finds it open already.
+     */
+    private void openStore() {
+        final ChequeScanApplication application = ChequeScanApplication.get(this);
+        ContentStore opened = application.getOpenContentStore();
+        if (opened != null) {
+            onStoreOpened(opened);
+            return;
+        }
+        setButtonsEnabled(false);
+        storeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                ContentStore store;
+                try {
+                    store = application.getContentStore();
+                } catch (IOException e) {
+                    Log.w(TAG, "Could not open the image store", e);
+                    store = null;
+                }
+                final ContentStore result = store;
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (isDestroyed()) {
+                            return;
+                        }
+                        if (result == null) {
+                            Toast.makeText(ImageProvider.this, "Storage is not available", Toast.LENGTH_SHORT).show();
+                            finish();
+                            return;
+                        }
+                        onStoreOpened(result);
+                    }
+                });
+            }
+        });
+    }
+
+    private void onStoreOpened(ContentStore store) {
+        contentStore = store;
+        setButtonsEnabled(true);
+        for (Runnable result : untilStoreOpen) {
+            result.run();
+        }
+        untilStoreOpen.clear();
+    }
+
+    private void setButtonsEnabled(boolean enabled) {
+        cameraButton.setEnabled(enabled);
+        galleryButton.setEnabled(enabled);
+        googleDriveButton.setEnabled(enabled);
     }
 
     /**
-     * When this activity stops, we have to disconnect from the google drive
+     * Cancels a running import. When the activity is only recreated the imports go on detached
+     * instead, so a Drive download does not lose its partial file, and the Drive client is handed to
+     * the next instance.
+     */
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        importProgress.dismiss();
+        ChequeScanApplication application = ChequeScanApplication.get(this);
+        if (imageImport != null) {
+            if (isFinishing()) {
+                imageImport.cancel();
+                application.setImageImport(null);
+            } else {
+                imageImport.detach();
+            }
+        }
+        if (googleApiClient != null && isChangingConfigurations()) {
+            googleApiClient.unregisterConnectionCallbacks(this);
+            googleApiClient.unregisterConnectionFailedListener(this);
+            application.setDriveClient(googleApiClient);
+        }
+        if (folderImport != null) {
+            if (isFinishing()) {
+                folderImport.cancel();
+                application.setFolderImport(null);
+            } else {
+                folderImport.detach();
+            }
+        }
+        if (batchSession != null) {
+            if (isFinishing()) {
+                batchSession.abort();
+                application.setBatchSession(null);
+            } else {
+                // recreated, the next instance attaches itself in onCreate
+                batchSession.setCallback(null);
+            }
+        }
+        storeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                qualityChecker.close();
+            }
+        });
+        storeExecutor.shutdown();
+        bitmapLoader.shutdown();
+        BitmapPool.getInstance().logStats();
+    }
+
+    /**
+     * Gives the pooled bitmaps back to the system when it runs low on memory.
+     *
+     * @param level how much memory should be released
+     */
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (level >= TRIM_MEMORY_MODERATE) {
+            BitmapPool.getInstance().clear();
+        } else if (level >= TRIM_MEMORY_BACKGROUND) {
+            BitmapPool pool = BitmapPool.getInstance();
+            pool.trimToSize(pool.getMaxBytes() / 2);
+        }
+    }
+
+    /**
+     * Uploads which stopped for the Drive consent screen go on when the user comes back from it.
+     */
+    @Override
+    protected void onResume() {
+        super.onResume();
+        ChequeScanApplication.get(this).resumeUploads();
+    }
+
+    /**
+     * When this activity stops, we have to disconnect from the google drive. An activity which is
+     * only recreated keeps the connection for the next instance.
      */
     @Override
     protected void onStop() {
         super.onStop();
-        if (googleApiClient != null) {
+        if (googleApiClient != null && !isChangingConfigurations()) {
             // disconnect Google Android Drive API connection.
             googleApiClient.disconnect();
         }
@@ -113,9 +319,27 @@ public class ImageProvider extends Activity implements ConnectionCallbacks,
         cameraButton = (Button) findViewById(R.id.camera_btn);
         galleryButton = (Button) findViewById(R.id.gallery_btn);
         googleDriveButton = (Button) findViewById(R.id.drive_btn);
-        waitingDrivePhotoDownload = new ProgressDialog(this);
-        waitingDrivePhotoDownload.setTitle("Downloading image from Google Drive");
-        waitingDrivePhotoDownload.setMessage("Please wait...");
+        importProgress = new ProgressDialog(this);
+        importProgress.setMessage("Please wait...");
+        importProgress.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+        importProgress.setProgressNumberFormat("%1d / %2d KB");
+        importProgress.setCancelable(false);
+        importProgress.setButton(DialogInterface.BUTTON_NEGATIVE, "Cancel",
+                new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        if (imageImport != null) {
+                            imageImport.cancel();
+                        }
+                        if (folderImport != null) {
+                            folderImport.cancel();
+                        }
+                    }
+                });
+        transferEngine = ChequeScanApplication.get(this).getTransferEngine();
+        storeExecutor = Executors.newSingleThreadExecutor();
+        bitmapLoader = new BitmapLoader(BitmapPool.getInstance());
+        qualityChecker = new QualityChecker(BitmapPool.getInstance());
         backButton = (FloatingActionButton) findViewById(R.id.back_btn);
         pic = (ImageView) findViewById(R.id.image);
     }
@@ -126,6 +350,8 @@ public class ImageProvider extends Activity implements ConnectionCallbacks,
      * @param type this determines which source the user wants the image from
      */
     private void getImage(ImageSource type) {
+        scanStart = ScanMetrics.start();
+        lastSource = type;
         switch (type) {
             case Camera:
                 getImageFromCamera();
@@ -149,6 +375,14 @@ public class ImageProvider extends Activity implements ConnectionCallbacks,
             }
         });
 
+        cameraButton.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View view) {
+                startBatch();
+                return true;
+            }
+        });
+
         galleryButton.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View view) {
@@ -163,85 +397,191 @@ public class ImageProvider extends Activity implements ConnectionCallbacks,
             }
         });
 
+        // long press imports every image of a Drive folder
+        googleDriveButton.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View view) {
+                scanStart = ScanMetrics.start();
+                connectDrive(new DrivePickerCallback(new String[]{DriveFolder.MIME_TYPE}, DRIVE_FOLDER_CODE));
+                return true;
+            }
+        });
+
         backButton.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View view) {
                 onBackPressed();
             }
         });
+
+        // a tap on the image opens it at full resolution, to zoom into the MICR line and signature
+        pic.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View view) {
+                if (pathToPhoto == null) {
+                    return;
+                }
+                Intent viewer = new Intent(ImageProvider.this, ChequeViewerActivity.class);
+                viewer.putExtra(ChequeViewerActivity.EXTRA_PATH, pathToPhoto);
+                startActivity(viewer);
+            }
+        });
+
+        // long press on the image dumps the scan latencies collected so far
+        pic.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View view) {
+                if (!ScanMetrics.isEnabled()) {
+                    return false;
+                }
+                File file = MetricsReporter.dump(ImageProvider.this);
+                Toast.makeText(ImageProvider.this, file != null
+                        ? "Scan metrics written to " + file.getName()
+                        : "Scan metrics written to logcat", Toast.LENGTH_SHORT).show();
+                return true;
+            }
+        });
     }
 
     /**
-     * When photo is taken from gallery, this method is called to get the path to the photo from the
-     * URI of the photo passed into onActivityResult. This code was taken from the given link.
-     *
-     * @param uri URI containing the image from gallery
-     * @return String representation of path to the image
-     * @see <a href="https://stackoverflow.com/questions/20324155/get-filepath-and-filename-of-selected-gallery-image-in-android">
-     * Get filepath and filename of selected gallery image</a>
+     * This method gets a pending file of the ContentStore to save the picture and starts
+     * AutoCaptureActivity, which takes the full size photo by itself once the cheque is held still
+     * in front of the camera.
      */
-    public String getRealPathFromURI(Uri uri) {
-        String[] projection = {MediaStore.Images.Media.DATA};
-        @SuppressWarnings("deprecation")
-        Cursor cursor = managedQuery(uri, projection, null, null, null);
-        int column_index = cursor
-                .getColumnIndexOrThrow(MediaStore.Images.Media.DATA);
-        cursor.moveToFirst();
-        return cursor.getString(column_index);
+    public void getImageFromCamera() {
+        // The photo goes into a pending file, it is moved into the store once it is taken
+        pendingCapture = contentStore.newPendingFile(null);
+        Intent autoCaptureIntent = new Intent(this, AutoCaptureActivity.class);
+        autoCaptureIntent.putExtra(AutoCaptureActivity.EXTRA_OUTPUT, pendingCapture.getAbsolutePath());
+        startActivityForResult(autoCaptureIntent, CAMERA_CODE);
     }
 
     /**
-     * This method creates a new file in the external storage to save a full size photo. I have used
-     * getExternalFilesDir method so that the file is private only to the app. If the photo needs
-     * to be saved in a public directory so that it is accessible to other apps then look at link.
-     *
-     * @return file where the photo has to be saved
-     * @throws IOException throws generic exception if error occurs
-     * @see <a href="https://developer.android.com/training/camera/photobasics.html#TaskPath">Saving Full Photo</a>
+     * Starts a batch session which writes its results to a new manifest in the app's files and
+     * opens the camera for the first cheque. The upload journal, the archive directory and the
+     * manifest are opened on storeExecutor.
+     */
+    private void startBatch() {
+        if (batchSession != null || startingBatch) {
+            return;
+        }
+        startingBatch = true;
+        final ChequeScanApplication application = ChequeScanApplication.get(this);
+        storeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                BatchScanSession session = null;
+                File directory = getExternalFilesDir("batches");
+                if (directory != null) {
+                    File manifest = new File(directory, "batch_" + System.currentTimeMillis() + ".csv");
+                    try {
+                        session = new BatchScanSession(contentStore, manifest, application.getUploadQueue(),
+                                application.getScanDatabase(), application.getCashLetterHeader(),
+                                application.getArchiveDirectory());
+                    } catch (IOException e) {
+                        Log.w(TAG, "Could not start the batch", e);
+                    }
+                }
+                final BatchScanSession started = session;
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        onBatchStarted(started);
+                    }
+                });
+            }
+        });
+    }
+
+    private void onBatchStarted(BatchScanSession session) {
+        startingBatch = false;
+        if (session == null) {
+            Toast.makeText(this, "Could not start the batch", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        if (isDestroyed()) {
+            // the user left or turned the phone before the session was ready, nothing was captured
+            session.abort();
+            return;
+        }
+        batchSession = session;
+        ChequeScanApplication.get(this).setBatchSession(session);
+        session.setCallback(new BatchCallback());
+        Toast.makeText(this, "Batch started, leave the camera to finish", Toast.LENGTH_SHORT).show();
+        captureNextInBatch();
+    }
+
+    private void captureNextInBatch() {
+        File capture = contentStore.newPendingFile(null);
+        batchSession.setCapture(capture);
+        Intent autoCaptureIntent = new Intent(this, AutoCaptureActivity.class);
+        autoCaptureIntent.putExtra(AutoCaptureActivity.EXTRA_OUTPUT, capture.getAbsolutePath());
+        startActivityForResult(autoCaptureIntent, BATCH_CAMERA_CODE);
+    }
+
+    /**
+     * Ends the batch once the user leaves the camera. The cheques still in the pipeline are
+     * finished before the summary is shown.
+     */
+    private void finishBatch() {
+        importProgress.setTitle("Finishing batch of " + batchSession.getCaptured() + " cheques");
+        importProgress.setIndeterminate(true);
+        importProgress.show();
+        batchSession.finish();
+    }
+
+    /**
+     * Follows the batch session on the main thread.
      */
-    private File createImageFile() throws IOException {
-        // File name is current time and date to avoid conflict.
-        String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date());
-        String imageFileName = "JPEG_" + timeStamp + "_";
+    private class BatchCallback implements BatchScanSession.Callback {
 
-        File storageDir = getExternalFilesDir(Environment.DIRECTORY_PICTURES);
-        File image = File.createTempFile(
-                imageFileName,  /* prefix */
-                ".jpg",         /* suffix */
-                storageDir      /* directory */
-        );
+        @Override
+        public void onReadyForNext() {
+            if (!isFinishing() && !isDestroyed()) {
+                captureNextInBatch();
+            }
+        }
+
+        @Override
+        public void onChequeDone(BatchCheque cheque, String error) {
+            if (error != null) {
+                Toast.makeText(getApplicationContext(), "Cheque " + cheque.getSequence() + ": " + error,
+                        Toast.LENGTH_SHORT).show();
+            }
+        }
 
-        // Save a file: path for use with ACTION_VIEW intents
-        pathToPhoto = image.getAbsolutePath();
-        return image;
+        @Override
+        public void onFinished(String summary) {
+            batchSession = null;
+            ChequeScanApplication.get(ImageProvider.this).setBatchSession(null);
+            importProgress.cancel();
+            if (isFinishing() || isDestroyed()) {
+                return;
+            }
+            new AlertDialog.Builder(ImageProvider.this)
+                    .setTitle("Batch finished")
+                    .setMessage(summary)
+                    .setPositiveButton("OK", null)
+                    .show();
+        }
     }
 
     /**
-     * This method gets a valid file in external memory to save the picture and starts ActivityForResult
-     * which fills the file with the complete full size image from the camera.
+     * Used when the camera cannot be opened by AutoCaptureActivity. Starts ActivityForResult which
+     * fills the pending file with the complete full size image from the camera app.
      *
      * @see <a href="https://developer.android.com/training/camera/photobasics.html#TaskPath">Full Size Pic from Camera</a>
      */
-    public void getImageFromCamera() {
+    private void getImageFromCameraApp() {
         Intent takePictureIntent = new Intent(MediaStore.ACTION_IMAGE_CAPTURE);
         // Ensure that there's a camera activity to handle the intent
         if (takePictureIntent.resolveActivity(getPackageManager()) != null) {
-            // Create the File where the photo should go
-            File photoFile = null;
-            try {
-                photoFile = createImageFile();
-            } catch (IOException ex) {
-                Toast.makeText(this, "Could not find a file to store the image", Toast.LENGTH_SHORT).show();
-                return;
-            }
-            // Continue only if the File was successfully created
-            if (photoFile != null) {
-                Uri photoURI = FileProvider.getUriForFile(this,
-                        "com.example.android.fileprovider",
-                        photoFile);
-                takePictureIntent.putExtra(MediaStore.EXTRA_OUTPUT, photoURI);
-                startActivityForResult(takePictureIntent, CAMERA_CODE);
-            }
+            pendingCapture = contentStore.newPendingFile(null);
+            Uri photoURI = FileProvider.getUriForFile(this,
+                    "com.example.android.fileprovider",
+                    pendingCapture);
+            takePictureIntent.putExtra(MediaStore.EXTRA_OUTPUT, photoURI);
+            startActivityForResult(takePictureIntent, CAMERA_CODE);
         }
     }
 
@@ -309,9 +649,16 @@ public class ImageProvider extends Activity implements ConnectionCallbacks,
      *
      * 3. After the user chooses the image, onActivityResult is triggered where the DriveFile is
      *    extracted and is opened. A ResultCallback object named contentsOpenedCallback is attached.
+     *    If the file was downloaded before, it is taken from the ContentStore instead.
      *
      * 4. contentsOpenedCallback's onResult method is triggered when the Drive file is successfully
-     *    opened. It further goes to save it on a local file in external memory.
+     *    opened. It hands the contents to the ContentStore which downloads them with the
+     *    TransferEngine on a worker thread. ImportListener follows the download and hands the image
+     *    to the quality check once it is complete.
+     *
+     * A long press on the Drive button goes through the same steps with a folder picker. The chosen
+     * folder is listed by a DriveFolderTransport and all its images are downloaded by a FolderImport,
+     * a few at a time, with the total progress in the same dialog.
      */
 
     /**
@@ -323,8 +670,18 @@ public class ImageProvider extends Activity implements ConnectionCallbacks,
      * @see <a href="https://developers.google.com/drive/android/auth">Google Drive Auth docs</a>
      */
     public void getImageFromDrive() {
+        connectDrive(new DrivePickerCallback(IMAGE_MIME_TYPES, DRIVE_CODE));
+    }
+
+    /**
+     * Builds and connects the googleApiClient, then opens the Drive picker through the callback.
+     *
+     * @param pickerCallback callback starting the picker
+     */
+    private void connectDrive(ResultCallback<DriveApi.DriveContentsResult> pickerCallback) {
         if (googleApiClient == null) {
-            googleApiClient = new GoogleApiClient.Builder(this)
+            // built on the application, the client outlives the activity when it is recreated
+            googleApiClient = new GoogleApiClient.Builder(getApplicationContext())
                     .addApi(Drive.API)
                     .addScope(Drive.SCOPE_FILE)
                     .addConnectionCallbacks(this)
@@ -333,31 +690,97 @@ public class ImageProvider extends Activity implements ConnectionCallbacks,
         }
 
         googleApiClient.connect();
-        Drive.DriveApi.newDriveContents(googleApiClient).setResultCallback(driveContentsCallback);
+        Drive.DriveApi.newDriveContents(googleApiClient).setResultCallback(pickerCallback);
     }
 
-    private final ResultCallback<DriveApi.DriveContentsResult> driveContentsCallback =
-            new ResultCallback<DriveApi.DriveContentsResult>() {
-                @Override
-                public void onResult(@NonNull DriveApi.DriveContentsResult result) {
-                    if (result.getStatus().isSuccess()) {
-                        IntentSender intentSender = Drive.DriveApi
-                                .newOpenFileActivityBuilder()
-                                .setMimeType(new String[]{"image/jpeg", "image/jpg", "image/png"})
-                                .build(googleApiClient);
-                        try {
-                            startIntentSenderForResult(intentSender, DRIVE_CODE, null, 0, 0, 0);
-                        } catch (IntentSender.SendIntentException e) {
-                            Toast.makeText(getApplicationContext(), "Could not open Google Drive", Toast.LENGTH_SHORT).show();
-                        }
-                    }
+    /**
+     * Starts the Drive picker, for images or for folders, once the client is connected.
+     */
+    private class DrivePickerCallback implements ResultCallback<DriveApi.DriveContentsResult> {
+
+        private final String[] mimeTypes;
+        private final int requestCode;
+
+        DrivePickerCallback(String[] mimeTypes, int requestCode) {
+            this.mimeTypes = mimeTypes;
+            this.requestCode = requestCode;
+        }
+
+        @Override
+        public void onResult(@NonNull DriveApi.DriveContentsResult result) {
+            if (result.getStatus().isSuccess()) {
+                IntentSender intentSender = Drive.DriveApi
+                        .newOpenFileActivityBuilder()
+                        .setMimeType(mimeTypes)
+                        .build(googleApiClient);
+                try {
+                    startIntentSenderForResult(intentSender, requestCode, null, 0, 0, 0);
+                } catch (IntentSender.SendIntentException e) {
+                    Toast.makeText(getApplicationContext(), "Could not open Google Drive", Toast.LENGTH_SHORT).show();
                 }
-            };
+            }
+        }
+    }
+
+    /**
+     * Lists the images of a Drive folder on a transfer thread and imports all of them.
+     *
+     * @param folderId id of the folder picked by the user
+     */
+    private void importDriveFolder(DriveId folderId) {
+        importProgress.setTitle(FOLDER_IMPORT_TITLE);
+        importProgress.setIndeterminate(true);
+        importProgress.show();
+        folderImport = new FolderImport(contentStore, transferEngine, new DriveFolderTransport(googleApiClient),
+                folderId.encodeToString());
+        folderImport.attach(new FolderImportListener());
+        ChequeScanApplication.get(this).setFolderImport(folderImport);
+        folderImport.start();
+    }
+
+    /**
+     * Follows a folder import on the main thread, where the progress dialog shows the files and
+     * kilobytes done.
+     */
+    private class FolderImportListener implements FolderImport.Listener {
+
+        @Override
+        public void onProgress(int filesDone, int filesTotal, long bytesDone, long bytesTotal) {
+            importProgress.setMessage(filesDone + " of " + filesTotal + " images");
+            if (bytesTotal > 0) {
+                importProgress.setIndeterminate(false);
+                importProgress.setMax((int) (bytesTotal / 1024));
+                importProgress.setProgress((int) (bytesDone / 1024));
+            }
+        }
+
+        @Override
+        public void onListFailed(IOException e) {
+            release();
+            Toast.makeText(getApplicationContext(), "This folder cannot be opened.", Toast.LENGTH_SHORT).show();
+        }
+
+        @Override
+        public void onFinished(int imported, int failed) {
+            release();
+            ScanMetrics.record(ScanStage.COPY, scanStart);
+            Toast.makeText(getApplicationContext(), failed == 0
+                    ? "Imported " + imported + " images"
+                    : "Imported " + imported + " images, " + failed + " failed", Toast.LENGTH_LONG).show();
+        }
+
+        private void release() {
+            folderImport = null;
+            ChequeScanApplication.get(ImageProvider.this).setFolderImport(null);
+            importProgress.cancel();
+            importProgress.setMessage("Please wait...");
+        }
+    }
 
     /**
      * Google Drive and Gallery methods call this method. All three methods of getting image should
      * ultimately give a valid file path to the image.
-     * For getting the image from gallery, we just get the path to that image.
+     * For getting the image from gallery, the picked content URI is copied into the ContentStore.
      * For getting the image from Google Drive, we use a resultCallBack object which takes the
      * DriveFile, extracts its contents and fills a File with it.
      *
@@ -367,9 +790,48 @@ public class ImageProvider extends Activity implements ConnectionCallbacks,
      * @see <a href="https://developers.google.com/drive/android/files">Saving Drive File Contents</a>
      */
     @Override
-    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+    protected void onActivityResult(final int requestCode, final int resultCode, final Intent data) {
+        // a photo of the batch, or the user left the camera to end the batch
+        if (requestCode == BATCH_CAMERA_CODE && batchSession != null) {
+            File capture = batchSession.getCapture();
+            batchSession.setCapture(null);
+            if (resultCode == RESULT_OK && capture != null) {
+                batchSession.add(capture);
+            } else {
+                if (capture != null) {
+                    capture.delete();
+                }
+                finishBatch();
+            }
+            return;
+        }
+
+        // recreated while away and the store is still being opened
+        if (contentStore == null) {
+            untilStoreOpen.add(new Runnable() {
+                @Override
+                public void run() {
+                    onActivityResult(requestCode, resultCode, data);
+                }
+            });
+            return;
+        }
+
+        // the camera is busy or missing, let the camera app take the photo
+        if (requestCode == CAMERA_CODE && resultCode == AutoCaptureActivity.RESULT_NO_CAMERA) {
+            if (pendingCapture != null) {
+                pendingCapture.delete();
+            }
+            getImageFromCameraApp();
+            return;
+        }
+
         // Return if result is not okay
         if (resultCode != RESULT_OK) {
+            if (requestCode == CAMERA_CODE && pendingCapture != null) {
+                pendingCapture.delete();
+                pendingCapture = null;
+            }
             if (resultCode == RESULT_CANCELED) {
                 Toast.makeText(this, "Cancelled image capture", Toast.LENGTH_SHORT).show();
             } else {
@@ -378,29 +840,277 @@ public class ImageProvider extends Activity implements ConnectionCallbacks,
             return;
         }
 
+        if (requestCode == CAMERA_CODE || requestCode == LIBRARY_CODE || requestCode == DRIVE_CODE
+                || requestCode == DRIVE_FOLDER_CODE) {
+            ScanMetrics.record(ScanStage.ACQUIRE, scanStart);
+        }
+
         // connection failure resolved and fixed
         if (requestCode == RESOLVE_CONNECTION_REQUEST_CODE) {
             Toast.makeText(getApplicationContext(), "Connection failure fixed!", Toast.LENGTH_SHORT).show();
             googleApiClient.connect();
         }
 
+        // photo taken with the camera
+        if (requestCode == CAMERA_CODE && pendingCapture != null) {
+            commitCapture(pendingCapture);
+            pendingCapture = null;
+        }
+
         // photo taken from gallery
         if (requestCode == LIBRARY_CODE) {
-            pathToPhoto = getRealPathFromURI(data.getData());
+            importFromGallery(data.getData());
+        }
+
+        // folder chosen from Google Drive
+        if (requestCode == DRIVE_FOLDER_CODE) {
+            importDriveFolder((DriveId) data.getParcelableExtra(OpenFileActivityBuilder.EXTRA_RESPONSE_DRIVE_ID));
         }
 
         // photo chosen from Google Drive
         if (requestCode == DRIVE_CODE) {
             //this extra contains the drive id of the selected file
             DriveId driveId = (DriveId) data.getParcelableExtra(OpenFileActivityBuilder.EXTRA_RESPONSE_DRIVE_ID);
+            StoreEntry stored = contentStore.findBySourceKey(DriveFolderTransport.sourceKey(driveId));
+            if (stored != null) {
+                // downloaded before, no need to touch the network
+                onImageStored(stored.getFile().getAbsolutePath());
+                return;
+            }
             DriveFile file = driveId.asDriveFile();
-            waitingDrivePhotoDownload.show();
+            importProgress.setTitle("Downloading image from Google Drive");
+            importProgress.setIndeterminate(true);
+            importProgress.show();
             file.open(googleApiClient, DriveFile.MODE_READ_ONLY, null)
                     .setResultCallback(contentsOpenedCallback);
         }
 
-        if (pathToPhoto != null)
-            pic.setImageBitmap(BitmapFactory.decodeFile(pathToPhoto));
+    }
+
+    /**
+     * Copies an image picked from the gallery into the ContentStore on a transfer thread, reading it
+     * through the ContentResolver so that it works for every provider, not only for images with a
+     * path on shared storage. An image which is stored already is only hashed, not copied again.
+     *
+     * @param uri content URI returned by the picker
+     */
+    private void importFromGallery(Uri uri) {
+        importProgress.setTitle("Importing image from gallery");
+        importProgress.setIndeterminate(true);
+        importProgress.show();
+        startImport(new ImageImport("Importing image from gallery", null, null));
+        imageImport.setTransfer(contentStore.importFile(transferEngine,
+                new ContentUriSource(getContentResolver(), uri), null, new MainThreadTransferListener(imageImport)));
+    }
+
+    /**
+     * Keeps the import in the application and follows it until its result is taken.
+     *
+     * @param started the import whose transfer is about to be submitted
+     */
+    private void startImport(ImageImport started) {
+        imageImport = started;
+        imageImport.attach(new ImportListener());
+        ChequeScanApplication.get(this).setImageImport(imageImport);
+    }
+
+    /**
+     * Hashes a photo the camera has written and moves it into the store on a background thread,
+     * then checks and shows it.
+     *
+     * @param capture pending file the camera wrote the photo into
+     */
+    private void commitCapture(final File capture) {
+        storeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                StoreEntry stored;
+                try {
+                    stored = contentStore.commit(capture, null);
+                } catch (IOException e) {
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Toast.makeText(getApplicationContext(), "Could not store the image", Toast.LENGTH_SHORT).show();
+                        }
+                    });
+                    return;
+                }
+                checkQuality(stored.getFile().getAbsolutePath());
+                requestEviction();
+            }
+        });
+    }
+
+    /**
+     * Checks the quality of an image which is in the store on a background thread, then shows it.
+     *
+     * @param path path to the stored image
+     */
+    private void onImageStored(final String path) {
+        storeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                checkQuality(path);
+                requestEviction();
+            }
+        });
+    }
+
+    /**
+     * Lets the storage manager make room for the image which was just stored. The eviction runs on
+     * the thread of the manager. Has to be called on storeExecutor, the manager is opened on first
+     * use.
+     */
+    private void requestEviction() {
+        try {
+            ChequeScanApplication.get(this).getStorageManager().requestEviction();
+        } catch (IOException e) {
+            // nothing is evicted now, the next stored image tries again
+        }
+    }
+
+    /**
+     * Runs the quality gate on a stored image, looks its cheque up among the cheques seen before and
+     * hands the result to the main thread. Has to be called on storeExecutor.
+     *
+     * @param path path to the stored image
+     */
+    private void checkQuality(final String path) {
+        final QualityReport report = qualityChecker.check(path);
+        final Fingerprint fingerprint = qualityChecker.getFingerprint();
+        final boolean duplicate = fingerprint != null && isDuplicate(path, fingerprint);
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                // a recreated activity cannot show dialogs, the image stays in the store
+                if (isFinishing() || isDestroyed()) {
+                    return;
+                }
+                if (report == null) {
+                    Toast.makeText(getApplicationContext(), "This file is not an image.", Toast.LENGTH_SHORT).show();
+                } else if (!report.isAcceptable()) {
+                    askForRetake(path, report, fingerprint, duplicate);
+                } else if (duplicate) {
+                    askAboutDuplicate(path, fingerprint);
+                } else {
+                    accept(path, fingerprint);
+                }
+            }
+        });
+    }
+
+    /**
+     * Has to be called on storeExecutor.
+     *
+     * @param path        path to the stored image, its name is the content hash
+     * @param fingerprint perceptual hashes of the cheque on the image
+     * @return whether this image or another capture of the same cheque was accepted before
+     */
+    private boolean isDuplicate(String path, Fingerprint fingerprint) {
+        try {
+            return ChequeScanApplication.get(this).getDuplicateIndex().findDuplicate(
+                    new File(path).getName(), fingerprint.getHash(), fingerprint.getDetail()) != null;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Tells the user what is wrong with the photo and offers to take it again. The photo can still
+     * be used, for example when the cheque really is damaged.
+     *
+     * @param path        path to the stored image
+     * @param report      what the quality gate found
+     * @param fingerprint perceptual hashes of the cheque or null if none was found
+     * @param duplicate   whether the cheque was scanned before
+     */
+    private void askForRetake(final String path, QualityReport report, final Fingerprint fingerprint,
+                              final boolean duplicate) {
+        new AlertDialog.Builder(this)
+                .setTitle("Retake the photo?")
+                .setMessage(QualityChecker.describe(report.getIssues()))
+                .setPositiveButton("Retake", new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        getImage(lastSource);
+                    }
+                })
+                .setNegativeButton("Use anyway", new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        if (duplicate) {
+                            askAboutDuplicate(path, fingerprint);
+                        } else {
+                            accept(path, fingerprint);
+                        }
+                    }
+                })
+                .show();
+    }
+
+    /**
+     * Warns that the cheque was scanned before, by camera, from the gallery or from Drive, so that
+     * it is not processed twice by mistake.
+     *
+     * @param path        path to the stored image
+     * @param fingerprint perceptual hashes of the cheque
+     */
+    private void askAboutDuplicate(final String path, final Fingerprint fingerprint) {
+        new AlertDialog.Builder(this)
+                .setTitle("Scanned before")
+                .setMessage("This cheque looks like one which was scanned before.")
+                .setPositiveButton("Use anyway", new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        accept(path, fingerprint);
+                    }
+                })
+                .setNegativeButton("Cancel", null)
+                .show();
+    }
+
+    /**
+     * Accepts a stored image for analysis, records it, remembers its cheque for the duplicate check
+     * and shows it.
+     *
+     * @param path        path to the stored image
+     * @param fingerprint perceptual hashes of the cheque or null if none was found
+     */
+    private void accept(final String path, final Fingerprint fingerprint) {
+        storeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                ChequeScanApplication application = ChequeScanApplication.get(ImageProvider.this);
+                String key = new File(path).getName();
+                try {
+                    // a photo accepted again keeps the record a batch may have written for it
+                    application.getScanDatabase().add(
+                            ScanRecord.of(key, null, ScanStatus.SCANNED, System.currentTimeMillis()));
+                } catch (SQLiteException e) {
+                    // the photo is still in the store, it only cannot be found by its numbers
+                }
+                if (fingerprint == null) {
+                    return;
+                }
+                try {
+                    application.getDuplicateIndex().add(key, fingerprint.getHash(), fingerprint.getDetail());
+                } catch (IOException e) {
+                    // the next capture of this cheque is not recognised, nothing else is lost
+                }
+            }
+        });
+        showImage(path);
+    }
+
+    /**
+     * Decodes the preview of an accepted image into pic.
+     *
+     * @param path path to the stored image
+     */
+    private void showImage(String path) {
+        pathToPhoto = path;
+        bitmapLoader.load(pathToPhoto, pic, scanStart);
     }
 
     /*
@@ -412,34 +1122,67 @@ public class ImageProvider extends Activity implements ConnectionCallbacks,
                 @Override
                 public void onResult(@NonNull DriveApi.DriveContentsResult result) {
                     if (!result.getStatus().isSuccess()) {
-                        waitingDrivePhotoDownload.cancel();
+                        importProgress.cancel();
                         Toast.makeText(getApplicationContext(), "This file cannot be opened.", Toast.LENGTH_SHORT).show();
                         return;
                     }
 
                     // DriveContents object contains pointers to the actual byte stream
                     DriveContents contents = result.getDriveContents();
-                    try {
-                        File localFile = createImageFile();
-                        OutputStream out = new BufferedOutputStream(new FileOutputStream(localFile));
-                        InputStream in = contents.getInputStream();
-                        int b;
-                        while ((b = in.read()) >= 0) {
-                            out.write(b);
-                        }
-                        in.close();
-                        out.close();
-                        waitingDrivePhotoDownload.cancel();
-                        if (pathToPhoto != null)
-                            pic.setImageBitmap(BitmapFactory.decodeFile(pathToPhoto));
-                    } catch (Exception e) {
-                        waitingDrivePhotoDownload.cancel();
-                        Toast.makeText(getApplicationContext(), "This file could not be read.", Toast.LENGTH_SHORT).show();
+                    if (isDestroyed()) {
+                        // opened for an instance which is gone, the next one shows no download
+                        contents.discard(googleApiClient);
+                        return;
                     }
-                    contents.discard(googleApiClient);
+                    startImport(new ImageImport("Downloading image from Google Drive", contents, googleApiClient));
+                    imageImport.setTransfer(contentStore.download(transferEngine,
+                            new StreamSource(contents.getInputStream(), -1),
+                            DriveFolderTransport.sourceKey(contents.getDriveId()),
+                            new MainThreadTransferListener(imageImport)));
                 }
             };
 
+    /**
+     * Follows the import of one image from Drive or the gallery. Runs on the main thread, updates
+     * the progress dialog and checks the image once the file is complete. The DriveContents of a
+     * Drive download are discarded by the ImageImport.
+     */
+    private class ImportListener implements TransferListener {
+
+        @Override
+        public void onProgress(long bytesTransferred, long totalBytes) {
+            if (totalBytes > 0) {
+                importProgress.setIndeterminate(false);
+                importProgress.setMax((int) (totalBytes / 1024));
+                importProgress.setProgress((int) (bytesTransferred / 1024));
+            }
+        }
+
+        @Override
+        public void onComplete(File target, long totalBytes) {
+            release();
+            onImageStored(target.getAbsolutePath());
+        }
+
+        @Override
+        public void onCancelled() {
+            release();
+            Toast.makeText(getApplicationContext(), "Import cancelled.", Toast.LENGTH_SHORT).show();
+        }
+
+        @Override
+        public void onFailed(IOException e) {
+            release();
+            Toast.makeText(getApplicationContext(), "This file could not be read.", Toast.LENGTH_SHORT).show();
+        }
+
+        private void release() {
+            imageImport = null;
+            ChequeScanApplication.get(ImageProvider.this).setImageImport(null);
+            importProgress.cancel();
+        }
+    }
+
 
     /**
      * Triggered when connection fails. This method tries to resolve the connection failure and if
@@ -0,0 +1,64 @@
+package com.bioenable.chequescan;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.bioenable.chequescan.transfer.TransferListener;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * TransferEngine calls its listeners on the worker thread. This class wraps a listener so that all
+ * the events are delivered on the main thread instead, which lets activities update their views
+ * straight from the callbacks.
+ */
+class MainThreadTransferListener implements TransferListener {
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final TransferListener delegate;
+
+    MainThreadTransferListener(TransferListener delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public void onProgress(final long bytesTransferred, final long totalBytes) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                delegate.onProgress(bytesTransferred, totalBytes);
+            }
+        });
+    }
+
+    @Override
+    public void onComplete(final File target, final long totalBytes) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                delegate.onComplete(target, totalBytes);
+            }
+        });
+    }
+
+    @Override
+    public void onCancelled() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                delegate.onCancelled();
+            }
+        });
+    }
+
+    @Override
+    public void onFailed(final IOException e) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                delegate.onFailed(e);
+            }
+        });
+    }
+}
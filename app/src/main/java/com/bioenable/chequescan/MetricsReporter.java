@@ -0,0 +1,102 @@
+package com.bioenable.chequescan;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.bioenable.chequescan.metrics.ScanMetrics;
+import com.bioenable.chequescan.metrics.StartupTrace;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Writes the {@link ScanMetrics} collected so far and the hit rates of the image caches to logcat
+ * and to a text file in the app's external files directory, from where it can be pulled with adb.
+ * Traces of cold starts are appended to startup.csv in the same directory in debug builds.
+ */
+class MetricsReporter {
+
+    private static final String TAG = "ScanMetrics";
+    private static final String DIRECTORY = "metrics";
+    private static final String STARTUP_FILE = "startup.csv";
+
+    private MetricsReporter() {
+    }
+
+    /**
+     * @param context any context of the app
+     * @return the file the snapshot was written to or null if it could only be logged
+     */
+    static File dump(Context context) {
+        StringWriter snapshot = new StringWriter();
+        try {
+            ScanMetrics.dump(snapshot);
+            snapshot.append(ImageLoader.getStats()).append('\n');
+        } catch (IOException e) {
+            // a StringWriter does not fail
+            throw new IllegalStateException(e);
+        }
+        // logcat truncates long messages, so the table goes out line by line
+        for (String line : snapshot.toString().split("\n")) {
+            Log.i(TAG, line);
+        }
+
+        File directory = context.getExternalFilesDir(DIRECTORY);
+        if (directory == null) {
+            return null;
+        }
+        String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date());
+        File file = new File(directory, "scan_metrics_" + timeStamp + ".txt");
+        try {
+            Writer out = new FileWriter(file);
+            try {
+                out.write(snapshot.toString());
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not write " + file, e);
+            return null;
+        }
+        return file;
+    }
+
+    /**
+     * Logs the trace of a cold start and appends it to startup.csv. Like the {@link ScanMetrics},
+     * this only happens in debug builds. Does disk I/O, so it has to be called on a worker thread.
+     *
+     * @param context any context of the app
+     * @param trace   a complete trace
+     */
+    static void appendStartup(Context context, StartupTrace trace) {
+        if (!BuildConfig.DEBUG) {
+            return;
+        }
+        Log.i(TAG, "Cold start: " + trace);
+        File directory = context.getExternalFilesDir(DIRECTORY);
+        if (directory == null) {
+            return;
+        }
+        File file = new File(directory, STARTUP_FILE);
+        try {
+            boolean header = !file.exists();
+            Writer out = new FileWriter(file, true);
+            try {
+                if (header) {
+                    out.write(StartupTrace.CSV_HEADER + "\n");
+                }
+                out.write(trace.toCsvLine() + "\n");
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not write " + file, e);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.bioenable.chequescan;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.PixelFormat;
+import android.graphics.Rect;
+import android.graphics.drawable.Drawable;
+
+import com.bioenable.chequescan.jpeg.Orientation;
+
+/**
+ * Draws a bitmap turned by its EXIF {@link Orientation}. The rotation and mirroring are part of
+ * the matrix the bitmap is drawn with, so a portrait photo stays one bitmap, as it was decoded,
+ * instead of being copied into a rotated one. Its intrinsic size is the turned one, so an
+ * ImageView scales it like any other image.
+ */
+class OrientedBitmapDrawable extends Drawable {
+
+    private final Bitmap bitmap;
+    private final Orientation orientation;
+    private final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Matrix matrix = new Matrix();
+    private final float[] values = new float[9];
+
+    /**
+     * @param bitmap      the image as it is stored
+     * @param orientation how it has to be turned
+     */
+    OrientedBitmapDrawable(Bitmap bitmap, Orientation orientation) {
+        this.bitmap = bitmap;
+        this.orientation = orientation;
+    }
+
+    /**
+     * Sets matrix to the map from the stored pixels of a bitmap to the displayed ones.
+     *
+     * @param orientation how the bitmap has to be turned
+     * @param width       width of the bitmap
+     * @param height      height of the bitmap
+     * @param values      scratch for nine values
+     * @param matrix      receives the map
+     */
+    static void setOrientation(Orientation orientation, int width, int height, float[] values, Matrix matrix) {
+        orientation.toDisplay(width, height, values);
+        matrix.setValues(values);
+    }
+
+    @Override
+    protected void onBoundsChange(Rect bounds) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        setOrientation(orientation, width, height, values, matrix);
+        matrix.postScale((float) bounds.width() / orientation.displayWidth(width, height),
+                (float) bounds.height() / orientation.displayHeight(width, height));
+        matrix.postTranslate(bounds.left, bounds.top);
+    }
+
+    @Override
+    public void draw(Canvas canvas) {
+        canvas.drawBitmap(bitmap, matrix, paint);
+    }
+
+    @Override
+    public int getIntrinsicWidth() {
+        return orientation.displayWidth(bitmap.getWidth(), bitmap.getHeight());
+    }
+
+    @Override
+    public int getIntrinsicHeight() {
+        return orientation.displayHeight(bitmap.getWidth(), bitmap.getHeight());
+    }
+
+    @Override
+    public void setAlpha(int alpha) {
+        paint.setAlpha(alpha);
+        invalidateSelf();
+    }
+
+    @Override
+    public void setColorFilter(ColorFilter colorFilter) {
+        paint.setColorFilter(colorFilter);
+        invalidateSelf();
+    }
+
+    @Override
+    public int getOpacity() {
+        return bitmap.hasAlpha() || paint.getAlpha() < 255 ? PixelFormat.TRANSLUCENT : PixelFormat.OPAQUE;
+    }
+}
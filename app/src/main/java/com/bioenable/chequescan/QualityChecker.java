@@ -0,0 +1,122 @@
+package com.bioenable.chequescan;
+
+import android.graphics.Bitmap;
+
+import com.bioenable.chequescan.duplicate.Fingerprint;
+import com.bioenable.chequescan.duplicate.PerceptualHash;
+import com.bioenable.chequescan.metrics.ScanMetrics;
+import com.bioenable.chequescan.metrics.ScanStage;
+import com.bioenable.chequescan.quality.QualityGate;
+import com.bioenable.chequescan.quality.QualityIssue;
+import com.bioenable.chequescan.quality.QualityReport;
+
+import java.io.Closeable;
+import java.util.Set;
+
+/**
+ * Runs the {@link QualityGate} on a stored image. The image is decoded at a fraction of its size
+ * (a 12 MP photo becomes 500 x 375), so that a photo which has to be retaken is rejected in a few
+ * tens of milliseconds, before anything decodes or processes it at full resolution.
+ * <p>
+ * When the gate finds the cheque, the same proxy gives its {@link PerceptualHash}, which is how
+ * another capture of the same cheque is recognised.
+ * <p>
+ * The checker keeps its pixel buffer and must only be used from one worker thread.
+ */
+final class QualityChecker implements Closeable {
+
+    // smallest side of the proxy, the proxy is at most twice as large
+    private static final int PROXY_SIZE = 320;
+
+    private final QualityGate gate = new QualityGate();
+    private final BitmapPool pool;
+    private final PerceptualHash hasher = new PerceptualHash();
+    private int[] pixels = new int[0];
+    private byte[] gray = new byte[0];
+    private Fingerprint fingerprint;
+
+    /**
+     * @param pool pool the proxy bitmaps are decoded into and given back to
+     */
+    QualityChecker(BitmapPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Decodes a proxy of the image, assesses it and hashes the cheque on it. Has to be called on a
+     * worker thread.
+     *
+     * @param path path to the image file
+     * @return the assessment or null if the file is not an image
+     */
+    QualityReport check(String path) {
+        long start = ScanMetrics.start();
+        fingerprint = null;
+        Bitmap proxy = BitmapLoader.decodeSampled(path, PROXY_SIZE, PROXY_SIZE, pool);
+        if (proxy == null) {
+            return null;
+        }
+        int width = proxy.getWidth();
+        int height = proxy.getHeight();
+        if (pixels.length < width * height) {
+            pixels = new int[width * height];
+            gray = new byte[width * height];
+        }
+        proxy.getPixels(pixels, 0, width, 0, 0, width, height);
+        pool.put(proxy);
+        for (int i = 0, end = width * height; i < end; i++) {
+            int pixel = pixels[i];
+            // the same luma weights as ChequePreprocessor
+            gray[i] = (byte) ((77 * ((pixel >> 16) & 0xFF) + 150 * ((pixel >> 8) & 0xFF)
+                    + 29 * (pixel & 0xFF) + 128) >> 8);
+        }
+        QualityReport report = gate.assess(gray, width, height);
+        if (report.getCorners() != null) {
+            long hash = hasher.hash(gray, width, height, report.getCorners());
+            fingerprint = new Fingerprint(hash, hasher.detail());
+        }
+        ScanMetrics.record(ScanStage.QUALITY, start);
+        return report;
+    }
+
+    /**
+     * @return perceptual hashes of the cheque found by the last {@link #check(String)} or null if it
+     * found none
+     */
+    Fingerprint getFingerprint() {
+        return fingerprint;
+    }
+
+    @Override
+    public void close() {
+        gate.close();
+    }
+
+    /**
+     * @param issues problems found in a photo
+     * @return a sentence for each problem, telling the user how to take a better photo
+     */
+    static String describe(Set<QualityIssue> issues) {
+        StringBuilder builder = new StringBuilder();
+        for (QualityIssue issue : issues) {
+            if (builder.length() > 0) {
+                builder.append('\n');
+            }
+            switch (issue) {
+                case NO_DOCUMENT:
+                    builder.append("No cheque was found. Place it on a dark surface with all four corners visible.");
+                    break;
+                case TOO_SMALL:
+                    builder.append("The cheque is too far away. Move closer so that it fills the frame.");
+                    break;
+                case BLURRY:
+                    builder.append("The photo is blurry. Hold the phone still and tap to focus.");
+                    break;
+                case GLARE:
+                    builder.append("A reflection hides part of the cheque. Tilt the phone or move away from the light.");
+                    break;
+            }
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,260 @@
+package com.bioenable.chequescan;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+
+import com.bioenable.chequescan.records.ScanRecord;
+import com.bioenable.chequescan.records.ScanStatus;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The local record of every scanned cheque, kept in SQLite next to the image store so that a cheque
+ * can be found by its numbers without opening any image.
+ * <p>
+ * One table, keyed by the content hash of the photo, with secondary indexes on the cheque number,
+ * on account number and scan time together, so that the cheques of an account come back newest
+ * first without sorting, and on the scan time for date ranges. Every lookup is an index search.
+ * <p>
+ * The database runs in write ahead log mode, so lookups are not blocked by a batch being written.
+ * {@link #putAll(Collection)} writes a whole batch in one transaction with one compiled statement:
+ * a transaction costs a sync of the log, 200 of them take longer than the 200 inserts.
+ * <p>
+ * A batch writes its records at the end while its photos are uploaded during the batch, so an upload
+ * can finish before or after the record of its photo is written. A record never goes back from
+ * UPLOADED: replacing a record keeps the status, and an upload reported for a record which is not
+ * written yet is applied when it is.
+ * <p>
+ * All methods do disk I/O and have to be called on a worker thread.
+ */
+class ScanDatabase extends SQLiteOpenHelper {
+
+    static final String NAME = "scans.db";
+    private static final int VERSION = 1;
+
+    private static final String TABLE = "scans";
+    private static final String COLUMNS =
+            "key, routing_number, account_number, cheque_number, amount, scanned_at, updated_at, status";
+    // a stored record which was uploaded stays uploaded
+    private static final String INSERT = "INSERT OR REPLACE INTO " + TABLE + " (" + COLUMNS + ")"
+            + " VALUES (?1, ?2, ?3, ?4, ?5, ?6, ?7, COALESCE((SELECT status FROM " + TABLE
+            + " WHERE key = ?1 AND status = '" + ScanStatus.UPLOADED.name() + "'), ?8))";
+    // a record which is there already is left as it is
+    private static final String INSERT_NEW = "INSERT OR IGNORE INTO " + TABLE + " (" + COLUMNS + ")"
+            + " VALUES (?1, ?2, ?3, ?4, ?5, ?6, ?7, ?8)";
+    private static final String SELECT = "SELECT " + COLUMNS + " FROM " + TABLE;
+
+    // uploads of records which were not written yet, by key; guarded by this
+    private final Map<String, Long> pendingUploads = new HashMap<>();
+
+    /**
+     * @param context any context of the app
+     * @param name    file name of the database in the app's database directory
+     */
+    ScanDatabase(Context context, String name) {
+        super(context, name, null, VERSION);
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE + " ("
+                + "key TEXT PRIMARY KEY NOT NULL, "
+                + "routing_number TEXT, "
+                + "account_number TEXT, "
+                + "cheque_number TEXT, "
+                + "amount INTEGER, "
+                + "scanned_at INTEGER NOT NULL, "
+                + "updated_at INTEGER NOT NULL, "
+                + "status TEXT NOT NULL)");
+        db.execSQL("CREATE INDEX scans_cheque ON " + TABLE + " (cheque_number)");
+        db.execSQL("CREATE INDEX scans_account ON " + TABLE + " (account_number, scanned_at)");
+        db.execSQL("CREATE INDEX scans_time ON " + TABLE + " (scanned_at)");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // there is only one version so far
+    }
+
+    /**
+     * Adds a record unless there is one with the same key. A photo which is accepted again keeps the
+     * numbers, scan time and status it was recorded with.
+     *
+     * @param record the record to write
+     * @return whether the record was added
+     */
+    synchronized boolean add(ScanRecord record) {
+        SQLiteStatement insert = getWritableDatabase().compileStatement(INSERT_NEW);
+        try {
+            if (insert(insert, record) < 0) {
+                return false;
+            }
+            pendingUploads.remove(record.getKey());
+            return true;
+        } finally {
+            insert.close();
+        }
+    }
+
+    /**
+     * Writes all records in one transaction, either all of them are stored or none.
+     *
+     * @param records the records to write, a record replaces the one with the same key but not its
+     *                UPLOADED status
+     */
+    synchronized void putAll(Collection<ScanRecord> records) {
+        SQLiteDatabase db = getWritableDatabase();
+        SQLiteStatement insert = db.compileStatement(INSERT);
+        db.beginTransaction();
+        try {
+            for (ScanRecord record : records) {
+                insert(insert, record);
+            }
+            db.setTransactionSuccessful();
+            for (ScanRecord record : records) {
+                pendingUploads.remove(record.getKey());
+            }
+        } finally {
+            db.endTransaction();
+            insert.close();
+        }
+    }
+
+    /**
+     * Binds a record to one of the insert statements, with an upload which was reported before it
+     * was written, and runs it.
+     *
+     * @return the row id, -1 if the record was ignored
+     */
+    private long insert(SQLiteStatement insert, ScanRecord record) {
+        insert.clearBindings();
+        insert.bindString(1, record.getKey());
+        bind(insert, 2, record.getRoutingNumber());
+        bind(insert, 3, record.getAccountNumber());
+        bind(insert, 4, record.getChequeNumber());
+        if (record.getAmount() != null) {
+            insert.bindLong(5, record.getAmount());
+        }
+        insert.bindLong(6, record.getScannedAt());
+        Long uploadedAt = pendingUploads.get(record.getKey());
+        if (uploadedAt != null) {
+            insert.bindLong(7, Math.max(uploadedAt, record.getUpdatedAt()));
+            insert.bindString(8, ScanStatus.UPLOADED.name());
+        } else {
+            insert.bindLong(7, record.getUpdatedAt());
+            insert.bindString(8, record.getStatus().name());
+        }
+        return insert.executeInsert();
+    }
+
+    /**
+     * An UPLOADED status for a key without a record is kept in memory and applied when the record is
+     * written by {@link #putAll(Collection)}.
+     *
+     * @param key    content hash of the photo
+     * @param status the new status
+     * @param time   time of the change in milliseconds since the epoch
+     * @return whether there was a record with the key
+     */
+    synchronized boolean updateStatus(String key, ScanStatus status, long time) {
+        SQLiteStatement update = getWritableDatabase().compileStatement(
+                "UPDATE " + TABLE + " SET status = ?, updated_at = ? WHERE key = ?");
+        try {
+            update.bindString(1, status.name());
+            update.bindLong(2, time);
+            update.bindString(3, key);
+            if (update.executeUpdateDelete() > 0) {
+                return true;
+            }
+            if (status == ScanStatus.UPLOADED) {
+                pendingUploads.put(key, time);
+            }
+            return false;
+        } finally {
+            update.close();
+        }
+    }
+
+    /**
+     * @param key content hash of the photo
+     * @return the record of the photo or null if there is none
+     */
+    ScanRecord get(String key) {
+        List<ScanRecord> records = query(SELECT + " WHERE key = ?", key);
+        return records.isEmpty() ? null : records.get(0);
+    }
+
+    /**
+     * @param chequeNumber cheque serial number as read from the code line
+     * @return the records with this cheque number, oldest first; several accounts can use the same
+     * numbers
+     */
+    List<ScanRecord> findByChequeNumber(String chequeNumber) {
+        return query(SELECT + " WHERE cheque_number = ? ORDER BY scanned_at", chequeNumber);
+    }
+
+    /**
+     * @param accountNumber account number as read from the code line
+     * @param limit         largest number of records returned
+     * @return the records of the account, newest first
+     */
+    List<ScanRecord> findByAccountNumber(String accountNumber, int limit) {
+        return query(SELECT + " WHERE account_number = ? ORDER BY scanned_at DESC LIMIT " + limit, accountNumber);
+    }
+
+    /**
+     * @param from  start of the range in milliseconds since the epoch, inclusive
+     * @param to    end of the range in milliseconds since the epoch, exclusive
+     * @param limit largest number of records returned
+     * @return the records scanned in the range, oldest first
+     */
+    List<ScanRecord> findScannedBetween(long from, long to, int limit) {
+        return query(SELECT + " WHERE scanned_at >= ? AND scanned_at < ? ORDER BY scanned_at LIMIT " + limit,
+                Long.toString(from), Long.toString(to));
+    }
+
+    /**
+     * @return number of records
+     */
+    long count() {
+        SQLiteStatement count = getReadableDatabase().compileStatement("SELECT COUNT(*) FROM " + TABLE);
+        try {
+            return count.simpleQueryForLong();
+        } finally {
+            count.close();
+        }
+    }
+
+    /**
+     * Range arguments are passed as strings, which SQLite compares as integers against the integer
+     * column because the column has integer affinity.
+     */
+    private List<ScanRecord> query(String sql, String... arguments) {
+        Cursor cursor = getReadableDatabase().rawQuery(sql, arguments);
+        try {
+            List<ScanRecord> records = new ArrayList<>(cursor.getCount());
+            while (cursor.moveToNext()) {
+                records.add(new ScanRecord(cursor.getString(0), cursor.getString(1), cursor.getString(2),
+                        cursor.getString(3), cursor.isNull(4) ? null : cursor.getLong(4), cursor.getLong(5),
+                        cursor.getLong(6), ScanStatus.valueOf(cursor.getString(7))));
+            }
+            return records;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static void bind(SQLiteStatement statement, int index, String value) {
+        if (value != null) {
+            statement.bindString(index, value);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.bioenable.chequescan;
+
+import android.database.sqlite.SQLiteException;
+
+import com.bioenable.chequescan.records.ScanRecord;
+import com.bioenable.chequescan.records.ScanStatus;
+import com.bioenable.chequescan.remote.UploadQueue;
+import com.bioenable.chequescan.store.StorageManager;
+import com.bioenable.chequescan.store.StoreEntry;
+
+import java.io.File;
+
+/**
+ * Decides which photos the StorageManager may evict:
+ * <p>
+ * 1. photos stored within the last hour are never evicted, they may be on screen or in a batch
+ * 2. neither are photos waiting in the upload queue
+ * 3. photos which were uploaded or have an archive copy go first
+ * 4. the others, of which the store has the only copy, go last
+ */
+final class StoreRetention implements StorageManager.Retention {
+
+    private static final long GRACE_MILLIS = 60 * 60 * 1000L;
+
+    private final ScanDatabase records;
+    private final UploadQueue uploads;
+    private final File archive;
+
+    /**
+     * @param records the records of the scanned cheques
+     * @param uploads the queue of files going to Drive
+     * @param archive directory of the archive copies
+     */
+    StoreRetention(ScanDatabase records, UploadQueue uploads, File archive) {
+        this.records = records;
+        this.uploads = uploads;
+        this.archive = archive;
+    }
+
+    @Override
+    public StorageManager.Eviction classify(StoreEntry entry) {
+        if (System.currentTimeMillis() - entry.getCreated() < GRACE_MILLIS || uploads.isQueued(entry.getFile())) {
+            return StorageManager.Eviction.NEVER;
+        }
+        if (new File(archive, entry.getHash() + ".tif").isFile()) {
+            return StorageManager.Eviction.FIRST;
+        }
+        ScanRecord record;
+        try {
+            record = records.get(entry.getHash());
+        } catch (SQLiteException e) {
+            // without its record nothing is known about the photo, keep it for now
+            return StorageManager.Eviction.NEVER;
+        }
+        return record != null && record.getStatus() == ScanStatus.UPLOADED
+                ? StorageManager.Eviction.FIRST : StorageManager.Eviction.LAST;
+    }
+}
@@ -0,0 +1,279 @@
+package com.bioenable.chequescan;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.bioenable.chequescan.jpeg.JpegHeader;
+import com.bioenable.chequescan.jpeg.Orientation;
+import com.bioenable.chequescan.metrics.ScanMetrics;
+import com.bioenable.chequescan.metrics.ScanStage;
+import com.bioenable.chequescan.tiles.TileCache;
+import com.bioenable.chequescan.tiles.TileGrid;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Decodes tiles of one full resolution image with a BitmapRegionDecoder on a background thread and
+ * keeps them in a {@link TileCache}, for {@link TiledImageView}.
+ * <p>
+ * Only the tiles the view asks for are decoded, each at the sample size of its level, so zooming
+ * into the MICR line of a 12 MP photo decodes a few 256 pixel tiles instead of the whole image.
+ * The view asks for the visible tiles first and their neighbours after them; a new request
+ * replaces the tiles which were not decoded yet, so after a fling only the tiles where the view
+ * came to rest are decoded. Decodes reuse bitmaps from the {@link BitmapPool} and evicted tiles go
+ * back to it.
+ * <p>
+ * The cache is filled on the main thread, where the view reads it, so a tile is never evicted
+ * while it is being drawn. Methods have to be called on the main thread.
+ */
+class TileDecoder {
+
+    /**
+     * Side of a tile in decoded pixels
+     */
+    static final int TILE_SIZE = 256;
+
+    private static final String TAG = "TileDecoder";
+
+    /**
+     * Told on the main thread when there is something new to draw
+     */
+    interface Listener {
+
+        /**
+         * @param grid        tiles of the image as it is stored
+         * @param base        whole image, downsampled to the size of the view; the view owns it
+         * @param orientation how the image has to be turned, the tiles are not
+         */
+        void onOpened(TileGrid grid, Bitmap base, Orientation orientation);
+
+        void onTileDecoded();
+
+        void onError();
+    }
+
+    private final String path;
+    private final BitmapPool pool;
+    private final Listener listener;
+    private final TileCache<Bitmap> cache;
+    // decodes of one BitmapRegionDecoder are serialised by it, a second thread would only wait
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final AtomicBoolean draining = new AtomicBoolean();
+    // guarded by this
+    private final ArrayDeque<Long> wanted = new ArrayDeque<>();
+    private final Runnable drain = new Runnable() {
+        @Override
+        public void run() {
+            drainWanted();
+        }
+    };
+    // used on the executor only
+    private BitmapRegionDecoder decoder;
+    private TileGrid grid;
+    private volatile boolean closed;
+
+    /**
+     * @param path      path to the full resolution image
+     * @param pool      pool tiles are decoded into and evicted to
+     * @param maxBytes  budget of the tile cache
+     * @param listener  told about the decoded image and tiles
+     */
+    TileDecoder(String path, BitmapPool pool, long maxBytes, Listener listener) {
+        this.path = path;
+        this.pool = pool;
+        this.listener = listener;
+        this.cache = new TileCache<Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(Bitmap tile) {
+                return tile.getAllocationByteCount();
+            }
+
+            @Override
+            protected void onEvicted(Bitmap tile) {
+                TileDecoder.this.pool.put(tile);
+            }
+        };
+    }
+
+    /**
+     * Opens the image in the background and decodes a preview of it that fits into the view.
+     * {@link Listener#onOpened} or {@link Listener#onError} follows.
+     *
+     * @param viewWidth  width of the view
+     * @param viewHeight height of the view
+     */
+    void open(final int viewWidth, final int viewHeight) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Bitmap base;
+                JpegHeader header = BitmapLoader.readHeader(path);
+                Orientation orientation = header != null ? header.getOrientation() : Orientation.NORMAL;
+                try {
+                    decoder = BitmapRegionDecoder.newInstance(path, false);
+                    grid = new TileGrid(decoder.getWidth(), decoder.getHeight(), TILE_SIZE);
+                    boolean transposed = orientation.isTransposed();
+                    base = BitmapLoader.decodeSampled(path, transposed ? viewHeight : viewWidth,
+                            transposed ? viewWidth : viewHeight, pool);
+                } catch (IOException | IllegalArgumentException e) {
+                    Log.w(TAG, "Could not open " + path, e);
+                    post(null, null, orientation);
+                    return;
+                }
+                post(grid, base, orientation);
+            }
+
+            private void post(final TileGrid grid, final Bitmap base, final Orientation orientation) {
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (closed) {
+                            pool.put(base);
+                        } else if (base == null) {
+                            listener.onError();
+                        } else {
+                            listener.onOpened(grid, base, orientation);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * @param key key of a tile
+     * @return the tile or null if it has not been decoded
+     */
+    Bitmap get(long key) {
+        return cache.get(key);
+    }
+
+    /**
+     * Replaces the tiles waiting to be decoded. Tiles which are cached already are left out.
+     *
+     * @param keys  keys of the tiles, the most wanted first
+     * @param count number of keys to take
+     */
+    void request(long[] keys, int count) {
+        synchronized (this) {
+            wanted.clear();
+            for (int i = 0; i < count; i++) {
+                if (!cache.contains(keys[i])) {
+                    wanted.addLast(keys[i]);
+                }
+            }
+            if (wanted.isEmpty()) {
+                return;
+            }
+        }
+        if (!closed && draining.compareAndSet(false, true)) {
+            executor.execute(drain);
+        }
+    }
+
+    /**
+     * Stops decoding and releases the decoder and the cached tiles.
+     */
+    void close() {
+        closed = true;
+        synchronized (this) {
+            wanted.clear();
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (decoder != null) {
+                    decoder.recycle();
+                }
+            }
+        });
+        executor.shutdown();
+        cache.clear();
+    }
+
+    /**
+     * @return hit, miss and eviction counts of the tile cache
+     */
+    String getStats() {
+        return cache.toString();
+    }
+
+    private void drainWanted() {
+        while (true) {
+            Long key;
+            synchronized (this) {
+                key = wanted.pollFirst();
+            }
+            if (key == null) {
+                draining.set(false);
+                // a request may have come in between the poll and the reset
+                synchronized (this) {
+                    if (wanted.isEmpty() || !draining.compareAndSet(false, true)) {
+                        return;
+                    }
+                }
+                continue;
+            }
+            if (closed || decoder == null) {
+                continue;
+            }
+            final long tile = key;
+            if (cache.contains(tile)) {
+                continue;
+            }
+            final Bitmap bitmap = decodeTile(tile);
+            if (bitmap == null) {
+                continue;
+            }
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (closed) {
+                        pool.put(bitmap);
+                        return;
+                    }
+                    cache.put(tile, bitmap);
+                    listener.onTileDecoded();
+                }
+            });
+        }
+    }
+
+    private Bitmap decodeTile(long key) {
+        long start = ScanMetrics.start();
+        int level = TileGrid.level(key);
+        int[] bounds = new int[4];
+        grid.bounds(level, TileGrid.column(key), TileGrid.row(key), bounds);
+        Rect region = new Rect(bounds[0], bounds[1], bounds[2], bounds[3]);
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = 1 << level;
+        options.inMutable = true;
+        options.inBitmap = pool.getForDecode(TILE_SIZE, TILE_SIZE);
+        Bitmap bitmap;
+        try {
+            bitmap = decoder.decodeRegion(region, options);
+        } catch (IllegalArgumentException e) {
+            // the pooled bitmap could not be reused for this tile after all
+            pool.put(options.inBitmap);
+            options.inBitmap = null;
+            bitmap = decoder.decodeRegion(region, options);
+        }
+        if (bitmap == null) {
+            pool.put(options.inBitmap);
+            Log.w(TAG, "Could not decode tile " + region + " of " + path);
+            return null;
+        }
+        ScanMetrics.record(ScanStage.TILE, start);
+        return bitmap;
+    }
+}
@@ -0,0 +1,289 @@
+package com.bioenable.chequescan;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.util.AttributeSet;
+import android.view.GestureDetector;
+import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
+import android.view.View;
+import android.widget.Toast;
+
+import com.bioenable.chequescan.jpeg.Orientation;
+import com.bioenable.chequescan.metrics.ScanMetrics;
+import com.bioenable.chequescan.metrics.ScanStage;
+import com.bioenable.chequescan.tiles.TileGrid;
+
+/**
+ * Shows a full resolution image which can be panned and pinch zoomed down to its single pixels.
+ * <p>
+ * The whole image is drawn from a preview the size of the view. On top of it the view draws the
+ * tiles of the {@link TileGrid} level which matches the zoom, from the {@link TileDecoder}. A tile
+ * which is not decoded yet is filled in from a cached tile of a coarser level, and otherwise the
+ * preview shows through, so panning never waits for a decode. Once the visible tiles change the
+ * view asks for them, and for a ring of neighbours to have them ready when the pan goes on.
+ * <p>
+ * Tiles are decoded as the image is stored. A photo with an EXIF orientation is turned by the
+ * matrix everything is drawn with, and the visible part of the screen is mapped back to the
+ * stored image to find the tiles.
+ * <p>
+ * Drawing only scales bitmaps which are in memory already and does not allocate, so pan and zoom
+ * keep up with the display. {@link ScanStage#FRAME} records how long each frame takes.
+ */
+public class TiledImageView extends View implements TileDecoder.Listener {
+
+    // zoom beyond one image pixel per screen pixel, so that the MICR digits are easy to read
+    private static final float MAX_PIXEL_ZOOM = 4;
+    private static final int PREFETCH_MARGIN = 1;
+
+    private final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final ScaleGestureDetector scaleDetector;
+    private final GestureDetector gestureDetector;
+    // reused on every frame
+    private final Rect source = new Rect();
+    private final Rect target = new Rect();
+    private final Matrix drawMatrix = new Matrix();
+    private final float[] values = new float[9];
+    private final float[] visibleRect = new float[4];
+    private final int[] visible = new int[4];
+    private final int[] bounds = new int[4];
+    private final int[] parentBounds = new int[4];
+    private final int[] around = new int[4];
+    // last visible range and level the tiles were requested for
+    private final int[] requested = new int[5];
+    private long[] keys = new long[0];
+
+    private BitmapPool pool;
+    private TileDecoder decoder;
+    private TileGrid grid;
+    private Bitmap base;
+    private Orientation orientation;
+    // size of the image as it is shown
+    private int displayWidth;
+    private int displayHeight;
+    // finest level the preview does not already cover
+    private int coarsestTileLevel;
+    // screen pixels per image pixel, and the screen position of the shown image's top left corner
+    private float scale;
+    private float minScale;
+    private float offsetX;
+    private float offsetY;
+
+    public TiledImageView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        requested[4] = -1;
+        scaleDetector = new ScaleGestureDetector(context, new ScaleGestureDetector.SimpleOnScaleGestureListener() {
+            @Override
+            public boolean onScale(ScaleGestureDetector detector) {
+                zoomTo(scale * detector.getScaleFactor(), detector.getFocusX(), detector.getFocusY());
+                return true;
+            }
+        });
+        gestureDetector = new GestureDetector(context, new GestureDetector.SimpleOnGestureListener() {
+            @Override
+            public boolean onScroll(MotionEvent e1, MotionEvent e2, float distanceX, float distanceY) {
+                panTo(offsetX - distanceX, offsetY - distanceY);
+                return true;
+            }
+
+            @Override
+            public boolean onDoubleTap(MotionEvent e) {
+                // from the whole cheque to its pixels and back
+                zoomTo(scale < 1 ? 1 : minScale, e.getX(), e.getY());
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Starts showing the image at path. The view has to be laid out.
+     *
+     * @param path     path to the full resolution image
+     * @param pool     pool the preview and the tiles are decoded into
+     * @param maxBytes budget of the tile cache
+     */
+    void setImage(String path, BitmapPool pool, long maxBytes) {
+        close();
+        this.pool = pool;
+        decoder = new TileDecoder(path, pool, maxBytes, this);
+        decoder.open(getWidth(), getHeight());
+    }
+
+    /**
+     * @return hit, miss and eviction counts of the tile cache
+     */
+    String getStats() {
+        return decoder != null ? decoder.getStats() : "No image";
+    }
+
+    /**
+     * Stops decoding and returns the preview and the tiles to the pool.
+     */
+    void close() {
+        if (decoder != null) {
+            decoder.close();
+            decoder = null;
+        }
+        if (base != null) {
+            pool.put(base);
+            base = null;
+        }
+        grid = null;
+        requested[4] = -1;
+    }
+
+    @Override
+    public void onOpened(TileGrid grid, Bitmap base, Orientation orientation) {
+        this.grid = grid;
+        this.base = base;
+        this.orientation = orientation;
+        displayWidth = orientation.displayWidth(grid.getImageWidth(), grid.getImageHeight());
+        displayHeight = orientation.displayHeight(grid.getImageWidth(), grid.getImageHeight());
+        float previewSample = (float) grid.getImageWidth() / base.getWidth();
+        coarsestTileLevel = 0;
+        while ((1 << coarsestTileLevel) < previewSample) {
+            coarsestTileLevel++;
+        }
+        minScale = Math.min((float) getWidth() / displayWidth, (float) getHeight() / displayHeight);
+        scale = minScale;
+        panTo((getWidth() - displayWidth * scale) / 2, (getHeight() - displayHeight * scale) / 2);
+    }
+
+    @Override
+    public void onTileDecoded() {
+        invalidate();
+    }
+
+    @Override
+    public void onError() {
+        Toast.makeText(getContext(), "This image cannot be opened.", Toast.LENGTH_SHORT).show();
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        if (grid == null) {
+            return super.onTouchEvent(event);
+        }
+        boolean handled = scaleDetector.onTouchEvent(event);
+        if (!scaleDetector.isInProgress()) {
+            handled |= gestureDetector.onTouchEvent(event);
+        }
+        return handled || super.onTouchEvent(event);
+    }
+
+    private void zoomTo(float newScale, float focusX, float focusY) {
+        newScale = Math.max(minScale, Math.min(MAX_PIXEL_ZOOM, newScale));
+        // the image point under the focus stays where it is
+        float x = (focusX - offsetX) / scale;
+        float y = (focusY - offsetY) / scale;
+        scale = newScale;
+        panTo(focusX - x * scale, focusY - y * scale);
+    }
+
+    /**
+     * Moves the image, but not further than its edges; an image smaller than the view is centred.
+     */
+    private void panTo(float x, float y) {
+        offsetX = clamp(x, getWidth() - displayWidth * scale);
+        offsetY = clamp(y, getHeight() - displayHeight * scale);
+        // stored image pixels to screen pixels
+        OrientedBitmapDrawable.setOrientation(orientation, grid.getImageWidth(), grid.getImageHeight(),
+                values, drawMatrix);
+        drawMatrix.postScale(scale, scale);
+        drawMatrix.postTranslate(offsetX, offsetY);
+        invalidate();
+    }
+
+    private static float clamp(float offset, float slack) {
+        return slack >= 0 ? slack / 2 : Math.max(slack, Math.min(0, offset));
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        if (grid == null) {
+            return;
+        }
+        long start = ScanMetrics.start();
+        int saved = canvas.save();
+        // from here on everything is drawn in stored image pixels
+        canvas.concat(drawMatrix);
+        target.set(0, 0, grid.getImageWidth(), grid.getImageHeight());
+        canvas.drawBitmap(base, null, target, paint);
+
+        int level = TileGrid.levelFor(scale);
+        if (level < coarsestTileLevel) {
+            visibleRect[0] = -offsetX / scale;
+            visibleRect[1] = -offsetY / scale;
+            visibleRect[2] = (getWidth() - offsetX) / scale;
+            visibleRect[3] = (getHeight() - offsetY) / scale;
+            orientation.toStored(grid.getImageWidth(), grid.getImageHeight(), visibleRect);
+            grid.tilesIn(level, visibleRect[0], visibleRect[1], visibleRect[2], visibleRect[3], 0, visible);
+            for (int row = visible[1]; row <= visible[3]; row++) {
+                for (int column = visible[0]; column <= visible[2]; column++) {
+                    drawTile(canvas, level, column, row);
+                }
+            }
+            requestTiles(level);
+        }
+        canvas.restoreToCount(saved);
+        ScanMetrics.record(ScanStage.FRAME, start);
+    }
+
+    private void drawTile(Canvas canvas, int level, int column, int row) {
+        grid.bounds(level, column, row, bounds);
+        target.set(bounds[0], bounds[1], bounds[2], bounds[3]);
+        Bitmap tile = decoder.get(TileGrid.key(level, column, row));
+        if (tile != null) {
+            canvas.drawBitmap(tile, null, target, paint);
+            return;
+        }
+        // the matching part of a coarser tile, until this one is decoded
+        for (int parent = level + 1; parent < coarsestTileLevel; parent++) {
+            int shift = parent - level;
+            tile = decoder.get(TileGrid.key(parent, column >> shift, row >> shift));
+            if (tile != null) {
+                grid.bounds(parent, column >> shift, row >> shift, parentBounds);
+                source.set((bounds[0] - parentBounds[0]) >> parent, (bounds[1] - parentBounds[1]) >> parent,
+                        (bounds[2] - parentBounds[0] + (1 << parent) - 1) >> parent,
+                        (bounds[3] - parentBounds[1] + (1 << parent) - 1) >> parent);
+                canvas.drawBitmap(tile, source, target, paint);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Asks for the visible tiles, then their neighbours, whenever the visible range has changed.
+     */
+    private void requestTiles(int level) {
+        if (requested[4] == level && requested[0] == visible[0] && requested[1] == visible[1]
+                && requested[2] == visible[2] && requested[3] == visible[3]) {
+            return;
+        }
+        System.arraycopy(visible, 0, requested, 0, 4);
+        requested[4] = level;
+        grid.tilesIn(level, visibleRect[0], visibleRect[1], visibleRect[2], visibleRect[3], PREFETCH_MARGIN, around);
+        int count = (around[2] - around[0] + 1) * (around[3] - around[1] + 1);
+        if (keys.length < count) {
+            keys = new long[count];
+        }
+        int next = 0;
+        for (int row = visible[1]; row <= visible[3]; row++) {
+            for (int column = visible[0]; column <= visible[2]; column++) {
+                keys[next++] = TileGrid.key(level, column, row);
+            }
+        }
+        for (int row = around[1]; row <= around[3]; row++) {
+            for (int column = around[0]; column <= around[2]; column++) {
+                if (row < visible[1] || row > visible[3] || column < visible[0] || column > visible[2]) {
+                    keys[next++] = TileGrid.key(level, column, row);
+                }
+            }
+        }
+        decoder.request(keys, next);
+    }
+}
@@ -0,0 +1,286 @@
+package com.bioenable.chequescan.archive;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Reads the archive files of {@link ArchiveWriter}, or other TIFF files whose first image is a
+ * bitonal Group 4 image and whose second image, if any, is an uncompressed 8 bit gray image.
+ * <p>
+ * Only the directories are read when the file is opened. {@link #readRows(int, int, byte[])} reads
+ * and decodes just the strips which hold the rows asked for, so showing a part of a cheque costs a
+ * fraction of decoding all of it.
+ * <p>
+ * Not thread safe.
+ */
+public class ArchiveReader implements Closeable {
+
+    private final RandomAccessFile file;
+    private final boolean littleEndian;
+    private final G4Decoder decoder = new G4Decoder();
+    private int width;
+    private int height;
+    private int rowsPerStrip;
+    private int dpi;
+    private boolean whiteIsZero = true;
+    private long[] stripOffsets;
+    private long[] stripCounts;
+    private int thumbnailWidth;
+    private int thumbnailHeight;
+    private long thumbnailOffset = -1;
+    // the last decoded strip, rows are often read strip by strip
+    private int cachedStrip = -1;
+    private byte[] stripRows = new byte[0];
+    private byte[] stripData = new byte[0];
+
+    /**
+     * @param archive the archive file
+     * @throws IOException if the file cannot be read or is not an archive
+     */
+    public ArchiveReader(File archive) throws IOException {
+        file = new RandomAccessFile(archive, "r");
+        try {
+            byte[] header = new byte[8];
+            file.readFully(header);
+            if (header[0] == 'I' && header[1] == 'I') {
+                littleEndian = true;
+            } else if (header[0] == 'M' && header[1] == 'M') {
+                littleEndian = false;
+            } else {
+                throw new IOException("Not a TIFF file");
+            }
+            if (toInt(header, 2, 2) != 42) {
+                throw new IOException("Not a TIFF file");
+            }
+            long next = readDirectory(toInt(header, 4, 4) & 0xFFFFFFFFL, true);
+            if (next != 0) {
+                readDirectory(next, false);
+            }
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return horizontal resolution of the cheque in pixels per inch, 0 if the file does not say
+     */
+    public int getDpi() {
+        return dpi;
+    }
+
+    /**
+     * @return number of rows in a strip; reading whole, aligned strips is the fastest
+     */
+    public int getRowsPerStrip() {
+        return rowsPerStrip;
+    }
+
+    public int getThumbnailWidth() {
+        return thumbnailWidth;
+    }
+
+    public int getThumbnailHeight() {
+        return thumbnailHeight;
+    }
+
+    /**
+     * Decodes rows of the cheque into packed rows, one bit per pixel with 1 for ink, the leftmost
+     * pixel in the highest bit and {@link G4Decoder#stride(int)} bytes per row.
+     *
+     * @param first  first row
+     * @param count  number of rows
+     * @param packed output, at least count * stride bytes
+     * @throws IOException if the file cannot be read or the data is corrupt
+     */
+    public void readRows(int first, int count, byte[] packed) throws IOException {
+        if (first < 0 || count < 0 || first + count > height) {
+            throw new IllegalArgumentException("Rows " + first + " + " + count + " are outside of the image");
+        }
+        int stride = G4Decoder.stride(width);
+        int row = first;
+        while (row < first + count) {
+            int strip = row / rowsPerStrip;
+            int stripTop = strip * rowsPerStrip;
+            int stripRowCount = Math.min(rowsPerStrip, height - stripTop);
+            decodeStrip(strip, stripRowCount);
+            int rows = Math.min(first + count, stripTop + stripRowCount) - row;
+            System.arraycopy(stripRows, (row - stripTop) * stride, packed, (row - first) * stride, rows * stride);
+            row += rows;
+        }
+    }
+
+    /**
+     * @return 8 bit gray pixels of the thumbnail, null if the file has none
+     * @throws IOException if the file cannot be read
+     */
+    public byte[] readThumbnail() throws IOException {
+        if (thumbnailOffset < 0) {
+            return null;
+        }
+        byte[] gray = new byte[thumbnailWidth * thumbnailHeight];
+        file.seek(thumbnailOffset);
+        file.readFully(gray);
+        return gray;
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    private void decodeStrip(int strip, int rows) throws IOException {
+        if (strip == cachedStrip) {
+            return;
+        }
+        cachedStrip = -1;
+        int length = (int) stripCounts[strip];
+        if (stripData.length < length) {
+            stripData = new byte[length];
+        }
+        file.seek(stripOffsets[strip]);
+        file.readFully(stripData, 0, length);
+        int size = rows * G4Decoder.stride(width);
+        if (stripRows.length < size) {
+            stripRows = new byte[rowsPerStrip * G4Decoder.stride(width)];
+        }
+        decoder.decode(stripData, length, width, rows, stripRows, 0);
+        if (!whiteIsZero) {
+            for (int i = 0; i < size; i++) {
+                stripRows[i] = (byte) ~stripRows[i];
+            }
+        }
+        cachedStrip = strip;
+    }
+
+    /**
+     * @return offset of the next directory, 0 if there is none
+     */
+    private long readDirectory(long offset, boolean cheque) throws IOException {
+        file.seek(offset);
+        byte[] countBytes = new byte[2];
+        file.readFully(countBytes);
+        int count = toInt(countBytes, 0, 2);
+        byte[] entries = new byte[count * 12 + 4];
+        file.readFully(entries);
+        int imageWidth = 0;
+        int imageHeight = 0;
+        int bits = 1;
+        int compression = 1;
+        int rows = Integer.MAX_VALUE;
+        long[] offsets = null;
+        long[] counts = null;
+        int photometric = 0;
+        long[] resolution = null;
+        for (int i = 0; i < count; i++) {
+            int entry = i * 12;
+            int tag = toInt(entries, entry, 2);
+            int type = toInt(entries, entry + 2, 2);
+            int values = toInt(entries, entry + 4, 4);
+            switch (tag) {
+                case ArchiveWriter.IMAGE_WIDTH:
+                    imageWidth = (int) value(entries, entry, type);
+                    break;
+                case ArchiveWriter.IMAGE_LENGTH:
+                    imageHeight = (int) value(entries, entry, type);
+                    break;
+                case ArchiveWriter.BITS_PER_SAMPLE:
+                    bits = (int) value(entries, entry, type);
+                    break;
+                case ArchiveWriter.COMPRESSION:
+                    compression = (int) value(entries, entry, type);
+                    break;
+                case ArchiveWriter.PHOTOMETRIC:
+                    photometric = (int) value(entries, entry, type);
+                    break;
+                case ArchiveWriter.ROWS_PER_STRIP_TAG:
+                    rows = (int) value(entries, entry, type);
+                    break;
+                case ArchiveWriter.STRIP_OFFSETS:
+                    offsets = array(entries, entry, type, values);
+                    break;
+                case ArchiveWriter.STRIP_BYTE_COUNTS:
+                    counts = array(entries, entry, type, values);
+                    break;
+                case ArchiveWriter.X_RESOLUTION:
+                    // a RATIONAL is two LONGs
+                    resolution = type == ArchiveWriter.RATIONAL ? array(entries, entry, ArchiveWriter.LONG, 2) : null;
+                    break;
+                default:
+                    break;
+            }
+        }
+        if (offsets == null || counts == null || offsets.length != counts.length || imageWidth < 1
+                || imageHeight < 1) {
+            throw new IOException("Image without strips");
+        }
+        if (cheque) {
+            if (bits != 1 || compression != ArchiveWriter.COMPRESSION_G4) {
+                throw new IOException("First image is not a Group 4 image");
+            }
+            width = imageWidth;
+            height = imageHeight;
+            rowsPerStrip = rows <= 0 ? imageHeight : Math.min(rows, imageHeight);
+            whiteIsZero = photometric == ArchiveWriter.WHITE_IS_ZERO;
+            if (resolution != null && resolution[1] > 0) {
+                dpi = (int) Math.round((double) resolution[0] / resolution[1]);
+            }
+            if (offsets.length != (height + rowsPerStrip - 1) / rowsPerStrip) {
+                throw new IOException("Wrong number of strips");
+            }
+            stripOffsets = offsets;
+            stripCounts = counts;
+        } else if (bits == 8 && compression == ArchiveWriter.COMPRESSION_NONE && offsets.length == 1
+                && counts[0] == (long) imageWidth * imageHeight) {
+            thumbnailWidth = imageWidth;
+            thumbnailHeight = imageHeight;
+            thumbnailOffset = offsets[0];
+        }
+        return toInt(entries, count * 12, 4) & 0xFFFFFFFFL;
+    }
+
+    private long value(byte[] entries, int entry, int type) {
+        return type == ArchiveWriter.SHORT ? toInt(entries, entry + 8, 2) : toInt(entries, entry + 8, 4) & 0xFFFFFFFFL;
+    }
+
+    private long[] array(byte[] entries, int entry, int type, int count) throws IOException {
+        int size = type == ArchiveWriter.SHORT ? 2 : 4;
+        byte[] bytes;
+        int start;
+        if (count * size <= 4) {
+            bytes = entries;
+            start = entry + 8;
+        } else {
+            long pointer = file.getFilePointer();
+            bytes = new byte[count * size];
+            file.seek(toInt(entries, entry + 8, 4) & 0xFFFFFFFFL);
+            file.readFully(bytes);
+            file.seek(pointer);
+            start = 0;
+        }
+        long[] array = new long[count];
+        for (int i = 0; i < count; i++) {
+            array[i] = toInt(bytes, start + i * size, size) & 0xFFFFFFFFL;
+        }
+        return array;
+    }
+
+    private int toInt(byte[] bytes, int offset, int size) {
+        int value = 0;
+        for (int i = 0; i < size; i++) {
+            int b = bytes[offset + (littleEndian ? size - 1 - i : i)] & 0xFF;
+            value = value << 8 | b;
+        }
+        return value;
+    }
+}
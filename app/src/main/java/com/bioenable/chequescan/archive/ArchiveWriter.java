@@ -0,0 +1,346 @@
+package com.bioenable.chequescan.archive;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes the archive copy of a processed cheque: a little endian TIFF file with two images.
+ * <pre>
+ *   image 1   the binarized cheque, 1 bit, CCITT Group 4 in strips of {@link #ROWS_PER_STRIP} rows
+ *   image 2   a gray thumbnail at most {@link #THUMBNAIL_WIDTH} pixels wide, 8 bit, uncompressed,
+ *             marked as a reduced resolution version of image 1
+ * </pre>
+ * A 2400 x 1100 cheque takes 10 - 40 KB of Group 4 data and 26 KB of thumbnail, where the photo
+ * it came from takes several MB. The strips are what makes {@link ArchiveReader} fast to seek:
+ * a region of the cheque only needs the strips it covers. Any TIFF reader with Group 4 support can
+ * open the file.
+ * <p>
+ * {@link #writePage(File, File)} turns an archive into the TIFF an X9.37 cash letter carries: the
+ * cheque alone, in one strip, as X9.100-181 asks for.
+ * <p>
+ * Files are written next to their target and renamed when they are complete. Not thread safe, the
+ * encoder buffers are reused.
+ */
+public class ArchiveWriter {
+
+    public static final int ROWS_PER_STRIP = 64;
+    public static final int THUMBNAIL_WIDTH = 240;
+
+    // tags and types of TIFF 6.0
+    static final int NEW_SUBFILE_TYPE = 254;
+    static final int IMAGE_WIDTH = 256;
+    static final int IMAGE_LENGTH = 257;
+    static final int BITS_PER_SAMPLE = 258;
+    static final int COMPRESSION = 259;
+    static final int PHOTOMETRIC = 262;
+    static final int STRIP_OFFSETS = 273;
+    static final int SAMPLES_PER_PIXEL = 277;
+    static final int ROWS_PER_STRIP_TAG = 278;
+    static final int STRIP_BYTE_COUNTS = 279;
+    static final int X_RESOLUTION = 282;
+    static final int Y_RESOLUTION = 283;
+    static final int T6_OPTIONS = 293;
+    static final int RESOLUTION_UNIT = 296;
+    static final int SHORT = 3;
+    static final int LONG = 4;
+    static final int RATIONAL = 5;
+    static final int COMPRESSION_NONE = 1;
+    static final int COMPRESSION_G4 = 4;
+    static final int WHITE_IS_ZERO = 0;
+    static final int BLACK_IS_ZERO = 1;
+
+    private static final int INCH = 2;
+
+    private final G4Encoder encoder = new G4Encoder();
+
+    /**
+     * @param binary INK or PAPER per pixel, row major
+     * @param gray   8 bit gray pixels of the same cheque, for the thumbnail
+     * @param width  width of both images
+     * @param height height of both images
+     * @param dpi    resolution of the images in pixels per inch
+     * @param target file the archive is written to
+     * @return size of the archive in bytes
+     * @throws IOException if the file cannot be written
+     */
+    public long write(byte[] binary, byte[] gray, int width, int height, int dpi, File target) throws IOException {
+        int factor = (width + THUMBNAIL_WIDTH - 1) / THUMBNAIL_WIDTH;
+        if (width < THUMBNAIL_WIDTH || height < factor) {
+            throw new IllegalArgumentException("Image of " + width + " x " + height + " is too small");
+        }
+        List<byte[]> strips = new ArrayList<>();
+        long stripBytes = 0;
+        for (int top = 0; top < height; top += ROWS_PER_STRIP) {
+            byte[] strip = encoder.encode(binary, width, top, Math.min(ROWS_PER_STRIP, height - top));
+            strips.add(strip);
+            stripBytes += strip.length;
+        }
+        int thumbnailWidth = width / factor;
+        int thumbnailHeight = height / factor;
+        byte[] thumbnail = shrink(gray, width, thumbnailWidth, thumbnailHeight, factor);
+
+        // image data first, then the directories with their values
+        long thumbnailOffset = 8 + stripBytes;
+        long firstDirectory = (thumbnailOffset + thumbnail.length + 1) & ~1L;
+        TiffDirectory cheque = chequeDirectory(firstDirectory, width, height, dpi, strips, ROWS_PER_STRIP);
+
+        TiffDirectory small = new TiffDirectory(cheque.end());
+        small.add(NEW_SUBFILE_TYPE, LONG, 1);
+        small.add(IMAGE_WIDTH, LONG, thumbnailWidth);
+        small.add(IMAGE_LENGTH, LONG, thumbnailHeight);
+        small.add(BITS_PER_SAMPLE, SHORT, 8);
+        small.add(COMPRESSION, SHORT, COMPRESSION_NONE);
+        small.add(PHOTOMETRIC, SHORT, BLACK_IS_ZERO);
+        small.add(STRIP_OFFSETS, LONG, thumbnailOffset);
+        small.add(SAMPLES_PER_PIXEL, SHORT, 1);
+        small.add(ROWS_PER_STRIP_TAG, LONG, thumbnailHeight);
+        small.add(STRIP_BYTE_COUNTS, LONG, thumbnail.length);
+        small.add(X_RESOLUTION, RATIONAL, dpi, factor);
+        small.add(Y_RESOLUTION, RATIONAL, dpi, factor);
+        small.add(RESOLUTION_UNIT, SHORT, INCH);
+        cheque.setNext(small.getOffset());
+
+        File partial = new File(target.getPath() + ".part");
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(partial), 32 * 1024);
+        try {
+            writeHeader(out, firstDirectory);
+            for (byte[] strip : strips) {
+                out.write(strip);
+            }
+            out.write(thumbnail);
+            if (firstDirectory > thumbnailOffset + thumbnail.length) {
+                out.write(0);
+            }
+            cheque.writeTo(out);
+            small.writeTo(out);
+        } finally {
+            out.close();
+        }
+        rename(partial, target);
+        return small.end();
+    }
+
+    /**
+     * Writes the cheque of an archive as a TIFF file with just that image, Group 4 coded in a single
+     * strip, which is the image an X9.37 cash letter takes. The strips of the archive are decoded
+     * and coded again as one, a Group 4 strip cannot be joined to the next one as it is.
+     *
+     * @param archive file written by {@link #write(byte[], byte[], int, int, int, File)}
+     * @param target  file the page is written to
+     * @return size of the page in bytes
+     * @throws IOException if the archive cannot be read or the page cannot be written
+     */
+    public long writePage(File archive, File target) throws IOException {
+        byte[] binary;
+        int width;
+        int height;
+        int dpi;
+        ArchiveReader reader = new ArchiveReader(archive);
+        try {
+            width = reader.getWidth();
+            height = reader.getHeight();
+            dpi = reader.getDpi();
+            int stride = G4Decoder.stride(width);
+            byte[] packed = new byte[height * stride];
+            reader.readRows(0, height, packed);
+            binary = new byte[width * height];
+            for (int y = 0, i = 0; y < height; y++) {
+                for (int x = 0; x < width; x++, i++) {
+                    // INK is 1 and PAPER 0, like the bits
+                    binary[i] = (byte) ((packed[y * stride + (x >> 3)] >> (7 - (x & 7))) & 1);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        if (dpi <= 0) {
+            throw new IOException("Archive " + archive + " has no resolution");
+        }
+        List<byte[]> strips = new ArrayList<>();
+        strips.add(encoder.encode(binary, width, 0, height));
+        long firstDirectory = (8 + strips.get(0).length + 1) & ~1L;
+        TiffDirectory page = chequeDirectory(firstDirectory, width, height, dpi, strips, height);
+
+        File partial = new File(target.getPath() + ".part");
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(partial), 32 * 1024);
+        try {
+            writeHeader(out, firstDirectory);
+            out.write(strips.get(0));
+            if (firstDirectory > 8 + strips.get(0).length) {
+                out.write(0);
+            }
+            page.writeTo(out);
+        } finally {
+            out.close();
+        }
+        rename(partial, target);
+        return page.end();
+    }
+
+    /**
+     * @return the directory of the bitonal cheque, whose strips follow the 8 byte header
+     */
+    private static TiffDirectory chequeDirectory(long offset, int width, int height, int dpi, List<byte[]> strips,
+                                                 int rowsPerStrip) {
+        TiffDirectory cheque = new TiffDirectory(offset);
+        cheque.add(NEW_SUBFILE_TYPE, LONG, 0);
+        cheque.add(IMAGE_WIDTH, LONG, width);
+        cheque.add(IMAGE_LENGTH, LONG, height);
+        cheque.add(BITS_PER_SAMPLE, SHORT, 1);
+        cheque.add(COMPRESSION, SHORT, COMPRESSION_G4);
+        cheque.add(PHOTOMETRIC, SHORT, WHITE_IS_ZERO);
+        long[] offsets = new long[strips.size()];
+        long[] counts = new long[strips.size()];
+        long stripOffset = 8;
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = stripOffset;
+            counts[i] = strips.get(i).length;
+            stripOffset += counts[i];
+        }
+        cheque.add(STRIP_OFFSETS, LONG, offsets);
+        cheque.add(SAMPLES_PER_PIXEL, SHORT, 1);
+        cheque.add(ROWS_PER_STRIP_TAG, LONG, rowsPerStrip);
+        cheque.add(STRIP_BYTE_COUNTS, LONG, counts);
+        cheque.add(X_RESOLUTION, RATIONAL, dpi, 1);
+        cheque.add(Y_RESOLUTION, RATIONAL, dpi, 1);
+        cheque.add(T6_OPTIONS, LONG, 0);
+        cheque.add(RESOLUTION_UNIT, SHORT, INCH);
+        return cheque;
+    }
+
+    private static void writeHeader(OutputStream out, long firstDirectory) throws IOException {
+        // little endian, magic number 42, offset of the first directory
+        out.write(new byte[]{'I', 'I', 42, 0});
+        writeInt(out, firstDirectory);
+    }
+
+    private static void rename(File partial, File target) throws IOException {
+        if (!partial.renameTo(target)) {
+            partial.delete();
+            throw new IOException("Could not rename " + partial);
+        }
+    }
+
+    /**
+     * Box filter, every thumbnail pixel is the mean of factor x factor pixels.
+     */
+    static byte[] shrink(byte[] gray, int width, int outWidth, int outHeight, int factor) {
+        byte[] out = new byte[outWidth * outHeight];
+        int[] sums = new int[outWidth];
+        int area = factor * factor;
+        for (int y = 0; y < outHeight; y++) {
+            Arrays.fill(sums, 0);
+            for (int dy = 0; dy < factor; dy++) {
+                int row = (y * factor + dy) * width;
+                for (int x = 0, i = row; x < outWidth; x++) {
+                    int sum = 0;
+                    for (int dx = 0; dx < factor; dx++, i++) {
+                        sum += gray[i] & 0xFF;
+                    }
+                    sums[x] += sum;
+                }
+            }
+            for (int x = 0; x < outWidth; x++) {
+                out[y * outWidth + x] = (byte) ((sums[x] + area / 2) / area);
+            }
+        }
+        return out;
+    }
+
+    static void writeInt(OutputStream out, long value) throws IOException {
+        out.write((int) value);
+        out.write((int) (value >>> 8));
+        out.write((int) (value >>> 16));
+        out.write((int) (value >>> 24));
+    }
+
+    /**
+     * One image file directory: the entries, which have to be added in the order of their tags, and
+     * behind them the values which do not fit into an entry.
+     */
+    private static final class TiffDirectory {
+
+        private final long offset;
+        private final List<long[]> entries = new ArrayList<>();
+        // values of the entries, null where the value is in the entry
+        private final List<long[]> values = new ArrayList<>();
+        private long next;
+
+        TiffDirectory(long offset) {
+            this.offset = offset;
+        }
+
+        long getOffset() {
+            return offset;
+        }
+
+        void add(int tag, int type, long value) {
+            entries.add(new long[]{tag, type, 1, value});
+            values.add(null);
+        }
+
+        void add(int tag, int type, long numerator, long denominator) {
+            entries.add(new long[]{tag, type, 1, 0});
+            values.add(new long[]{numerator, denominator});
+        }
+
+        void add(int tag, int type, long[] array) {
+            if (array.length == 1) {
+                add(tag, type, array[0]);
+                return;
+            }
+            entries.add(new long[]{tag, type, array.length, 0});
+            values.add(array);
+        }
+
+        void setNext(long next) {
+            this.next = next;
+        }
+
+        /**
+         * @return offset right behind the directory and its values
+         */
+        long end() {
+            long end = offset + 2 + 12 * entries.size() + 4;
+            for (long[] value : values) {
+                end += value != null ? 4 * value.length : 0;
+            }
+            return end;
+        }
+
+        void writeTo(OutputStream out) throws IOException {
+            out.write(entries.size());
+            out.write(entries.size() >>> 8);
+            long valueOffset = offset + 2 + 12 * entries.size() + 4;
+            for (int i = 0; i < entries.size(); i++) {
+                long[] entry = entries.get(i);
+                out.write((int) entry[0]);
+                out.write((int) (entry[0] >>> 8));
+                out.write((int) entry[1]);
+                out.write((int) (entry[1] >>> 8));
+                writeInt(out, entry[2]);
+                if (values.get(i) == null) {
+                    // a SHORT sits in the first two bytes, which is where little endian puts it anyway
+                    writeInt(out, entry[3]);
+                } else {
+                    writeInt(out, valueOffset);
+                    valueOffset += 4 * values.get(i).length;
+                }
+            }
+            writeInt(out, next);
+            for (long[] value : values) {
+                if (value != null) {
+                    for (long v : value) {
+                        writeInt(out, v);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.bioenable.chequescan.archive;
+
+import java.util.Arrays;
+
+/**
+ * The code tables of ITU-T T.4 / T.6 and the lookup tables the decoder uses. Codes are written down
+ * as bit strings, the way the recommendation prints them, and converted once.
+ */
+final class G4Codes {
+
+    // terminating codes for runs 0 to 63
+    private static final String[] WHITE_TERMINATING = {
+            "00110101", "000111", "0111", "1000", "1011", "1100", "1110", "1111",
+            "10011", "10100", "00111", "01000", "001000", "000011", "110100", "110101",
+            "101010", "101011", "0100111", "0001100", "0001000", "0010111", "0000011", "0000100",
+            "0101000", "0101011", "0010011", "0100100", "0011000", "00000010", "00000011", "00011010",
+            "00011011", "00010010", "00010011", "00010100", "00010101", "00010110", "00010111", "00101000",
+            "00101001", "00101010", "00101011", "00101100", "00101101", "00000100", "00000101", "00001010",
+            "00001011", "01010010", "01010011", "01010100", "01010101", "00100100", "00100101", "01011000",
+            "01011001", "01011010", "01011011", "01001010", "01001011", "00110010", "00110011", "00110100"
+    };
+    private static final String[] BLACK_TERMINATING = {
+            "0000110111", "010", "11", "10", "011", "0011", "0010", "00011",
+            "000101", "000100", "0000100", "0000101", "0000111", "00000100", "00000111", "000011000",
+            "0000010111", "0000011000", "0000001000", "00001100111", "00001101000", "00001101100",
+            "00000110111", "00000101000", "00000010111", "00000011000", "000011001010", "000011001011",
+            "000011001100", "000011001101", "000001101000", "000001101001", "000001101010", "000001101011",
+            "000011010010", "000011010011", "000011010100", "000011010101", "000011010110", "000011010111",
+            "000001101100", "000001101101", "000011011010", "000011011011", "000001010100", "000001010101",
+            "000001010110", "000001010111", "000001100100", "000001100101", "000001010010", "000001010011",
+            "000000100100", "000000110111", "000000111000", "000000100111", "000000101000", "000001011000",
+            "000001011001", "000000101011", "000000101100", "000001011010", "000001100110", "000001100111"
+    };
+    // make up codes for runs 64 to 1728 in steps of 64
+    private static final String[] WHITE_MAKEUP = {
+            "11011", "10010", "010111", "0110111", "00110110", "00110111", "01100100", "01100101",
+            "01101000", "01100111", "011001100", "011001101", "011010010", "011010011", "011010100",
+            "011010101", "011010110", "011010111", "011011000", "011011001", "011011010", "011011011",
+            "010011000", "010011001", "010011010", "011000", "010011011"
+    };
+    private static final String[] BLACK_MAKEUP = {
+            "0000001111", "000011001000", "000011001001", "000001011011", "000000110011", "000000110100",
+            "000000110101", "0000001101100", "0000001101101", "0000001001010", "0000001001011",
+            "0000001001100", "0000001001101", "0000001110010", "0000001110011", "0000001110100",
+            "0000001110101", "0000001110110", "0000001110111", "0000001010010", "0000001010011",
+            "0000001010100", "0000001010101", "0000001011010", "0000001011011", "0000001100100",
+            "0000001100101"
+    };
+    // make up codes for runs 1792 to 2560, the same for both colours
+    private static final String[] EXTENDED_MAKEUP = {
+            "00000001000", "00000001100", "00000001101", "000000010010", "000000010011", "000000010100",
+            "000000010101", "000000010110", "000000010111", "000000011100", "000000011101",
+            "000000011110", "000000011111"
+    };
+
+    static final int MAX_MAKEUP = 2560;
+
+    /**
+     * Codes of the white and black runs, indexed by colour and then by run for 0 to 63 and by
+     * 63 + run / 64 for the make up runs. The low 5 bits hold the length, the rest the code.
+     */
+    static final int[][] RUN_CODES = new int[2][64 + MAX_MAKEUP / 64];
+
+    static final int PASS = 0b0001;
+    static final int PASS_LENGTH = 4;
+    static final int HORIZONTAL = 0b001;
+    static final int HORIZONTAL_LENGTH = 3;
+    static final int EOL = 0b000000000001;
+    static final int EOL_LENGTH = 12;
+    // vertical codes for a1 - b1 from -3 to 3
+    static final int[] VERTICAL = {0b0000010, 0b000010, 0b010, 0b1, 0b011, 0b000011, 0b0000011};
+    static final int[] VERTICAL_LENGTH = {7, 6, 3, 1, 3, 6, 7};
+
+    // modes in the decoder's mode table
+    static final int MODE_PASS = 10;
+    static final int MODE_HORIZONTAL = 11;
+    static final int MODE_INVALID = 12;
+
+    /**
+     * Bits the decoder looks at for a mode and for a run code of either colour
+     */
+    static final int MODE_BITS = 7;
+    static final int RUN_BITS = 13;
+
+    /**
+     * Mode for the next 7 bits: 0 to 6 for vertical a1 - b1 + 3, or one of the MODE constants. The low
+     * 4 bits hold the length of the code.
+     */
+    static final int[] MODE_TABLE = new int[1 << MODE_BITS];
+
+    /**
+     * Run for the next 13 bits, per colour: the run length shifted by 4 and the code length in the low
+     * 4 bits, or -1 if the bits are no run code.
+     */
+    static final int[][] RUN_TABLE = new int[2][1 << RUN_BITS];
+
+    static {
+        for (int color = 0; color < 2; color++) {
+            String[] terminating = color == 0 ? WHITE_TERMINATING : BLACK_TERMINATING;
+            String[] makeup = color == 0 ? WHITE_MAKEUP : BLACK_MAKEUP;
+            Arrays.fill(RUN_TABLE[color], -1);
+            for (int run = 0; run < 64; run++) {
+                add(color, run, run, terminating[run]);
+            }
+            for (int i = 0; i < makeup.length; i++) {
+                add(color, 64 + i, (i + 1) * 64, makeup[i]);
+            }
+            for (int i = 0; i < EXTENDED_MAKEUP.length; i++) {
+                add(color, 64 + makeup.length + i, 1792 + i * 64, EXTENDED_MAKEUP[i]);
+            }
+        }
+        Arrays.fill(MODE_TABLE, MODE_INVALID << 4);
+        fillMode(PASS, PASS_LENGTH, MODE_PASS);
+        fillMode(HORIZONTAL, HORIZONTAL_LENGTH, MODE_HORIZONTAL);
+        for (int i = 0; i < VERTICAL.length; i++) {
+            fillMode(VERTICAL[i], VERTICAL_LENGTH[i], i);
+        }
+    }
+
+    private G4Codes() {
+    }
+
+    /**
+     * @param color 0 for white, 1 for black
+     * @param run   a run up to {@link #MAX_MAKEUP}, a multiple of 64 if it is more than 63
+     * @return the code, in the high bits, and its length, in the low 5 bits
+     */
+    static int runCode(int color, int run) {
+        return RUN_CODES[color][run < 64 ? run : 63 + run / 64];
+    }
+
+    private static void add(int color, int index, int run, String bits) {
+        int code = Integer.parseInt(bits, 2);
+        int length = bits.length();
+        RUN_CODES[color][index] = code << 5 | length;
+        int shift = RUN_BITS - length;
+        for (int i = code << shift, end = (code + 1) << shift; i < end; i++) {
+            RUN_TABLE[color][i] = run << 4 | length;
+        }
+    }
+
+    private static void fillMode(int code, int length, int mode) {
+        int shift = MODE_BITS - length;
+        for (int i = code << shift, end = (code + 1) << shift; i < end; i++) {
+            MODE_TABLE[i] = mode << 4 | length;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.bioenable.chequescan.archive;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Decodes strips written by {@link G4Encoder}, or any other CCITT Group 4 data without
+ * uncompressed mode, into packed rows: one bit per pixel, the leftmost pixel in the highest bit,
+ * 1 for ink. A 2400 x 1100 cheque takes 330 KB this way instead of 2.6 MB.
+ * <p>
+ * Modes and runs are looked up in tables indexed by the next 7 or 13 bits, so every code costs one
+ * table read. Black runs are filled a byte at a time.
+ * <p>
+ * Not thread safe, the buffers are reused from strip to strip.
+ */
+public class G4Decoder {
+
+    private int[] reference = new int[0];
+    private int[] coding = new int[0];
+    private byte[] data;
+    private int dataLength;
+    private int bitPosition;
+
+    /**
+     * @param width width of a row in pixels
+     * @return bytes of one packed row
+     */
+    public static int stride(int width) {
+        return (width + 7) >> 3;
+    }
+
+    /**
+     * @param strip  the coded strip
+     * @param length number of bytes of the strip in strip
+     * @param width  width of the image
+     * @param rows   number of rows in the strip
+     * @param packed output, {@link #stride(int)} bytes per row
+     * @param offset index in packed the first row goes to
+     * @throws IOException if the data is not valid Group 4 data of this size
+     */
+    public void decode(byte[] strip, int length, int width, int rows, byte[] packed, int offset)
+            throws IOException {
+        int stride = stride(width);
+        if (width < 1 || rows < 0 || offset < 0 || offset + (long) rows * stride > packed.length) {
+            throw new IllegalArgumentException("Rows do not fit into the output");
+        }
+        if (coding.length < width + 4) {
+            coding = new int[width + 4];
+            reference = new int[width + 4];
+        }
+        data = strip;
+        dataLength = Math.min(length, strip.length);
+        bitPosition = 0;
+        Arrays.fill(packed, offset, offset + rows * stride, (byte) 0);
+        int referenceCount = 0;
+        Arrays.fill(reference, 0, 3, width);
+        for (int row = 0; row < rows; row++) {
+            int codingCount = decodeRow(width, referenceCount);
+            fill(packed, offset + row * stride, coding, codingCount, width);
+            int[] swap = reference;
+            reference = coding;
+            coding = swap;
+            referenceCount = codingCount;
+        }
+        data = null;
+    }
+
+    /**
+     * @return number of changing elements of the row, which are left in coding
+     */
+    private int decodeRow(int width, int referenceCount) throws IOException {
+        int[] reference = this.reference;
+        int[] coding = this.coding;
+        int codingCount = 0;
+        int a0 = -1;
+        int color = 0;
+        int b1Index = 0;
+        while (a0 < width) {
+            while (b1Index > 0 && reference[b1Index - 1] > a0) {
+                b1Index--;
+            }
+            while (reference[b1Index] <= a0 && b1Index < referenceCount) {
+                b1Index++;
+            }
+            if ((b1Index & 1) != color) {
+                b1Index++;
+            }
+            int b1 = reference[b1Index];
+            int mode = G4Codes.MODE_TABLE[peek(G4Codes.MODE_BITS)];
+            bitPosition += mode & 15;
+            mode >>= 4;
+            if (mode == G4Codes.MODE_PASS) {
+                a0 = reference[b1Index + 1];
+            } else if (mode == G4Codes.MODE_HORIZONTAL) {
+                int a1 = Math.max(a0, 0) + readRun(color);
+                int a2 = a1 + readRun(color ^ 1);
+                if (a2 > width) {
+                    throw new IOException("Run beyond the end of the row");
+                }
+                coding[codingCount++] = a1;
+                coding[codingCount++] = a2;
+                a0 = a2;
+            } else if (mode < G4Codes.MODE_PASS) {
+                int a1 = b1 + mode - 3;
+                if (a1 < 0 || a1 > width || a1 < a0) {
+                    throw new IOException("Vertical mode outside of the row");
+                }
+                coding[codingCount++] = a1;
+                a0 = a1;
+                color ^= 1;
+            } else {
+                throw new IOException("Unsupported code at bit " + bitPosition);
+            }
+            if (codingCount > width + 1) {
+                throw new IOException("Too many changes in a row");
+            }
+        }
+        coding[codingCount] = width;
+        coding[codingCount + 1] = width;
+        coding[codingCount + 2] = width;
+        return codingCount;
+    }
+
+    private int readRun(int color) throws IOException {
+        int run = 0;
+        while (true) {
+            int code = G4Codes.RUN_TABLE[color][peek(G4Codes.RUN_BITS)];
+            if (code < 0) {
+                throw new IOException("Invalid run code at bit " + bitPosition);
+            }
+            bitPosition += code & 15;
+            run += code >> 4;
+            if ((code >> 4) < 64) {
+                return run;
+            }
+        }
+    }
+
+    /**
+     * @return the next count bits, zeros past the end of the data
+     */
+    private int peek(int count) throws IOException {
+        int index = bitPosition >> 3;
+        if (index >= dataLength) {
+            throw new IOException("Strip ends too early");
+        }
+        int bits = (data[index] & 0xFF) << 16;
+        if (index + 1 < dataLength) {
+            bits |= (data[index + 1] & 0xFF) << 8;
+            if (index + 2 < dataLength) {
+                bits |= data[index + 2] & 0xFF;
+            }
+        }
+        return (bits >>> (24 - count - (bitPosition & 7))) & ((1 << count) - 1);
+    }
+
+    /**
+     * Sets the bits of the black runs, which go from every even change to the next one.
+     */
+    private static void fill(byte[] packed, int offset, int[] changes, int count, int width) {
+        for (int i = 0; i < count; i += 2) {
+            int start = changes[i];
+            int end = Math.min(i + 1 < count ? changes[i + 1] : width, width);
+            if (start >= end) {
+                continue;
+            }
+            int first = offset + (start >> 3);
+            int last = offset + ((end - 1) >> 3);
+            int startMask = 0xFF >>> (start & 7);
+            int endMask = 0xFF << (7 - ((end - 1) & 7));
+            if (first == last) {
+                packed[first] |= (byte) (startMask & endMask);
+            } else {
+                packed[first] |= (byte) startMask;
+                for (int j = first + 1; j < last; j++) {
+                    packed[j] = (byte) 0xFF;
+                }
+                packed[last] |= (byte) endMask;
+            }
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package com.bioenable.chequescan.archive;
+
+import com.bioenable.chequescan.processing.ChequePreprocessor;
+
+import java.util.Arrays;
+
+/**
+ * Compresses binary images with CCITT Group 4 (ITU-T T.6), the two dimensional coding of fax
+ * machines and of the bitonal images banks exchange.
+ * <p>
+ * Every row is coded against the row above it through their changing elements, the positions where
+ * the colour flips. Most edges of printed text continue from one row to the next within three
+ * pixels and cost one to seven bits, only new edges are coded as runs. A row is turned into its
+ * changing elements in one pass over its pixels, the coding then only touches the edges.
+ * <p>
+ * A strip of rows is coded on its own, against an imaginary white row above its first row, so that
+ * it can be decoded without the rows before it. Every strip ends with the end of facsimile block
+ * and is padded to whole bytes.
+ * <p>
+ * Not thread safe, the buffers are reused from strip to strip.
+ */
+public class G4Encoder {
+
+    private final BitWriter out = new BitWriter();
+    private int[] reference = new int[0];
+    private int[] coding = new int[0];
+
+    /**
+     * @param binary {@link ChequePreprocessor#INK} or {@link ChequePreprocessor#PAPER} per pixel, row
+     *               major
+     * @param width  width of the image
+     * @param top    first row of the strip
+     * @param rows   number of rows of the strip
+     * @return the coded strip
+     */
+    public byte[] encode(byte[] binary, int width, int top, int rows) {
+        if (width < 1 || top < 0 || rows < 0 || (long) (top + rows) * width > binary.length) {
+            throw new IllegalArgumentException("Strip is outside of the image");
+        }
+        // every pixel can be a change, plus the sentinels
+        if (coding.length < width + 3) {
+            coding = new int[width + 3];
+            reference = new int[width + 3];
+        }
+        out.reset();
+        int referenceCount = 0;
+        Arrays.fill(reference, 0, 3, width);
+        for (int row = top; row < top + rows; row++) {
+            int codingCount = changes(binary, row * width, width, coding);
+            encodeRow(width, referenceCount, codingCount);
+            int[] swap = reference;
+            reference = coding;
+            coding = swap;
+            referenceCount = codingCount;
+        }
+        out.write(G4Codes.EOL, G4Codes.EOL_LENGTH);
+        out.write(G4Codes.EOL, G4Codes.EOL_LENGTH);
+        return out.toByteArray();
+    }
+
+    /**
+     * Finds the changing elements of a row and puts three sentinels at the width behind them.
+     *
+     * @return number of changing elements
+     */
+    private static int changes(byte[] binary, int offset, int width, int[] changes) {
+        int count = 0;
+        byte color = ChequePreprocessor.PAPER;
+        for (int x = 0; x < width; x++) {
+            byte pixel = binary[offset + x];
+            if (pixel != color) {
+                changes[count++] = x;
+                color = pixel;
+            }
+        }
+        changes[count] = width;
+        changes[count + 1] = width;
+        changes[count + 2] = width;
+        return count;
+    }
+
+    private void encodeRow(int width, int referenceCount, int codingCount) {
+        int[] reference = this.reference;
+        int[] coding = this.coding;
+        int a0 = -1;
+        // changes at even indexes turn black, so the colour of a0 is the parity of the next change a1
+        int a1Index = 0;
+        int b1Index = 0;
+        while (a0 < width) {
+            int color = a1Index & 1;
+            int a1 = coding[a1Index];
+            while (b1Index > 0 && reference[b1Index - 1] > a0) {
+                b1Index--;
+            }
+            while (reference[b1Index] <= a0 && b1Index < referenceCount) {
+                b1Index++;
+            }
+            if ((b1Index & 1) != color) {
+                b1Index++;
+            }
+            int b1 = reference[b1Index];
+            int b2 = reference[b1Index + 1];
+            if (b2 < a1) {
+                out.write(G4Codes.PASS, G4Codes.PASS_LENGTH);
+                a0 = b2;
+            } else if (a1 - b1 >= -3 && a1 - b1 <= 3) {
+                out.write(G4Codes.VERTICAL[a1 - b1 + 3], G4Codes.VERTICAL_LENGTH[a1 - b1 + 3]);
+                a0 = a1;
+                a1Index++;
+            } else {
+                int a2 = coding[a1Index + 1];
+                out.write(G4Codes.HORIZONTAL, G4Codes.HORIZONTAL_LENGTH);
+                writeRun(color, a1 - Math.max(a0, 0));
+                writeRun(color ^ 1, a2 - a1);
+                a0 = a2;
+                a1Index += 2;
+            }
+        }
+    }
+
+    private void writeRun(int color, int run) {
+        while (run > G4Codes.MAX_MAKEUP) {
+            writeCode(G4Codes.runCode(color, G4Codes.MAX_MAKEUP));
+            run -= G4Codes.MAX_MAKEUP;
+        }
+        if (run >= 64) {
+            writeCode(G4Codes.runCode(color, run & ~63));
+            run &= 63;
+        }
+        writeCode(G4Codes.runCode(color, run));
+    }
+
+    private void writeCode(int code) {
+        out.write(code >>> 5, code & 31);
+    }
+
+    /**
+     * Collects bits, the first bit in the highest bit of a byte.
+     */
+    private static final class BitWriter {
+
+        private byte[] bytes = new byte[16 * 1024];
+        private int length;
+        private long buffer;
+        private int bits;
+
+        void reset() {
+            length = 0;
+            buffer = 0;
+            bits = 0;
+        }
+
+        void write(int code, int count) {
+            buffer = buffer << count | code;
+            bits += count;
+            while (bits >= 8) {
+                bits -= 8;
+                if (length == bytes.length) {
+                    bytes = Arrays.copyOf(bytes, length * 2);
+                }
+                bytes[length++] = (byte) (buffer >>> bits);
+            }
+        }
+
+        byte[] toByteArray() {
+            if (bits > 0) {
+                write(0, 8 - bits);
+            }
+            return Arrays.copyOf(bytes, length);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.bioenable.chequescan.batch;
+
+import com.bioenable.chequescan.geometry.Quad;
+import com.bioenable.chequescan.micr.MicrLine;
+import com.bioenable.chequescan.store.StoreEntry;
+
+import java.io.File;
+
+/**
+ * One cheque of a batch scanning session as it moves through the {@link BatchPipeline}. Every stage
+ * fills in its results. The item is only touched by one stage at a time, the queues between the
+ * stages make the writes of one stage visible to the next.
+ */
+public class BatchCheque {
+
+    private final int sequence;
+    private final File capture;
+    private StoreEntry entry;
+    private byte[] gray;
+    private int width;
+    private int height;
+    private Quad corners;
+    private MicrLine micr;
+    private File archive;
+
+    /**
+     * @param sequence position of the cheque in the session, starting at 1
+     * @param capture  file the photo was written to
+     */
+    public BatchCheque(int sequence, File capture) {
+        this.sequence = sequence;
+        this.capture = capture;
+    }
+
+    public int getSequence() {
+        return sequence;
+    }
+
+    public File getCapture() {
+        return capture;
+    }
+
+    /**
+     * @return the photo in the content store, null until it is stored
+     */
+    public StoreEntry getEntry() {
+        return entry;
+    }
+
+    public void setEntry(StoreEntry entry) {
+        this.entry = entry;
+    }
+
+    /**
+     * @return 8 bit gray pixels of the photo, null before it is decoded and after it is processed
+     */
+    public byte[] getGray() {
+        return gray;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @param gray   8 bit gray pixels of the photo, null to release them
+     * @param width  width of the photo
+     * @param height height of the photo
+     */
+    public void setGray(byte[] gray, int width, int height) {
+        this.gray = gray;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * @return corners of the cheque in the photo, null before it is processed
+     */
+    public Quad getCorners() {
+        return corners;
+    }
+
+    public void setCorners(Quad corners) {
+        this.corners = corners;
+    }
+
+    /**
+     * @return the code line, null before it is processed
+     */
+    public MicrLine getMicr() {
+        return micr;
+    }
+
+    public void setMicr(MicrLine micr) {
+        this.micr = micr;
+    }
+
+    /**
+     * @return the Group 4 archive copy of the processed cheque, null if none was written
+     */
+    public File getArchive() {
+        return archive;
+    }
+
+    public void setArchive(File archive) {
+        this.archive = archive;
+    }
+
+    @Override
+    public String toString() {
+        return "BatchCheque{" + sequence + ", " + (entry != null ? entry.getHash() : capture.getName()) + "}";
+    }
+}
@@ -0,0 +1,320 @@
+package com.bioenable.chequescan.batch;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Runs items through a fixed sequence of stages, every stage on its own thread. Stages are joined
+ * by bounded queues: a stage which falls behind fills the queue in front of it, which then blocks
+ * the stage before it and finally {@link #submit(Object)}. This back-pressure keeps the number of
+ * items in flight, and with it the memory they hold, at (stages + 1) * capacity at most, while the
+ * stages still overlap: the first stage works on item N + 1 while the second works on item N.
+ * <p>
+ * Items leave the pipeline in the order they were submitted. An item whose stage throws is handed
+ * to {@link Listener#onFailed} and skips the remaining stages, the pipeline carries on with the
+ * next item.
+ * <p>
+ * Stages are added with {@link #addStage(String, Stage)}, then {@link #start()} starts the threads.
+ * {@link #finish()} closes the input, the threads stop once everything submitted before has gone
+ * through.
+ *
+ * @param <T> type of the items
+ */
+public class BatchPipeline<T> implements Closeable {
+
+    /**
+     * One step of the pipeline. A stage is only ever called from its own thread, so it can keep
+     * scratch buffers between items.
+     */
+    public interface Stage<T> {
+        /**
+         * @param item the item to work on, the results are stored in the item
+         * @throws Exception if the item cannot go on to the next stage
+         */
+        void process(T item) throws Exception;
+    }
+
+    /**
+     * Told about every item which leaves the pipeline. Called on the thread of the last stage for
+     * completed items and on the thread of the failing stage for failed ones.
+     */
+    public interface Listener<T> {
+
+        void onCompleted(T item);
+
+        /**
+         * @param item  the item which failed
+         * @param stage name of the stage which failed
+         * @param e     what the stage threw
+         */
+        void onFailed(T item, String stage, Exception e);
+    }
+
+    /**
+     * Default capacity of the queues in front of the stages
+     */
+    public static final int DEFAULT_QUEUE_CAPACITY = 2;
+
+    // marks the end of the input, passed on from stage to stage
+    private static final Object END = new Object();
+
+    private final int capacity;
+    private final Listener<T> listener;
+    private final List<String> names = new ArrayList<>();
+    private final List<Stage<T>> stages = new ArrayList<>();
+    private final List<BlockingQueue<Object>> queues = new ArrayList<>();
+    private final List<Thread> threads = new ArrayList<>();
+    private final AtomicInteger submitted = new AtomicInteger();
+    private final AtomicInteger completed = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicLong firstSubmitNanos = new AtomicLong();
+    private final AtomicLong lastDoneNanos = new AtomicLong();
+    private AtomicLongArray busyNanos;
+    private volatile boolean started;
+    private volatile boolean finished;
+
+    /**
+     * @param capacity number of items each queue between two stages holds
+     * @param listener told about every item leaving the pipeline
+     */
+    public BatchPipeline(int capacity, Listener<T> listener) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be at least 1");
+        }
+        this.capacity = capacity;
+        this.listener = listener;
+    }
+
+    /**
+     * Appends a stage. Has to be called before {@link #start()}.
+     *
+     * @param name  name of the stage, used for its thread and in failures
+     * @param stage the stage
+     * @return this pipeline
+     */
+    public BatchPipeline<T> addStage(String name, Stage<T> stage) {
+        if (started) {
+            throw new IllegalStateException("Pipeline is running");
+        }
+        names.add(name);
+        stages.add(stage);
+        queues.add(new ArrayBlockingQueue<>(capacity));
+        return this;
+    }
+
+    /**
+     * Starts one thread per stage.
+     *
+     * @return this pipeline
+     */
+    public BatchPipeline<T> start() {
+        if (started) {
+            throw new IllegalStateException("Pipeline is running");
+        }
+        if (stages.isEmpty()) {
+            throw new IllegalStateException("Pipeline has no stages");
+        }
+        started = true;
+        busyNanos = new AtomicLongArray(stages.size());
+        for (int i = 0; i < stages.size(); i++) {
+            final int index = i;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runStage(index);
+                }
+            }, "batch-" + names.get(i));
+            thread.setDaemon(true);
+            threads.add(thread);
+            thread.start();
+        }
+        return this;
+    }
+
+    /**
+     * Hands an item to the first stage, waiting while its queue is full.
+     *
+     * @param item the item
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    public void submit(T item) throws InterruptedException {
+        checkAcceptsItems();
+        firstSubmitNanos.compareAndSet(0, System.nanoTime());
+        queues.get(0).put(item);
+        submitted.incrementAndGet();
+    }
+
+    /**
+     * Hands an item to the first stage if its queue has room.
+     *
+     * @param item the item
+     * @return false if the queue is full, the item was not taken
+     */
+    public boolean offer(T item) {
+        checkAcceptsItems();
+        firstSubmitNanos.compareAndSet(0, System.nanoTime());
+        if (!queues.get(0).offer(item)) {
+            return false;
+        }
+        submitted.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Closes the input. The stages stop once the items submitted so far are through.
+     *
+     * @throws InterruptedException if the thread was interrupted while waiting for room in the
+     *                              first queue
+     */
+    public void finish() throws InterruptedException {
+        if (!started || finished) {
+            return;
+        }
+        finished = true;
+        queues.get(0).put(END);
+    }
+
+    /**
+     * Waits until every stage has stopped after {@link #finish()}.
+     *
+     * @param timeout longest time to wait
+     * @param unit    unit of timeout
+     * @return whether all stages stopped in time
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Thread thread : threads) {
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0) {
+                return !thread.isAlive();
+            }
+            thread.join(remaining);
+            if (thread.isAlive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stops the stages straight away. Items still in the pipeline are dropped without being
+     * reported.
+     */
+    @Override
+    public void close() {
+        finished = true;
+        for (Thread thread : threads) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * @return number of items submitted so far
+     */
+    public int getSubmitted() {
+        return submitted.get();
+    }
+
+    /**
+     * @return number of items which went through every stage
+     */
+    public int getCompleted() {
+        return completed.get();
+    }
+
+    /**
+     * @return number of items a stage failed on
+     */
+    public int getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * @return number of items which are submitted but have not left the pipeline yet
+     */
+    public int getInFlight() {
+        return submitted.get() - completed.get() - failed.get();
+    }
+
+    /**
+     * @return completed items per minute, from the first submit until the last item left the
+     * pipeline, 0 before any item completed
+     */
+    public double getItemsPerMinute() {
+        long elapsed = lastDoneNanos.get() - firstSubmitNanos.get();
+        int done = completed.get();
+        return done == 0 || elapsed <= 0 ? 0 : done * TimeUnit.MINUTES.toNanos(1) / (double) elapsed;
+    }
+
+    /**
+     * @return names of the stages, in order
+     */
+    public List<String> getStageNames() {
+        return new ArrayList<>(names);
+    }
+
+    /**
+     * Time a stage spent working on items, the stage with the most is the one limiting the
+     * throughput.
+     *
+     * @param stage index of the stage
+     * @return nanoseconds spent in the stage
+     */
+    public long getBusyNanos(int stage) {
+        return busyNanos == null ? 0 : busyNanos.get(stage);
+    }
+
+    private void checkAcceptsItems() {
+        if (!started || finished) {
+            throw new IllegalStateException("Pipeline is not accepting items");
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void runStage(int index) {
+        BlockingQueue<Object> input = queues.get(index);
+        BlockingQueue<Object> output = index + 1 < queues.size() ? queues.get(index + 1) : null;
+        Stage<T> stage = stages.get(index);
+        try {
+            while (true) {
+                Object next = input.take();
+                if (next == END) {
+                    if (output != null) {
+                        output.put(END);
+                    }
+                    return;
+                }
+                T item = (T) next;
+                long start = System.nanoTime();
+                try {
+                    stage.process(item);
+                } catch (Exception e) {
+                    busyNanos.addAndGet(index, System.nanoTime() - start);
+                    failed.incrementAndGet();
+                    lastDoneNanos.set(System.nanoTime());
+                    listener.onFailed(item, names.get(index), e);
+                    continue;
+                }
+                busyNanos.addAndGet(index, System.nanoTime() - start);
+                if (output != null) {
+                    output.put(item);
+                } else {
+                    lastDoneNanos.set(System.nanoTime());
+                    completed.incrementAndGet();
+                    listener.onCompleted(item);
+                }
+            }
+        } catch (InterruptedException e) {
+            // closed
+            Thread.currentThread().interrupt();
+        }
+    }
+}
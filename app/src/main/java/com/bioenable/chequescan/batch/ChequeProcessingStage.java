@@ -0,0 +1,73 @@
+package com.bioenable.chequescan.batch;
+
+import com.bioenable.chequescan.archive.ArchiveWriter;
+import com.bioenable.chequescan.geometry.PerspectiveCorrector;
+import com.bioenable.chequescan.geometry.Quad;
+import com.bioenable.chequescan.micr.MicrRecognizer;
+import com.bioenable.chequescan.processing.ChequePreprocessor;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * The processing stage of a batch: finds the cheque in the decoded photo, warps it upright to
+ * {@link PerspectiveCorrector#CANONICAL_WIDTH} x {@link PerspectiveCorrector#CANONICAL_HEIGHT},
+ * binarizes it and reads the code line. The canonical images are scratch buffers of the stage, the
+ * gray photo of the item is released once it is processed.
+ * <p>
+ * When it has an archive directory, the stage also writes the binarized cheque with a gray
+ * thumbnail to hash.tif there, which takes some 50 KB where the photo takes several MB.
+ */
+public class ChequeProcessingStage implements BatchPipeline.Stage<BatchCheque>, Closeable {
+
+    private static final int CANONICAL_PIXELS =
+            PerspectiveCorrector.CANONICAL_WIDTH * PerspectiveCorrector.CANONICAL_HEIGHT;
+    // the canonical width covers the 6 inches of a personal cheque
+    private static final int ARCHIVE_DPI = 400;
+
+    private final PerspectiveCorrector corrector;
+    private final ChequePreprocessor preprocessor;
+    private final MicrRecognizer recognizer = new MicrRecognizer();
+    private final byte[] canonical = new byte[CANONICAL_PIXELS];
+    private final byte[] binary = new byte[CANONICAL_PIXELS];
+    private final File archiveDirectory;
+    private final ArchiveWriter archiveWriter = new ArchiveWriter();
+
+    /**
+     * @param parallelism      number of threads the correction and binarization use
+     * @param archiveDirectory directory the archive copies are written to, null to write none
+     */
+    public ChequeProcessingStage(int parallelism, File archiveDirectory) {
+        corrector = new PerspectiveCorrector(parallelism);
+        preprocessor = new ChequePreprocessor(parallelism);
+        this.archiveDirectory = archiveDirectory;
+    }
+
+    @Override
+    public void process(BatchCheque cheque) throws ChequeRejectedException, IOException {
+        Quad corners = corrector.correct(cheque.getGray(), cheque.getWidth(), cheque.getHeight(),
+                canonical, PerspectiveCorrector.CANONICAL_WIDTH, PerspectiveCorrector.CANONICAL_HEIGHT);
+        cheque.setGray(null, 0, 0);
+        if (corners == null) {
+            throw new ChequeRejectedException("No cheque found in the photo");
+        }
+        cheque.setCorners(corners);
+        preprocessor.binarizeSauvola(canonical, PerspectiveCorrector.CANONICAL_WIDTH,
+                PerspectiveCorrector.CANONICAL_HEIGHT, binary);
+        cheque.setMicr(recognizer.recognize(binary, PerspectiveCorrector.CANONICAL_WIDTH,
+                PerspectiveCorrector.CANONICAL_HEIGHT));
+        if (archiveDirectory != null && cheque.getEntry() != null) {
+            File archive = new File(archiveDirectory, cheque.getEntry().getHash() + ".tif");
+            archiveWriter.write(binary, canonical, PerspectiveCorrector.CANONICAL_WIDTH,
+                    PerspectiveCorrector.CANONICAL_HEIGHT, ARCHIVE_DPI, archive);
+            cheque.setArchive(archive);
+        }
+    }
+
+    @Override
+    public void close() {
+        corrector.close();
+        preprocessor.close();
+    }
+}
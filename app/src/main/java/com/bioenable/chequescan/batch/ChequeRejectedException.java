@@ -0,0 +1,13 @@
+package com.bioenable.chequescan.batch;
+
+/**
+ * Thrown by a stage when a photo does not hold a usable cheque.
+ */
+public class ChequeRejectedException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    public ChequeRejectedException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,61 @@
+package com.bioenable.chequescan.batch;
+
+import com.bioenable.chequescan.micr.MicrLine;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * The persistence stage of a batch: appends one CSV line per cheque to the session manifest and
+ * flushes it, so that the manifest holds every processed cheque even if the app dies mid-session.
+ * Columns: sequence, content hash, routing, account and cheque number, amount, raw code line.
+ */
+public class ManifestStage implements BatchPipeline.Stage<BatchCheque>, Closeable {
+
+    public static final String HEADER = "sequence,hash,routing,account,cheque,amount,micr";
+
+    private final Writer writer;
+
+    /**
+     * Writes the header line.
+     *
+     * @param writer the manifest, closed with the stage
+     * @throws IOException if the header cannot be written
+     */
+    public ManifestStage(Writer writer) throws IOException {
+        this.writer = writer;
+        writer.write(HEADER);
+        writer.write('\n');
+        writer.flush();
+    }
+
+    @Override
+    public void process(BatchCheque cheque) throws IOException {
+        MicrLine micr = cheque.getMicr();
+        StringBuilder line = new StringBuilder(128);
+        line.append(cheque.getSequence()).append(',')
+                .append(cheque.getEntry() != null ? cheque.getEntry().getHash() : "").append(',');
+        if (micr != null) {
+            line.append(field(micr.getRoutingNumber())).append(',')
+                    .append(field(micr.getAccountNumber())).append(',')
+                    .append(field(micr.getChequeNumber())).append(',')
+                    .append(field(micr.getAmount())).append(',')
+                    .append(micr.getText());
+        } else {
+            line.append(",,,,");
+        }
+        line.append('\n');
+        writer.write(line.toString());
+        writer.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+
+    private static String field(String value) {
+        return value != null ? value : "";
+    }
+}
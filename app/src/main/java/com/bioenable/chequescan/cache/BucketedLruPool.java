@@ -0,0 +1,178 @@
+package com.bioenable.chequescan.cache;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Pool of reusable objects (bitmaps, pixel buffers) grouped into buckets by their size in bytes. The
+ * pool holds at most maxBytes worth of objects. When that budget is exceeded the objects which were
+ * returned to the pool the longest time ago are evicted first.
+ * <p>
+ * A request for n bytes is served by the smallest pooled object of at least n bytes, as long as
+ * that object is not more than {@link #MAX_SIZE_MULTIPLE} times larger. Handing out much larger
+ * objects would keep big buffers alive for small images.
+ * <p>
+ * This class has no Android dependency, BitmapPool adds the Bitmap specific parts. All methods are
+ * thread safe.
+ *
+ * @param <T> type of the pooled objects. Objects are compared by identity.
+ */
+public abstract class BucketedLruPool<T> {
+
+    /**
+     * Largest ratio between the size of a pooled object and the requested size
+     */
+    public static final int MAX_SIZE_MULTIPLE = 4;
+
+    private final long maxBytes;
+    private final TreeMap<Integer, ArrayDeque<T>> buckets = new TreeMap<>();
+    // insertion order is the order in which objects were returned, the eldest is evicted first
+    private final LinkedHashMap<T, Integer> lru = new LinkedHashMap<>();
+    private long currentBytes;
+
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
+
+    /**
+     * @param maxBytes total size of the objects the pool may hold
+     */
+    protected BucketedLruPool(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @param item pooled object
+     * @return size of the object in bytes
+     */
+    protected abstract int sizeOf(T item);
+
+    /**
+     * Called for every object which leaves the pool because of the byte budget or clear(). The
+     * object is not handed out anymore, so this is the place to release it.
+     *
+     * @param item evicted object
+     */
+    protected abstract void onEvicted(T item);
+
+    /**
+     * Takes an object of at least minBytes out of the pool.
+     *
+     * @param minBytes smallest acceptable size
+     * @return pooled object or null if there is no suitable one (a miss)
+     */
+    public synchronized T acquire(int minBytes) {
+        Map.Entry<Integer, ArrayDeque<T>> bucket = buckets.ceilingEntry(minBytes);
+        if (bucket == null || bucket.getKey() > (long) minBytes * MAX_SIZE_MULTIPLE) {
+            missCount++;
+            return null;
+        }
+        // the most recently returned object is the one most likely still in the CPU cache
+        T item = bucket.getValue().pollLast();
+        if (bucket.getValue().isEmpty()) {
+            buckets.remove(bucket.getKey());
+        }
+        lru.remove(item);
+        currentBytes -= bucket.getKey();
+        hitCount++;
+        return item;
+    }
+
+    /**
+     * Returns an object to the pool. The caller must not use it afterwards.
+     *
+     * @param item object which is not used anymore
+     */
+    public synchronized void release(T item) {
+        int size = sizeOf(item);
+        if (size > maxBytes || lru.containsKey(item)) {
+            if (size > maxBytes) {
+                evictionCount++;
+                onEvicted(item);
+            }
+            return;
+        }
+        ArrayDeque<T> bucket = buckets.get(size);
+        if (bucket == null) {
+            bucket = new ArrayDeque<>();
+            buckets.put(size, bucket);
+        }
+        bucket.addLast(item);
+        lru.put(item, size);
+        currentBytes += size;
+        trimToSize(maxBytes);
+    }
+
+    /**
+     * Evicts objects until the pool holds at most the given number of bytes.
+     *
+     * @param bytes size to trim the pool down to
+     */
+    public synchronized void trimToSize(long bytes) {
+        Iterator<Map.Entry<T, Integer>> eldest = lru.entrySet().iterator();
+        while (currentBytes > bytes && eldest.hasNext()) {
+            Map.Entry<T, Integer> entry = eldest.next();
+            eldest.remove();
+            ArrayDeque<T> bucket = buckets.get(entry.getValue());
+            bucket.removeFirstOccurrence(entry.getKey());
+            if (bucket.isEmpty()) {
+                buckets.remove(entry.getValue());
+            }
+            currentBytes -= entry.getValue();
+            evictionCount++;
+            onEvicted(entry.getKey());
+        }
+    }
+
+    /**
+     * Evicts everything.
+     */
+    public void clear() {
+        trimToSize(0);
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized long getCurrentBytes() {
+        return currentBytes;
+    }
+
+    public synchronized int getCount() {
+        return lru.size();
+    }
+
+    /**
+     * @return number of acquire calls which were served from the pool
+     */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * @return number of acquire calls which found nothing suitable
+     */
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * @return number of objects which were evicted because of the byte budget
+     */
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        long requests = hitCount + missCount;
+        return getClass().getSimpleName() + "[size=" + currentBytes + "/" + maxBytes
+                + ", items=" + lru.size() + ", hits=" + hitCount + ", misses=" + missCount
+                + ", evictions=" + evictionCount + ", hitRate="
+                + (requests == 0 ? 0 : hitCount * 100 / requests) + "%]";
+    }
+}
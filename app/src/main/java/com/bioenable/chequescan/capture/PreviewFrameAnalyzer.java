@@ -0,0 +1,350 @@
+package com.bioenable.chequescan.capture;
+
+import com.bioenable.chequescan.geometry.PerspectiveCorrector;
+import com.bioenable.chequescan.geometry.Quad;
+import com.bioenable.chequescan.quality.QualityGate;
+import com.bioenable.chequescan.quality.QualityReport;
+
+import java.io.Closeable;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Watches the camera preview for a cheque which can be captured. Frames are NV21 (or any YUV
+ * layout which starts with the full resolution Y plane), the Y plane is used as the gray image.
+ * <p>
+ * The analyzer owns a ring of frame buffers, allocated once, which the caller hands to the camera
+ * (Camera.addCallbackBuffer). A filled buffer is offered back with {@link #offer(byte[])}. Only one
+ * frame is analysed at a time, on the analyzer's own thread. A frame offered while the previous one
+ * is still being analysed is dropped, not queued, so the analysis never falls behind the preview and
+ * the buffer goes straight back to the camera. No frame sized memory is allocated after the
+ * analyzer is created.
+ * <p>
+ * Every analysed frame is box filtered down to a proxy of at most
+ * {@link PerspectiveCorrector#PROXY_SIDE} pixels on the long side, the size the thresholds of the
+ * {@link QualityGate} are set for, and goes through the gate. Once the cheque has been found, sharp,
+ * without glare and filling enough of the frame, in {@link #DEFAULT_STABLE_FRAMES} analysed frames
+ * in a row with its corners moving less than {@link #DEFAULT_STABLE_TOLERANCE} of the frame
+ * diagonal between them, the listener is told to capture. The analyzer then drops every frame until
+ * {@link #rearm()} is called.
+ * <p>
+ * A frame whose analysis throws, in the gate or in the listener, is logged and skipped; the next
+ * frame is analysed as usual.
+ */
+public class PreviewFrameAnalyzer implements Closeable {
+
+    /**
+     * Receives the results of the analysis, on the analysis thread.
+     */
+    public interface Listener {
+
+        /**
+         * Called after every analysed frame. The analyzer does not use the frame anymore, it can
+         * go back to the camera.
+         *
+         * @param frame  the frame which was analysed
+         * @param report what the quality gate found in its proxy, the corners are in proxy pixels
+         */
+        void onFrameAnalyzed(byte[] frame, QualityReport report);
+
+        /**
+         * Called once when the cheque has been acceptable and still for long enough.
+         *
+         * @param corners corners of the cheque in the last analysed frame, in frame pixels
+         */
+        void onChequeStable(Quad corners);
+    }
+
+    /**
+     * Number of frame buffers, one being analysed and two with the camera
+     */
+    public static final int DEFAULT_RING_SIZE = 3;
+
+    /**
+     * Acceptable frames in a row needed to trigger a capture
+     */
+    public static final int DEFAULT_STABLE_FRAMES = 4;
+
+    /**
+     * Largest corner movement between two stable frames, as a fraction of the frame diagonal
+     */
+    public static final float DEFAULT_STABLE_TOLERANCE = 0.015f;
+
+    private static final Logger LOG = Logger.getLogger(PreviewFrameAnalyzer.class.getName());
+
+    private final int width;
+    private final int height;
+    // the frame is shrunk by factor on both axes, 1 analyses the Y plane as it is
+    private final int factor;
+    private final int proxyWidth;
+    private final int proxyHeight;
+    private final byte[] proxy;
+    private final int stableFrames;
+    private final float tolerance;
+    private final QualityGate gate;
+    private final Listener listener;
+    private final byte[][] buffers;
+    private final Thread worker;
+
+    private final Object lock = new Object();
+    // guarded by lock
+    private byte[] pending;
+    private boolean busy;
+    private boolean triggered;
+    private boolean closed;
+    private long framesOffered;
+    private long framesDropped;
+    private long framesAnalyzed;
+
+    // used on the worker thread only
+    private Quad previous;
+    private int stableCount;
+    private volatile long analysisNanos;
+
+    /**
+     * Creates an analyzer with the default ring size and stability criteria.
+     *
+     * @param width    width of the preview frames
+     * @param height   height of the preview frames
+     * @param listener receives the results
+     */
+    public PreviewFrameAnalyzer(int width, int height, Listener listener) {
+        this(width, height, DEFAULT_RING_SIZE, DEFAULT_STABLE_FRAMES, DEFAULT_STABLE_TOLERANCE,
+                new QualityGate(), listener);
+    }
+
+    /**
+     * @param width        width of the preview frames
+     * @param height       height of the preview frames
+     * @param ringSize     number of frame buffers to allocate
+     * @param stableFrames acceptable frames in a row needed to trigger a capture
+     * @param tolerance    largest corner movement between stable frames, as a fraction of the
+     *                     frame diagonal
+     * @param gate         gate every frame is assessed with, closed with the analyzer
+     * @param listener     receives the results
+     */
+    public PreviewFrameAnalyzer(int width, int height, int ringSize, int stableFrames, float tolerance,
+                                QualityGate gate, Listener listener) {
+        if (width <= 0 || height <= 0 || ringSize < 1 || stableFrames < 1) {
+            throw new IllegalArgumentException("Invalid analyzer configuration");
+        }
+        this.width = width;
+        this.height = height;
+        factor = Math.max(1, (Math.max(width, height) + PerspectiveCorrector.PROXY_SIDE - 1)
+                / PerspectiveCorrector.PROXY_SIDE);
+        proxyWidth = width / factor;
+        proxyHeight = height / factor;
+        proxy = factor > 1 ? new byte[proxyWidth * proxyHeight] : null;
+        this.stableFrames = stableFrames;
+        // corners are compared in proxy pixels
+        this.tolerance = tolerance * (float) Math.hypot(proxyWidth, proxyHeight);
+        this.gate = gate;
+        this.listener = listener;
+        this.buffers = new byte[ringSize][frameSize(width, height)];
+        this.worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                analyzeFrames();
+            }
+        }, "preview-analyzer");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * @param width  width of the frame
+     * @param height height of the frame
+     * @return size in bytes of an NV21 frame: the Y plane and the interleaved, half resolution
+     * V and U planes
+     */
+    public static int frameSize(int width, int height) {
+        return width * height + 2 * ((width + 1) / 2) * ((height + 1) / 2);
+    }
+
+    /**
+     * @return the frame buffers, to be handed to the camera once when the preview starts
+     */
+    public byte[][] getBuffers() {
+        return buffers;
+    }
+
+    /**
+     * Hands a filled frame to the analysis thread, unless it is still busy with the previous frame,
+     * a capture was triggered or the analyzer is closed. Can be called from any thread.
+     *
+     * @param frame a frame of the preview
+     * @return whether the frame was taken, if not the caller can reuse it straight away
+     */
+    public boolean offer(byte[] frame) {
+        synchronized (lock) {
+            framesOffered++;
+            if (busy || triggered || closed) {
+                framesDropped++;
+                return false;
+            }
+            busy = true;
+            pending = frame;
+            lock.notifyAll();
+            return true;
+        }
+    }
+
+    /**
+     * Starts looking for a stable cheque again after a capture was triggered, for example when the
+     * capture failed.
+     */
+    public void rearm() {
+        synchronized (lock) {
+            triggered = false;
+        }
+    }
+
+    /**
+     * @return number of frames offered so far
+     */
+    public long getFramesOffered() {
+        synchronized (lock) {
+            return framesOffered;
+        }
+    }
+
+    /**
+     * @return number of frames dropped because the analysis was busy or a capture was triggered
+     */
+    public long getFramesDropped() {
+        synchronized (lock) {
+            return framesDropped;
+        }
+    }
+
+    /**
+     * @return number of frames analysed so far, a frame counts once its listener calls returned
+     */
+    public long getFramesAnalyzed() {
+        synchronized (lock) {
+            return framesAnalyzed;
+        }
+    }
+
+    /**
+     * @return time spent analysing frames so far, in nanoseconds
+     */
+    public long getAnalysisNanos() {
+        return analysisNanos;
+    }
+
+    /**
+     * Stops the analysis thread once the current frame is done. Frames offered afterwards are
+     * dropped.
+     */
+    @Override
+    public void close() {
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+    }
+
+    private void analyzeFrames() {
+        try {
+            while (true) {
+                byte[] frame;
+                synchronized (lock) {
+                    while (pending == null && !closed) {
+                        lock.wait();
+                    }
+                    if (closed) {
+                        return;
+                    }
+                    frame = pending;
+                    pending = null;
+                }
+                boolean analyzed = false;
+                try {
+                    analyze(frame);
+                    analyzed = true;
+                } catch (RuntimeException e) {
+                    LOG.log(Level.WARNING, "Analysis of a preview frame failed", e);
+                } finally {
+                    synchronized (lock) {
+                        busy = false;
+                        if (analyzed) {
+                            framesAnalyzed++;
+                        }
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            gate.close();
+        }
+    }
+
+    private void analyze(byte[] frame) {
+        long start = System.nanoTime();
+        QualityReport report;
+        if (proxy == null) {
+            report = gate.assess(frame, width, height);
+        } else {
+            shrink(frame);
+            report = gate.assess(proxy, proxyWidth, proxyHeight);
+        }
+        Quad corners = report.getCorners();
+        if (!report.isAcceptable()) {
+            stableCount = 0;
+            previous = null;
+        } else if (previous != null && corners.distanceTo(previous) <= tolerance) {
+            stableCount++;
+            previous = corners;
+        } else {
+            stableCount = 1;
+            previous = corners;
+        }
+        boolean stable = stableCount >= stableFrames;
+        if (stable) {
+            stableCount = 0;
+            previous = null;
+            synchronized (lock) {
+                triggered = true;
+            }
+        }
+        analysisNanos += System.nanoTime() - start;
+        listener.onFrameAnalyzed(frame, report);
+        if (stable) {
+            listener.onChequeStable(toFrame(corners));
+        }
+    }
+
+    /**
+     * Box filters the Y plane of the frame into the proxy, every proxy pixel is the mean of
+     * factor x factor frame pixels.
+     */
+    private void shrink(byte[] frame) {
+        int area = factor * factor;
+        for (int py = 0; py < proxyHeight; py++) {
+            int top = py * factor * width;
+            for (int px = 0, o = py * proxyWidth; px < proxyWidth; px++, o++) {
+                int sum = 0;
+                for (int row = top + px * factor, rowEnd = row + factor * width; row < rowEnd; row += width) {
+                    for (int i = row, end = row + factor; i < end; i++) {
+                        sum += frame[i] & 0xFF;
+                    }
+                }
+                proxy[o] = (byte) ((sum + area / 2) / area);
+            }
+        }
+    }
+
+    private Quad toFrame(Quad corners) {
+        if (factor == 1) {
+            return corners;
+        }
+        float[] points = corners.toArray();
+        for (int i = 0; i < points.length; i++) {
+            // centre of a proxy pixel in frame coordinates
+            points[i] = (points[i] + 0.5f) * factor - 0.5f;
+        }
+        return new Quad(points);
+    }
+}
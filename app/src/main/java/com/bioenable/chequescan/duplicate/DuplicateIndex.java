@@ -0,0 +1,351 @@
+package com.bioenable.chequescan.duplicate;
+
+import com.bioenable.chequescan.store.LogFiles;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Remembers the {@link PerceptualHash} of every accepted cheque and finds earlier captures of the
+ * same cheque. Cheques are named by a key, the content hash of their image in the ContentStore,
+ * 64 hex digits.
+ * <p>
+ * A key is kept as four longs in one long[] at the offset of its id in the HammingIndex, and an
+ * open addressing table of ids, probed with the first of the four, finds the id of a key. That is
+ * about 40 bytes per cheque and no object per cheque, a map from strings took several hundred.
+ * <p>
+ * The hashes are kept in a {@link HammingIndex}, their {@link PerceptualHash#detail()} hashes in a
+ * long[] by id, and both in an append only log next to it, which is read once when the index is
+ * opened:
+ * <pre>
+ *   F key hash detail   the cheque with this key has these perceptual hashes (16 hex digits each)
+ *   D key               the cheque was deleted
+ * </pre>
+ * The closest hash within the distance is a duplicate when its detail hash is within
+ * {@link PerceptualHash#DETAIL_DISTANCE} as well. Only the closest one is compared, another leaf of
+ * the same chequebook which happens to be closer hides an earlier capture.
+ * A line which was cut off by a crash is cut off the file on open, so that the next line does not
+ * continue it. When most lines of the log are obsolete it is rewritten on open. All methods are
+ * thread safe.
+ */
+public class DuplicateIndex implements Closeable {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    // a key of 64 hex digits is 256 bits
+    private static final int KEY_DIGITS = 64;
+    private static final int KEY_WORDS = 4;
+    private static final int EMPTY = -1;
+    private static final int DELETED = -2;
+
+    private final File file;
+    private final HammingIndex index = new HammingIndex();
+    private final int maxDistance;
+    // guarded by this
+    // KEY_WORDS longs per id of the index, also for removed ids
+    private long[] keys = new long[KEY_WORDS * 1024];
+    // detail hash of every id of the index
+    private long[] details = new long[1024];
+    // ids by their key, EMPTY or DELETED in the slots without one; the length is a power of two
+    private int[] slots = emptySlots(2048);
+    // slots which are not EMPTY
+    private int usedSlots;
+    private int size;
+    // the key being looked up
+    private final long[] lookup = new long[KEY_WORDS];
+    private Writer log;
+
+    /**
+     * Opens the index with {@link PerceptualHash#DUPLICATE_DISTANCE}.
+     *
+     * @param file the log, created if needed
+     * @throws IOException if the log cannot be read or opened for writing
+     */
+    public DuplicateIndex(File file) throws IOException {
+        this(file, PerceptualHash.DUPLICATE_DISTANCE);
+    }
+
+    /**
+     * @param file        the log, created if needed
+     * @param maxDistance largest number of differing bits of two hashes of the same cheque, at most
+     *                    {@link HammingIndex#MAX_DISTANCE}
+     * @throws IOException if the log cannot be read or opened for writing
+     */
+    public DuplicateIndex(File file, int maxDistance) throws IOException {
+        if (maxDistance < 0 || maxDistance > HammingIndex.MAX_DISTANCE) {
+            throw new IllegalArgumentException("Distance has to be between 0 and " + HammingIndex.MAX_DISTANCE);
+        }
+        this.file = file;
+        this.maxDistance = maxDistance;
+        int lines = read();
+        if (lines > 2 * size + 64) {
+            rewrite();
+        }
+        log = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), UTF8));
+    }
+
+    /**
+     * @param key    key of the cheque which is checked
+     * @param hash   its perceptual hash
+     * @param detail its detail hash
+     * @return key of the closest earlier cheque with hashes within the distances, which is key itself
+     * when the same image was added before, or null if the cheque is new
+     * @throws IllegalArgumentException if the key is not 64 hex digits
+     */
+    public synchronized String findDuplicate(String key, long hash, long detail) {
+        if (find(key) >= 0) {
+            return key;
+        }
+        int id = index.nearest(hash, maxDistance);
+        if (id < 0 || PerceptualHash.distance(details[id], detail) > PerceptualHash.DETAIL_DISTANCE) {
+            return null;
+        }
+        return key(id);
+    }
+
+    /**
+     * Remembers a cheque. Adding a key a second time does nothing.
+     *
+     * @param key    key of the cheque
+     * @param hash   its perceptual hash
+     * @param detail its detail hash
+     * @throws IOException              if the log cannot be written
+     * @throws IllegalArgumentException if the key is not 64 hex digits
+     */
+    public synchronized void add(String key, long hash, long detail) throws IOException {
+        if (find(key) >= 0) {
+            return;
+        }
+        append("F " + key + " " + toHex(hash) + " " + toHex(detail));
+        put(hash, detail);
+    }
+
+    /**
+     * Forgets a cheque, for example when its image was deleted from the store.
+     *
+     * @param key key of the cheque
+     * @return whether the cheque was known
+     * @throws IOException              if the log cannot be written
+     * @throws IllegalArgumentException if the key is not 64 hex digits
+     */
+    public synchronized boolean remove(String key) throws IOException {
+        if (find(key) < 0) {
+            return false;
+        }
+        append("D " + key);
+        drop(key);
+        return true;
+    }
+
+    /**
+     * @return number of cheques in the index
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (log != null) {
+            log.close();
+            log = null;
+        }
+    }
+
+    /**
+     * Adds a key which is not in the index. {@link #find(String)} has parsed it into lookup.
+     */
+    private void put(long hash, long detail) {
+        int id = index.add(hash);
+        if (id == details.length) {
+            keys = Arrays.copyOf(keys, keys.length * 2);
+            details = Arrays.copyOf(details, details.length * 2);
+        }
+        System.arraycopy(lookup, 0, keys, KEY_WORDS * id, KEY_WORDS);
+        details[id] = detail;
+        if (4 * (usedSlots + 1) > 3 * slots.length) {
+            // grown when live keys fill half of the table, otherwise it only sheds deleted slots
+            rehash(2 * size + 2 > slots.length / 2 ? slots.length * 2 : slots.length);
+        }
+        int slot = slot(lookup[0]);
+        while (slots[slot] >= 0) {
+            slot = (slot + 1) & (slots.length - 1);
+        }
+        if (slots[slot] == EMPTY) {
+            usedSlots++;
+        }
+        slots[slot] = id;
+        size++;
+    }
+
+    /**
+     * Removes a key which is in the index.
+     */
+    private void drop(String key) {
+        int slot = findSlot(key);
+        index.remove(slots[slot]);
+        slots[slot] = DELETED;
+        size--;
+    }
+
+    /**
+     * @return id of the key or -1
+     */
+    private int find(String key) {
+        int slot = findSlot(key);
+        return slot < 0 ? -1 : slots[slot];
+    }
+
+    /**
+     * Parses the key into lookup and probes for it.
+     *
+     * @return slot of the key or -1
+     */
+    private int findSlot(String key) {
+        if (key.length() != KEY_DIGITS) {
+            throw new IllegalArgumentException("Not a key: " + key);
+        }
+        for (int word = 0; word < KEY_WORDS; word++) {
+            long value = 0;
+            for (int i = 16 * word; i < 16 * word + 16; i++) {
+                int digit = Character.digit(key.charAt(i), 16);
+                if (digit < 0) {
+                    throw new IllegalArgumentException("Not a key: " + key);
+                }
+                value = value << 4 | digit;
+            }
+            lookup[word] = value;
+        }
+        int mask = slots.length - 1;
+        for (int slot = slot(lookup[0]); slots[slot] != EMPTY; slot = (slot + 1) & mask) {
+            int id = slots[slot];
+            if (id >= 0 && keys[KEY_WORDS * id] == lookup[0] && keys[KEY_WORDS * id + 1] == lookup[1]
+                    && keys[KEY_WORDS * id + 2] == lookup[2] && keys[KEY_WORDS * id + 3] == lookup[3]) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private int slot(long word) {
+        // the key is a cryptographic hash, any of its bits are as good as any other
+        return (int) (word ^ word >>> 32) & (slots.length - 1);
+    }
+
+    private void rehash(int length) {
+        int[] old = slots;
+        slots = emptySlots(length);
+        usedSlots = 0;
+        for (int id : old) {
+            if (id >= 0) {
+                int slot = slot(keys[KEY_WORDS * id]);
+                while (slots[slot] != EMPTY) {
+                    slot = (slot + 1) & (length - 1);
+                }
+                slots[slot] = id;
+                usedSlots++;
+            }
+        }
+    }
+
+    private static int[] emptySlots(int length) {
+        int[] slots = new int[length];
+        Arrays.fill(slots, EMPTY);
+        return slots;
+    }
+
+    /**
+     * @return the key of an id as 64 hex digits
+     */
+    private String key(int id) {
+        StringBuilder key = new StringBuilder(KEY_DIGITS);
+        for (int word = 0; word < KEY_WORDS; word++) {
+            key.append(toHex(keys[KEY_WORDS * id + word]));
+        }
+        return key.toString();
+    }
+
+    private void append(String line) throws IOException {
+        if (log == null) {
+            throw new IOException("Index is closed");
+        }
+        log.write(line);
+        log.write('\n');
+        log.flush();
+    }
+
+    private static long parseHex(String hex) {
+        // parsed as two halves, parseLong does not take 64 bit hex
+        return Long.parseLong(hex.substring(0, 8), 16) << 32 | Long.parseLong(hex.substring(8), 16);
+    }
+
+    private static String toHex(long hash) {
+        String hex = Long.toHexString(hash);
+        return "0000000000000000".substring(hex.length()) + hex;
+    }
+
+    /**
+     * @return number of lines in the log
+     */
+    private int read() throws IOException {
+        if (!file.exists()) {
+            return 0;
+        }
+        LogFiles.dropTornTail(file);
+        int lines = 0;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines++;
+                String[] fields = line.split(" ");
+                try {
+                    if (fields[0].equals("F") && fields.length == 4 && fields[2].length() == 16
+                            && fields[3].length() == 16 && find(fields[1]) < 0) {
+                        put(parseHex(fields[2]), parseHex(fields[3]));
+                    } else if (fields[0].equals("D") && fields.length == 2 && find(fields[1]) >= 0) {
+                        drop(fields[1]);
+                    }
+                } catch (RuntimeException e) {
+                    // a line which was only partly written, skip it
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return lines;
+    }
+
+    private void rewrite() throws IOException {
+        File rewritten = new File(file.getPath() + ".new");
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(rewritten), UTF8));
+        try {
+            // in the order they were added
+            int[] ids = new int[size];
+            int live = 0;
+            for (int id : slots) {
+                if (id >= 0) {
+                    ids[live++] = id;
+                }
+            }
+            Arrays.sort(ids);
+            for (int id : ids) {
+                writer.write("F " + key(id) + " " + toHex(index.get(id)) + " " + toHex(details[id]) + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+        if (!rewritten.renameTo(file)) {
+            throw new IOException("Could not replace " + file);
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package com.bioenable.chequescan.duplicate;
+
+/**
+ * The two {@link PerceptualHash} hashes of one cheque, as they are looked up in the
+ * {@link DuplicateIndex}.
+ */
+public final class Fingerprint {
+
+    private final long hash;
+    private final long detail;
+
+    /**
+     * @param hash   perceptual hash of the cheque
+     * @param detail its detail hash
+     */
+    public Fingerprint(long hash, long detail) {
+        this.hash = hash;
+        this.detail = detail;
+    }
+
+    /**
+     * @return perceptual hash of the cheque
+     */
+    public long getHash() {
+        return hash;
+    }
+
+    /**
+     * @return detail hash of the cheque
+     */
+    public long getDetail() {
+        return detail;
+    }
+}
@@ -0,0 +1,173 @@
+package com.bioenable.chequescan.duplicate;
+
+/**
+ * In memory index of 64 bit hashes which finds the nearest stored hash within a small Hamming
+ * distance without comparing against all of them (multi-index hashing).
+ * <p>
+ * A hash is cut into four 16 bit blocks and every block is a key into its own table. When two hashes
+ * differ in at most d bits, one of their blocks differs in at most d / 4 bits (pigeonhole). A query
+ * therefore only compares the hashes in the buckets of its own blocks, plus the buckets one bit away
+ * when d is 4 or more, 4 or 68 buckets in all. With uniformly spread hashes a bucket holds n / 65536
+ * of them, about 15 for a million, so a query compares about a thousand hashes instead of a million.
+ * <p>
+ * Hashes live in a long[] and the buckets are int[] arrays of ids, no objects are allocated per
+ * hash. A million hashes take about 30 MB. All methods are thread safe.
+ */
+public class HammingIndex {
+
+    /**
+     * Largest distance a query can ask for, larger ones would need buckets two bits away
+     */
+    public static final int MAX_DISTANCE = 7;
+
+    private static final int BLOCKS = 4;
+    private static final int BLOCK_BITS = 16;
+    private static final int BUCKETS = 1 << BLOCK_BITS;
+    private static final int INITIAL_BUCKET_SIZE = 4;
+
+    // guarded by this
+    private final int[][] buckets = new int[BLOCKS * BUCKETS][];
+    private final int[] bucketSizes = new int[BLOCKS * BUCKETS];
+    private long[] hashes;
+    private boolean[] removed;
+    private int ids;
+    private int size;
+
+    public HammingIndex() {
+        this(1024);
+    }
+
+    /**
+     * @param capacity number of hashes room is made for up front
+     */
+    public HammingIndex(int capacity) {
+        hashes = new long[Math.max(16, capacity)];
+        removed = new boolean[hashes.length];
+    }
+
+    /**
+     * @param hash the hash to add
+     * @return id of the hash, ids are given out in order from 0
+     */
+    public synchronized int add(long hash) {
+        if (ids == hashes.length) {
+            long[] grownHashes = new long[hashes.length * 2];
+            System.arraycopy(hashes, 0, grownHashes, 0, ids);
+            hashes = grownHashes;
+            boolean[] grownRemoved = new boolean[grownHashes.length];
+            System.arraycopy(removed, 0, grownRemoved, 0, ids);
+            removed = grownRemoved;
+        }
+        int id = ids++;
+        hashes[id] = hash;
+        for (int block = 0; block < BLOCKS; block++) {
+            int bucket = bucket(block, key(hash, block));
+            int[] entries = buckets[bucket];
+            int count = bucketSizes[bucket];
+            if (entries == null) {
+                entries = buckets[bucket] = new int[INITIAL_BUCKET_SIZE];
+            } else if (count == entries.length) {
+                int[] grown = new int[count * 2];
+                System.arraycopy(entries, 0, grown, 0, count);
+                entries = buckets[bucket] = grown;
+            }
+            entries[count] = id;
+            bucketSizes[bucket] = count + 1;
+        }
+        size++;
+        return id;
+    }
+
+    /**
+     * @param id id returned by {@link #add(long)}
+     * @return whether the hash was in the index
+     */
+    public synchronized boolean remove(int id) {
+        if (id < 0 || id >= ids || removed[id]) {
+            return false;
+        }
+        long hash = hashes[id];
+        for (int block = 0; block < BLOCKS; block++) {
+            int bucket = bucket(block, key(hash, block));
+            int[] entries = buckets[bucket];
+            int count = bucketSizes[bucket];
+            for (int i = 0; i < count; i++) {
+                if (entries[i] == id) {
+                    entries[i] = entries[count - 1];
+                    bucketSizes[bucket] = count - 1;
+                    break;
+                }
+            }
+        }
+        removed[id] = true;
+        size--;
+        return true;
+    }
+
+    /**
+     * @param id id returned by {@link #add(long)}
+     * @return the hash with that id
+     */
+    public synchronized long get(int id) {
+        if (id < 0 || id >= ids) {
+            throw new IndexOutOfBoundsException("No hash with id " + id);
+        }
+        return hashes[id];
+    }
+
+    /**
+     * @return number of hashes in the index
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @param hash        the hash to look for
+     * @param maxDistance largest number of differing bits, at most {@link #MAX_DISTANCE}
+     * @return id of the stored hash closest to hash, the oldest of equally close ones, or -1 if none
+     * is within maxDistance
+     */
+    public synchronized int nearest(long hash, int maxDistance) {
+        if (maxDistance < 0 || maxDistance > MAX_DISTANCE) {
+            throw new IllegalArgumentException("Distance has to be between 0 and " + MAX_DISTANCE);
+        }
+        // best id in the low half, its distance in the high half
+        long best = ((long) (maxDistance + 1) << 32) | 0xFFFFFFFFL;
+        boolean flips = maxDistance >= BLOCKS;
+        for (int block = 0; block < BLOCKS; block++) {
+            int key = key(hash, block);
+            best = scan(bucket(block, key), hash, best);
+            if (flips) {
+                for (int bit = 0; bit < BLOCK_BITS; bit++) {
+                    best = scan(bucket(block, key ^ (1 << bit)), hash, best);
+                }
+            }
+        }
+        return (int) (best >>> 32) > maxDistance ? -1 : (int) best;
+    }
+
+    /**
+     * Compares hash with the hashes in one bucket. An id can be seen in several buckets, comparing
+     * it again is cheaper than remembering it.
+     */
+    private long scan(int bucket, long hash, long best) {
+        int[] entries = buckets[bucket];
+        for (int i = 0, count = bucketSizes[bucket]; i < count; i++) {
+            int id = entries[i];
+            long candidate = ((long) Long.bitCount(hashes[id] ^ hash) << 32) | id;
+            if (candidate < best) {
+                best = candidate;
+            }
+        }
+        return best;
+    }
+
+    private static int key(long hash, int block) {
+        return (int) (hash >>> (block * BLOCK_BITS)) & (BUCKETS - 1);
+    }
+
+    private static int bucket(int block, int key) {
+        return block * BUCKETS + key;
+    }
+}
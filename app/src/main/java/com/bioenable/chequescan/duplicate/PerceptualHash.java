@@ -0,0 +1,188 @@
+package com.bioenable.chequescan.duplicate;
+
+import com.bioenable.chequescan.geometry.Homography;
+import com.bioenable.chequescan.geometry.Quad;
+
+import java.util.Arrays;
+
+/**
+ * DCT based perceptual hash (pHash) of a cheque image. Two captures of the same cheque get hashes
+ * which differ in a few bits, even when they were taken at a different size, exposure or JPEG
+ * quality, so they are found where a hash of the file bytes differs completely.
+ * <p>
+ * The image is reduced to 32 x 32 mean values, which keeps only the coarse layout. The 8 x 8 lowest
+ * frequencies of its DCT, without the constant row and column, are compared with their median: each
+ * frequency above it sets one of the 64 bits. Leaving out the constant terms and comparing with the
+ * median makes the hash independent of brightness and contrast.
+ * <p>
+ * The low frequencies are the printed layout, which the leaves of one chequebook share; the writing
+ * on them barely moves those bits. Each image therefore also gets a {@link #detail()} hash of the
+ * 8 x 8 frequencies from 5 to 12, made the same way, which the writing does change. A capture is a
+ * duplicate only when both hashes are close.
+ * <p>
+ * Photos are hashed inside the corners found by the PerspectiveCorrector, so the straightened cheque
+ * is hashed and not the table it lies on. The hash keeps its buffers and must only be used from one
+ * thread.
+ */
+public class PerceptualHash {
+
+    /**
+     * Largest number of differing bits of two hashes of the same cheque. Hashes of different images
+     * differ in about 32 bits.
+     */
+    public static final int DUPLICATE_DISTANCE = 6;
+
+    /**
+     * Largest number of differing bits of two detail hashes of the same cheque
+     */
+    public static final int DETAIL_DISTANCE = 8;
+
+    private static final int SIZE = 32;
+    private static final int FREQUENCIES = 8;
+    // first frequency of the detail hash
+    private static final int DETAIL_FIRST = 5;
+    private static final int LAST = DETAIL_FIRST + FREQUENCIES - 1;
+    // samples per mean value along each axis when sampling through a homography
+    private static final int SAMPLES = 4;
+    // COS[k * SIZE + n] = cos((2n + 1) * k * pi / (2 * SIZE)) for k = 0..LAST
+    private static final float[] COS = new float[(LAST + 1) * SIZE];
+
+    static {
+        for (int k = 0; k <= LAST; k++) {
+            for (int n = 0; n < SIZE; n++) {
+                COS[k * SIZE + n] = (float) Math.cos((2 * n + 1) * k * Math.PI / (2 * SIZE));
+            }
+        }
+    }
+
+    private final float[] means = new float[SIZE * SIZE];
+    private final float[] rows = new float[SIZE * FREQUENCIES];
+    private final float[] coefficients = new float[FREQUENCIES * FREQUENCIES];
+    private final float[] sorted = new float[FREQUENCIES * FREQUENCIES];
+    private final float[] point = new float[2];
+    private long detail;
+
+    /**
+     * @param a a hash
+     * @param b another hash
+     * @return number of bits in which they differ
+     */
+    public static int distance(long a, long b) {
+        return Long.bitCount(a ^ b);
+    }
+
+    /**
+     * @return the detail hash of the image hashed last, compare with {@link #DETAIL_DISTANCE}
+     */
+    public long detail() {
+        return detail;
+    }
+
+    /**
+     * Hashes a whole image, for example a cheque which was straightened already.
+     *
+     * @param gray   8 bit gray pixels
+     * @param width  width of the image, at least 32
+     * @param height height of the image, at least 32
+     * @return the hash
+     */
+    public long hash(byte[] gray, int width, int height) {
+        checkSize(gray, width, height);
+        for (int cellY = 0; cellY < SIZE; cellY++) {
+            int top = cellY * height / SIZE;
+            int bottom = (cellY + 1) * height / SIZE;
+            for (int cellX = 0; cellX < SIZE; cellX++) {
+                int left = cellX * width / SIZE;
+                int right = (cellX + 1) * width / SIZE;
+                int sum = 0;
+                for (int y = top; y < bottom; y++) {
+                    for (int i = y * width + left, end = y * width + right; i < end; i++) {
+                        sum += gray[i] & 0xFF;
+                    }
+                }
+                means[cellY * SIZE + cellX] = (float) sum / ((bottom - top) * (right - left));
+            }
+        }
+        return hashMeans();
+    }
+
+    /**
+     * Hashes the cheque inside corners as if it had been straightened first. Each of the 32 x 32
+     * mean values averages 4 x 4 samples taken through the homography.
+     *
+     * @param gray    8 bit gray pixels of the photo
+     * @param width   width of the photo
+     * @param height  height of the photo
+     * @param corners corners of the cheque in the photo
+     * @return the hash
+     */
+    public long hash(byte[] gray, int width, int height, Quad corners) {
+        checkSize(gray, width, height);
+        int side = SIZE * SAMPLES;
+        Homography homography = Homography.between(new Quad(0, 0, side, 0, side, side, 0, side), corners);
+        Arrays.fill(means, 0);
+        for (int j = 0; j < side; j++) {
+            int row = j / SAMPLES * SIZE;
+            for (int i = 0; i < side; i++) {
+                homography.map(i + 0.5, j + 0.5, point);
+                int x = Math.min(width - 1, Math.max(0, Math.round(point[0])));
+                int y = Math.min(height - 1, Math.max(0, Math.round(point[1])));
+                means[row + i / SAMPLES] += gray[y * width + x] & 0xFF;
+            }
+        }
+        return hashMeans();
+    }
+
+    /**
+     * Keeps the detail hash of the means and returns the hash of their low frequencies.
+     */
+    private long hashMeans() {
+        detail = hashBand(DETAIL_FIRST);
+        return hashBand(1);
+    }
+
+    /**
+     * Takes 8 x 8 frequencies of the 32 x 32 means, starting at first, row transforms first, and
+     * sets the bits of the ones above the median. Scaling of the means does not change the result.
+     */
+    private long hashBand(int first) {
+        int last = first + FREQUENCIES - 1;
+        for (int y = 0; y < SIZE; y++) {
+            for (int k = first; k <= last; k++) {
+                float sum = 0;
+                for (int x = 0, c = k * SIZE; x < SIZE; x++, c++) {
+                    sum += means[y * SIZE + x] * COS[c];
+                }
+                rows[y * FREQUENCIES + k - first] = sum;
+            }
+        }
+        for (int k = first; k <= last; k++) {
+            for (int column = 0; column < FREQUENCIES; column++) {
+                float sum = 0;
+                for (int y = 0, c = k * SIZE; y < SIZE; y++, c++) {
+                    sum += rows[y * FREQUENCIES + column] * COS[c];
+                }
+                coefficients[(k - first) * FREQUENCIES + column] = sum;
+            }
+        }
+        System.arraycopy(coefficients, 0, sorted, 0, sorted.length);
+        Arrays.sort(sorted);
+        float median = (sorted[sorted.length / 2 - 1] + sorted[sorted.length / 2]) / 2;
+        long hash = 0;
+        for (int i = 0; i < coefficients.length; i++) {
+            if (coefficients[i] > median) {
+                hash |= 1L << i;
+            }
+        }
+        return hash;
+    }
+
+    private static void checkSize(byte[] gray, int width, int height) {
+        if (width < SIZE || height < SIZE) {
+            throw new IllegalArgumentException("Image has to be at least " + SIZE + "x" + SIZE);
+        }
+        if (gray.length < width * height) {
+            throw new IllegalArgumentException("Buffer does not hold a " + width + "x" + height + " image");
+        }
+    }
+}
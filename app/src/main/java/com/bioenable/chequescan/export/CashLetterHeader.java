@@ -0,0 +1,85 @@
+package com.bioenable.chequescan.export;
+
+/**
+ * Who sends a cash letter to whom, and when. The sender is the bank of first deposit, which
+ * captured the images (the electronic cheque exchange institution in X9 terms).
+ */
+public final class CashLetterHeader {
+
+    private static final int NAME_LENGTH = 18;
+
+    private final String destinationRouting;
+    private final String destinationName;
+    private final String originRouting;
+    private final String originName;
+    private final long created;
+    private final boolean test;
+
+    /**
+     * @param destinationRouting nine digit routing number of the receiving bank or clearing house
+     * @param destinationName    its name, cut to 18 characters
+     * @param originRouting      nine digit routing number of the sending bank
+     * @param originName         its name, cut to 18 characters
+     * @param created            creation and business date of the file in milliseconds since the epoch
+     * @param test               whether the file is a test file which must not be cleared
+     */
+    public CashLetterHeader(String destinationRouting, String destinationName, String originRouting,
+                            String originName, long created, boolean test) {
+        if (!isRoutingNumber(destinationRouting) || !isRoutingNumber(originRouting)) {
+            throw new IllegalArgumentException("Routing numbers have to have 9 digits");
+        }
+        this.destinationRouting = destinationRouting;
+        this.destinationName = cut(destinationName);
+        this.originRouting = originRouting;
+        this.originName = cut(originName);
+        this.created = created;
+        this.test = test;
+    }
+
+    /**
+     * @param value a string or null
+     * @return whether value consists of exactly nine digits
+     */
+    public static boolean isRoutingNumber(String value) {
+        if (value == null || value.length() != 9) {
+            return false;
+        }
+        for (int i = 0; i < 9; i++) {
+            if (value.charAt(i) < '0' || value.charAt(i) > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String cut(String name) {
+        return name != null && name.length() > NAME_LENGTH ? name.substring(0, NAME_LENGTH) : name;
+    }
+
+    public String getDestinationRouting() {
+        return destinationRouting;
+    }
+
+    public String getDestinationName() {
+        return destinationName;
+    }
+
+    public String getOriginRouting() {
+        return originRouting;
+    }
+
+    public String getOriginName() {
+        return originName;
+    }
+
+    /**
+     * @return creation time in milliseconds since the epoch
+     */
+    public long getCreated() {
+        return created;
+    }
+
+    public boolean isTest() {
+        return test;
+    }
+}
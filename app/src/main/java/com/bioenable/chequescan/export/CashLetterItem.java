@@ -0,0 +1,80 @@
+package com.bioenable.chequescan.export;
+
+import java.io.File;
+
+/**
+ * One cheque of a cash letter: the fields of its code line and the file its front image is read
+ * from. The image is only opened while the item is written.
+ */
+public final class CashLetterItem {
+
+    private final String routingNumber;
+    private final String accountNumber;
+    private final String chequeNumber;
+    private final long amount;
+    private final boolean micrValid;
+    private final File image;
+    private final ImageFormat format;
+
+    /**
+     * @param routingNumber nine digit routing number of the paying bank
+     * @param accountNumber account number, null if it was not read
+     * @param chequeNumber  cheque serial number, null if it was not read
+     * @param amount        amount in cents, 0 when it is not encoded on the cheque yet
+     * @param micrValid     whether every character of the code line was read
+     * @param image         file of the front image
+     * @param format        encoding of the image file
+     */
+    public CashLetterItem(String routingNumber, String accountNumber, String chequeNumber, long amount,
+                          boolean micrValid, File image, ImageFormat format) {
+        if (!CashLetterHeader.isRoutingNumber(routingNumber)) {
+            throw new IllegalArgumentException("Routing number has to have 9 digits: " + routingNumber);
+        }
+        if (amount < 0) {
+            throw new IllegalArgumentException("Negative amount " + amount);
+        }
+        this.routingNumber = routingNumber;
+        this.accountNumber = accountNumber;
+        this.chequeNumber = chequeNumber;
+        this.amount = amount;
+        this.micrValid = micrValid;
+        this.image = image;
+        this.format = format;
+    }
+
+    public String getRoutingNumber() {
+        return routingNumber;
+    }
+
+    public String getAccountNumber() {
+        return accountNumber;
+    }
+
+    public String getChequeNumber() {
+        return chequeNumber;
+    }
+
+    /**
+     * @return amount in cents
+     */
+    public long getAmount() {
+        return amount;
+    }
+
+    public boolean isMicrValid() {
+        return micrValid;
+    }
+
+    public File getImage() {
+        return image;
+    }
+
+    public ImageFormat getFormat() {
+        return format;
+    }
+
+    @Override
+    public String toString() {
+        return "CashLetterItem{" + routingNumber + " " + accountNumber + "/" + chequeNumber + ", " + image.getName() + "}";
+    }
+}
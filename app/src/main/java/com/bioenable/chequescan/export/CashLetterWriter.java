@@ -0,0 +1,302 @@
+package com.bioenable.chequescan.export;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Writes an X9.37 image cash letter: one file with one cash letter, its cheques in bundles, every
+ * cheque as a Check Detail record followed by the Image View Detail and Image View Data records of
+ * its front image.
+ * <pre>
+ *   01 File Header
+ *     10 Cash Letter Header
+ *       20 Bundle Header
+ *         25 Check Detail, 50 Image View Detail, 52 Image View Data   (per cheque)
+ *       70 Bundle Control
+ *     90 Cash Letter Control
+ *   99 File Control
+ * </pre>
+ * Records are EBCDIC with a 4 byte length in front. The totals of the control records are counted
+ * while the items go by, so an item is written completely when {@link #add(CashLetterItem)}
+ * returns: its image is copied from its file through one fixed buffer and nothing of it is kept. A
+ * file of any number of cheques is written in the same memory, at the speed of the disk.
+ * <p>
+ * Only the front image is written. Not thread safe.
+ */
+public class CashLetterWriter implements Closeable {
+
+    /**
+     * Default number of cheques in a bundle
+     */
+    public static final int DEFAULT_BUNDLE_SIZE = 300;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long MAX_IMAGE_LENGTH = 9999999L;
+
+    private final OutputStream out;
+    private final CashLetterHeader header;
+    private final int bundleSize;
+    private final String date;
+    private final X9Record record = new X9Record();
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+
+    private int bundles;
+    private int bundleItems;
+    private long bundleAmount;
+    private long bundleValidAmount;
+    private long items;
+    private long amount;
+    private long records;
+    private boolean closed;
+
+    /**
+     * Writes the file and cash letter headers with {@link #DEFAULT_BUNDLE_SIZE}.
+     *
+     * @param out    the file, closed with the writer
+     * @param header sender, receiver and date of the file
+     * @throws IOException if writing fails
+     */
+    public CashLetterWriter(OutputStream out, CashLetterHeader header) throws IOException {
+        this(out, header, DEFAULT_BUNDLE_SIZE);
+    }
+
+    /**
+     * Writes the file and cash letter headers.
+     *
+     * @param out        the file, closed with the writer
+     * @param header     sender, receiver and date of the file
+     * @param bundleSize largest number of cheques in a bundle, at most 9999
+     * @throws IOException if writing fails
+     */
+    public CashLetterWriter(OutputStream out, CashLetterHeader header, int bundleSize) throws IOException {
+        if (bundleSize < 1 || bundleSize > 9999) {
+            throw new IllegalArgumentException("Bundle size has to be between 1 and 9999");
+        }
+        this.out = new BufferedOutputStream(out, BUFFER_SIZE);
+        this.header = header;
+        this.bundleSize = bundleSize;
+        Date created = new Date(header.getCreated());
+        date = new SimpleDateFormat("yyyyMMdd", Locale.US).format(created);
+        String time = new SimpleDateFormat("HHmm", Locale.US).format(created);
+
+        write(record.start(1)
+                .numeric(3, 2)                              // standard level DSTU X9.37
+                .alpha(header.isTest() ? "T" : "P", 1)
+                .numeric(header.getDestinationRouting(), 9)
+                .numeric(header.getOriginRouting(), 9)
+                .numeric(date, 8)
+                .numeric(time, 4)
+                .alpha("N", 1)                              // not a resend
+                .alpha(header.getDestinationName(), 18)
+                .alpha(header.getOriginName(), 18)
+                .alpha("A", 1)                              // file id modifier
+                .alpha("US", 2)
+                .blank(4)                                   // user field
+                .blank(1));
+        write(record.start(10)
+                .numeric(1, 2)                              // forward presentment
+                .numeric(header.getDestinationRouting(), 9)
+                .numeric(header.getOriginRouting(), 9)
+                .numeric(date, 8)                           // business date
+                .numeric(date, 8)                           // creation date
+                .numeric(time, 4)
+                .alpha("I", 1)                              // items with images
+                .alpha("G", 1)                              // images only, no paper
+                .alpha(time + "0001", 8)                    // cash letter id
+                .blank(14)                                  // contact name
+                .blank(10)                                  // contact phone
+                .blank(1)                                   // fed work type
+                .blank(2)                                   // user field
+                .blank(1));
+    }
+
+    /**
+     * Writes a cheque with its image, opening a new bundle when needed.
+     *
+     * @param item the cheque
+     * @throws IOException if writing fails or the image cannot be read
+     */
+    public void add(CashLetterItem item) throws IOException {
+        if (closed) {
+            throw new IOException("Writer is closed");
+        }
+        // opened first, a missing image must not leave half an item in the file
+        InputStream image = new FileInputStream(item.getImage());
+        try {
+            write(item, image);
+        } finally {
+            image.close();
+        }
+        items++;
+        amount += item.getAmount();
+        bundleItems++;
+        bundleAmount += item.getAmount();
+        if (item.isMicrValid()) {
+            bundleValidAmount += item.getAmount();
+        }
+        if (bundleItems == bundleSize) {
+            endBundle();
+        }
+    }
+
+    /**
+     * @return number of cheques written so far
+     */
+    public long getItemCount() {
+        return items;
+    }
+
+    /**
+     * Ends the open bundle, writes the control records and closes the file.
+     *
+     * @throws IOException if writing fails
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (bundleItems > 0) {
+                endBundle();
+            }
+            write(record.start(90)
+                    .numeric(bundles, 6)
+                    .numeric(items, 8)
+                    .numeric(amount, 14)
+                    .numeric(items, 9)                      // one image per cheque
+                    .alpha(header.getOriginName(), 18)
+                    .blank(8)                               // settlement date
+                    .blank(15));
+            write(record.start(99)
+                    .numeric(1, 6)                          // cash letters
+                    .numeric(records + 1, 8)                // including this one
+                    .numeric(items, 8)
+                    .numeric(amount, 16)
+                    .blank(14)                              // contact name
+                    .blank(10)                              // contact phone
+                    .blank(16));
+        } finally {
+            out.close();
+        }
+    }
+
+    private void write(CashLetterItem item, InputStream image) throws IOException {
+        long imageLength = item.getImage().length();
+        if (imageLength == 0 || imageLength > MAX_IMAGE_LENGTH) {
+            throw new IOException("Image of " + item + " has " + imageLength + " bytes");
+        }
+        if (bundleItems == 0) {
+            startBundle();
+        }
+        long sequence = items + 1;
+        String onUs = (item.getAccountNumber() != null ? item.getAccountNumber() : "") + "/"
+                + (item.getChequeNumber() != null ? item.getChequeNumber() : "");
+        write(record.start(25)
+                .blank(15)                                  // auxiliary on-us
+                .blank(1)                                   // external processing code
+                .numeric(item.getRoutingNumber().substring(0, 8), 8)
+                .numeric(item.getRoutingNumber().substring(8), 1)
+                .alphaRight(onUs, 20)
+                .numeric(item.getAmount(), 10)
+                .numeric(sequence, 15)
+                .alpha("G", 1)                              // image included, no paper
+                .blank(1)                                   // return acceptance
+                .numeric(item.isMicrValid() ? 1 : 2, 1)
+                .alpha("Y", 1)                              // we are the bank of first deposit
+                .numeric(0, 2)                              // no addenda
+                .numeric(0, 1)                              // not corrected
+                .blank(1));
+        write(record.start(50)
+                .numeric(1, 1)                              // image present
+                .numeric(header.getOriginRouting(), 9)
+                .numeric(date, 8)
+                .alpha(item.getFormat().getFormatCode(), 2)
+                .alpha(item.getFormat().getCompressionCode(), 2)
+                .numeric(imageLength, 7)
+                .numeric(0, 1)                              // front
+                .numeric(0, 2)                              // full view
+                .numeric(0, 1)                              // not signed
+                .blank(2)
+                .blank(5)
+                .blank(7)
+                .blank(7)
+                .numeric(0, 1)                              // can be recreated from the data
+                .blank(8)                                   // user field
+                .blank(15));
+        record.start(52)
+                .numeric(header.getOriginRouting(), 9)
+                .numeric(date, 8)
+                .blank(2)                                   // cycle number
+                .numeric(sequence, 15)
+                .blank(16)                                  // security originator
+                .blank(16)                                  // security authenticator
+                .blank(16)                                  // security key
+                .numeric(0, 1)                              // not clipped
+                .numeric(0, 4)
+                .numeric(0, 4)
+                .numeric(0, 4)
+                .numeric(0, 4)
+                .numeric(0, 4)                              // no image reference key
+                .numeric(0, 5)                              // no digital signature
+                .numeric(imageLength, 7);
+        record.writeTo(out, imageLength);
+        records++;
+        // exactly the length written in front of the data
+        long left = imageLength;
+        while (left > 0) {
+            int read = image.read(buffer, 0, (int) Math.min(buffer.length, left));
+            if (read < 0) {
+                throw new EOFException("Image of " + item + " got shorter while it was written");
+            }
+            out.write(buffer, 0, read);
+            left -= read;
+        }
+    }
+
+    private void startBundle() throws IOException {
+        bundles++;
+        write(record.start(20)
+                .numeric(1, 2)                              // forward presentment
+                .numeric(header.getDestinationRouting(), 9)
+                .numeric(header.getOriginRouting(), 9)
+                .numeric(date, 8)                           // business date
+                .numeric(date, 8)                           // creation date
+                .alpha(Integer.toString(bundles), 10)       // bundle id
+                .numeric(bundles, 4)
+                .blank(2)                                   // cycle number
+                .blank(9)                                   // return location
+                .blank(5)                                   // user field
+                .blank(12));
+    }
+
+    private void endBundle() throws IOException {
+        write(record.start(70)
+                .numeric(bundleItems, 4)
+                .numeric(bundleAmount, 12)
+                .numeric(bundleValidAmount, 12)
+                .numeric(bundleItems, 5)                    // one image per cheque
+                .blank(20)                                  // user field
+                .blank(25));
+        bundleItems = 0;
+        bundleAmount = 0;
+        bundleValidAmount = 0;
+    }
+
+    private void write(X9Record fixed) throws IOException {
+        if (fixed.length() != X9Record.FIXED_LENGTH) {
+            throw new IllegalStateException("Record has " + fixed.length() + " characters");
+        }
+        fixed.writeTo(out, 0);
+        records++;
+    }
+}
@@ -0,0 +1,37 @@
+package com.bioenable.chequescan.export;
+
+/**
+ * Encodings of a cheque image in a cash letter, with their X9 format and compression codes.
+ */
+public enum ImageFormat {
+    /**
+     * The JPEG photo as it was captured
+     */
+    JPEG("21", "01"),
+    /**
+     * A bitonal TIFF with CCITT Group 4 compression, the format most banks ask for
+     */
+    TIFF_G4("00", "00");
+
+    private final String formatCode;
+    private final String compressionCode;
+
+    ImageFormat(String formatCode, String compressionCode) {
+        this.formatCode = formatCode;
+        this.compressionCode = compressionCode;
+    }
+
+    /**
+     * @return Image View Format Indicator of the Image View Detail record
+     */
+    public String getFormatCode() {
+        return formatCode;
+    }
+
+    /**
+     * @return Image View Compression Algorithm Identifier of the Image View Detail record
+     */
+    public String getCompressionCode() {
+        return compressionCode;
+    }
+}
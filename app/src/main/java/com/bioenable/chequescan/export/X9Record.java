@@ -0,0 +1,151 @@
+package com.bioenable.chequescan.export;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Builds one record of an X9 file in EBCDIC. Fields are appended in order: numeric fields are right
+ * justified and filled with zeros, alphanumeric ones left justified and filled with blanks. Too long
+ * values are an error rather than being cut, a cut routing number or amount would be wrong money.
+ * <p>
+ * The record is written with its 4 byte big endian length in front. The builder is reused for every
+ * record of a file.
+ */
+final class X9Record {
+
+    static final int FIXED_LENGTH = 80;
+
+    private static final byte EBCDIC_BLANK = 0x40;
+    private static final byte EBCDIC_ZERO = (byte) 0xF0;
+    // code page 037 for the printable ASCII characters from 0x20 to 0x7E
+    private static final byte[] EBCDIC = {
+            0x40, 0x5A, 0x7F, 0x7B, 0x5B, 0x6C, 0x50, 0x7D, 0x4D, 0x5D, 0x5C, 0x4E, 0x6B, 0x60, 0x4B, 0x61,
+            (byte) 0xF0, (byte) 0xF1, (byte) 0xF2, (byte) 0xF3, (byte) 0xF4, (byte) 0xF5, (byte) 0xF6,
+            (byte) 0xF7, (byte) 0xF8, (byte) 0xF9, 0x7A, 0x5E, 0x4C, 0x7E, 0x6E, 0x6F,
+            0x7C, (byte) 0xC1, (byte) 0xC2, (byte) 0xC3, (byte) 0xC4, (byte) 0xC5, (byte) 0xC6, (byte) 0xC7,
+            (byte) 0xC8, (byte) 0xC9, (byte) 0xD1, (byte) 0xD2, (byte) 0xD3, (byte) 0xD4, (byte) 0xD5,
+            (byte) 0xD6, (byte) 0xD7, (byte) 0xD8, (byte) 0xD9, (byte) 0xE2, (byte) 0xE3, (byte) 0xE4,
+            (byte) 0xE5, (byte) 0xE6, (byte) 0xE7, (byte) 0xE8, (byte) 0xE9, (byte) 0xBA, (byte) 0xE0,
+            (byte) 0xBB, (byte) 0xB0, 0x6D,
+            0x79, (byte) 0x81, (byte) 0x82, (byte) 0x83, (byte) 0x84, (byte) 0x85, (byte) 0x86, (byte) 0x87,
+            (byte) 0x88, (byte) 0x89, (byte) 0x91, (byte) 0x92, (byte) 0x93, (byte) 0x94, (byte) 0x95,
+            (byte) 0x96, (byte) 0x97, (byte) 0x98, (byte) 0x99, (byte) 0xA2, (byte) 0xA3, (byte) 0xA4,
+            (byte) 0xA5, (byte) 0xA6, (byte) 0xA7, (byte) 0xA8, (byte) 0xA9, (byte) 0xC0, 0x4F,
+            (byte) 0xD0, (byte) 0xA1
+    };
+
+    private final byte[] bytes = new byte[4 + 128];
+    private int length;
+
+    /**
+     * Starts a new record.
+     *
+     * @param type the two digit record type
+     * @return this
+     */
+    X9Record start(int type) {
+        length = 0;
+        return numeric(type, 2);
+    }
+
+    /**
+     * @param value a value which is not negative
+     * @param width width of the field
+     * @return this
+     */
+    X9Record numeric(long value, int width) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Negative value " + value);
+        }
+        int end = length + width;
+        for (int i = end - 1; i >= length; i--) {
+            bytes[4 + i] = (byte) (EBCDIC_ZERO + value % 10);
+            value /= 10;
+        }
+        if (value != 0) {
+            throw new IllegalArgumentException("Value does not fit into " + width + " digits");
+        }
+        length = end;
+        return this;
+    }
+
+    /**
+     * @param value digits, null for a field of zeros
+     * @param width width of the field
+     * @return this
+     */
+    X9Record numeric(String value, int width) {
+        String digits = value != null ? value : "";
+        for (int i = 0; i < digits.length(); i++) {
+            if (digits.charAt(i) < '0' || digits.charAt(i) > '9') {
+                throw new IllegalArgumentException("Not a number: " + value);
+            }
+        }
+        return text(digits, width, EBCDIC_ZERO, true);
+    }
+
+    /**
+     * @param value text, null for a blank field; characters outside of printable ASCII become blanks
+     * @param width width of the field
+     * @return this
+     */
+    X9Record alpha(String value, int width) {
+        return text(value != null ? value : "", width, EBCDIC_BLANK, false);
+    }
+
+    /**
+     * @param value text which is right justified and filled with blanks, as the MICR fields are
+     * @param width width of the field
+     * @return this
+     */
+    X9Record alphaRight(String value, int width) {
+        return text(value != null ? value : "", width, EBCDIC_BLANK, true);
+    }
+
+    /**
+     * @param width width of the blank field
+     * @return this
+     */
+    X9Record blank(int width) {
+        return text("", width, EBCDIC_BLANK, false);
+    }
+
+    /**
+     * @return length of the record so far
+     */
+    int length() {
+        return length;
+    }
+
+    /**
+     * Writes the length of the record and the record.
+     *
+     * @param out      stream the record is written to
+     * @param trailing number of bytes which follow the record in the same length, such as image data
+     * @throws IOException if writing fails
+     */
+    void writeTo(OutputStream out, long trailing) throws IOException {
+        long total = length + trailing;
+        bytes[0] = (byte) (total >>> 24);
+        bytes[1] = (byte) (total >>> 16);
+        bytes[2] = (byte) (total >>> 8);
+        bytes[3] = (byte) total;
+        out.write(bytes, 0, 4 + length);
+    }
+
+    private X9Record text(String value, int width, byte fill, boolean right) {
+        if (value.length() > width) {
+            throw new IllegalArgumentException("\"" + value + "\" does not fit into " + width + " characters");
+        }
+        int start = 4 + length;
+        Arrays.fill(bytes, start, start + width, fill);
+        int offset = right ? start + width - value.length() : start;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            bytes[offset + i] = c >= 0x20 && c < 0x7F ? EBCDIC[c - 0x20] : EBCDIC_BLANK;
+        }
+        length += width;
+        return this;
+    }
+}
@@ -0,0 +1,114 @@
+package com.bioenable.chequescan.geometry;
+
+/**
+ * A projective transformation of the plane, the mapping between a flat cheque and its photo taken
+ * from any angle:
+ * <pre>
+ *   u = (h0 x + h1 y + h2) / (h6 x + h7 y + 1)
+ *   v = (h3 x + h4 y + h5) / (h6 x + h7 y + 1)
+ * </pre>
+ */
+public final class Homography {
+
+    private final double[] h;
+
+    private Homography(double[] h) {
+        this.h = h;
+    }
+
+    /**
+     * Finds the homography which maps the four corners of from onto the four corners of to.
+     *
+     * @param from source corners
+     * @param to   destination corners
+     * @return the mapping
+     * @throws IllegalArgumentException if three of the corners are on one line
+     */
+    public static Homography between(Quad from, Quad to) {
+        // two equations per corner in the eight unknowns h0 .. h7
+        double[][] a = new double[8][9];
+        for (int corner = 0; corner < 4; corner++) {
+            double x = from.getX(corner);
+            double y = from.getY(corner);
+            double u = to.getX(corner);
+            double v = to.getY(corner);
+            double[] rowU = a[2 * corner];
+            double[] rowV = a[2 * corner + 1];
+            rowU[0] = x;
+            rowU[1] = y;
+            rowU[2] = 1;
+            rowU[6] = -x * u;
+            rowU[7] = -y * u;
+            rowU[8] = u;
+            rowV[3] = x;
+            rowV[4] = y;
+            rowV[5] = 1;
+            rowV[6] = -x * v;
+            rowV[7] = -y * v;
+            rowV[8] = v;
+        }
+        return new Homography(solve(a));
+    }
+
+    /**
+     * @param x      x in the source plane
+     * @param y      y in the source plane
+     * @param result receives u and v
+     */
+    public void map(double x, double y, float[] result) {
+        double w = h[6] * x + h[7] * y + 1;
+        result[0] = (float) ((h[0] * x + h[1] * y + h[2]) / w);
+        result[1] = (float) ((h[3] * x + h[4] * y + h[5]) / w);
+    }
+
+    /**
+     * @param quad corners in the source plane
+     * @return the corners mapped into the destination plane
+     */
+    public Quad map(Quad quad) {
+        float[] points = new float[8];
+        float[] point = new float[2];
+        for (int corner = 0; corner < 4; corner++) {
+            map(quad.getX(corner), quad.getY(corner), point);
+            points[2 * corner] = point[0];
+            points[2 * corner + 1] = point[1];
+        }
+        return new Quad(points);
+    }
+
+    /**
+     * Gaussian elimination with partial pivoting of an 8 x 8 system given as augmented matrix.
+     */
+    private static double[] solve(double[][] a) {
+        int n = a.length;
+        for (int column = 0; column < n; column++) {
+            int pivot = column;
+            for (int row = column + 1; row < n; row++) {
+                if (Math.abs(a[row][column]) > Math.abs(a[pivot][column])) {
+                    pivot = row;
+                }
+            }
+            if (Math.abs(a[pivot][column]) < 1e-12) {
+                throw new IllegalArgumentException("Corners are degenerate");
+            }
+            double[] swap = a[column];
+            a[column] = a[pivot];
+            a[pivot] = swap;
+            for (int row = column + 1; row < n; row++) {
+                double factor = a[row][column] / a[column][column];
+                for (int k = column; k <= n; k++) {
+                    a[row][k] -= factor * a[column][k];
+                }
+            }
+        }
+        double[] h = new double[n];
+        for (int row = n - 1; row >= 0; row--) {
+            double sum = a[row][n];
+            for (int k = row + 1; k < n; k++) {
+                sum -= a[row][k] * h[k];
+            }
+            h[row] = sum / a[row][row];
+        }
+        return h;
+    }
+}
@@ -0,0 +1,631 @@
+package com.bioenable.chequescan.geometry;
+
+import com.bioenable.chequescan.processing.BandTask;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Finds a cheque in a handheld photo and warps it into an upright rectangle of a fixed size, so that
+ * the later stages see the cheque as if it had been scanned flat. Works on 8 bit gray pixels as
+ * produced by ChequePreprocessor.toGrayscale and has no Android dependency.
+ * <p>
+ * The cheque is found in four steps:
+ * 1. The photo is box filtered down to a proxy of at most {@link #PROXY_SIDE} pixels. The edges of a
+ *    cheque are hundreds of pixels long, they survive this easily, while paper texture and sensor
+ *    noise average out.
+ * 2. Sobel gradients of the proxy are thinned to one pixel wide edges by non maximum suppression.
+ * 3. Every edge pixel votes in a Hough accumulator over line angle and distance, only for the few
+ *    angles around its gradient direction. Row bands of the proxy vote in parallel into accumulators
+ *    of their own, which are summed at the end.
+ * 4. The outermost strong lines in the horizontal and the vertical half of the accumulator are the
+ *    edges of the cheque. Each one is refined by a least squares fit through the edge pixels close
+ *    to it, and the corners are where they intersect.
+ * <p>
+ * The warp maps every output pixel back into the photo through the homography between the output
+ * rectangle and the corners. The mapping is only evaluated exactly on a grid of nodes every
+ * {@link #GRID_STEP} pixels; inside a cell the source position is interpolated and advanced by a
+ * constant step per pixel, with fixed point bilinear sampling. Rows are warped in parallel.
+ * <p>
+ * The cheque has to be brighter or darker than the surface it lies on and must be completely in the
+ * frame. Straight edges outside the cheque which are longer than its sides (a table edge) can be
+ * mistaken for it. An instance keeps its scratch buffers between images and must only be used by one
+ * thread at a time.
+ */
+public class PerspectiveCorrector implements Closeable {
+
+    /**
+     * Output size for a CTS-2010 cheque (202 x 92 mm) at 300 dpi
+     */
+    public static final int CANONICAL_WIDTH = 2400;
+    public static final int CANONICAL_HEIGHT = 1100;
+
+    /**
+     * Longer side of the proxy the lines are searched in
+     */
+    public static final int PROXY_SIDE = 800;
+
+    /**
+     * Distance of the nodes of the warp grid in output pixels
+     */
+    public static final int GRID_STEP = 16;
+
+    // Sobel |gx| + |gy| of an edge, a step of 12 gray levels
+    private static final int EDGE_THRESHOLD = 48;
+    // angles run from -45 to 135 degrees in half degree steps: vertical lines first, then horizontal
+    private static final int BINS_PER_DEGREE = 2;
+    private static final int THETA_OFFSET = 45;
+    private static final int THETA_BINS = 180 * BINS_PER_DEGREE;
+    private static final int HORIZONTAL_BIN = 90 * BINS_PER_DEGREE;
+    // distances are counted in steps of two proxy pixels
+    private static final int RHO_STEP = 2;
+    // an edge pixel votes for the angles this close (in degrees) to its gradient direction
+    private static final int ANGLE_TOLERANCE = 3;
+    private static final int VOTE_SPREAD = ANGLE_TOLERANCE * BINS_PER_DEGREE;
+    private static final int PEAK_RADIUS_THETA = 2 * BINS_PER_DEGREE;
+    private static final int PEAK_RADIUS_RHO = 3;
+    // a side of the cheque covers at least this part of the frame
+    private static final float MIN_SIDE_FRACTION = 0.2f;
+    // lines with less than this part of the votes of the strongest line are not cheque edges
+    private static final float STRONG_FRACTION = 0.4f;
+    private static final float FIT_DISTANCE = 3f;
+    private static final int PROXY_ROWS_PER_BAND = 32;
+    private static final int OUTPUT_ROWS_PER_BAND = 64;
+
+    private final ForkJoinPool pool;
+    // cos and sin of the bin angles, divided by RHO_STEP
+    private final float[] cos = new float[THETA_BINS];
+    private final float[] sin = new float[THETA_BINS];
+    private final ConcurrentLinkedQueue<int[]> accumulators = new ConcurrentLinkedQueue<>();
+
+    private byte[] proxy = new byte[0];
+    private short[] gradientX = new short[0];
+    private short[] gradientY = new short[0];
+    private int[] magnitude = new int[0];
+    // direction of the edge normal in degrees for edge pixels, NaN elsewhere
+    private float[] angles = new float[0];
+    private int[] votes = new int[0];
+    private float[] grid = new float[0];
+
+    /**
+     * @param parallelism number of threads used for one image
+     */
+    public PerspectiveCorrector(int parallelism) {
+        this.pool = new ForkJoinPool(parallelism);
+        for (int bin = 0; bin < THETA_BINS; bin++) {
+            double theta = Math.toRadians(binDegrees(bin));
+            cos[bin] = (float) Math.cos(theta) / RHO_STEP;
+            sin[bin] = (float) Math.sin(theta) / RHO_STEP;
+        }
+    }
+
+    /**
+     * Finds the cheque and warps it into out.
+     *
+     * @param gray      8 bit gray pixels of the photo
+     * @param width     width of the photo
+     * @param height    height of the photo
+     * @param out       output pixels, at least outWidth * outHeight long
+     * @param outWidth  width of the output, usually {@link #CANONICAL_WIDTH}
+     * @param outHeight height of the output, usually {@link #CANONICAL_HEIGHT}
+     * @return corners of the cheque in the photo or null if no cheque was found, then out is not
+     * touched
+     */
+    public Quad correct(byte[] gray, int width, int height, byte[] out, int outWidth, int outHeight) {
+        Quad quad = findCheque(gray, width, height);
+        if (quad != null) {
+            warp(gray, width, height, quad, out, outWidth, outHeight);
+        }
+        return quad;
+    }
+
+    /**
+     * @param gray   8 bit gray pixels of the photo
+     * @param width  width of the photo
+     * @param height height of the photo
+     * @return corners of the cheque or null if there are no four edges which form one
+     */
+    public Quad findCheque(byte[] gray, int width, int height) {
+        checkSize(gray.length, width, height);
+        int factor = Math.max(1, (Math.max(width, height) + PROXY_SIDE - 1) / PROXY_SIDE);
+        int proxyWidth = width / factor;
+        int proxyHeight = height / factor;
+        if (proxyWidth < 16 || proxyHeight < 16) {
+            return null;
+        }
+        int rhoOffset = (int) Math.ceil(Math.hypot(proxyWidth, proxyHeight) / RHO_STEP);
+        int rhoBins = 2 * rhoOffset + 1;
+        ensureCapacity(proxyWidth * proxyHeight, THETA_BINS * rhoBins);
+
+        downsample(gray, width, factor, proxyWidth, proxyHeight);
+        gradients(proxyWidth, proxyHeight);
+        vote(proxyWidth, proxyHeight, rhoOffset, rhoBins);
+
+        float[] vertical = findEdgePair(0, HORIZONTAL_BIN, rhoBins, rhoOffset,
+                Math.round(MIN_SIDE_FRACTION * proxyHeight), MIN_SIDE_FRACTION * proxyWidth);
+        float[] horizontal = findEdgePair(HORIZONTAL_BIN, THETA_BINS, rhoBins, rhoOffset,
+                Math.round(MIN_SIDE_FRACTION * proxyWidth), MIN_SIDE_FRACTION * proxyHeight);
+        if (vertical == null || horizontal == null) {
+            return null;
+        }
+        // lines as (theta in radians, rho): left, right, top, bottom
+        float[][] lines = {
+                {vertical[0], vertical[1]}, {vertical[2], vertical[3]},
+                {horizontal[0], horizontal[1]}, {horizontal[2], horizontal[3]}};
+        refine(lines, proxyWidth, proxyHeight);
+
+        float[] points = new float[8];
+        if (!intersect(lines[2], lines[0], points, Quad.TOP_LEFT)
+                || !intersect(lines[2], lines[1], points, Quad.TOP_RIGHT)
+                || !intersect(lines[3], lines[1], points, Quad.BOTTOM_RIGHT)
+                || !intersect(lines[3], lines[0], points, Quad.BOTTOM_LEFT)) {
+            return null;
+        }
+        for (int i = 0; i < points.length; i++) {
+            // centre of a proxy pixel in photo coordinates
+            points[i] = (points[i] + 0.5f) * factor - 0.5f;
+        }
+        Quad quad = new Quad(points);
+        return quad.isConvex() ? quad : null;
+    }
+
+    /**
+     * Warps the area inside quad into an upright rectangle.
+     *
+     * @param gray      8 bit gray pixels of the photo
+     * @param width     width of the photo
+     * @param height    height of the photo
+     * @param quad      corners of the cheque in the photo
+     * @param out       output pixels, at least outWidth * outHeight long
+     * @param outWidth  width of the output
+     * @param outHeight height of the output
+     */
+    public void warp(final byte[] gray, final int width, final int height, Quad quad,
+                     final byte[] out, final int outWidth, final int outHeight) {
+        checkSize(gray.length, width, height);
+        checkSize(out.length, outWidth, outHeight);
+        if (outWidth < 2 || outHeight < 2) {
+            throw new IllegalArgumentException("Output has to be at least 2x2");
+        }
+        Homography homography = Homography.between(
+                new Quad(0, 0, outWidth - 1, 0, outWidth - 1, outHeight - 1, 0, outHeight - 1), quad);
+
+        // source positions of the grid nodes, x and y interleaved
+        final int nodesX = (outWidth - 2) / GRID_STEP + 2;
+        final int nodesY = (outHeight - 2) / GRID_STEP + 2;
+        if (grid.length < 2 * nodesX * nodesY) {
+            grid = new float[2 * nodesX * nodesY];
+        }
+        final float[] nodes = grid;
+        float[] point = new float[2];
+        for (int j = 0; j < nodesY; j++) {
+            for (int i = 0; i < nodesX; i++) {
+                homography.map(nodeCoordinate(i, outWidth), nodeCoordinate(j, outHeight), point);
+                nodes[2 * (j * nodesX + i)] = point[0];
+                nodes[2 * (j * nodesX + i) + 1] = point[1];
+            }
+        }
+
+        pool.invoke(new BandTask(0, outHeight, OUTPUT_ROWS_PER_BAND) {
+            @Override
+            protected void compute(int fromRow, int toRow) {
+                for (int y = fromRow; y < toRow; y++) {
+                    int j = Math.min(y / GRID_STEP, nodesY - 2);
+                    int y0 = nodeCoordinate(j, outHeight);
+                    float fy = (float) (y - y0) / (nodeCoordinate(j + 1, outHeight) - y0);
+                    for (int i = 0; i < nodesX - 1; i++) {
+                        int x0 = nodeCoordinate(i, outWidth);
+                        int x1 = nodeCoordinate(i + 1, outWidth);
+                        int top = 2 * (j * nodesX + i);
+                        int bottom = top + 2 * nodesX;
+                        float leftX = nodes[top] + (nodes[bottom] - nodes[top]) * fy;
+                        float leftY = nodes[top + 1] + (nodes[bottom + 1] - nodes[top + 1]) * fy;
+                        float rightX = nodes[top + 2] + (nodes[bottom + 2] - nodes[top + 2]) * fy;
+                        float rightY = nodes[top + 3] + (nodes[bottom + 3] - nodes[top + 3]) * fy;
+                        // the last cell of a row also fills the last column
+                        int end = i == nodesX - 2 ? x1 + 1 : x1;
+                        warpSpan(gray, width, height, out, y * outWidth, x0, end,
+                                leftX, leftY, (rightX - leftX) / (x1 - x0), (rightY - leftY) / (x1 - x0));
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Stops the worker threads.
+     */
+    @Override
+    public void close() {
+        pool.shutdown();
+    }
+
+    /**
+     * Samples the photo along a straight run of source positions into out[row + from .. row + to).
+     */
+    private static void warpSpan(byte[] gray, int width, int height, byte[] out, int row, int from,
+                                 int to, float startX, float startY, float stepX, float stepY) {
+        // 16.16 fixed point source position
+        int sx = Math.round(startX * 65536);
+        int sy = Math.round(startY * 65536);
+        int dx = Math.round(stepX * 65536);
+        int dy = Math.round(stepY * 65536);
+        for (int x = from; x < to; x++, sx += dx, sy += dy) {
+            int ix = sx >> 16;
+            int iy = sy >> 16;
+            int fx = (sx >> 8) & 0xFF;
+            int fy = (sy >> 8) & 0xFF;
+            int p00;
+            int p10;
+            int p01;
+            int p11;
+            if (ix >= 0 && iy >= 0 && ix < width - 1 && iy < height - 1) {
+                int i = iy * width + ix;
+                p00 = gray[i] & 0xFF;
+                p10 = gray[i + 1] & 0xFF;
+                p01 = gray[i + width] & 0xFF;
+                p11 = gray[i + width + 1] & 0xFF;
+            } else {
+                // outside or on the last row or column of the photo, repeat the border
+                int x0 = clamp(ix, width);
+                int x1 = clamp(ix + 1, width);
+                int y0 = clamp(iy, height) * width;
+                int y1 = clamp(iy + 1, height) * width;
+                p00 = gray[y0 + x0] & 0xFF;
+                p10 = gray[y0 + x1] & 0xFF;
+                p01 = gray[y1 + x0] & 0xFF;
+                p11 = gray[y1 + x1] & 0xFF;
+            }
+            int upper = (p00 << 8) + (p10 - p00) * fx;
+            int lower = (p01 << 8) + (p11 - p01) * fx;
+            out[row + x] = (byte) (((upper << 8) + (lower - upper) * fy + 32768) >> 16);
+        }
+    }
+
+    private static int nodeCoordinate(int node, int size) {
+        return Math.min(node * GRID_STEP, size - 1);
+    }
+
+    private static int clamp(int value, int size) {
+        return value < 0 ? 0 : value >= size ? size - 1 : value;
+    }
+
+    /**
+     * Box filters the photo into the proxy.
+     */
+    private void downsample(final byte[] gray, final int width, final int factor,
+                            final int proxyWidth, int proxyHeight) {
+        final byte[] proxy = this.proxy;
+        // 16 bit fixed point reciprocal of the box area
+        final int scale = (1 << 16) / (factor * factor);
+        pool.invoke(new BandTask(0, proxyHeight, PROXY_ROWS_PER_BAND) {
+            @Override
+            protected void compute(int fromRow, int toRow) {
+                for (int py = fromRow; py < toRow; py++) {
+                    int top = py * factor * width;
+                    for (int px = 0, o = py * proxyWidth; px < proxyWidth; px++, o++) {
+                        int sum = 0;
+                        for (int row = top + px * factor, rowEnd = row + factor * width; row < rowEnd; row += width) {
+                            for (int i = row, end = row + factor; i < end; i++) {
+                                sum += gray[i] & 0xFF;
+                            }
+                        }
+                        proxy[o] = (byte) ((sum * scale + 32768) >> 16);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Sobel gradients of the proxy, zero on its border.
+     */
+    private void gradients(final int proxyWidth, final int proxyHeight) {
+        final byte[] p = proxy;
+        final short[] gx = gradientX;
+        final short[] gy = gradientY;
+        final int[] magnitude = this.magnitude;
+        pool.invoke(new BandTask(0, proxyHeight, PROXY_ROWS_PER_BAND) {
+            @Override
+            protected void compute(int fromRow, int toRow) {
+                for (int y = fromRow; y < toRow; y++) {
+                    int row = y * proxyWidth;
+                    if (y == 0 || y == proxyHeight - 1) {
+                        Arrays.fill(magnitude, row, row + proxyWidth, 0);
+                        continue;
+                    }
+                    magnitude[row] = 0;
+                    magnitude[row + proxyWidth - 1] = 0;
+                    for (int x = 1, i = row + 1; x < proxyWidth - 1; x++, i++) {
+                        int a = p[i - proxyWidth - 1] & 0xFF;
+                        int b = p[i - proxyWidth] & 0xFF;
+                        int c = p[i - proxyWidth + 1] & 0xFF;
+                        int d = p[i - 1] & 0xFF;
+                        int f = p[i + 1] & 0xFF;
+                        int g = p[i + proxyWidth - 1] & 0xFF;
+                        int h = p[i + proxyWidth] & 0xFF;
+                        int k = p[i + proxyWidth + 1] & 0xFF;
+                        int sx = (c + 2 * f + k) - (a + 2 * d + g);
+                        int sy = (g + 2 * h + k) - (a + 2 * b + c);
+                        gx[i] = (short) sx;
+                        gy[i] = (short) sy;
+                        magnitude[i] = Math.abs(sx) + Math.abs(sy);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Thins the gradients to edges, records their angles and fills the Hough accumulator.
+     */
+    private void vote(final int proxyWidth, final int proxyHeight, final int rhoOffset, final int rhoBins) {
+        final int size = THETA_BINS * rhoBins;
+        final short[] gx = gradientX;
+        final short[] gy = gradientY;
+        final int[] magnitude = this.magnitude;
+        final float[] angles = this.angles;
+        pool.invoke(new BandTask(1, proxyHeight - 1, PROXY_ROWS_PER_BAND) {
+            @Override
+            protected void compute(int fromRow, int toRow) {
+                int[] accumulator = takeAccumulator(size);
+                for (int y = fromRow; y < toRow; y++) {
+                    int row = y * proxyWidth;
+                    angles[row] = Float.NaN;
+                    angles[row + proxyWidth - 1] = Float.NaN;
+                    for (int x = 1, i = row + 1; x < proxyWidth - 1; x++, i++) {
+                        int m = magnitude[i];
+                        angles[i] = Float.NaN;
+                        if (m < EDGE_THRESHOLD) {
+                            continue;
+                        }
+                        int sx = gx[i];
+                        int sy = gy[i];
+                        int ax = Math.abs(sx);
+                        int ay = Math.abs(sy);
+                        // neighbours across the edge, the gradient direction in one of four steps
+                        int before;
+                        int after;
+                        if (5 * ay < 2 * ax) {
+                            before = i - 1;
+                            after = i + 1;
+                        } else if (5 * ax < 2 * ay) {
+                            before = i - proxyWidth;
+                            after = i + proxyWidth;
+                        } else if ((sx > 0) == (sy > 0)) {
+                            before = i - proxyWidth - 1;
+                            after = i + proxyWidth + 1;
+                        } else {
+                            before = i - proxyWidth + 1;
+                            after = i + proxyWidth - 1;
+                        }
+                        if (m < magnitude[before] || m <= magnitude[after]) {
+                            continue;
+                        }
+                        float angle = foldAngle((float) Math.toDegrees(Math.atan2(sy, sx)));
+                        angles[i] = angle;
+                        int center = Math.round((angle + THETA_OFFSET) * BINS_PER_DEGREE);
+                        for (int d = -VOTE_SPREAD; d <= VOTE_SPREAD; d++) {
+                            int bin = center + d;
+                            if (bin < 0) {
+                                bin += THETA_BINS;
+                            } else if (bin >= THETA_BINS) {
+                                bin -= THETA_BINS;
+                            }
+                            int rho = Math.round(x * cos[bin] + y * sin[bin]) + rhoOffset;
+                            accumulator[bin * rhoBins + rho]++;
+                        }
+                    }
+                }
+                accumulators.offer(accumulator);
+            }
+        });
+        Arrays.fill(angles, 0, proxyWidth, Float.NaN);
+        Arrays.fill(angles, (proxyHeight - 1) * proxyWidth, proxyHeight * proxyWidth, Float.NaN);
+
+        // sum the accumulators of the bands, leaving them cleared for the next image
+        int[] votes = this.votes;
+        Arrays.fill(votes, 0, size, 0);
+        for (int[] accumulator : accumulators) {
+            if (accumulator.length != size) {
+                continue;
+            }
+            for (int i = 0; i < size; i++) {
+                votes[i] += accumulator[i];
+                accumulator[i] = 0;
+            }
+        }
+    }
+
+    private int[] takeAccumulator(int size) {
+        int[] accumulator;
+        while ((accumulator = accumulators.poll()) != null) {
+            if (accumulator.length == size) {
+                return accumulator;
+            }
+            // left from an image of another size
+        }
+        return new int[size];
+    }
+
+    /**
+     * Finds the two outermost strong lines with angles between the given bins. A line rarely falls
+     * on the centre of a bin, so its votes are spread over neighbouring distances. Lines are scored
+     * by the votes of three neighbouring distance bins together.
+     *
+     * @return theta (radians) and rho of the line with the smaller rho, then of the one with the
+     * larger rho, or null if there are no two lines far enough apart
+     */
+    private float[] findEdgePair(int fromBin, int toBin, int rhoBins, int rhoOffset, int minVotes,
+                                 float minDistance) {
+        List<int[]> peaks = new ArrayList<>();
+        int strongest = 0;
+        for (int bin = fromBin; bin < toBin; bin++) {
+            for (int rho = 1; rho < rhoBins - 1; rho++) {
+                int v = score(bin, rho, rhoBins);
+                if (v >= minVotes && isPeak(bin, rho, rhoBins, v)) {
+                    peaks.add(new int[]{bin, rho, v});
+                    strongest = Math.max(strongest, v);
+                }
+            }
+        }
+        int[] first = null;
+        int[] last = null;
+        for (int[] peak : peaks) {
+            if (peak[2] < STRONG_FRACTION * strongest) {
+                continue;
+            }
+            if (first == null || peak[1] < first[1]) {
+                first = peak;
+            }
+            if (last == null || peak[1] > last[1]) {
+                last = peak;
+            }
+        }
+        if (first == null || (last[1] - first[1]) * RHO_STEP < minDistance) {
+            return null;
+        }
+        return new float[]{
+                (float) Math.toRadians(binDegrees(first[0])), (first[1] - rhoOffset) * RHO_STEP,
+                (float) Math.toRadians(binDegrees(last[0])), (last[1] - rhoOffset) * RHO_STEP};
+    }
+
+    private int score(int bin, int rho, int rhoBins) {
+        int i = bin * rhoBins + rho;
+        return votes[i - 1] + votes[i] + votes[i + 1];
+    }
+
+    private static float binDegrees(int bin) {
+        return (float) bin / BINS_PER_DEGREE - THETA_OFFSET;
+    }
+
+    private boolean isPeak(int bin, int rho, int rhoBins, int v) {
+        for (int b = Math.max(0, bin - PEAK_RADIUS_THETA); b <= Math.min(THETA_BINS - 1, bin + PEAK_RADIUS_THETA); b++) {
+            for (int r = Math.max(1, rho - PEAK_RADIUS_RHO); r <= Math.min(rhoBins - 2, rho + PEAK_RADIUS_RHO); r++) {
+                int other = score(b, r, rhoBins);
+                // ties go to the first cell, so a plateau gives a single peak
+                if (other > v || other == v && (b < bin || b == bin && r < rho)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Replaces every line by the total least squares fit through the edge pixels near it whose
+     * direction agrees with it.
+     */
+    private void refine(float[][] lines, int proxyWidth, int proxyHeight) {
+        int count = lines.length;
+        double[] n = new double[count];
+        double[] sumX = new double[count];
+        double[] sumY = new double[count];
+        double[] sumXX = new double[count];
+        double[] sumXY = new double[count];
+        double[] sumYY = new double[count];
+        float[] lineCos = new float[count];
+        float[] lineSin = new float[count];
+        float[] lineAngle = new float[count];
+        for (int l = 0; l < count; l++) {
+            lineCos[l] = (float) Math.cos(lines[l][0]);
+            lineSin[l] = (float) Math.sin(lines[l][0]);
+            lineAngle[l] = (float) Math.toDegrees(lines[l][0]);
+        }
+        for (int y = 1; y < proxyHeight - 1; y++) {
+            for (int x = 1, i = y * proxyWidth + 1; x < proxyWidth - 1; x++, i++) {
+                float angle = angles[i];
+                if (angle != angle) {
+                    continue;
+                }
+                for (int l = 0; l < count; l++) {
+                    if (Math.abs(x * lineCos[l] + y * lineSin[l] - lines[l][1]) > FIT_DISTANCE) {
+                        continue;
+                    }
+                    float difference = Math.abs(angle - lineAngle[l]);
+                    if (Math.min(difference, 180 - difference) > ANGLE_TOLERANCE) {
+                        continue;
+                    }
+                    n[l]++;
+                    sumX[l] += x;
+                    sumY[l] += y;
+                    sumXX[l] += (double) x * x;
+                    sumXY[l] += (double) x * y;
+                    sumYY[l] += (double) y * y;
+                }
+            }
+        }
+        for (int l = 0; l < count; l++) {
+            if (n[l] < 2) {
+                continue;
+            }
+            double meanX = sumX[l] / n[l];
+            double meanY = sumY[l] / n[l];
+            double xx = sumXX[l] / n[l] - meanX * meanX;
+            double xy = sumXY[l] / n[l] - meanX * meanY;
+            double yy = sumYY[l] / n[l] - meanY * meanY;
+            // the normal of the line is the direction of least spread of the points
+            double theta = 0.5 * Math.atan2(2 * xy, xx - yy) + Math.PI / 2;
+            // keep the orientation of the Hough line, the fit only gives theta modulo pi
+            if (Math.cos(theta - lines[l][0]) < 0) {
+                theta += Math.PI;
+            }
+            lines[l][0] = (float) theta;
+            lines[l][1] = (float) (meanX * Math.cos(theta) + meanY * Math.sin(theta));
+        }
+    }
+
+    /**
+     * Writes the intersection of two lines given as (theta, rho) into points at corner.
+     */
+    private static boolean intersect(float[] a, float[] b, float[] points, int corner) {
+        double ca = Math.cos(a[0]);
+        double sa = Math.sin(a[0]);
+        double cb = Math.cos(b[0]);
+        double sb = Math.sin(b[0]);
+        double determinant = ca * sb - sa * cb;
+        if (Math.abs(determinant) < 1e-6) {
+            return false;
+        }
+        points[2 * corner] = (float) ((a[1] * sb - b[1] * sa) / determinant);
+        points[2 * corner + 1] = (float) ((ca * b[1] - cb * a[1]) / determinant);
+        return true;
+    }
+
+    /**
+     * @return the angle in degrees moved by half turns into [-45, 135)
+     */
+    private static float foldAngle(float degrees) {
+        while (degrees < -THETA_OFFSET) {
+            degrees += 180;
+        }
+        while (degrees >= 180 - THETA_OFFSET) {
+            degrees -= 180;
+        }
+        return degrees;
+    }
+
+    private void ensureCapacity(int proxyPixels, int accumulatorSize) {
+        if (proxy.length < proxyPixels) {
+            proxy = new byte[proxyPixels];
+            gradientX = new short[proxyPixels];
+            gradientY = new short[proxyPixels];
+            magnitude = new int[proxyPixels];
+            angles = new float[proxyPixels];
+        }
+        if (votes.length < accumulatorSize) {
+            votes = new int[accumulatorSize];
+        }
+    }
+
+    private static void checkSize(int length, int width, int height) {
+        if (width <= 0 || height <= 0 || length < width * height) {
+            throw new IllegalArgumentException("Buffer of " + length + " pixels does not hold a "
+                    + width + "x" + height + " image");
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.bioenable.chequescan.geometry;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * The four corners of a cheque in an image, in the order top left, top right, bottom right, bottom
+ * left. Coordinates are in pixels, with pixel centres on whole numbers.
+ */
+public final class Quad {
+
+    public static final int TOP_LEFT = 0;
+    public static final int TOP_RIGHT = 1;
+    public static final int BOTTOM_RIGHT = 2;
+    public static final int BOTTOM_LEFT = 3;
+
+    private final float[] points;
+
+    /**
+     * @param points x and y of the four corners, starting at the top left and going clockwise
+     */
+    public Quad(float... points) {
+        if (points.length != 8) {
+            throw new IllegalArgumentException("A quad has 4 corners, got " + points.length / 2f);
+        }
+        this.points = points.clone();
+    }
+
+    public float getX(int corner) {
+        return points[2 * corner];
+    }
+
+    public float getY(int corner) {
+        return points[2 * corner + 1];
+    }
+
+    /**
+     * @return x and y of the four corners in a new array
+     */
+    public float[] toArray() {
+        return points.clone();
+    }
+
+    /**
+     * @return whether the corners make a convex quadrilateral in clockwise order (with y pointing
+     * down, as in images)
+     */
+    public boolean isConvex() {
+        for (int corner = 0; corner < 4; corner++) {
+            int next = (corner + 1) % 4;
+            int after = (corner + 2) % 4;
+            float cross = (getX(next) - getX(corner)) * (getY(after) - getY(next))
+                    - (getY(next) - getY(corner)) * (getX(after) - getX(next));
+            if (cross <= 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the largest distance between the corresponding corners of the two quads
+     */
+    public float distanceTo(Quad other) {
+        float max = 0;
+        for (int corner = 0; corner < 4; corner++) {
+            max = Math.max(max, (float) Math.hypot(getX(corner) - other.getX(corner),
+                    getY(corner) - other.getY(corner)));
+        }
+        return max;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof Quad && Arrays.equals(points, ((Quad) o).points);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(points);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "(%.1f, %.1f) (%.1f, %.1f) (%.1f, %.1f) (%.1f, %.1f)",
+                points[0], points[1], points[2], points[3], points[4], points[5], points[6], points[7]);
+    }
+}
@@ -0,0 +1,253 @@
+package com.bioenable.chequescan.jpeg;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * What a JPEG file says about itself before its image data: the size from the frame header, the
+ * EXIF orientation and the small JPEG thumbnail cameras embed in the EXIF segment.
+ * <p>
+ * {@link #read(InputStream)} streams the marker segments from the start of the file and stops at
+ * the frame header, so only the first few KB of a photo (the EXIF segment is at most 64 KB) are
+ * read and the compressed image is never touched. A broken EXIF segment is ignored, the photo
+ * is then shown without a thumbnail and as it is stored.
+ */
+public final class JpegHeader {
+
+    private static final int SOI = 0xD8;
+    private static final int EOI = 0xD9;
+    private static final int SOS = 0xDA;
+    private static final int APP1 = 0xE1;
+    private static final int DHT = 0xC4;
+    private static final int JPG = 0xC8;
+    private static final int DAC = 0xCC;
+
+    private static final int TAG_ORIENTATION = 0x0112;
+    private static final int TAG_THUMBNAIL_OFFSET = 0x0201;
+    private static final int TAG_THUMBNAIL_LENGTH = 0x0202;
+    private static final int TYPE_SHORT = 3;
+    private static final int TYPE_LONG = 4;
+    private static final byte[] EXIF = {'E', 'x', 'i', 'f', 0, 0};
+
+    private final int width;
+    private final int height;
+    private final Orientation orientation;
+    private final byte[] thumbnail;
+
+    JpegHeader(int width, int height, Orientation orientation, byte[] thumbnail) {
+        this.width = width;
+        this.height = height;
+        this.orientation = orientation;
+        this.thumbnail = thumbnail;
+    }
+
+    /**
+     * Reads the header segments of a JPEG file. Nothing after the size in the frame header is read.
+     *
+     * @param in stream at the start of the file, best buffered
+     * @return the header
+     * @throws IOException if the stream cannot be read or is not a JPEG file
+     */
+    public static JpegHeader read(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        if (data.readUnsignedByte() != 0xFF || data.readUnsignedByte() != SOI) {
+            throw new IOException("Not a JPEG file");
+        }
+        Orientation orientation = Orientation.NORMAL;
+        byte[] thumbnail = null;
+        boolean exifRead = false;
+        while (true) {
+            int marker = readMarker(data);
+            if (marker == SOS || marker == EOI) {
+                throw new IOException("No frame header before the image data");
+            }
+            int length = data.readUnsignedShort() - 2;
+            if (length < 0) {
+                throw new IOException("Invalid segment length");
+            }
+            if (isFrameHeader(marker)) {
+                if (length < 5) {
+                    throw new IOException("Invalid frame header");
+                }
+                data.readUnsignedByte();
+                int height = data.readUnsignedShort();
+                int width = data.readUnsignedShort();
+                return new JpegHeader(width, height, orientation, thumbnail);
+            }
+            if (marker == APP1 && !exifRead && length >= EXIF.length) {
+                byte[] segment = new byte[length];
+                data.readFully(segment);
+                if (startsWith(segment, EXIF)) {
+                    exifRead = true;
+                    Exif exif = new Exif(segment, EXIF.length);
+                    if (exif.parse()) {
+                        orientation = exif.orientation;
+                        thumbnail = exif.thumbnail;
+                    }
+                }
+            } else {
+                skipFully(data, length);
+            }
+        }
+    }
+
+    /**
+     * @return width of the stored image
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return height of the stored image
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    public Orientation getOrientation() {
+        return orientation;
+    }
+
+    /**
+     * @return the embedded JPEG thumbnail, stored the same way as the image, or null if there is
+     * none
+     */
+    public byte[] getThumbnail() {
+        return thumbnail;
+    }
+
+    private static int readMarker(DataInputStream data) throws IOException {
+        if (data.readUnsignedByte() != 0xFF) {
+            throw new IOException("Marker expected");
+        }
+        int marker = data.readUnsignedByte();
+        // any number of 0xFF may pad a marker
+        while (marker == 0xFF) {
+            marker = data.readUnsignedByte();
+        }
+        return marker;
+    }
+
+    private static boolean isFrameHeader(int marker) {
+        return marker >= 0xC0 && marker <= 0xCF && marker != DHT && marker != JPG && marker != DAC;
+    }
+
+    private static boolean startsWith(byte[] bytes, byte[] prefix) {
+        for (int i = 0; i < prefix.length; i++) {
+            if (bytes[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void skipFully(InputStream in, long count) throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                if (in.read() < 0) {
+                    throw new EOFException();
+                }
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+
+    /**
+     * The TIFF structure inside the EXIF segment. Only the orientation of the first IFD and the
+     * thumbnail of the second are read.
+     */
+    private static final class Exif {
+
+        private final byte[] segment;
+        private final int start;
+        private boolean littleEndian;
+        Orientation orientation = Orientation.NORMAL;
+        byte[] thumbnail;
+
+        Exif(byte[] segment, int start) {
+            this.segment = segment;
+            this.start = start;
+        }
+
+        /**
+         * @return false if the structure is broken
+         */
+        boolean parse() {
+            if (segment.length < start + 8) {
+                return false;
+            }
+            if (segment[start] == 'I' && segment[start + 1] == 'I') {
+                littleEndian = true;
+            } else if (segment[start] != 'M' || segment[start + 1] != 'M') {
+                return false;
+            }
+            if (unsignedShort(start + 2) != 42) {
+                return false;
+            }
+            long first = unsignedInt(start + 4);
+            int next = readIfd(first, true);
+            if (next > 0) {
+                readIfd(next, false);
+            }
+            return true;
+        }
+
+        /**
+         * @return offset of the next IFD, 0 if there is none, -1 if this one is broken
+         */
+        private int readIfd(long offset, boolean first) {
+            int ifd = (int) Math.min(Integer.MAX_VALUE, start + offset);
+            if (offset <= 0 || ifd + 2 > segment.length) {
+                return -1;
+            }
+            int count = unsignedShort(ifd);
+            int end = ifd + 2 + 12 * count;
+            if (end + 4 > segment.length) {
+                return -1;
+            }
+            long thumbnailOffset = -1;
+            long thumbnailLength = -1;
+            for (int entry = ifd + 2; entry < end; entry += 12) {
+                int tag = unsignedShort(entry);
+                int type = unsignedShort(entry + 2);
+                long value = type == TYPE_SHORT ? unsignedShort(entry + 8)
+                        : type == TYPE_LONG ? unsignedInt(entry + 8) : -1;
+                if (first && tag == TAG_ORIENTATION && type == TYPE_SHORT) {
+                    orientation = Orientation.fromExif((int) value);
+                } else if (!first && tag == TAG_THUMBNAIL_OFFSET) {
+                    thumbnailOffset = value;
+                } else if (!first && tag == TAG_THUMBNAIL_LENGTH) {
+                    thumbnailLength = value;
+                }
+            }
+            if (thumbnailOffset > 0 && thumbnailLength >= 2
+                    && start + thumbnailOffset + thumbnailLength <= segment.length) {
+                int from = (int) (start + thumbnailOffset);
+                // only JPEG thumbnails, the rare uncompressed ones have no offset tag
+                if ((segment[from] & 0xFF) == 0xFF && (segment[from + 1] & 0xFF) == SOI) {
+                    thumbnail = Arrays.copyOfRange(segment, from, (int) (from + thumbnailLength));
+                }
+            }
+            long next = unsignedInt(end);
+            return next < Integer.MAX_VALUE ? (int) next : -1;
+        }
+
+        private int unsignedShort(int at) {
+            int b0 = segment[at] & 0xFF;
+            int b1 = segment[at + 1] & 0xFF;
+            return littleEndian ? b1 << 8 | b0 : b0 << 8 | b1;
+        }
+
+        private long unsignedInt(int at) {
+            long high = unsignedShort(littleEndian ? at + 2 : at);
+            long low = unsignedShort(littleEndian ? at : at + 2);
+            return high << 16 | low;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.bioenable.chequescan.jpeg;
+
+/**
+ * How the stored pixels of a photo have to be turned to show it upright, the EXIF orientation tag.
+ * Cameras store the sensor image as it is and only record how the phone was held.
+ * <p>
+ * Each orientation is an affine map from stored pixel coordinates to displayed ones,
+ * {@link #toDisplay}, which can be set on a Matrix so that the bitmap is turned while it is drawn
+ * instead of being copied into a turned one. The transposed orientations swap width and height.
+ */
+public enum Orientation {
+    NORMAL(1, 0, false, 1, 0, 0, 1),
+    FLIP_HORIZONTAL(2, 0, true, -1, 0, 0, 1),
+    ROTATE_180(3, 180, false, -1, 0, 0, -1),
+    FLIP_VERTICAL(4, 180, true, 1, 0, 0, -1),
+    TRANSPOSE(5, 270, true, 0, 1, 1, 0),
+    ROTATE_90(6, 90, false, 0, -1, 1, 0),
+    TRANSVERSE(7, 90, true, 0, -1, -1, 0),
+    ROTATE_270(8, 270, false, 0, 1, -1, 0);
+
+    private final int exifValue;
+    private final int rotation;
+    private final boolean mirrored;
+    // linear part of the map to displayed coordinates
+    private final int a;
+    private final int b;
+    private final int c;
+    private final int d;
+
+    Orientation(int exifValue, int rotation, boolean mirrored, int a, int b, int c, int d) {
+        this.exifValue = exifValue;
+        this.rotation = rotation;
+        this.mirrored = mirrored;
+        this.a = a;
+        this.b = b;
+        this.c = c;
+        this.d = d;
+    }
+
+    /**
+     * @param exifValue value of the orientation tag, 1 - 8
+     * @return the orientation, NORMAL for values outside of the range
+     */
+    public static Orientation fromExif(int exifValue) {
+        for (Orientation orientation : values()) {
+            if (orientation.exifValue == exifValue) {
+                return orientation;
+            }
+        }
+        return NORMAL;
+    }
+
+    public int getExifValue() {
+        return exifValue;
+    }
+
+    /**
+     * @return clockwise rotation in degrees, applied after mirroring left to right
+     */
+    public int getRotation() {
+        return rotation;
+    }
+
+    public boolean isMirrored() {
+        return mirrored;
+    }
+
+    /**
+     * @return whether the displayed image is the stored one with width and height swapped
+     */
+    public boolean isTransposed() {
+        return rotation == 90 || rotation == 270;
+    }
+
+    /**
+     * @param width  width of the stored image
+     * @param height height of the stored image
+     * @return width of the displayed image
+     */
+    public int displayWidth(int width, int height) {
+        return isTransposed() ? height : width;
+    }
+
+    /**
+     * @param width  width of the stored image
+     * @param height height of the stored image
+     * @return height of the displayed image
+     */
+    public int displayHeight(int width, int height) {
+        return isTransposed() ? width : height;
+    }
+
+    /**
+     * Gives the map from stored to displayed coordinates, x' = a x + b y + tx, y' = c x + d y + ty.
+     * The values are in the order of Matrix.setValues: a, b, tx, c, d, ty, 0, 0, 1.
+     *
+     * @param width  width of the stored image
+     * @param height height of the stored image
+     * @param values receives the nine values of the map
+     */
+    public void toDisplay(float width, float height, float[] values) {
+        // a negated axis is shifted back into the image
+        float tx = (a < 0 ? width : 0) + (b < 0 ? height : 0);
+        float ty = (c < 0 ? width : 0) + (d < 0 ? height : 0);
+        values[0] = a;
+        values[1] = b;
+        values[2] = tx;
+        values[3] = c;
+        values[4] = d;
+        values[5] = ty;
+        values[6] = 0;
+        values[7] = 0;
+        values[8] = 1;
+    }
+
+    /**
+     * Maps a rectangle of the displayed image back to the stored one, for example the visible part
+     * of a zoomed image to the tiles which have to be decoded for it.
+     *
+     * @param width  width of the stored image
+     * @param height height of the stored image
+     * @param rect   left, top, right, bottom in displayed coordinates, replaced by the rectangle in
+     *               stored coordinates
+     */
+    public void toStored(float width, float height, float[] rect) {
+        float tx = (a < 0 ? width : 0) + (b < 0 ? height : 0);
+        float ty = (c < 0 ? width : 0) + (d < 0 ? height : 0);
+        // the linear part only swaps and negates axes, its inverse is its transpose
+        float x0 = rect[0] - tx;
+        float y0 = rect[1] - ty;
+        float x1 = rect[2] - tx;
+        float y1 = rect[3] - ty;
+        float storedX0 = a * x0 + c * y0;
+        float storedY0 = b * x0 + d * y0;
+        float storedX1 = a * x1 + c * y1;
+        float storedY1 = b * x1 + d * y1;
+        rect[0] = Math.min(storedX0, storedX1);
+        rect[1] = Math.min(storedY0, storedY1);
+        rect[2] = Math.max(storedX0, storedX1);
+        rect[3] = Math.max(storedY0, storedY1);
+    }
+}
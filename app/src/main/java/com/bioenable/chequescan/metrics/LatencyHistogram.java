@@ -0,0 +1,100 @@
+package com.bioenable.chequescan.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of durations with a fixed set of buckets, so recording never allocates and never
+ * blocks. Values are kept in microseconds. Below 4 us every microsecond has a bucket, above that
+ * every power of two is split into four buckets, which keeps percentiles within 25% of the true
+ * value up to several days.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKETS = 4;
+    private static final int BUCKETS = SUB_BUCKETS + 40 * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param nanos duration to record, negative values are ignored
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            return;
+        }
+        long micros = nanos / 1000;
+        counts.incrementAndGet(bucketOf(micros));
+        total.incrementAndGet();
+        long currentMax;
+        while (micros > (currentMax = max.get()) && !max.compareAndSet(currentMax, micros)) {
+            // another thread raised the maximum in between, check again
+        }
+    }
+
+    /**
+     * @return number of recorded values
+     */
+    public long getCount() {
+        return total.get();
+    }
+
+    /**
+     * @return largest recorded value in microseconds
+     */
+    public long getMaxMicros() {
+        return max.get();
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return upper bound of the bucket holding the given percentile in microseconds, 0 if
+     * nothing was recorded
+     */
+    public long getPercentileMicros(double percentile) {
+        long count = total.get();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(count * percentile / 100);
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += counts.get(bucket);
+            if (seen >= Math.max(1, rank)) {
+                return Math.min(upperBound(bucket), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Forgets all recorded values.
+     */
+    public void reset() {
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            counts.set(bucket, 0);
+        }
+        total.set(0);
+        max.set(0);
+    }
+
+    static int bucketOf(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int sub = (int) (micros >> (exponent - 2)) & (SUB_BUCKETS - 1);
+        return Math.min(BUCKETS - 1, SUB_BUCKETS + (exponent - 2) * SUB_BUCKETS + sub);
+    }
+
+    static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = (bucket - SUB_BUCKETS) / SUB_BUCKETS + 2;
+        int sub = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + sub + 1) << (exponent - 2)) - 1;
+    }
+}
@@ -0,0 +1,23 @@
+package com.bioenable.chequescan.metrics;
+
+/**
+ * Running totals kept by {@link ScanMetrics} next to the stage latencies.
+ */
+public enum ScanCounter {
+    /**
+     * Bytes written into local image files
+     */
+    BYTES_COPIED,
+    /**
+     * Number of preview decodes
+     */
+    IMAGES_DECODED,
+    /**
+     * Pixels of the full resolution images which were decoded
+     */
+    SOURCE_PIXELS,
+    /**
+     * Pixels of the downsampled previews which were produced
+     */
+    DECODED_PIXELS
+}
@@ -0,0 +1,123 @@
+package com.bioenable.chequescan.metrics;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histograms of the {@link ScanStage}s and the {@link ScanCounter} totals of the running
+ * process. Call sites measure a stage like this:
+ * <pre>
+ *   long start = ScanMetrics.start();
+ *   ...
+ *   ScanMetrics.record(ScanStage.DECODE, start);
+ * </pre>
+ * Recording is lock and allocation free. While metrics are disabled start() returns 0 and
+ * record() returns after reading a single volatile flag, so the calls can stay in release builds.
+ */
+public final class ScanMetrics {
+
+    private static final LatencyHistogram[] HISTOGRAMS = new LatencyHistogram[ScanStage.values().length];
+    private static final AtomicLongArray COUNTERS = new AtomicLongArray(ScanCounter.values().length);
+    private static volatile boolean enabled;
+
+    static {
+        for (int i = 0; i < HISTOGRAMS.length; i++) {
+            HISTOGRAMS[i] = new LatencyHistogram();
+        }
+    }
+
+    private ScanMetrics() {
+    }
+
+    public static void setEnabled(boolean enabled) {
+        ScanMetrics.enabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return timestamp to pass to {@link #record(ScanStage, long)} or 0 if metrics are disabled
+     */
+    public static long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Records the time since startNanos for the stage. Stages started while metrics were disabled
+     * (startNanos is 0) are not recorded.
+     *
+     * @param stage      stage which ended
+     * @param startNanos value of {@link #start()} when the stage began
+     */
+    public static void record(ScanStage stage, long startNanos) {
+        if (!enabled || startNanos == 0) {
+            return;
+        }
+        HISTOGRAMS[stage.ordinal()].record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * @param counter counter to increase
+     * @param delta   amount to add
+     */
+    public static void add(ScanCounter counter, long delta) {
+        if (!enabled) {
+            return;
+        }
+        COUNTERS.addAndGet(counter.ordinal(), delta);
+    }
+
+    /**
+     * @param stage a stage
+     * @return histogram of the stage, for reading
+     */
+    public static LatencyHistogram histogram(ScanStage stage) {
+        return HISTOGRAMS[stage.ordinal()];
+    }
+
+    /**
+     * @param counter a counter
+     * @return current value of the counter
+     */
+    public static long get(ScanCounter counter) {
+        return COUNTERS.get(counter.ordinal());
+    }
+
+    /**
+     * Forgets everything recorded so far.
+     */
+    public static void reset() {
+        for (LatencyHistogram histogram : HISTOGRAMS) {
+            histogram.reset();
+        }
+        for (int i = 0; i < COUNTERS.length(); i++) {
+            COUNTERS.set(i, 0);
+        }
+    }
+
+    /**
+     * Writes a table of the stage percentiles in milliseconds followed by the counters.
+     *
+     * @param out where the snapshot is written
+     * @throws IOException if out cannot be written
+     */
+    public static void dump(Appendable out) throws IOException {
+        out.append(String.format(Locale.US, "%-10s %7s %9s %9s %9s %9s%n",
+                "stage", "count", "p50 ms", "p95 ms", "p99 ms", "max ms"));
+        for (ScanStage stage : ScanStage.values()) {
+            LatencyHistogram histogram = histogram(stage);
+            out.append(String.format(Locale.US, "%-10s %7d %9.1f %9.1f %9.1f %9.1f%n",
+                    stage, histogram.getCount(),
+                    histogram.getPercentileMicros(50) / 1000.0,
+                    histogram.getPercentileMicros(95) / 1000.0,
+                    histogram.getPercentileMicros(99) / 1000.0,
+                    histogram.getMaxMicros() / 1000.0));
+        }
+        for (ScanCounter counter : ScanCounter.values()) {
+            out.append(String.format(Locale.US, "%-16s %d%n", counter, get(counter)));
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.bioenable.chequescan.metrics;
+
+/**
+ * The stages a scan goes through between the user picking a source and the image being shown, and
+ * the work of the zoomable viewer afterwards. Each stage has its own latency histogram in
+ * {@link ScanMetrics}.
+ */
+public enum ScanStage {
+    /**
+     * From the tap on a source button until the camera, gallery or Drive picker returns an image
+     */
+    ACQUIRE,
+    /**
+     * Copy of the picked image into the app's storage
+     */
+    COPY,
+    /**
+     * Proxy decode and quality check of a stored image, before the preview is decoded
+     */
+    QUALITY,
+    /**
+     * From the tap on a source button until the embedded EXIF thumbnail is shown, ahead of the preview
+     */
+    THUMBNAIL,
+    /**
+     * Bounds check and downsampled decode of the preview on the decode thread
+     */
+    DECODE,
+    /**
+     * From the end of the decode until the preview is set on the view on the main thread
+     */
+    DISPLAY,
+    /**
+     * From the tap on a source button until the preview is shown
+     */
+    TOTAL,
+    /**
+     * Region decode of one tile of the zoomable viewer on its decode thread
+     */
+    TILE,
+    /**
+     * Drawing of one frame of the zoomable viewer, has to stay well below 16 ms for 60 fps
+     */
+    FRAME
+}
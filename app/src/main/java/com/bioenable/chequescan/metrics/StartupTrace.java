@@ -0,0 +1,102 @@
+package com.bioenable.chequescan.metrics;
+
+import java.util.Locale;
+
+/**
+ * Trace of one cold start: the time from the start of the process until the first frame of the
+ * launcher is drawn, and until the silent sign in has told whether somebody is signed in. All times
+ * are milliseconds on the same monotonic clock, SystemClock.uptimeMillis() on a device.
+ * <p>
+ * Every milestone is only taken the first time it is reached. Traces of many starts go into a CSV
+ * file, one {@link #toCsvLine()} per start below {@link #CSV_HEADER}.
+ * <p>
+ * Not thread safe, the milestones are reached on the main thread.
+ */
+public final class StartupTrace {
+
+    /**
+     * Columns of {@link #toCsvLine()}
+     */
+    public static final String CSV_HEADER = "first_frame_ms,signed_in_ms,signed_in,cached_account";
+
+    private final long processStart;
+    private long firstFrame = -1;
+    private long signInResolved = -1;
+    private boolean signedIn;
+    private boolean cachedAccount;
+
+    /**
+     * @param processStart when the process started
+     */
+    public StartupTrace(long processStart) {
+        this.processStart = processStart;
+    }
+
+    /**
+     * @param at when the first frame was drawn
+     * @return whether this was the first call
+     */
+    public boolean firstFrame(long at) {
+        if (firstFrame >= 0) {
+            return false;
+        }
+        firstFrame = at;
+        return true;
+    }
+
+    /**
+     * @param at       when the silent sign in finished
+     * @param signedIn whether it found a signed in account
+     * @return whether this was the first call
+     */
+    public boolean signInResolved(long at, boolean signedIn) {
+        if (signInResolved >= 0) {
+            return false;
+        }
+        signInResolved = at;
+        this.signedIn = signedIn;
+        return true;
+    }
+
+    /**
+     * @param cachedAccount whether the first frame showed the account remembered from the last run
+     */
+    public void setCachedAccount(boolean cachedAccount) {
+        this.cachedAccount = cachedAccount;
+    }
+
+    /**
+     * @return whether both milestones were reached
+     */
+    public boolean isComplete() {
+        return firstFrame >= 0 && signInResolved >= 0;
+    }
+
+    /**
+     * @return time from the process start to the first frame, -1 if it was not drawn yet
+     */
+    public long getFirstFrameMillis() {
+        return firstFrame >= 0 ? firstFrame - processStart : -1;
+    }
+
+    /**
+     * @return time from the process start to the end of the silent sign in, -1 if it did not end yet
+     */
+    public long getSignInMillis() {
+        return signInResolved >= 0 ? signInResolved - processStart : -1;
+    }
+
+    public boolean isSignedIn() {
+        return signedIn;
+    }
+
+    public String toCsvLine() {
+        return getFirstFrameMillis() + "," + getSignInMillis() + "," + signedIn + "," + cachedAccount;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "first frame after %d ms, %s after %d ms%s", getFirstFrameMillis(),
+                signedIn ? "signed in" : "signed out", getSignInMillis(), cachedAccount ? ", cached account shown" : "");
+    }
+}
@@ -0,0 +1,127 @@
+package com.bioenable.chequescan.micr;
+
+/**
+ * The E-13B character set printed in magnetic ink on the code line of a cheque: the digits 0 - 9 and
+ * the four symbols Transit, Amount, On-Us and Dash.
+ * <p>
+ * E-13B glyphs are designed on a grid of 0.013 inch squares, nine squares high. Each glyph is kept
+ * here as a 7 x 9 grid, which is what the classifier compares against, and can be rendered at any
+ * size to produce templates and synthetic test images. Characters sit on a fixed pitch of 0.125
+ * inch, which is {@link #PITCH_CELLS} grid squares.
+ * <p>
+ * The symbols are written with the letters used by most MICR fonts:
+ * A = Transit, B = Amount, C = On-Us, D = Dash.
+ */
+public final class E13BFont {
+
+    public static final char TRANSIT = 'A';
+    public static final char AMOUNT = 'B';
+    public static final char ON_US = 'C';
+    public static final char DASH = 'D';
+
+    public static final int GRID_WIDTH = 7;
+    public static final int GRID_HEIGHT = 9;
+
+    /**
+     * Distance between the left edges of two neighbouring characters, in grid squares
+     */
+    public static final float PITCH_CELLS = GRID_HEIGHT * 0.125f / 0.117f;
+
+    /**
+     * All characters of the font, in the order of {@link #GLYPHS}
+     */
+    static final char[] CHARACTERS = {
+            '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', TRANSIT, AMOUNT, ON_US, DASH
+    };
+
+    private static final String[][] GLYPHS = {
+            {".#####.", ".#...#.", ".#...#.", ".#...#.", "##...##", "##...##", "##...##", "##...##", "#######"},
+            {".###...", "...#...", "...#...", "...#...", "..###..", "..###..", "..###..", "..###..", "..###.."},
+            {"#####..", "....#..", "....#..", "....#..", "#####..", "#......", "#......", "##.....", "#######"},
+            {"#####..", "....#..", "....#..", "..###..", "....##.", "....##.", "....##.", "....##.", "######."},
+            {"#......", "#......", "#......", "#..#...", "#..#...", "#######", "...##..", "...##..", "...##.."},
+            {"#####..", "#......", "#......", "#####..", "....##.", "....##.", "....##.", "....##.", "######."},
+            {"#......", "#......", "#......", "#......", "######.", "##...#.", "##...#.", "##...#.", "######."},
+            {"######.", ".....#.", ".....#.", "....#..", "...##..", "...##..", "...##..", "...##..", "...##.."},
+            {".####..", ".#..#..", ".#..#..", ".####..", "##..##.", "##..##.", "##..##.", "##..##.", "######."},
+            {"######.", "#....#.", "#....#.", "#....#.", "######.", "....##.", "....##.", "....##.", "....##."},
+            {"##.....", "##..##.", "##..##.", "##.....", "##.....", "##.....", "##..##.", "##..##.", "##....."},
+            {"...##..", "##.##..", "##.##..", "...##..", "...##..", "...##..", "...####", "...####", "...##.."},
+            {"##.##..", "##.##..", "##.##..", "##.##..", ".......", ".......", "##.##..", "##.##..", "......."},
+            {".......", ".......", ".......", ".......", "##.##.#", "##.##.#", ".......", ".......", "......."},
+    };
+
+    private E13BFont() {
+    }
+
+    /**
+     * @param c a character of the font
+     * @return index of the character in {@link #CHARACTERS} or -1 if it is not part of the font
+     */
+    static int indexOf(char c) {
+        for (int i = 0; i < CHARACTERS.length; i++) {
+            if (CHARACTERS[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param glyph index of the character
+     * @param x     column of the grid
+     * @param y     row of the grid
+     * @return whether the grid square is inked
+     */
+    static boolean isInk(int glyph, int x, int y) {
+        return GLYPHS[glyph][y].charAt(x) == '#';
+    }
+
+    /**
+     * Draws a code line into a binary image, one byte per pixel. Spaces leave one pitch empty, other
+     * characters which are not part of the font are skipped the same way.
+     *
+     * @param text     characters to draw
+     * @param image    binary image, ink is written as the given value
+     * @param width    width of the image
+     * @param left     x of the left edge of the first character
+     * @param top      y of the top edge of the characters
+     * @param cellSize size of one grid square in pixels
+     * @param ink      value written for inked pixels
+     */
+    public static void render(CharSequence text, byte[] image, int width, int left, int top,
+                              float cellSize, byte ink) {
+        int height = image.length / width;
+        for (int i = 0; i < text.length(); i++) {
+            int glyph = indexOf(text.charAt(i));
+            if (glyph < 0) {
+                continue;
+            }
+            float originX = left + i * PITCH_CELLS * cellSize;
+            for (int gy = 0; gy < GRID_HEIGHT; gy++) {
+                int y0 = Math.round(top + gy * cellSize);
+                int y1 = Math.min(height, Math.round(top + (gy + 1) * cellSize));
+                for (int gx = 0; gx < GRID_WIDTH; gx++) {
+                    if (!isInk(glyph, gx, gy)) {
+                        continue;
+                    }
+                    int x0 = Math.round(originX + gx * cellSize);
+                    int x1 = Math.min(width, Math.round(originX + (gx + 1) * cellSize));
+                    for (int y = Math.max(0, y0); y < y1; y++) {
+                        for (int x = Math.max(0, x0); x < x1; x++) {
+                            image[y * width + x] = ink;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @param cellSize size of one grid square in pixels
+     * @return width in pixels a code line of the given length takes when rendered
+     */
+    public static int renderedWidth(int length, float cellSize) {
+        return Math.round(((length - 1) * PITCH_CELLS + GRID_WIDTH) * cellSize);
+    }
+}
@@ -0,0 +1,180 @@
+package com.bioenable.chequescan.micr;
+
+/**
+ * A recognised code line. The text uses the symbol letters of {@link E13BFont}, spaces where the
+ * line has gaps and '?' for characters which could not be classified.
+ * <p>
+ * The fields are split by their delimiting symbols, which covers both common layouts:
+ * <pre>
+ *   A routing A  account C  cheque        (US: transit field first)
+ *   C cheque C  sort code A  account C    (India, Canada: serial field first)
+ * </pre>
+ * The routing number is the field enclosed by two Transit symbols, or the one ending at the only
+ * Transit symbol. The account number is the field after it, up to the next On-Us symbol. The cheque
+ * number is the field enclosed by two On-Us symbols before the routing number, or otherwise the
+ * digits following the account number.
+ */
+public class MicrLine {
+
+    /**
+     * Marks an unreadable character in {@link #getText()}
+     */
+    public static final char REJECT = '?';
+
+    private final String text;
+    private final int[] confidences;
+
+    /**
+     * @param text        recognised characters
+     * @param confidences confidence of every character from 0 to 100, spaces have 100
+     */
+    public MicrLine(String text, int[] confidences) {
+        this.text = text;
+        this.confidences = confidences;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * @param index position in the text
+     * @return confidence of that character from 0 to 100
+     */
+    public int getConfidence(int index) {
+        return confidences[index];
+    }
+
+    /**
+     * @return the lowest confidence of all characters, 0 for an empty line
+     */
+    public int getMinConfidence() {
+        if (confidences.length == 0) {
+            return 0;
+        }
+        int min = 100;
+        for (int confidence : confidences) {
+            min = Math.min(min, confidence);
+        }
+        return min;
+    }
+
+    /**
+     * @return whether every character of the line was classified
+     */
+    public boolean isComplete() {
+        return !text.isEmpty() && text.indexOf(REJECT) < 0;
+    }
+
+    /**
+     * @return routing (or sort) code or null if the line has no Transit symbol
+     */
+    public String getRoutingNumber() {
+        int first = text.indexOf(E13BFont.TRANSIT);
+        if (first < 0) {
+            return null;
+        }
+        int second = text.indexOf(E13BFont.TRANSIT, first + 1);
+        if (second >= 0) {
+            return digits(first + 1, second);
+        }
+        return digits(previousSymbol(first) + 1, first);
+    }
+
+    /**
+     * @return account number or null if there is no field between the routing number and an On-Us
+     * symbol
+     */
+    public String getAccountNumber() {
+        int start = routingEnd();
+        if (start < 0) {
+            return null;
+        }
+        int end = text.indexOf(E13BFont.ON_US, start);
+        if (end < 0) {
+            return null;
+        }
+        String account = digits(start, end);
+        return account.isEmpty() ? null : account;
+    }
+
+    /**
+     * @return cheque (serial) number or null if the line has none
+     */
+    public String getChequeNumber() {
+        int transit = text.indexOf(E13BFont.TRANSIT);
+        int first = text.indexOf(E13BFont.ON_US);
+        if (first >= 0 && (transit < 0 || first < transit)) {
+            int second = text.indexOf(E13BFont.ON_US, first + 1);
+            if (second >= 0 && (transit < 0 || second < transit)) {
+                String serial = digits(first + 1, second);
+                if (!serial.isEmpty()) {
+                    return serial;
+                }
+            }
+        }
+        int start = routingEnd();
+        if (start < 0) {
+            return null;
+        }
+        int accountEnd = text.indexOf(E13BFont.ON_US, start);
+        if (accountEnd < 0) {
+            return null;
+        }
+        int end = accountEnd + 1;
+        while (end < text.length() && (Character.isDigit(text.charAt(end)) || text.charAt(end) == ' ')) {
+            end++;
+        }
+        String serial = digits(accountEnd + 1, end);
+        return serial.isEmpty() ? null : serial;
+    }
+
+    /**
+     * @return amount field in cents as printed between two Amount symbols or null if there is none
+     */
+    public String getAmount() {
+        int first = text.indexOf(E13BFont.AMOUNT);
+        int second = first < 0 ? -1 : text.indexOf(E13BFont.AMOUNT, first + 1);
+        return second < 0 ? null : digits(first + 1, second);
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+
+    private int routingEnd() {
+        int first = text.indexOf(E13BFont.TRANSIT);
+        if (first < 0) {
+            return -1;
+        }
+        int second = text.indexOf(E13BFont.TRANSIT, first + 1);
+        return (second >= 0 ? second : first) + 1;
+    }
+
+    private int previousSymbol(int index) {
+        for (int i = index - 1; i >= 0; i--) {
+            char c = text.charAt(i);
+            if (c == E13BFont.TRANSIT || c == E13BFont.AMOUNT || c == E13BFont.ON_US) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the digits and dashes between start and end, spaces dropped
+     */
+    private String digits(int start, int end) {
+        StringBuilder builder = new StringBuilder(Math.max(0, end - start));
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (Character.isDigit(c) || c == REJECT) {
+                builder.append(c);
+            } else if (c == E13BFont.DASH) {
+                builder.append('-');
+            }
+        }
+        return builder.toString();
+    }
+}
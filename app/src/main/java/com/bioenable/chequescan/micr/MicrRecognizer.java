@@ -0,0 +1,283 @@
+package com.bioenable.chequescan.micr;
+
+import java.util.Arrays;
+
+/**
+ * Reads the E-13B code line at the bottom of a binarized cheque (one byte per pixel, non zero for
+ * ink, as produced by ChequePreprocessor). The recognition runs in three steps:
+ * <p>
+ * 1. Locating the band: rows in the bottom part of the image are projected, the lowest run of rows
+ *    holding ink and at least {@link #MIN_CHARACTER_HEIGHT} rows high is the code line. Its height is
+ *    the character height, which fixes the grid square size and the pitch of the line.
+ * 2. Segmenting: columns of the band are projected into runs of ink. Columns with less ink than half
+ *    a grid square are treated as empty, which drops specks of dirt. Runs which start within one
+ *    glyph width of each other are merged, so the symbols which consist of several separate marks
+ *    become one character.
+ * 3. Classifying: every character is sampled into a 7 x 9 grid of ink coverage, aligned on the
+ *    centre of the character, and compared against the templates of {@link E13BFont} by the sum of
+ *    absolute differences.
+ * <p>
+ * All the intermediate state lives in arrays owned by the recognizer, which only grow when a larger
+ * image comes along. Classifying a character allocates nothing. An instance must therefore only be
+ * used by one thread at a time.
+ */
+public class MicrRecognizer {
+
+    /**
+     * Lower part of the image searched for the code line when no bounds are given
+     */
+    public static final float DEFAULT_SEARCH_FRACTION = 0.3f;
+
+    /**
+     * Characters smaller than this (in pixels) are too coarse to classify
+     */
+    public static final int MIN_CHARACTER_HEIGHT = 9;
+
+    private static final int FEATURES = E13BFont.GRID_WIDTH * E13BFont.GRID_HEIGHT;
+    private static final int MAX_DISTANCE = FEATURES * 255;
+    // characters further away than this from every template are rejected
+    private static final int REJECT_DISTANCE = MAX_DISTANCE / 4;
+    private static final int TEMPLATE_CELL = 12;
+    private static final int MAX_SPACES = 8;
+
+    private final int[] templates = new int[E13BFont.CHARACTERS.length * FEATURES];
+    private final int[] features = new int[FEATURES];
+
+    private int[] rowInk = new int[0];
+    private int[] columnInk = new int[0];
+    private int[] glyphStart = new int[0];
+    private int[] glyphEnd = new int[0];
+    private int[] glyphInk = new int[0];
+    private char[] text = new char[0];
+    private int[] confidences = new int[0];
+
+    private long charactersRecognized;
+
+    public MicrRecognizer() {
+        int cellCount = E13BFont.GRID_WIDTH + 2;
+        int width = cellCount * TEMPLATE_CELL;
+        int height = E13BFont.GRID_HEIGHT * TEMPLATE_CELL;
+        byte[] image = new byte[width * height];
+        for (int glyph = 0; glyph < E13BFont.CHARACTERS.length; glyph++) {
+            Arrays.fill(image, (byte) 0);
+            E13BFont.render(String.valueOf(E13BFont.CHARACTERS[glyph]), image, width,
+                    TEMPLATE_CELL, 0, TEMPLATE_CELL, (byte) 1);
+            int left = width;
+            int right = 0;
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    if (image[y * width + x] != 0) {
+                        left = Math.min(left, x);
+                        right = Math.max(right, x + 1);
+                    }
+                }
+            }
+            sample(image, width, height, 0, TEMPLATE_CELL, left, right);
+            System.arraycopy(features, 0, templates, glyph * FEATURES, FEATURES);
+        }
+    }
+
+    /**
+     * Reads the code line from the bottom {@link #DEFAULT_SEARCH_FRACTION} of the image.
+     *
+     * @param binary binary image, non zero bytes are ink
+     * @param width  width of the image
+     * @param height height of the image
+     * @return the recognised line, empty if no code line was found
+     */
+    public MicrLine recognize(byte[] binary, int width, int height) {
+        return recognize(binary, width, height, Math.round(height * (1 - DEFAULT_SEARCH_FRACTION)), height);
+    }
+
+    /**
+     * Reads the code line from the lowest text band between searchTop and searchBottom.
+     *
+     * @param binary       binary image, non zero bytes are ink
+     * @param width        width of the image
+     * @param height       height of the image
+     * @param searchTop    first row searched
+     * @param searchBottom row after the last row searched
+     * @return the recognised line, empty if no code line was found
+     */
+    public MicrLine recognize(byte[] binary, int width, int height, int searchTop, int searchBottom) {
+        if (binary.length < width * height) {
+            throw new IllegalArgumentException("Image is smaller than " + width + "x" + height);
+        }
+        searchTop = Math.max(0, searchTop);
+        searchBottom = Math.min(height, searchBottom);
+        ensureCapacity(width, height);
+
+        // 1. the lowest band of rows with ink
+        int minRowInk = Math.max(2, width / 200);
+        for (int y = searchTop; y < searchBottom; y++) {
+            int ink = 0;
+            for (int i = y * width, end = i + width; i < end; i++) {
+                if (binary[i] != 0) {
+                    ink++;
+                }
+            }
+            rowInk[y] = ink;
+        }
+        int bandTop = -1;
+        int bandBottom = -1;
+        int y = searchBottom - 1;
+        while (y >= searchTop) {
+            while (y >= searchTop && rowInk[y] < minRowInk) {
+                y--;
+            }
+            int bottom = y + 1;
+            while (y >= searchTop && rowInk[y] >= minRowInk) {
+                y--;
+            }
+            if (bottom - (y + 1) >= MIN_CHARACTER_HEIGHT) {
+                bandTop = y + 1;
+                bandBottom = bottom;
+                break;
+            }
+        }
+        if (bandTop < 0) {
+            return new MicrLine("", new int[0]);
+        }
+        int characterHeight = bandBottom - bandTop;
+        float cell = (float) characterHeight / E13BFont.GRID_HEIGHT;
+        float pitch = E13BFont.PITCH_CELLS * cell;
+
+        // 2. column runs of the band, merged into characters
+        for (int x = 0; x < width; x++) {
+            columnInk[x] = 0;
+        }
+        for (int row = bandTop; row < bandBottom; row++) {
+            for (int x = 0, i = row * width; x < width; x++, i++) {
+                if (binary[i] != 0) {
+                    columnInk[x]++;
+                }
+            }
+        }
+        int glyphs = 0;
+        float maxGlyphWidth = 0.85f * pitch;
+        int minGlyphInk = Math.round(2 * cell * cell);
+        int minColumnInk = Math.max(1, Math.round(cell / 2));
+        int x = 0;
+        while (x < width) {
+            if (columnInk[x] < minColumnInk) {
+                x++;
+                continue;
+            }
+            int start = x;
+            int ink = 0;
+            while (x < width && columnInk[x] >= minColumnInk) {
+                ink += columnInk[x++];
+            }
+            if (glyphs > 0 && x - glyphStart[glyphs - 1] <= maxGlyphWidth) {
+                glyphEnd[glyphs - 1] = x;
+                glyphInk[glyphs - 1] += ink;
+            } else {
+                glyphStart[glyphs] = start;
+                glyphEnd[glyphs] = x;
+                glyphInk[glyphs] = ink;
+                glyphs++;
+            }
+        }
+
+        // 3. classification
+        int length = 0;
+        float previousCentre = Float.NaN;
+        for (int g = 0; g < glyphs; g++) {
+            if (glyphInk[g] < minGlyphInk) {
+                // a speck of dirt, not a character
+                continue;
+            }
+            float centre = (glyphStart[g] + glyphEnd[g]) / 2f;
+            if (!Float.isNaN(previousCentre)) {
+                int spaces = Math.min(MAX_SPACES, Math.round((centre - previousCentre) / pitch) - 1);
+                for (int s = 0; s < spaces; s++) {
+                    text[length] = ' ';
+                    confidences[length++] = 100;
+                }
+            }
+            previousCentre = centre;
+            sample(binary, width, height, bandTop, cell, glyphStart[g], glyphEnd[g]);
+            classify(length++);
+        }
+        charactersRecognized += length;
+        return new MicrLine(new String(text, 0, length), Arrays.copyOf(confidences, length));
+    }
+
+    /**
+     * @return number of characters (including spaces) this recognizer has produced so far
+     */
+    public long getCharactersRecognized() {
+        return charactersRecognized;
+    }
+
+    /**
+     * Samples the ink coverage of one character into features, on a grid of square cells whose
+     * middle column lies on the centre of the character.
+     */
+    private void sample(byte[] image, int width, int height, int top, float cell, int left, int right) {
+        float originX = (left + right) / 2f - E13BFont.GRID_WIDTH * cell / 2f;
+        for (int gy = 0; gy < E13BFont.GRID_HEIGHT; gy++) {
+            int y0 = Math.round(top + gy * cell);
+            int y1 = Math.round(top + (gy + 1) * cell);
+            for (int gx = 0; gx < E13BFont.GRID_WIDTH; gx++) {
+                int x0 = Math.round(originX + gx * cell);
+                int x1 = Math.round(originX + (gx + 1) * cell);
+                int area = (y1 - y0) * (x1 - x0);
+                int ink = 0;
+                for (int y = Math.max(0, y0), yEnd = Math.min(height, y1); y < yEnd; y++) {
+                    for (int x = Math.max(0, x0), xEnd = Math.min(width, x1), i = y * width + x; x < xEnd; x++, i++) {
+                        if (image[i] != 0) {
+                            ink++;
+                        }
+                    }
+                }
+                features[gy * E13BFont.GRID_WIDTH + gx] = area <= 0 ? 0 : ink * 255 / area;
+            }
+        }
+    }
+
+    /**
+     * Compares features against every template and writes the best match into text[index].
+     */
+    private void classify(int index) {
+        int best = -1;
+        int bestDistance = Integer.MAX_VALUE;
+        int secondDistance = Integer.MAX_VALUE;
+        for (int glyph = 0, offset = 0; glyph < E13BFont.CHARACTERS.length; glyph++, offset += FEATURES) {
+            int distance = 0;
+            for (int f = 0; f < FEATURES && distance < secondDistance; f++) {
+                distance += Math.abs(features[f] - templates[offset + f]);
+            }
+            if (distance < bestDistance) {
+                secondDistance = bestDistance;
+                bestDistance = distance;
+                best = glyph;
+            } else if (distance < secondDistance) {
+                secondDistance = distance;
+            }
+        }
+        if (bestDistance > REJECT_DISTANCE) {
+            text[index] = MicrLine.REJECT;
+            confidences[index] = 0;
+            return;
+        }
+        text[index] = E13BFont.CHARACTERS[best];
+        confidences[index] = secondDistance == 0 ? 0 : 100 * (secondDistance - bestDistance) / secondDistance;
+    }
+
+    private void ensureCapacity(int width, int height) {
+        if (rowInk.length < height) {
+            rowInk = new int[height];
+        }
+        if (columnInk.length < width) {
+            columnInk = new int[width];
+            // every character is at least one column plus one gap wide, spaces are capped per gap
+            int maxGlyphs = width / 2 + 1;
+            glyphStart = new int[maxGlyphs];
+            glyphEnd = new int[maxGlyphs];
+            glyphInk = new int[maxGlyphs];
+            text = new char[maxGlyphs * (MAX_SPACES + 1)];
+            confidences = new int[text.length];
+        }
+    }
+}
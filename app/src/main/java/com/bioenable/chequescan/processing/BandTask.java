@@ -0,0 +1,57 @@
+package com.bioenable.chequescan.processing;
+
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Splits a range of rows in halves until a band of at most rowsPerBand rows is left, which is done
+ * in one go by {@link #compute(int, int)}. The image stages of the cheque pipeline hand their row
+ * loops to their ForkJoinPool this way.
+ */
+public abstract class BandTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int fromRow;
+    private final int toRow;
+    private final int rowsPerBand;
+
+    /**
+     * @param fromRow     first row
+     * @param toRow       row after the last one
+     * @param rowsPerBand largest number of rows done without splitting further
+     */
+    protected BandTask(int fromRow, int toRow, int rowsPerBand) {
+        this.fromRow = fromRow;
+        this.toRow = toRow;
+        this.rowsPerBand = rowsPerBand;
+    }
+
+    /**
+     * Does the rows of one band.
+     *
+     * @param fromRow first row of the band
+     * @param toRow   row after the last one of the band
+     */
+    protected abstract void compute(int fromRow, int toRow);
+
+    @Override
+    protected final void compute() {
+        if (toRow - fromRow <= rowsPerBand) {
+            compute(fromRow, toRow);
+            return;
+        }
+        final int middle = (fromRow + toRow) >>> 1;
+        final BandTask outer = this;
+        invokeAll(new BandTask(fromRow, middle, rowsPerBand) {
+            @Override
+            protected void compute(int from, int to) {
+                outer.compute(from, to);
+            }
+        }, new BandTask(middle, toRow, rowsPerBand) {
+            @Override
+            protected void compute(int from, int to) {
+                outer.compute(from, to);
+            }
+        });
+    }
+}
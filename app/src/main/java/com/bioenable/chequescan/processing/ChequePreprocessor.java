@@ -0,0 +1,381 @@
+package com.bioenable.chequescan.processing;
+
+import java.io.Closeable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Turns a captured cheque into a binary image which the recognition stages work on. All methods
+ * take primitive pixel buffers and have no Android dependency, so the engine runs the same on the
+ * device (fed from Bitmap.getPixels) and in JVM tests and benchmarks.
+ * <p>
+ * The steps are:
+ * 1. Grayscale conversion of ARGB pixels with integer luma weights.
+ * 2. Global Otsu threshold, good enough for evenly lit flatbed scans.
+ * 3. Sauvola adaptive threshold for handheld photos, where shadows and uneven light make any global
+ *    threshold fail. Local mean and deviation come from integral images.
+ * <p>
+ * The work is split into row bands or tiles which run on a ForkJoinPool. Sauvola tiles compute the
+ * integral images of their own area plus a halo of half the window, so no full size integral image
+ * (two ints per pixel) is ever allocated. The per tile scratch buffers and histograms are kept in the
+ * engine and reused for every following image.
+ * <p>
+ * Binary images use one byte per pixel, {@link #INK} for dark (text) pixels and {@link #PAPER} for
+ * the background. Gray values are unsigned bytes, read them with {@code & 0xFF}.
+ */
+public class ChequePreprocessor implements Closeable {
+
+    public static final byte INK = 1;
+    public static final byte PAPER = 0;
+
+    /**
+     * Sauvola window used by {@link #ChequePreprocessor(int)}, about one character of a 300 dpi cheque
+     */
+    public static final int DEFAULT_WINDOW = 31;
+
+    /**
+     * Sauvola sensitivity used by {@link #ChequePreprocessor(int)}
+     */
+    public static final double DEFAULT_K = 0.34;
+
+    /*
+     * Integral images are kept in ints and allowed to wrap around. Window sums are differences of
+     * four entries, which are exact as long as the true window sum fits in an int. For the sum of
+     * squares that limits the window to 181 pixels (181 * 181 * 255 * 255 < 2^31).
+     */
+    private static final int MAX_WINDOW = 181;
+    private static final int TILE_SIZE = 256;
+    private static final int ROWS_PER_BAND = 64;
+    private static final float DYNAMIC_RANGE = 128f;
+
+    private final ForkJoinPool pool;
+    private final int radius;
+    private final float k;
+    // reciprocals of the window widths and heights which can occur, 1 / n at index n
+    private final float[] reciprocals;
+    private final ConcurrentLinkedQueue<TileScratch> tileScratch = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<int[]> histograms = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Creates an engine with the default Sauvola window and sensitivity.
+     *
+     * @param parallelism number of threads used for one image
+     */
+    public ChequePreprocessor(int parallelism) {
+        this(parallelism, DEFAULT_WINDOW, DEFAULT_K);
+    }
+
+    /**
+     * @param parallelism number of threads used for one image
+     * @param window      side of the Sauvola window in pixels, odd and at most 181
+     * @param k           Sauvola sensitivity, usually between 0.2 and 0.5
+     */
+    public ChequePreprocessor(int parallelism, int window, double k) {
+        if (window < 3 || window > MAX_WINDOW || window % 2 == 0) {
+            throw new IllegalArgumentException("Window has to be odd and between 3 and " + MAX_WINDOW);
+        }
+        this.pool = new ForkJoinPool(parallelism);
+        this.radius = window / 2;
+        this.k = (float) k;
+        this.reciprocals = new float[window + 1];
+        for (int n = 1; n <= window; n++) {
+            reciprocals[n] = 1f / n;
+        }
+    }
+
+    /**
+     * Converts ARGB pixels (as returned by Bitmap.getPixels) into 8 bit gray.
+     *
+     * @param argb   source pixels, row major
+     * @param width  width of the image
+     * @param height height of the image
+     * @param gray   output, at least width * height long
+     */
+    public void toGrayscale(final int[] argb, final int width, int height, final byte[] gray) {
+        checkSize(argb.length, width, height);
+        checkSize(gray.length, width, height);
+        pool.invoke(new BandTask(0, height, ROWS_PER_BAND) {
+            @Override
+            protected void compute(int fromRow, int toRow) {
+                for (int i = fromRow * width, end = toRow * width; i < end; i++) {
+                    int pixel = argb[i];
+                    int r = (pixel >> 16) & 0xFF;
+                    int g = (pixel >> 8) & 0xFF;
+                    int b = pixel & 0xFF;
+                    // BT.601 weights scaled to 256, they add up to 256 so white stays 255
+                    gray[i] = (byte) ((77 * r + 150 * g + 29 * b + 128) >> 8);
+                }
+            }
+        });
+    }
+
+    /**
+     * Computes the global threshold which best separates ink from paper (Otsu's method).
+     *
+     * @param gray   8 bit gray pixels
+     * @param width  width of the image
+     * @param height height of the image
+     * @return threshold, pixels at or below it are ink
+     */
+    public int otsuThreshold(final byte[] gray, final int width, int height) {
+        checkSize(gray.length, width, height);
+        final int[] histogram = takeHistogram();
+        try {
+            pool.invoke(new BandTask(0, height, ROWS_PER_BAND) {
+                @Override
+                protected void compute(int fromRow, int toRow) {
+                    int[] local = takeHistogram();
+                    for (int i = fromRow * width, end = toRow * width; i < end; i++) {
+                        local[gray[i] & 0xFF]++;
+                    }
+                    synchronized (histogram) {
+                        for (int v = 0; v < 256; v++) {
+                            histogram[v] += local[v];
+                        }
+                    }
+                    histograms.offer(local);
+                }
+            });
+            return otsuThreshold(histogram, width * height);
+        } finally {
+            histograms.offer(histogram);
+        }
+    }
+
+    /**
+     * Binarizes with a single threshold from {@link #otsuThreshold(byte[], int, int)}.
+     *
+     * @param gray   8 bit gray pixels
+     * @param width  width of the image
+     * @param height height of the image
+     * @param binary output, INK or PAPER per pixel, at least width * height long
+     * @return the threshold which was used
+     */
+    public int binarizeOtsu(final byte[] gray, final int width, int height, final byte[] binary) {
+        checkSize(binary.length, width, height);
+        final int threshold = otsuThreshold(gray, width, height);
+        pool.invoke(new BandTask(0, height, ROWS_PER_BAND) {
+            @Override
+            protected void compute(int fromRow, int toRow) {
+                for (int i = fromRow * width, end = toRow * width; i < end; i++) {
+                    binary[i] = (gray[i] & 0xFF) <= threshold ? INK : PAPER;
+                }
+            }
+        });
+        return threshold;
+    }
+
+    /**
+     * Binarizes with a threshold computed for every pixel from the mean m and standard deviation s
+     * of the window around it: t = m * (1 + k * (s / 128 - 1)).
+     *
+     * @param gray   8 bit gray pixels
+     * @param width  width of the image
+     * @param height height of the image
+     * @param binary output, INK or PAPER per pixel, at least width * height long
+     * @see <a href="https://doi.org/10.1016/S0031-3203(99)00055-2">Sauvola, Pietikainen: Adaptive document image binarization</a>
+     */
+    public void binarizeSauvola(byte[] gray, int width, int height, byte[] binary) {
+        checkSize(gray.length, width, height);
+        checkSize(binary.length, width, height);
+        int tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+        int tilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+        pool.invoke(new SauvolaTask(gray, binary, width, height, tilesX, 0, tilesX * tilesY));
+    }
+
+    /**
+     * Stops the worker threads.
+     */
+    @Override
+    public void close() {
+        pool.shutdown();
+    }
+
+    /**
+     * @return number of tile scratch buffers held for reuse
+     */
+    int getScratchCount() {
+        return tileScratch.size();
+    }
+
+    /**
+     * Otsu's method on a finished histogram: picks the threshold which maximises the variance
+     * between the two classes.
+     *
+     * @param histogram number of pixels per gray value
+     * @param total     number of pixels
+     * @return threshold, values at or below it belong to the dark class
+     */
+    static int otsuThreshold(int[] histogram, int total) {
+        long sumAll = 0;
+        for (int v = 0; v < 256; v++) {
+            sumAll += (long) v * histogram[v];
+        }
+        long sumDark = 0;
+        long countDark = 0;
+        double bestVariance = -1;
+        int best = 0;
+        for (int t = 0; t < 256; t++) {
+            countDark += histogram[t];
+            if (countDark == 0) {
+                continue;
+            }
+            long countLight = total - countDark;
+            if (countLight == 0) {
+                break;
+            }
+            sumDark += (long) t * histogram[t];
+            double meanDark = (double) sumDark / countDark;
+            double meanLight = (double) (sumAll - sumDark) / countLight;
+            double diff = meanDark - meanLight;
+            double variance = (double) countDark * countLight * diff * diff;
+            if (variance > bestVariance) {
+                bestVariance = variance;
+                best = t;
+            }
+        }
+        return best;
+    }
+
+    private void sauvolaTile(byte[] gray, byte[] binary, int width, int height, int tileX, int tileY,
+                             TileScratch scratch) {
+        int x0 = Math.max(0, tileX - radius);
+        int y0 = Math.max(0, tileY - radius);
+        int x1 = Math.min(width, tileX + TILE_SIZE + radius);
+        int y1 = Math.min(height, tileY + TILE_SIZE + radius);
+        int stride = x1 - x0 + 1;
+        int[] sum = scratch.sum;
+        int[] squares = scratch.squares;
+
+        // integral images of the tile plus halo, row and column 0 are zero
+        for (int x = 0; x < stride; x++) {
+            sum[x] = 0;
+            squares[x] = 0;
+        }
+        for (int y = y0; y < y1; y++) {
+            int row = (y - y0 + 1) * stride;
+            int rowSum = 0;
+            int rowSquares = 0;
+            sum[row] = 0;
+            squares[row] = 0;
+            for (int x = x0, i = y * width + x0; x < x1; x++, i++) {
+                int v = gray[i] & 0xFF;
+                rowSum += v;
+                rowSquares += v * v;
+                int index = row + x - x0 + 1;
+                sum[index] = sum[index - stride] + rowSum;
+                squares[index] = squares[index - stride] + rowSquares;
+            }
+        }
+
+        int tileX1 = Math.min(width, tileX + TILE_SIZE);
+        int tileY1 = Math.min(height, tileY + TILE_SIZE);
+        float oneMinusK = 1 - k;
+        float[] reciprocals = this.reciprocals;
+        for (int y = tileY; y < tileY1; y++) {
+            int topRow = Math.max(y0, y - radius) - y0;
+            int bottomRow = Math.min(y1, y + radius + 1) - y0;
+            int top = topRow * stride;
+            int bottom = bottomRow * stride;
+            float rowsReciprocal = reciprocals[bottomRow - topRow];
+            for (int x = tileX, i = y * width + tileX; x < tileX1; x++, i++) {
+                int left = Math.max(x0, x - radius) - x0;
+                int right = Math.min(x1, x + radius + 1) - x0;
+                float countReciprocal = rowsReciprocal * reciprocals[right - left];
+                int windowSum = sum[bottom + right] - sum[bottom + left] - sum[top + right] + sum[top + left];
+                int windowSquares = squares[bottom + right] - squares[bottom + left]
+                        - squares[top + right] + squares[top + left];
+                float mean = windowSum * countReciprocal;
+                float variance = Math.max(0f, windowSquares * countReciprocal - mean * mean);
+
+                /*
+                 * p <= m * (1 + k * (s / R - 1)) is rearranged to (p - m * (1 - k)) * R <= m * k * s.
+                 * The right side is never negative, so squaring both sides avoids the square root.
+                 */
+                float lhs = ((gray[i] & 0xFF) - mean * oneMinusK) * DYNAMIC_RANGE;
+                float mk = mean * k;
+                binary[i] = (lhs <= 0 || lhs * lhs <= mk * mk * variance) ? INK : PAPER;
+            }
+        }
+    }
+
+    private int[] takeHistogram() {
+        int[] histogram = histograms.poll();
+        if (histogram == null) {
+            return new int[256];
+        }
+        for (int v = 0; v < 256; v++) {
+            histogram[v] = 0;
+        }
+        return histogram;
+    }
+
+    private TileScratch takeTileScratch() {
+        TileScratch scratch = tileScratch.poll();
+        return scratch != null ? scratch : new TileScratch(TILE_SIZE + 2 * radius + 1);
+    }
+
+    private static void checkSize(int length, int width, int height) {
+        if (width <= 0 || height <= 0 || length < width * height) {
+            throw new IllegalArgumentException("Buffer of " + length + " pixels does not hold a "
+                    + width + "x" + height + " image");
+        }
+    }
+
+    /**
+     * Integral images of one tile plus its halo
+     */
+    private static class TileScratch {
+        final int[] sum;
+        final int[] squares;
+
+        TileScratch(int side) {
+            sum = new int[side * side];
+            squares = new int[side * side];
+        }
+    }
+
+    /**
+     * Splits a range of tile indices in halves until a single tile is left.
+     */
+    private class SauvolaTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final byte[] gray;
+        private final byte[] binary;
+        private final int width;
+        private final int height;
+        private final int tilesX;
+        private final int fromTile;
+        private final int toTile;
+
+        SauvolaTask(byte[] gray, byte[] binary, int width, int height, int tilesX,
+                    int fromTile, int toTile) {
+            this.gray = gray;
+            this.binary = binary;
+            this.width = width;
+            this.height = height;
+            this.tilesX = tilesX;
+            this.fromTile = fromTile;
+            this.toTile = toTile;
+        }
+
+        @Override
+        protected void compute() {
+            if (toTile - fromTile == 1) {
+                TileScratch scratch = takeTileScratch();
+                try {
+                    sauvolaTile(gray, binary, width, height, (fromTile % tilesX) * TILE_SIZE,
+                            (fromTile / tilesX) * TILE_SIZE, scratch);
+                } finally {
+                    tileScratch.offer(scratch);
+                }
+                return;
+            }
+            int middle = (fromTile + toTile) >>> 1;
+            invokeAll(new SauvolaTask(gray, binary, width, height, tilesX, fromTile, middle),
+                    new SauvolaTask(gray, binary, width, height, tilesX, middle, toTile));
+        }
+    }
+}
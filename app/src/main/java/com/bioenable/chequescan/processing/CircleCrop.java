@@ -0,0 +1,167 @@
+package com.bioenable.chequescan.processing;
+
+/**
+ * Crops the centre square out of ARGB pixels and masks it with an anti-aliased circle, in one pass
+ * and without allocating: pixels inside the circle are copied a row span at a time, pixels on its
+ * edge get their alpha scaled by how much of them the circle covers, pixels outside are cleared.
+ * <p>
+ * The coverage of the edge pixels only depends on the size of the square. It is computed once per
+ * size, for one quarter of the circle, and reused for every following crop of that size, so a grid
+ * of thumbnails pays for it once ({@link #cropAll}).
+ * <p>
+ * Pixels are colour ints as Bitmap.getPixels returns them, not premultiplied, so only the alpha of
+ * the edge pixels changes. Not thread safe, the mask belongs to the instance.
+ */
+public class CircleCrop {
+
+    private int maskSize = -1;
+    // per row of the square: first column with any coverage, first column with full coverage
+    private int[] edgeStart = new int[0];
+    private int[] insideStart = new int[0];
+    // alpha (0 - 255) of the edge columns of every row, starting at edgeOffset[row]
+    private int[] edgeOffset = new int[0];
+    private int[] edgeAlpha = new int[0];
+
+    /**
+     * @param width  width of the source
+     * @param height height of the source
+     * @return side of the square {@link #crop} writes
+     */
+    public static int size(int width, int height) {
+        return Math.min(width, height);
+    }
+
+    /**
+     * @param source ARGB pixels, row major
+     * @param width  width of the source
+     * @param height height of the source
+     * @param out    receives size x size pixels, see {@link #size(int, int)}; may be source if the
+     *               source is square
+     * @param offset index in out of the first pixel
+     * @return side of the square
+     */
+    public int crop(int[] source, int width, int height, int[] out, int offset) {
+        int size = size(width, height);
+        if ((long) width * height > source.length || offset < 0 || offset + (long) size * size > out.length) {
+            throw new IllegalArgumentException("Pixels do not fit into the buffers");
+        }
+        crop(source, 0, width, height, out, offset);
+        return size;
+    }
+
+    /**
+     * Crops count images of the same size which follow each other in source, for example the
+     * thumbnails of a grid. The squares follow each other in out the same way.
+     *
+     * @param source count images of width x height ARGB pixels
+     * @param count  number of images
+     * @param width  width of every image
+     * @param height height of every image
+     * @param out    receives count squares of {@link #size(int, int)} pixels per side
+     * @return side of the squares
+     */
+    public int cropAll(int[] source, int count, int width, int height, int[] out) {
+        int size = size(width, height);
+        if ((long) count * width * height > source.length || (long) count * size * size > out.length) {
+            throw new IllegalArgumentException("Pixels do not fit into the buffers");
+        }
+        for (int i = 0; i < count; i++) {
+            crop(source, i * width * height, width, height, out, i * size * size);
+        }
+        return size;
+    }
+
+    private void crop(int[] source, int sourceOffset, int width, int height, int[] out, int offset) {
+        int size = size(width, height);
+        prepare(size);
+        int x = (width - size) / 2;
+        int y = (height - size) / 2;
+        int half = (size + 1) / 2;
+        for (int row = 0; row < size; row++) {
+            int in = sourceOffset + (y + row) * width + x;
+            int o = offset + row * size;
+            int edge = edgeStart[row];
+            int inside = insideStart[row];
+            // outside of the circle on both sides
+            for (int column = 0; column < edge; column++) {
+                out[o + column] = 0;
+                out[o + size - 1 - column] = 0;
+            }
+            // the edge, mirrored to the right; the middle column of an odd size is on both sides
+            int alphas = edgeOffset[row];
+            for (int column = edge; column < inside; column++) {
+                int alpha = edgeAlpha[alphas + column - edge];
+                out[o + column] = fade(source[in + column], alpha);
+                int right = size - 1 - column;
+                if (right != column) {
+                    out[o + right] = fade(source[in + right], alpha);
+                }
+            }
+            // in place the inside is where it belongs already
+            if (inside < half && (source != out || in != o)) {
+                System.arraycopy(source, in + inside, out, o + inside, size - 2 * inside);
+            }
+        }
+    }
+
+    /**
+     * Computes the mask of a size unless it is the one of the last crop. Coverage is the part of
+     * the circle's radius plus half a pixel which lies beyond the centre of a pixel, clamped to
+     * 0 - 1, which matches the anti-aliasing of a drawn circle within one step of alpha.
+     */
+    private void prepare(int size) {
+        if (size == maskSize) {
+            return;
+        }
+        int half = (size + 1) / 2;
+        if (edgeStart.length < size) {
+            edgeStart = new int[size];
+            insideStart = new int[size];
+            edgeOffset = new int[size];
+        }
+        float r = size / 2f;
+        int count = 0;
+        // the lower half is the upper half upside down
+        for (int row = 0; row < half; row++) {
+            float dy = row + 0.5f - r;
+            int edge = half;
+            int inside = half;
+            for (int column = 0; column < half; column++) {
+                float dx = column + 0.5f - r;
+                float coverage = r - (float) Math.sqrt(dx * dx + dy * dy) + 0.5f;
+                if (coverage > 0 && edge == half) {
+                    edge = column;
+                }
+                if (coverage >= 1) {
+                    inside = column;
+                    break;
+                }
+            }
+            edgeStart[row] = edge;
+            insideStart[row] = Math.max(edge, inside);
+            edgeStart[size - 1 - row] = edge;
+            insideStart[size - 1 - row] = Math.max(edge, inside);
+            count += Math.max(edge, inside) - edge;
+        }
+        if (edgeAlpha.length < count) {
+            edgeAlpha = new int[count];
+        }
+        int next = 0;
+        for (int row = 0; row < half; row++) {
+            float dy = row + 0.5f - r;
+            edgeOffset[row] = next;
+            edgeOffset[size - 1 - row] = next;
+            for (int column = edgeStart[row]; column < insideStart[row]; column++) {
+                float dx = column + 0.5f - r;
+                float coverage = r - (float) Math.sqrt(dx * dx + dy * dy) + 0.5f;
+                edgeAlpha[next++] = Math.max(0, Math.min(255, Math.round(coverage * 255)));
+            }
+        }
+        maskSize = size;
+    }
+
+    private static int fade(int pixel, int alpha) {
+        int a = ((pixel >>> 24) * alpha + 127) / 255;
+        return a << 24 | (pixel & 0xFFFFFF);
+    }
+}
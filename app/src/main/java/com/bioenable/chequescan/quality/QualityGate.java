@@ -0,0 +1,184 @@
+package com.bioenable.chequescan.quality;
+
+import com.bioenable.chequescan.geometry.PerspectiveCorrector;
+import com.bioenable.chequescan.geometry.Quad;
+
+import java.io.Closeable;
+import java.util.EnumSet;
+
+/**
+ * Decides from a small proxy of a photo (at most {@link PerspectiveCorrector#PROXY_SIDE} pixels on
+ * the long side) whether it is worth running the full resolution pipeline on it. Three things are
+ * measured:
+ * <p>
+ * 1. Coverage: the cheque is located with a {@link PerspectiveCorrector}, its area is compared with
+ *    the frame. A cheque which is not found or which is far away is rejected.
+ * 2. Sharpness: the variance of the 4 neighbour Laplacian inside the cheque. Blur, from focus or
+ *    from motion, removes the high frequencies which make the Laplacian large around print.
+ * 3. Glare: the fraction of pixels of the cheque at or above {@link #GLARE_LEVEL}. Paper is never
+ *    that bright on a correctly exposed photo, those pixels are reflections which hide the print.
+ * <p>
+ * Sharpness and glare are measured in the middle of the cheque, away from its edges, so that the
+ * contrast between cheque and desk does not count as detail. On a 640 x 480 proxy the gate takes a
+ * few milliseconds. An instance keeps its scratch buffers and must only be used by one thread at a
+ * time.
+ */
+public class QualityGate implements Closeable {
+
+    /**
+     * Laplacian variance below which a proxy counts as blurry
+     */
+    public static final double DEFAULT_MIN_SHARPNESS = 300;
+
+    /**
+     * Largest accepted fraction of blown out cheque pixels
+     */
+    public static final float DEFAULT_MAX_GLARE = 0.02f;
+
+    /**
+     * Smallest accepted fraction of the frame covered by the cheque
+     */
+    public static final float DEFAULT_MIN_COVERAGE = 0.25f;
+
+    /**
+     * Gray level at which a pixel counts as blown out
+     */
+    public static final int GLARE_LEVEL = 250;
+
+    // part of the cheque on each side which is left out of the sharpness and glare measurements
+    private static final float INSET = 0.1f;
+
+    private final double minSharpness;
+    private final float maxGlare;
+    private final float minCoverage;
+    private final PerspectiveCorrector corrector = new PerspectiveCorrector(1);
+    private byte[] gray = new byte[0];
+
+    /**
+     * Creates a gate with the default limits.
+     */
+    public QualityGate() {
+        this(DEFAULT_MIN_SHARPNESS, DEFAULT_MAX_GLARE, DEFAULT_MIN_COVERAGE);
+    }
+
+    /**
+     * @param minSharpness Laplacian variance below which a proxy counts as blurry
+     * @param maxGlare     largest accepted fraction of blown out cheque pixels
+     * @param minCoverage  smallest accepted fraction of the frame covered by the cheque
+     */
+    public QualityGate(double minSharpness, float maxGlare, float minCoverage) {
+        this.minSharpness = minSharpness;
+        this.maxGlare = maxGlare;
+        this.minCoverage = minCoverage;
+    }
+
+    /**
+     * @param argb   ARGB pixels of the proxy, as returned by Bitmap.getPixels
+     * @param width  width of the proxy
+     * @param height height of the proxy
+     * @return the measurements and issues
+     */
+    public QualityReport assess(int[] argb, int width, int height) {
+        if (argb.length < width * height) {
+            throw new IllegalArgumentException("Buffer does not hold a " + width + "x" + height + " image");
+        }
+        if (gray.length < width * height) {
+            gray = new byte[width * height];
+        }
+        for (int i = 0, end = width * height; i < end; i++) {
+            int pixel = argb[i];
+            // the same luma weights as ChequePreprocessor
+            gray[i] = (byte) ((77 * ((pixel >> 16) & 0xFF) + 150 * ((pixel >> 8) & 0xFF)
+                    + 29 * (pixel & 0xFF) + 128) >> 8);
+        }
+        return assess(gray, width, height);
+    }
+
+    /**
+     * @param gray   8 bit gray pixels of the proxy
+     * @param width  width of the proxy
+     * @param height height of the proxy
+     * @return the measurements and issues
+     */
+    public QualityReport assess(byte[] gray, int width, int height) {
+        EnumSet<QualityIssue> issues = EnumSet.noneOf(QualityIssue.class);
+        Quad corners = corrector.findCheque(gray, width, height);
+        float coverage = 0;
+        int left = 0;
+        int top = 0;
+        int right = width;
+        int bottom = height;
+        if (corners == null) {
+            issues.add(QualityIssue.NO_DOCUMENT);
+        } else {
+            coverage = area(corners) / ((float) width * height);
+            if (coverage < minCoverage) {
+                issues.add(QualityIssue.TOO_SMALL);
+            }
+            // the box inside the corners, shrunk towards the middle
+            float boxLeft = Math.max(corners.getX(Quad.TOP_LEFT), corners.getX(Quad.BOTTOM_LEFT));
+            float boxRight = Math.min(corners.getX(Quad.TOP_RIGHT), corners.getX(Quad.BOTTOM_RIGHT));
+            float boxTop = Math.max(corners.getY(Quad.TOP_LEFT), corners.getY(Quad.TOP_RIGHT));
+            float boxBottom = Math.min(corners.getY(Quad.BOTTOM_LEFT), corners.getY(Quad.BOTTOM_RIGHT));
+            float insetX = (boxRight - boxLeft) * INSET;
+            float insetY = (boxBottom - boxTop) * INSET;
+            left = Math.max(0, Math.round(boxLeft + insetX));
+            right = Math.min(width, Math.round(boxRight - insetX));
+            top = Math.max(0, Math.round(boxTop + insetY));
+            bottom = Math.min(height, Math.round(boxBottom - insetY));
+        }
+        // the Laplacian needs one pixel of border
+        left = Math.max(1, left);
+        top = Math.max(1, top);
+        right = Math.min(width - 1, right);
+        bottom = Math.min(height - 1, bottom);
+
+        double sharpness = 0;
+        float glare = 0;
+        if (right > left && bottom > top) {
+            long sum = 0;
+            long squares = 0;
+            int blown = 0;
+            for (int y = top; y < bottom; y++) {
+                for (int i = y * width + left, end = y * width + right; i < end; i++) {
+                    int v = gray[i] & 0xFF;
+                    int laplacian = 4 * v - (gray[i - 1] & 0xFF) - (gray[i + 1] & 0xFF)
+                            - (gray[i - width] & 0xFF) - (gray[i + width] & 0xFF);
+                    sum += laplacian;
+                    squares += laplacian * laplacian;
+                    if (v >= GLARE_LEVEL) {
+                        blown++;
+                    }
+                }
+            }
+            double count = (double) (right - left) * (bottom - top);
+            double mean = sum / count;
+            sharpness = squares / count - mean * mean;
+            glare = (float) (blown / count);
+        }
+        if (corners != null && sharpness < minSharpness) {
+            issues.add(QualityIssue.BLURRY);
+        }
+        if (corners != null && glare > maxGlare) {
+            issues.add(QualityIssue.GLARE);
+        }
+        return new QualityReport(corners, sharpness, glare, coverage, issues);
+    }
+
+    /**
+     * Stops the worker thread of the cheque finder.
+     */
+    @Override
+    public void close() {
+        corrector.close();
+    }
+
+    private static float area(Quad quad) {
+        float twice = 0;
+        for (int corner = 0; corner < 4; corner++) {
+            int next = (corner + 1) % 4;
+            twice += quad.getX(corner) * quad.getY(next) - quad.getX(next) * quad.getY(corner);
+        }
+        return Math.abs(twice) / 2;
+    }
+}
@@ -0,0 +1,23 @@
+package com.bioenable.chequescan.quality;
+
+/**
+ * Reasons for which {@link QualityGate} rejects a photo.
+ */
+public enum QualityIssue {
+    /**
+     * No cheque was found in the photo
+     */
+    NO_DOCUMENT,
+    /**
+     * The cheque covers too little of the frame to be read at full resolution
+     */
+    TOO_SMALL,
+    /**
+     * The cheque is out of focus or moved during the exposure
+     */
+    BLURRY,
+    /**
+     * Part of the cheque is blown out by a reflection or overexposure
+     */
+    GLARE
+}
@@ -0,0 +1,76 @@
+package com.bioenable.chequescan.quality;
+
+import com.bioenable.chequescan.geometry.Quad;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Measurements {@link QualityGate} took of one photo and the issues it found.
+ */
+public final class QualityReport {
+
+    private final Quad corners;
+    private final double sharpness;
+    private final float glare;
+    private final float coverage;
+    private final Set<QualityIssue> issues;
+
+    QualityReport(Quad corners, double sharpness, float glare, float coverage, EnumSet<QualityIssue> issues) {
+        this.corners = corners;
+        this.sharpness = sharpness;
+        this.glare = glare;
+        this.coverage = coverage;
+        this.issues = Collections.unmodifiableSet(issues);
+    }
+
+    /**
+     * @return whether the photo is good enough for the full resolution pipeline
+     */
+    public boolean isAcceptable() {
+        return issues.isEmpty();
+    }
+
+    /**
+     * @return problems found, empty if the photo is acceptable
+     */
+    public Set<QualityIssue> getIssues() {
+        return issues;
+    }
+
+    /**
+     * @return corners of the cheque in the measured image or null if none was found
+     */
+    public Quad getCorners() {
+        return corners;
+    }
+
+    /**
+     * @return variance of the Laplacian over the cheque, higher is sharper
+     */
+    public double getSharpness() {
+        return sharpness;
+    }
+
+    /**
+     * @return fraction of the cheque which is blown out
+     */
+    public float getGlare() {
+        return glare;
+    }
+
+    /**
+     * @return fraction of the frame covered by the cheque
+     */
+    public float getCoverage() {
+        return coverage;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "sharpness %.0f, glare %.3f, coverage %.2f %s",
+                sharpness, glare, coverage, issues);
+    }
+}
@@ -0,0 +1,126 @@
+package com.bioenable.chequescan.records;
+
+import com.bioenable.chequescan.micr.MicrLine;
+
+/**
+ * What is known about one scanned cheque. The key is the content hash of its photo in the
+ * ContentStore, the MICR fields are null when they were not read. Records are immutable, a change
+ * of status makes a new one.
+ */
+public final class ScanRecord {
+
+    private final String key;
+    private final String routingNumber;
+    private final String accountNumber;
+    private final String chequeNumber;
+    private final Long amount;
+    private final long scannedAt;
+    private final long updatedAt;
+    private final ScanStatus status;
+
+    /**
+     * @param key           content hash of the photo
+     * @param routingNumber routing or sort code, null if unknown
+     * @param accountNumber account number, null if unknown
+     * @param chequeNumber  cheque serial number, null if unknown
+     * @param amount        amount in cents, null if unknown
+     * @param scannedAt     time the cheque was scanned in milliseconds since the epoch
+     * @param updatedAt     time the record was last changed in milliseconds since the epoch
+     * @param status        how far the cheque got
+     */
+    public ScanRecord(String key, String routingNumber, String accountNumber, String chequeNumber, Long amount,
+                      long scannedAt, long updatedAt, ScanStatus status) {
+        if (key == null || status == null) {
+            throw new NullPointerException("A record needs a key and a status");
+        }
+        this.key = key;
+        this.routingNumber = routingNumber;
+        this.accountNumber = accountNumber;
+        this.chequeNumber = chequeNumber;
+        this.amount = amount;
+        this.scannedAt = scannedAt;
+        this.updatedAt = updatedAt;
+        this.status = status;
+    }
+
+    /**
+     * @param key    content hash of the photo
+     * @param micr   the code line read from the cheque or null if it was not read
+     * @param status how far the cheque got
+     * @param time   time of the scan in milliseconds since the epoch
+     * @return a new record with the fields of the code line
+     */
+    public static ScanRecord of(String key, MicrLine micr, ScanStatus status, long time) {
+        if (micr == null) {
+            return new ScanRecord(key, null, null, null, null, time, time, status);
+        }
+        return new ScanRecord(key, micr.getRoutingNumber(), micr.getAccountNumber(), micr.getChequeNumber(),
+                cents(micr.getAmount()), time, time, status);
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public String getRoutingNumber() {
+        return routingNumber;
+    }
+
+    public String getAccountNumber() {
+        return accountNumber;
+    }
+
+    public String getChequeNumber() {
+        return chequeNumber;
+    }
+
+    /**
+     * @return amount in cents or null if it is not known
+     */
+    public Long getAmount() {
+        return amount;
+    }
+
+    public long getScannedAt() {
+        return scannedAt;
+    }
+
+    public long getUpdatedAt() {
+        return updatedAt;
+    }
+
+    public ScanStatus getStatus() {
+        return status;
+    }
+
+    /**
+     * @param status the new status
+     * @param time   time of the change in milliseconds since the epoch
+     * @return a copy of this record with the new status
+     */
+    public ScanRecord withStatus(ScanStatus status, long time) {
+        return new ScanRecord(key, routingNumber, accountNumber, chequeNumber, amount, scannedAt, time, status);
+    }
+
+    /**
+     * The amount field has 10 digits, more than an int holds. A field with unreadable digits is no
+     * amount at all.
+     */
+    private static Long cents(String digits) {
+        if (digits == null || digits.isEmpty() || digits.length() > 18) {
+            return null;
+        }
+        for (int i = 0; i < digits.length(); i++) {
+            char c = digits.charAt(i);
+            if (c < '0' || c > '9') {
+                return null;
+            }
+        }
+        return Long.parseLong(digits);
+    }
+
+    @Override
+    public String toString() {
+        return "ScanRecord{" + key + ", " + accountNumber + "/" + chequeNumber + ", " + status + "}";
+    }
+}
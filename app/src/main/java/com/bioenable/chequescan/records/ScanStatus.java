@@ -0,0 +1,23 @@
+package com.bioenable.chequescan.records;
+
+/**
+ * How far a scanned cheque got. Stored by name, so the order of the constants can change.
+ */
+public enum ScanStatus {
+    /**
+     * The photo was accepted but the code line was not read
+     */
+    SCANNED,
+    /**
+     * The cheque was straightened and its code line was read
+     */
+    PROCESSED,
+    /**
+     * Processing failed, the photo is still in the store
+     */
+    FAILED,
+    /**
+     * The photo was uploaded to Drive
+     */
+    UPLOADED
+}
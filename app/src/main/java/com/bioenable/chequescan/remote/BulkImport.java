@@ -0,0 +1,343 @@
+package com.bioenable.chequescan.remote;
+
+import com.bioenable.chequescan.store.ContentStore;
+import com.bioenable.chequescan.store.StoreEntry;
+import com.bioenable.chequescan.transfer.Transfer;
+import com.bioenable.chequescan.transfer.TransferEngine;
+import com.bioenable.chequescan.transfer.TransferListener;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Imports many files of a {@link RemoteTransport} into the ContentStore in one operation, for
+ * example a Drive folder of scans.
+ * <p>
+ * At most a fixed number of downloads run at the same time, the next file starts when one of them
+ * ends. Files which are in the store already (by their source key) are not downloaded again. A
+ * failed download is retried after a backoff which doubles with every attempt, with random jitter so
+ * that parallel downloads failing together do not retry in lockstep. Retries resume from the bytes
+ * kept by the previous attempt. A FileNotFoundException is not retried. A download which stops
+ * without this import being cancelled, a read timeout for example, is a failed attempt as well.
+ * <p>
+ * The listener gets the progress over all files. It is called on the transfer and retry threads,
+ * but never by two threads at once.
+ */
+public class BulkImport {
+
+    /**
+     * Receives the events of a bulk import.
+     */
+    public interface Listener {
+
+        /**
+         * @param filesDone  files imported or failed so far
+         * @param filesTotal number of files
+         * @param bytesDone  bytes downloaded so far, over all files
+         * @param bytesTotal sum of the known file sizes
+         */
+        void onProgress(int filesDone, int filesTotal, long bytesDone, long bytesTotal);
+
+        void onFileImported(RemoteFile file, StoreEntry entry);
+
+        /**
+         * @param file the file which could not be imported
+         * @param e    the failure of the last attempt
+         */
+        void onFileFailed(RemoteFile file, IOException e);
+
+        /**
+         * Called once at the end, also after {@link #cancel()}.
+         *
+         * @param imported files which are in the store now
+         * @param failed   files which could not be imported
+         */
+        void onFinished(int imported, int failed);
+    }
+
+    /**
+     * Default number of downloads running at the same time
+     */
+    public static final int DEFAULT_CONCURRENCY = 3;
+
+    /**
+     * Default number of attempts per file
+     */
+    public static final int DEFAULT_MAX_ATTEMPTS = 4;
+
+    /**
+     * Default wait before the first retry
+     */
+    public static final long DEFAULT_BACKOFF_MILLIS = 1000;
+
+    private final ContentStore store;
+    private final TransferEngine engine;
+    private final RemoteTransport transport;
+    private final List<RemoteFile> files;
+    private final int concurrency;
+    private final int maxAttempts;
+    private final long backoffMillis;
+    private final Listener listener;
+    private final ScheduledExecutorService scheduler;
+    private final Random jitter = new Random();
+
+    // guarded by this
+    private final Transfer[] running;
+    private final long[] fileBytes;
+    private long bytesDone;
+    private long bytesTotal;
+    private int next;
+    private int active;
+    private int imported;
+    private int failed;
+    private boolean started;
+    private boolean cancelled;
+    private boolean finished;
+
+    /**
+     * Creates an import with the default concurrency and retries.
+     *
+     * @param store     store the files go into
+     * @param engine    engine running the downloads, it needs at least as many threads as the
+     *                  concurrency for the downloads to really run in parallel
+     * @param transport where the files come from
+     * @param files     files to import
+     * @param listener  receives the progress
+     */
+    public BulkImport(ContentStore store, TransferEngine engine, RemoteTransport transport,
+                      List<RemoteFile> files, Listener listener) {
+        this(store, engine, transport, files, DEFAULT_CONCURRENCY, DEFAULT_MAX_ATTEMPTS,
+                DEFAULT_BACKOFF_MILLIS, listener);
+    }
+
+    /**
+     * @param store         store the files go into
+     * @param engine        engine running the downloads
+     * @param transport     where the files come from
+     * @param files         files to import
+     * @param concurrency   largest number of downloads running at the same time
+     * @param maxAttempts   attempts per file before it counts as failed
+     * @param backoffMillis wait before the first retry, doubled for every further one
+     * @param listener      receives the progress
+     */
+    public BulkImport(ContentStore store, TransferEngine engine, RemoteTransport transport,
+                      List<RemoteFile> files, int concurrency, int maxAttempts, long backoffMillis,
+                      Listener listener) {
+        if (concurrency < 1 || maxAttempts < 1) {
+            throw new IllegalArgumentException("Concurrency and attempts must be at least 1");
+        }
+        this.store = store;
+        this.engine = engine;
+        this.transport = transport;
+        this.files = new ArrayList<>(files);
+        this.concurrency = concurrency;
+        this.maxAttempts = maxAttempts;
+        this.backoffMillis = backoffMillis;
+        this.listener = listener;
+        this.running = new Transfer[this.files.size()];
+        this.fileBytes = new long[this.files.size()];
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "bulk-import-retry");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Starts the first downloads. Returns straight away.
+     */
+    public synchronized void start() {
+        if (started) {
+            throw new IllegalStateException("Import was started already");
+        }
+        started = true;
+        for (RemoteFile file : files) {
+            if (file.getSize() > 0) {
+                bytesTotal += file.getSize();
+            }
+        }
+        fill();
+        finishIfDone();
+    }
+
+    /**
+     * Stops the running downloads and skips the files which have not started yet.
+     */
+    public synchronized void cancel() {
+        if (cancelled || finished) {
+            return;
+        }
+        cancelled = true;
+        for (Transfer transfer : running) {
+            if (transfer != null) {
+                transfer.cancel();
+            }
+        }
+        finishIfDone();
+    }
+
+    public synchronized int getImported() {
+        return imported;
+    }
+
+    public synchronized int getFailed() {
+        return failed;
+    }
+
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    public synchronized boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * Starts downloads until the concurrency is reached or no file is left. Files which are stored
+     * already are counted without taking a slot.
+     */
+    private void fill() {
+        while (!cancelled && active < concurrency && next < files.size()) {
+            int index = next++;
+            RemoteFile file = files.get(index);
+            StoreEntry stored = store.findBySourceKey(file.getKey());
+            if (stored != null) {
+                addBytes(index, stored.getLength());
+                imported++;
+                listener.onFileImported(file, stored);
+                reportProgress();
+                continue;
+            }
+            active++;
+            attempt(index, 1);
+        }
+    }
+
+    private void attempt(int index, int attempt) {
+        RemoteFile file = files.get(index);
+        running[index] = store.download(engine, transport.source(file), file.getKey(),
+                new FileListener(index, attempt));
+    }
+
+    private void addBytes(int index, long bytes) {
+        bytesDone += bytes - fileBytes[index];
+        fileBytes[index] = bytes;
+    }
+
+    private void reportProgress() {
+        listener.onProgress(imported + failed, files.size(), bytesDone, bytesTotal);
+    }
+
+    private void finishIfDone() {
+        if (!finished && active == 0 && (cancelled || next >= files.size())) {
+            finished = true;
+            scheduler.shutdown();
+            listener.onFinished(imported, failed);
+        }
+    }
+
+    /**
+     * Follows one attempt at one file.
+     */
+    private class FileListener implements TransferListener {
+
+        private final int index;
+        private final int attempt;
+
+        FileListener(int index, int attempt) {
+            this.index = index;
+            this.attempt = attempt;
+        }
+
+        @Override
+        public void onProgress(long bytesTransferred, long totalBytes) {
+            synchronized (BulkImport.this) {
+                addBytes(index, bytesTransferred);
+                reportProgress();
+            }
+        }
+
+        @Override
+        public void onComplete(File target, long totalBytes) {
+            RemoteFile file = files.get(index);
+            StoreEntry entry = store.findBySourceKey(file.getKey());
+            synchronized (BulkImport.this) {
+                running[index] = null;
+                active--;
+                addBytes(index, totalBytes);
+                imported++;
+                listener.onFileImported(file, entry);
+                reportProgress();
+                fill();
+                finishIfDone();
+            }
+        }
+
+        @Override
+        public void onCancelled() {
+            synchronized (BulkImport.this) {
+                if (!cancelled) {
+                    // not stopped by us, retried and counted like any other failure
+                    onFailed(new InterruptedIOException("Download of " + files.get(index).getName()
+                            + " stopped"));
+                    return;
+                }
+                running[index] = null;
+                active--;
+                finishIfDone();
+            }
+        }
+
+        @Override
+        public void onFailed(IOException e) {
+            synchronized (BulkImport.this) {
+                running[index] = null;
+                if (!cancelled && attempt < maxAttempts && !(e instanceof FileNotFoundException)) {
+                    scheduleRetry(index, attempt + 1);
+                    return;
+                }
+                active--;
+                failed++;
+                listener.onFileFailed(files.get(index), e);
+                reportProgress();
+                fill();
+                finishIfDone();
+            }
+        }
+    }
+
+    /**
+     * Retries a file after the backoff of the attempt. The file keeps its download slot while it
+     * waits.
+     */
+    private void scheduleRetry(final int index, final int attempt) {
+        long delay = backoffMillis << (attempt - 2);
+        // between half and all of the delay
+        delay = delay / 2 + (long) (jitter.nextDouble() * (delay / 2));
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (BulkImport.this) {
+                    if (cancelled) {
+                        active--;
+                        finishIfDone();
+                        return;
+                    }
+                    attempt(index, attempt);
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+}
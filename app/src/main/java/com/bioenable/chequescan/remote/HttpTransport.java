@@ -0,0 +1,133 @@
+package com.bioenable.chequescan.remote;
+
+import com.bioenable.chequescan.transfer.StreamSource;
+import com.bioenable.chequescan.transfer.TransferSource;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A {@link RemoteTransport} for a plain HTTP file share. A folder is a URL below the base URL
+ * whose listing is plain text, one file per line as "name TAB size" (size may be -1). Files are
+ * fetched from the folder URL plus their name, interrupted downloads resume with a Range request.
+ * Servers which ignore the Range header are handled by skipping the bytes which are present.
+ * <p>
+ * 404 and 410 are reported as FileNotFoundException, which {@link BulkImport} does not retry, all
+ * other failures as IOException.
+ */
+public class HttpTransport implements RemoteTransport {
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 15000;
+    private static final int READ_TIMEOUT_MILLIS = 30000;
+
+    private final String base;
+    private final String authorization;
+    private final int readTimeoutMillis;
+
+    /**
+     * @param base          URL the folders are below, for example http://branch-share/scans
+     * @param authorization value of the Authorization header or null to send none
+     */
+    public HttpTransport(String base, String authorization) {
+        this(base, authorization, READ_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @param base              URL the folders are below, for example http://branch-share/scans
+     * @param authorization     value of the Authorization header or null to send none
+     * @param readTimeoutMillis longest wait for the next bytes of a response
+     */
+    public HttpTransport(String base, String authorization, int readTimeoutMillis) {
+        this.base = base.endsWith("/") ? base : base + "/";
+        this.authorization = authorization;
+        this.readTimeoutMillis = readTimeoutMillis;
+    }
+
+    @Override
+    public List<RemoteFile> list(String folder) throws IOException {
+        String folderUrl = base + folder + (folder.isEmpty() || folder.endsWith("/") ? "" : "/");
+        HttpURLConnection connection = connect(folderUrl, 0);
+        List<RemoteFile> files = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(connection.getInputStream(), "UTF-8"))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int tab = line.indexOf('\t');
+                if (tab <= 0) {
+                    continue;
+                }
+                String name = line.substring(0, tab);
+                long size;
+                try {
+                    size = Long.parseLong(line.substring(tab + 1).trim());
+                } catch (NumberFormatException e) {
+                    size = -1;
+                }
+                String url = folderUrl + URLEncoder.encode(name, "UTF-8").replace("+", "%20");
+                files.add(new RemoteFile("http:" + url, url, name, size));
+            }
+        }
+        return files;
+    }
+
+    @Override
+    public TransferSource source(final RemoteFile file) {
+        return new TransferSource() {
+            @Override
+            public InputStream open(long offset) throws IOException {
+                HttpURLConnection connection = connect(file.getId(), offset);
+                InputStream in = connection.getInputStream();
+                if (offset > 0 && connection.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+                    // the server sent everything from the start
+                    return new StreamSource(in, -1).open(offset);
+                }
+                return in;
+            }
+
+            @Override
+            public long length() {
+                return file.getSize();
+            }
+        };
+    }
+
+    /**
+     * Sends a GET and checks the response code.
+     *
+     * @param url    the URL
+     * @param offset first byte wanted, 0 for all of it
+     * @return the connection, its response was successful
+     * @throws IOException if the server cannot be reached or answered with an error
+     */
+    private HttpURLConnection connect(String url, long offset) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+        connection.setReadTimeout(readTimeoutMillis);
+        // the app installs an HTTP cache for small images, whole files must not be copied into it
+        connection.setUseCaches(false);
+        if (authorization != null) {
+            connection.setRequestProperty("Authorization", authorization);
+        }
+        if (offset > 0) {
+            connection.setRequestProperty("Range", "bytes=" + offset + "-");
+        }
+        int code = connection.getResponseCode();
+        if (code == HttpURLConnection.HTTP_NOT_FOUND || code == HttpURLConnection.HTTP_GONE) {
+            connection.disconnect();
+            throw new FileNotFoundException(url);
+        }
+        if (code >= 400) {
+            connection.disconnect();
+            throw new IOException("HTTP " + code + " for " + url);
+        }
+        return connection;
+    }
+}
@@ -0,0 +1,315 @@
+package com.bioenable.chequescan.remote;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An {@link UploadTransport} speaking the upload protocol of the Drive REST API, which other
+ * servers, like the one in the tests, can implement as well.
+ * <p>
+ * Single request uploads are multipart/related POSTs of the JSON metadata and the bytes. A
+ * resumable upload starts with a POST of the metadata, whose Location header is the session URL.
+ * Chunks are PUT to the session with a Content-Range header. The server answers 308 with a Range
+ * header telling how much it has until the last chunk, which it answers with 200 or 201. A PUT
+ * without body and "Content-Range: bytes *&#47;length" asks for the offset.
+ * <p>
+ * 401 invalidates the authorization and is retried, 408, 429 and 5xx are retried, 404 and 410 of a
+ * session mean it has expired, all other 4xx are an {@link UploadRejectedException}. Drive also
+ * answers 403 when a rate limit is exceeded, so the reason in the error body of a 403 is read:
+ * rateLimitExceeded and userRateLimitExceeded are retried like a 429.
+ *
+ * @see <a href="https://developers.google.com/drive/api/v3/manage-uploads">Drive upload docs</a>
+ */
+public class HttpUploadTransport implements UploadTransport {
+
+    /**
+     * Gives the Authorization header of the requests.
+     */
+    public interface Authorizer {
+
+        /**
+         * @return value of the Authorization header, for example "Bearer token"
+         * @throws UploadAuthorizationException if the user has to authorize the uploads first
+         * @throws IOException                  if no authorization can be had at the moment
+         */
+        String getAuthorization() throws IOException;
+
+        /**
+         * Called when the server did not accept the value, so that a new one is fetched.
+         *
+         * @param authorization the refused value
+         */
+        void invalidate(String authorization);
+    }
+
+    /**
+     * Upload endpoint of Drive
+     */
+    public static final String DRIVE_UPLOAD_URL = "https://www.googleapis.com/upload/drive/v3/files";
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 15000;
+    private static final int READ_TIMEOUT_MILLIS = 60000;
+    private static final int HTTP_RESUME_INCOMPLETE = 308;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    // an error body is a few hundred bytes, a longer one is not read to the end
+    private static final int MAX_ERROR_BODY = 16 * 1024;
+    private static final Pattern REASON = Pattern.compile("\"reason\"\\s*:\\s*\"([^\"]*)\"");
+
+    private final String url;
+    private final String folderId;
+    private final Authorizer authorizer;
+
+    /**
+     * @param url        upload endpoint, for example {@link #DRIVE_UPLOAD_URL}
+     * @param folderId   id of the folder the files go into or null for the default folder
+     * @param authorizer gives the Authorization header
+     */
+    public HttpUploadTransport(String url, String folderId, Authorizer authorizer) {
+        this.url = url;
+        this.folderId = folderId;
+        this.authorizer = authorizer;
+    }
+
+    @Override
+    public void upload(UploadItem item, InputStream content) throws IOException {
+        String boundary = "upload_" + UUID.randomUUID();
+        byte[] head = ("--" + boundary + "\r\n"
+                + "Content-Type: application/json; charset=UTF-8\r\n\r\n"
+                + metadata(item) + "\r\n"
+                + "--" + boundary + "\r\n"
+                + "Content-Type: " + mimeType(item.getName()) + "\r\n\r\n").getBytes(UTF8);
+        byte[] tail = ("\r\n--" + boundary + "--\r\n").getBytes(UTF8);
+
+        String authorization = authorizer.getAuthorization();
+        HttpURLConnection connection = open(url + query("multipart"), "POST", authorization);
+        connection.setRequestProperty("Content-Type", "multipart/related; boundary=" + boundary);
+        connection.setFixedLengthStreamingMode(head.length + item.getLength() + tail.length);
+        try {
+            OutputStream out = connection.getOutputStream();
+            out.write(head);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long remaining = item.getLength();
+            while (remaining > 0) {
+                int count = content.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (count < 0) {
+                    throw new IOException(item.getFile() + " is shorter than when it was queued");
+                }
+                out.write(buffer, 0, count);
+                remaining -= count;
+            }
+            out.write(tail);
+            out.close();
+            check(connection, authorization, false);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    @Override
+    public String startSession(UploadItem item) throws IOException {
+        byte[] body = metadata(item).getBytes(UTF8);
+        String authorization = authorizer.getAuthorization();
+        HttpURLConnection connection = open(url + query("resumable"), "POST", authorization);
+        connection.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
+        connection.setRequestProperty("X-Upload-Content-Type", mimeType(item.getName()));
+        connection.setRequestProperty("X-Upload-Content-Length", Long.toString(item.getLength()));
+        connection.setFixedLengthStreamingMode(body.length);
+        try {
+            OutputStream out = connection.getOutputStream();
+            out.write(body);
+            out.close();
+            check(connection, authorization, false);
+            String session = connection.getHeaderField("Location");
+            if (session == null) {
+                throw new IOException("No session URL for " + item.getName());
+            }
+            return session;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    @Override
+    public long uploadChunk(String session, UploadItem item, long offset, byte[] chunk, int count)
+            throws IOException {
+        String authorization = authorizer.getAuthorization();
+        HttpURLConnection connection = open(session, "PUT", authorization);
+        connection.setRequestProperty("Content-Range",
+                "bytes " + offset + "-" + (offset + count - 1) + "/" + item.getLength());
+        connection.setFixedLengthStreamingMode(count);
+        try {
+            OutputStream out = connection.getOutputStream();
+            out.write(chunk, 0, count);
+            out.close();
+            return received(connection, authorization, item);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    @Override
+    public long queryOffset(String session, UploadItem item) throws IOException {
+        String authorization = authorizer.getAuthorization();
+        HttpURLConnection connection = open(session, "PUT", authorization);
+        connection.setRequestProperty("Content-Range", "bytes */" + item.getLength());
+        connection.setFixedLengthStreamingMode(0);
+        try {
+            connection.getOutputStream().close();
+            return received(connection, authorization, item);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * @return the bytes the server has according to the answer of a session request
+     */
+    private long received(HttpURLConnection connection, String authorization, UploadItem item)
+            throws IOException {
+        if (check(connection, authorization, true) != HTTP_RESUME_INCOMPLETE) {
+            return item.getLength();
+        }
+        // "bytes=0-last", missing when nothing has arrived
+        String range = connection.getHeaderField("Range");
+        if (range == null) {
+            return 0;
+        }
+        int dash = range.lastIndexOf('-');
+        try {
+            return Long.parseLong(range.substring(dash + 1).trim()) + 1;
+        } catch (NumberFormatException e) {
+            throw new IOException("Bad Range header: " + range);
+        }
+    }
+
+    private HttpURLConnection open(String target, String method, String authorization) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(target).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+        connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+        // never answered from the HTTP cache the app installs for small images
+        connection.setUseCaches(false);
+        connection.setRequestMethod(method);
+        connection.setDoOutput(true);
+        // 308 is the answer, not a redirect
+        connection.setInstanceFollowRedirects(false);
+        connection.setRequestProperty("Authorization", authorization);
+        return connection;
+    }
+
+    /**
+     * @param authorization the Authorization header which was sent
+     * @param session       whether the request went to a session URL
+     * @return the response code, which is a success or 308
+     * @throws IOException for all other codes, see the class comment
+     */
+    private int check(HttpURLConnection connection, String authorization, boolean session) throws IOException {
+        int code = connection.getResponseCode();
+        if (code < 300 || code == HTTP_RESUME_INCOMPLETE) {
+            return code;
+        }
+        String message = "HTTP " + code + " for " + connection.getURL();
+        if (code == HttpURLConnection.HTTP_UNAUTHORIZED) {
+            authorizer.invalidate(authorization);
+            throw new IOException(message);
+        }
+        if (session && (code == HttpURLConnection.HTTP_NOT_FOUND || code == HttpURLConnection.HTTP_GONE)) {
+            throw new FileNotFoundException(message);
+        }
+        if (code == HttpURLConnection.HTTP_FORBIDDEN) {
+            String reason = reason(connection);
+            if (reason != null) {
+                message += " (" + reason + ")";
+            }
+            if ("rateLimitExceeded".equals(reason) || "userRateLimitExceeded".equals(reason)) {
+                throw new IOException(message);
+            }
+        }
+        if (code >= 400 && code < 500 && code != HttpURLConnection.HTTP_CLIENT_TIMEOUT && code != 429) {
+            throw new UploadRejectedException(message);
+        }
+        throw new IOException(message);
+    }
+
+    /**
+     * @return the reason of the first error in a JSON error body like
+     * {"error":{"errors":[{"domain":"usageLimits","reason":"userRateLimitExceeded"}]}}, null if
+     * there is none
+     */
+    private static String reason(HttpURLConnection connection) {
+        InputStream in = connection.getErrorStream();
+        if (in == null) {
+            return null;
+        }
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try {
+            try {
+                byte[] buffer = new byte[4096];
+                int count;
+                while (body.size() < MAX_ERROR_BODY && (count = in.read(buffer)) > 0) {
+                    body.write(buffer, 0, count);
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            // whatever arrived is searched
+        }
+        Matcher matcher = REASON.matcher(new String(body.toByteArray(), UTF8));
+        return matcher.find() ? matcher.group(1) : null;
+    }
+
+    private String query(String uploadType) {
+        return (url.indexOf('?') < 0 ? "?" : "&") + "uploadType=" + uploadType;
+    }
+
+    private String metadata(UploadItem item) {
+        StringBuilder json = new StringBuilder("{\"name\":\"").append(escape(item.getName())).append('"');
+        if (folderId != null) {
+            json.append(",\"parents\":[\"").append(escape(folderId)).append("\"]");
+        }
+        return json.append('}').toString();
+    }
+
+    private static String escape(String value) {
+        StringBuilder escaped = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                escaped.append('\\').append(c);
+            } else if (c < 0x20) {
+                escaped.append(String.format(Locale.US, "\\u%04x", (int) c));
+            } else {
+                escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    /**
+     * @return the content type of a file, by its extension
+     */
+    static String mimeType(String name) {
+        String lower = name.toLowerCase(Locale.US);
+        if (lower.endsWith(".jpg") || lower.endsWith(".jpeg")) {
+            return "image/jpeg";
+        }
+        if (lower.endsWith(".png")) {
+            return "image/png";
+        }
+        if (lower.endsWith(".csv")) {
+            return "text/csv";
+        }
+        return "application/octet-stream";
+    }
+}
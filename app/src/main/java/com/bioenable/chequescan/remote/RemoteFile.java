@@ -0,0 +1,49 @@
+package com.bioenable.chequescan.remote;
+
+/**
+ * A file listed by a {@link RemoteTransport}.
+ */
+public final class RemoteFile {
+
+    private final String key;
+    private final String id;
+    private final String name;
+    private final long size;
+
+    /**
+     * @param key  source key the ContentStore remembers the file by, stable across sessions
+     * @param id   what the transport needs to open the file
+     * @param name name shown to the user
+     * @param size size in bytes or -1 if it is not known
+     */
+    public RemoteFile(String key, String id, String name, long size) {
+        this.key = key;
+        this.id = id;
+        this.name = name;
+        this.size = size;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return size in bytes or -1 if it is not known
+     */
+    public long getSize() {
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + key + ")";
+    }
+}
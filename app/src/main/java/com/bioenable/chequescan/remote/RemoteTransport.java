@@ -0,0 +1,27 @@
+package com.bioenable.chequescan.remote;
+
+import com.bioenable.chequescan.transfer.TransferSource;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Where a {@link BulkImport} gets its files from: Google Drive in the app, an HTTP server in tests
+ * or for branch file shares. Both methods are called on worker threads and may block.
+ */
+public interface RemoteTransport {
+
+    /**
+     * @param folder id of the folder, in the transport's own format
+     * @return the image files in the folder
+     * @throws IOException if the folder cannot be listed
+     */
+    List<RemoteFile> list(String folder) throws IOException;
+
+    /**
+     * @param file a file returned by {@link #list(String)}
+     * @return source reading the file. It is opened once per attempt, with the offset of the bytes
+     * kept from the attempts before.
+     */
+    TransferSource source(RemoteFile file);
+}
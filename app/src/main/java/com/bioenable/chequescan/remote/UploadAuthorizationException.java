@@ -0,0 +1,17 @@
+package com.bioenable.chequescan.remote;
+
+import java.io.IOException;
+
+/**
+ * Thrown by an {@link UploadTransport} when nothing can be uploaded until the user has acted, for
+ * example granted the app access to Drive. The {@link UploadQueue} keeps the file but does not retry
+ * it, it stops until it is started again.
+ */
+public class UploadAuthorizationException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public UploadAuthorizationException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
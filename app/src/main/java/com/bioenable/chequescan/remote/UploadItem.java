@@ -0,0 +1,64 @@
+package com.bioenable.chequescan.remote;
+
+import java.io.File;
+
+/**
+ * A file waiting in an {@link UploadQueue}. The upload state is changed by the queue only, under
+ * its lock.
+ */
+public final class UploadItem {
+
+    private final long id;
+    private final File file;
+    private final String name;
+    private final long length;
+
+    // guarded by the queue
+    String session;
+    volatile long acknowledged;
+    int attempts;
+    long notBefore;
+    boolean verified;
+    boolean inFlight;
+
+    /**
+     * @param id     number of the item in the journal
+     * @param file   local file to upload
+     * @param name   name of the uploaded file
+     * @param length size of the file when it was queued
+     */
+    UploadItem(long id, File file, String name, long length) {
+        this.id = id;
+        this.file = file;
+        this.name = name;
+        this.length = length;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * @return bytes the server has confirmed so far
+     */
+    public long getAcknowledged() {
+        return acknowledged;
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + acknowledged + "/" + length + ")";
+    }
+}
@@ -0,0 +1,197 @@
+package com.bioenable.chequescan.remote;
+
+import com.bioenable.chequescan.store.LogFiles;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The append only log an {@link UploadQueue} keeps its items in, so that uploads survive the
+ * process. One line per change, with tab separated fields:
+ * <pre>
+ *   Q id length name path   a file was queued
+ *   S id url                a resumable session was started for it
+ *   A id offset             the server acknowledged the bytes up to offset
+ *   C id                    the file was uploaded
+ *   R id                    the server refused the file
+ * </pre>
+ * Every line is flushed when it is written. A line which was cut off by a crash is cut off the file
+ * on open, so that the next line does not continue it. When
+ * most lines are obsolete the log is rewritten on open. Not thread safe, the queue holds its lock.
+ */
+class UploadJournal implements Closeable {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File file;
+    private final Map<Long, UploadItem> items = new LinkedHashMap<>();
+    private long nextId = 1;
+    private Writer log;
+
+    /**
+     * Reads the journal, creating it if needed.
+     *
+     * @param file the journal
+     * @throws IOException if it cannot be read or opened for writing
+     */
+    UploadJournal(File file) throws IOException {
+        this.file = file;
+        int lines = read();
+        if (lines > 4 * items.size() + 64) {
+            rewrite();
+        }
+        log = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), UTF8));
+    }
+
+    /**
+     * @return the items which are neither uploaded nor refused, oldest first
+     */
+    Collection<UploadItem> getItems() {
+        return items.values();
+    }
+
+    /**
+     * Adds a new item.
+     *
+     * @param file   local file
+     * @param name   name of the uploaded file
+     * @param length size of the file
+     * @return the item
+     * @throws IOException if the journal cannot be written
+     */
+    UploadItem add(File file, String name, long length) throws IOException {
+        UploadItem item = new UploadItem(nextId, file, name, length);
+        write("Q\t" + item.getId() + "\t" + length + "\t" + clean(name) + "\t" + file.getPath());
+        nextId++;
+        items.put(item.getId(), item);
+        return item;
+    }
+
+    void sessionStarted(UploadItem item) throws IOException {
+        write("S\t" + item.getId() + "\t" + item.session);
+    }
+
+    void acknowledged(UploadItem item) throws IOException {
+        write("A\t" + item.getId() + "\t" + item.acknowledged);
+    }
+
+    /**
+     * Removes uploaded items with one write, a batch of small files ends together.
+     *
+     * @param uploaded items the server has now
+     * @throws IOException if the journal cannot be written
+     */
+    void uploaded(List<UploadItem> uploaded) throws IOException {
+        if (log == null) {
+            throw new IOException("Journal is closed");
+        }
+        for (UploadItem item : uploaded) {
+            log.write("C\t" + item.getId() + "\n");
+            items.remove(item.getId());
+        }
+        log.flush();
+    }
+
+    void rejected(UploadItem item) throws IOException {
+        items.remove(item.getId());
+        write("R\t" + item.getId());
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (log != null) {
+            log.close();
+            log = null;
+        }
+    }
+
+    private void write(String line) throws IOException {
+        if (log == null) {
+            throw new IOException("Journal is closed");
+        }
+        log.write(line);
+        log.write('\n');
+        log.flush();
+    }
+
+    /**
+     * Tabs and line breaks would break the line format.
+     */
+    private static String clean(String name) {
+        return name.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+    }
+
+    /**
+     * @return number of lines in the journal
+     */
+    private int read() throws IOException {
+        if (!file.exists()) {
+            return 0;
+        }
+        LogFiles.dropTornTail(file);
+        int lines = 0;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines++;
+                String[] fields = line.split("\t", 5);
+                try {
+                    long id = Long.parseLong(fields[1]);
+                    nextId = Math.max(nextId, id + 1);
+                    UploadItem item = items.get(id);
+                    if (fields[0].equals("Q") && fields.length == 5) {
+                        items.put(id, new UploadItem(id, new File(fields[4]), fields[3], Long.parseLong(fields[2])));
+                    } else if (item != null && fields[0].equals("S") && fields.length == 3) {
+                        item.session = fields[2];
+                        item.acknowledged = 0;
+                    } else if (item != null && fields[0].equals("A") && fields.length == 3) {
+                        item.acknowledged = Long.parseLong(fields[2]);
+                    } else if (fields[0].equals("C") || fields[0].equals("R")) {
+                        items.remove(id);
+                    }
+                } catch (RuntimeException e) {
+                    // a line which was only partly written, skip it
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return lines;
+    }
+
+    private void rewrite() throws IOException {
+        File rewritten = new File(file.getPath() + ".new");
+        log = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(rewritten), UTF8));
+        try {
+            for (UploadItem item : new ArrayList<>(items.values())) {
+                write("Q\t" + item.getId() + "\t" + item.getLength() + "\t" + item.getName() + "\t"
+                        + item.getFile().getPath());
+                if (item.session != null) {
+                    sessionStarted(item);
+                    acknowledged(item);
+                }
+            }
+        } finally {
+            log.close();
+            log = null;
+        }
+        if (!rewritten.renameTo(file)) {
+            throw new IOException("Could not replace " + file);
+        }
+    }
+}
@@ -0,0 +1,535 @@
+package com.bioenable.chequescan.remote;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A persistent queue of files to upload through an {@link UploadTransport}, for example the
+ * processed cheques of a batch going to Drive.
+ * <p>
+ * The queue is kept in an {@link UploadJournal}, so files queued before the process died are
+ * uploaded once the queue is opened and started again. Files of at least one chunk go through a
+ * resumable session: every chunk the server acknowledges is written to the journal, and after a
+ * failure or a restart the server is asked for its offset and the upload continues from there. Only
+ * the chunk which was on the wire is sent again.
+ * <p>
+ * Smaller files take a single request each, without the extra round trip of a session. A worker
+ * takes several of them at once, up to one chunk of bytes, and records them in the journal with one
+ * write. They are not sent as one multipart/mixed batch request: the batch endpoint of Drive does
+ * not take media uploads, so what is saved is the dispatch and the journal writes, not the requests.
+ * <p>
+ * At most a fixed number of workers upload at the same time. A failed file waits for a backoff which
+ * doubles with every failure in a row, up to five minutes, with random jitter. Files the server
+ * refuses are dropped and reported to the listener, other failures are retried for as long as the
+ * queue runs. When the user has to authorize the uploads first the queue stops, keeping its files,
+ * until {@link #start()} is called again.
+ * <p>
+ * The listener is called on the worker threads, never by two threads at once.
+ */
+public class UploadQueue implements Closeable {
+
+    /**
+     * Receives the results of the uploads.
+     */
+    public interface Listener {
+
+        void onUploaded(UploadItem item);
+
+        /**
+         * @param item the file which was dropped from the queue
+         * @param e    why the server refused it, or why it could not be read
+         */
+        void onRejected(UploadItem item, IOException e);
+    }
+
+    /**
+     * Default number of uploads running at the same time
+     */
+    public static final int DEFAULT_CONCURRENCY = 2;
+
+    /**
+     * Default chunk size. Drive wants chunks in multiples of 256 KiB.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 4 * 256 * 1024;
+
+    /**
+     * Default wait after the first failure
+     */
+    public static final long DEFAULT_BACKOFF_MILLIS = 2000;
+
+    private static final long MAX_BACKOFF_MILLIS = 5 * 60 * 1000L;
+    private static final int MAX_BATCH_ITEMS = 8;
+
+    private final UploadTransport transport;
+    private final int concurrency;
+    private final int chunkSize;
+    private final long backoffMillis;
+    private final Listener listener;
+    private final ScheduledThreadPoolExecutor executor;
+    private final Random jitter = new Random();
+
+    // guarded by this
+    private final UploadJournal journal;
+    private ScheduledFuture<?> wakeUp;
+    private long wakeUpAt;
+    private int active;
+    // workers inside a task, the journal is closed once the last one has left after close()
+    private int working;
+    private boolean started;
+    private boolean closed;
+
+    /**
+     * Opens the queue with the default concurrency, chunk size and backoff.
+     *
+     * @param journalFile file the queue is kept in
+     * @param transport   where the files go
+     * @param listener    receives the results
+     * @throws IOException if the journal cannot be read
+     */
+    public UploadQueue(File journalFile, UploadTransport transport, Listener listener) throws IOException {
+        this(journalFile, transport, DEFAULT_CONCURRENCY, DEFAULT_CHUNK_SIZE, DEFAULT_BACKOFF_MILLIS, listener);
+    }
+
+    /**
+     * Opens the queue. Nothing is uploaded before {@link #start()}.
+     *
+     * @param journalFile   file the queue is kept in
+     * @param transport     where the files go
+     * @param concurrency   largest number of uploads running at the same time
+     * @param chunkSize     bytes per request of a resumable upload, files below it are sent whole
+     * @param backoffMillis wait after the first failure, doubled for every further one
+     * @param listener      receives the results
+     * @throws IOException if the journal cannot be read
+     */
+    public UploadQueue(File journalFile, UploadTransport transport, int concurrency, int chunkSize,
+                       long backoffMillis, Listener listener) throws IOException {
+        if (concurrency < 1 || chunkSize < 1) {
+            throw new IllegalArgumentException("Concurrency and chunk size must be at least 1");
+        }
+        this.transport = transport;
+        this.concurrency = concurrency;
+        this.chunkSize = chunkSize;
+        this.backoffMillis = backoffMillis;
+        this.listener = listener;
+        this.journal = new UploadJournal(journalFile);
+        this.executor = new ScheduledThreadPoolExecutor(concurrency, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "upload-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Starts uploading the files in the journal and the ones queued from now on. Also starts the
+     * queue again after it stopped for an {@link UploadAuthorizationException}.
+     */
+    public synchronized void start() {
+        if (closed) {
+            throw new IllegalStateException("Queue is closed");
+        }
+        started = true;
+        dispatch();
+    }
+
+    /**
+     * Adds a file to the queue. It must not change until it is uploaded.
+     *
+     * @param file local file
+     * @param name name of the uploaded file
+     * @return the queued item
+     * @throws IOException if the file does not exist or the journal cannot be written
+     */
+    public synchronized UploadItem enqueue(File file, String name) throws IOException {
+        if (!file.isFile()) {
+            throw new FileNotFoundException(file.getPath());
+        }
+        UploadItem item = journal.add(file, name, file.length());
+        dispatch();
+        return item;
+    }
+
+    /**
+     * @return number of files not uploaded yet
+     */
+    public synchronized int getPendingCount() {
+        return journal.getItems().size();
+    }
+
+    /**
+     * @param file local file
+     * @return whether the file waits for its upload or is being uploaded
+     */
+    public synchronized boolean isQueued(File file) {
+        for (UploadItem item : journal.getItems()) {
+            if (item.getFile().equals(file)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return bytes not acknowledged by the server yet
+     */
+    public synchronized long getPendingBytes() {
+        long bytes = 0;
+        for (UploadItem item : journal.getItems()) {
+            bytes += item.getLength() - item.acknowledged;
+        }
+        return bytes;
+    }
+
+    /**
+     * Stops the workers. Uploads on the wire are abandoned, they resume when the queue is opened
+     * again. Uploads which still finish are recorded, the journal is closed after the last worker.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        executor.shutdownNow();
+        if (working == 0) {
+            closeJournal();
+        }
+    }
+
+    private void closeJournal() {
+        try {
+            journal.close();
+        } catch (IOException e) {
+            // every line was flushed when it was written
+        }
+    }
+
+    /**
+     * Hands ready files to workers until the concurrency is reached. Files waiting for their
+     * backoff wake the dispatch up when it ends.
+     */
+    private void dispatch() {
+        if (!started || closed) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long nextReady = Long.MAX_VALUE;
+        List<UploadItem> batch = new ArrayList<>();
+        long batchBytes = 0;
+        for (UploadItem item : journal.getItems()) {
+            if (active >= concurrency) {
+                break;
+            }
+            if (item.inFlight) {
+                continue;
+            }
+            if (item.notBefore > now) {
+                nextReady = Math.min(nextReady, item.notBefore);
+                continue;
+            }
+            if (item.session != null || item.getLength() >= chunkSize) {
+                run(new ResumableTask(item));
+                continue;
+            }
+            item.inFlight = true;
+            batch.add(item);
+            batchBytes += item.getLength();
+            if (batch.size() == MAX_BATCH_ITEMS || batchBytes >= chunkSize) {
+                run(new BatchTask(batch));
+                batch = new ArrayList<>();
+                batchBytes = 0;
+            }
+        }
+        if (!batch.isEmpty()) {
+            if (active < concurrency) {
+                run(new BatchTask(batch));
+            } else {
+                for (UploadItem item : batch) {
+                    item.inFlight = false;
+                }
+            }
+        }
+        if (nextReady != Long.MAX_VALUE && (wakeUp == null || wakeUpAt > nextReady)) {
+            if (wakeUp != null) {
+                wakeUp.cancel(false);
+            }
+            wakeUpAt = nextReady;
+            wakeUp = executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (UploadQueue.this) {
+                        wakeUp = null;
+                        dispatch();
+                    }
+                }
+            }, nextReady - now, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void run(Task task) {
+        active++;
+        executor.execute(task);
+    }
+
+    /**
+     * Sends the remaining chunks of a large file, starting a session first if it has none.
+     *
+     * @return whether the file is complete, false if the queue was closed before the last chunk
+     */
+    private boolean uploadResumable(UploadItem item) throws IOException {
+        String session;
+        long offset;
+        boolean verified;
+        synchronized (this) {
+            session = item.session;
+            offset = item.acknowledged;
+            verified = item.verified;
+        }
+        if (session == null) {
+            session = transport.startSession(item);
+            synchronized (this) {
+                item.session = session;
+                item.acknowledged = 0;
+                item.verified = true;
+                journal.sessionStarted(item);
+            }
+            offset = 0;
+        } else if (!verified) {
+            // the journal can be a chunk behind the server, and a failed chunk may have arrived
+            offset = transport.queryOffset(session, item);
+            acknowledge(item, offset);
+        }
+        byte[] chunk = new byte[(int) Math.min(chunkSize, item.getLength())];
+        RandomAccessFile file = new RandomAccessFile(item.getFile(), "r");
+        try {
+            while (offset < item.getLength()) {
+                if (isClosed()) {
+                    return false;
+                }
+                int count = (int) Math.min(chunk.length, item.getLength() - offset);
+                file.seek(offset);
+                file.readFully(chunk, 0, count);
+                long acknowledged = transport.uploadChunk(session, item, offset, chunk, count);
+                if (acknowledged <= offset) {
+                    throw new IOException("The server took nothing of the chunk at " + offset);
+                }
+                offset = acknowledged;
+                acknowledge(item, offset);
+            }
+        } finally {
+            file.close();
+        }
+        return true;
+    }
+
+    private synchronized void acknowledge(UploadItem item, long offset) throws IOException {
+        item.verified = true;
+        if (offset > item.acknowledged) {
+            // progress, so the backoff starts over
+            item.attempts = 0;
+        }
+        item.acknowledged = offset;
+        if (offset < item.getLength()) {
+            journal.acknowledged(item);
+        }
+    }
+
+    private synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Records an upload which succeeded, also when the queue was closed while it was on the wire.
+     */
+    private synchronized void uploaded(List<UploadItem> items) {
+        if (items.isEmpty()) {
+            return;
+        }
+        try {
+            journal.uploaded(items);
+        } catch (IOException e) {
+            // the files stay in the journal and are uploaded a second time after a restart
+        }
+        for (UploadItem item : items) {
+            item.inFlight = false;
+            item.acknowledged = item.getLength();
+        }
+        for (UploadItem item : items) {
+            listener.onUploaded(item);
+        }
+    }
+
+    /**
+     * Drops a refused file or schedules the retry of a failed one. A missing authorization stops the
+     * queue instead, the file is tried again straight away once it is started.
+     */
+    private synchronized void failed(UploadItem item, IOException e) {
+        item.inFlight = false;
+        if (closed) {
+            return;
+        }
+        if (e instanceof UploadAuthorizationException) {
+            started = false;
+            return;
+        }
+        if (e instanceof UploadRejectedException || !item.getFile().isFile()) {
+            try {
+                journal.rejected(item);
+            } catch (IOException journalFailure) {
+                // the file is refused again after a restart
+            }
+            listener.onRejected(item, e);
+            return;
+        }
+        if (e instanceof FileNotFoundException && item.session != null) {
+            // the session has expired, the next attempt starts a new one
+            item.session = null;
+            item.acknowledged = 0;
+        }
+        item.verified = false;
+        item.attempts++;
+        long delay = Math.min(backoffMillis << Math.min(item.attempts - 1, 20), MAX_BACKOFF_MILLIS);
+        // between half and all of the delay
+        delay = delay / 2 + (long) (jitter.nextDouble() * (delay / 2));
+        item.notBefore = System.currentTimeMillis() + delay;
+    }
+
+    /**
+     * A worker run which frees its slot and dispatches again when it ends. An unexpected exception
+     * fails the items the run has not finished, so that they are retried and not left in flight.
+     */
+    private abstract class Task implements Runnable {
+
+        @Override
+        public final void run() {
+            synchronized (UploadQueue.this) {
+                working++;
+            }
+            try {
+                upload();
+            } catch (RuntimeException e) {
+                unfinished(new IOException("Upload failed", e));
+            } finally {
+                synchronized (UploadQueue.this) {
+                    active--;
+                    working--;
+                    if (closed && working == 0) {
+                        closeJournal();
+                    }
+                    dispatch();
+                }
+            }
+        }
+
+        abstract void upload();
+
+        /**
+         * @param e failure for the items which are still in flight
+         */
+        abstract void unfinished(IOException e);
+    }
+
+    private class ResumableTask extends Task {
+
+        private final UploadItem item;
+
+        ResumableTask(UploadItem item) {
+            this.item = item;
+            item.inFlight = true;
+        }
+
+        @Override
+        void upload() {
+            try {
+                if (!uploadResumable(item)) {
+                    return;
+                }
+            } catch (IOException e) {
+                failed(item, e);
+                return;
+            }
+            List<UploadItem> done = new ArrayList<>(1);
+            done.add(item);
+            uploaded(done);
+        }
+
+        @Override
+        void unfinished(IOException e) {
+            synchronized (UploadQueue.this) {
+                if (item.inFlight) {
+                    failed(item, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends a few small files one after the other on one worker, each in its own request, since
+     * Drive has no batch request for uploads. The files are recorded in the journal together.
+     */
+    private class BatchTask extends Task {
+
+        private final List<UploadItem> items;
+        private final List<UploadItem> done;
+        private boolean recorded;
+
+        BatchTask(List<UploadItem> items) {
+            this.items = items;
+            this.done = new ArrayList<>(items.size());
+        }
+
+        @Override
+        void upload() {
+            for (UploadItem item : items) {
+                if (isClosed()) {
+                    break;
+                }
+                try {
+                    InputStream in = new FileInputStream(item.getFile());
+                    try {
+                        transport.upload(item, in);
+                    } finally {
+                        in.close();
+                    }
+                    done.add(item);
+                } catch (IOException e) {
+                    failed(item, e);
+                }
+            }
+            recorded = true;
+            uploaded(done);
+        }
+
+        @Override
+        void unfinished(IOException e) {
+            if (!recorded) {
+                recorded = true;
+                uploaded(done);
+            }
+            synchronized (UploadQueue.this) {
+                for (UploadItem item : items) {
+                    if (item.inFlight) {
+                        failed(item, e);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package com.bioenable.chequescan.remote;
+
+import java.io.IOException;
+
+/**
+ * Thrown by an {@link UploadTransport} when the server refuses a file for good, for example
+ * because it is too large or its name is not allowed. The {@link UploadQueue} does not retry it.
+ */
+public class UploadRejectedException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public UploadRejectedException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,55 @@
+package com.bioenable.chequescan.remote;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Where an {@link UploadQueue} sends its files. Small files go in one request, large ones through a
+ * resumable session which takes the file a chunk at a time. All methods are called on the queue's
+ * worker threads and may block.
+ * <p>
+ * An {@link UploadRejectedException} means the file must not be sent again. A FileNotFoundException
+ * from the session methods means the session has expired and a new one has to be started. Every
+ * other IOException is retried.
+ */
+public interface UploadTransport {
+
+    /**
+     * Sends a file in a single request.
+     *
+     * @param item    the file
+     * @param content the bytes of the file, {@link UploadItem#getLength()} of them
+     * @throws IOException if the upload failed
+     */
+    void upload(UploadItem item, InputStream content) throws IOException;
+
+    /**
+     * @param item the file
+     * @return URL of a new resumable session for the file
+     * @throws IOException if the session could not be started
+     */
+    String startSession(UploadItem item) throws IOException;
+
+    /**
+     * Sends one chunk of the file.
+     *
+     * @param session URL from {@link #startSession(UploadItem)}
+     * @param item    the file
+     * @param offset  position of the chunk in the file
+     * @param chunk   holds the bytes of the chunk from index 0
+     * @param count   number of bytes in the chunk
+     * @return number of bytes from the start of the file the server has now
+     * @throws IOException if the chunk was not acknowledged
+     */
+    long uploadChunk(String session, UploadItem item, long offset, byte[] chunk, int count) throws IOException;
+
+    /**
+     * Asks how much of the file the server has, after a failure or a restart of the app.
+     *
+     * @param session URL from {@link #startSession(UploadItem)}
+     * @param item    the file
+     * @return number of bytes from the start of the file the server has
+     * @throws IOException if the server could not be asked
+     */
+    long queryOffset(String session, UploadItem item) throws IOException;
+}
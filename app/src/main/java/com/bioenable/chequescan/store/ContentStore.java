@@ -0,0 +1,523 @@
+package com.bioenable.chequescan.store;
+
+import com.bioenable.chequescan.transfer.StreamSource;
+import com.bioenable.chequescan.transfer.Transfer;
+import com.bioenable.chequescan.transfer.TransferEngine;
+import com.bioenable.chequescan.transfer.TransferListener;
+import com.bioenable.chequescan.transfer.TransferSource;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Content addressed store for the cheque images. Every image is kept once, in a file named after
+ * the SHA-256 of its bytes, no matter how often it was captured or imported.
+ * <p>
+ * Files are laid out like this below the root directory:
+ * <pre>
+ *   index.log           append only log of the entries and source keys
+ *   objects/ab/ab12...  stored images, fanned out by the first two hex digits of the hash
+ *   pending/            files which are still being written
+ * </pre>
+ * Images are first written into pending, then hashed (preferably while they are written, see
+ * {@link #download}) and committed, which renames them into objects. If the content is already
+ * stored the pending file is just deleted.
+ * <p>
+ * Local files, which are usually imported again and again, take a different path through
+ * {@link #importFile}: they are hashed first and only copied if the content is not stored yet.
+ * <p>
+ * A source key names where an image came from, for example a Drive id. Looking a source key up with
+ * {@link #findBySourceKey(String)} lets a second import of the same image skip the copy completely.
+ * <p>
+ * The index is read once when the store is opened, so no directory has to be listed at startup.
+ * Every change appends one line to index.log:
+ * <pre>
+ *   P hash length created   an entry was added
+ *   K hash source-key       a source key points at an entry
+ *   D hash                  an entry was deleted
+ * </pre>
+ * A line which was cut off by a crash is ignored. When most lines of the log are obsolete it is
+ * rewritten on open.
+ * <p>
+ * All methods are thread safe.
+ */
+public class ContentStore implements Closeable {
+
+    /**
+     * Algorithm of the content addresses
+     */
+    public static final String HASH_ALGORITHM = "SHA-256";
+
+    private static final String INDEX = "index.log";
+    private static final String OBJECTS = "objects";
+    private static final String PENDING = "pending";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File root;
+    private final File objects;
+    private final File pending;
+    private final Map<String, StoreEntry> entries = new LinkedHashMap<>();
+    private final Map<String, String> sourceKeys = new HashMap<>();
+    private Writer index;
+
+    /**
+     * Opens the store in root, creating it if needed.
+     *
+     * @param root directory of the store
+     * @throws IOException if the directories cannot be created or the index cannot be read
+     */
+    public ContentStore(File root) throws IOException {
+        this.root = root;
+        this.objects = new File(root, OBJECTS);
+        this.pending = new File(root, PENDING);
+        if (!objects.isDirectory() && !objects.mkdirs() || !pending.isDirectory() && !pending.mkdirs()) {
+            throw new IOException("Could not create " + root);
+        }
+        int lines = readIndex();
+        if (lines > 2 * (entries.size() + sourceKeys.size()) + 64) {
+            rewriteIndex();
+        }
+        index = openIndex();
+    }
+
+    /**
+     * @return a new digest of {@link #HASH_ALGORITHM}
+     */
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform has to provide SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param bytes a hash
+     * @return the bytes as lower case hex
+     */
+    public static String toHex(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[2 * i] = HEX[(bytes[i] >> 4) & 0xF];
+            hex[2 * i + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * @param hash hex content address
+     * @return the entry or null if nothing with that hash is stored
+     */
+    public synchronized StoreEntry get(String hash) {
+        return entries.get(hash);
+    }
+
+    /**
+     * @param sourceKey where an image came from
+     * @return the entry stored from that source or null if the source was never imported or its
+     * image has been deleted since
+     */
+    public synchronized StoreEntry findBySourceKey(String sourceKey) {
+        String hash = sourceKeys.get(sourceKey);
+        return hash == null ? null : entries.get(hash);
+    }
+
+    /**
+     * @return all entries, oldest first
+     */
+    public synchronized List<StoreEntry> getEntries() {
+        return new ArrayList<>(entries.values());
+    }
+
+    /**
+     * @return sum of the sizes of all stored files
+     */
+    public synchronized long getTotalBytes() {
+        long total = 0;
+        for (StoreEntry entry : entries.values()) {
+            total += entry.getLength();
+        }
+        return total;
+    }
+
+    /**
+     * Gives a file to write a new image into before it is committed. For the same source key the
+     * same file is returned, so an interrupted download can be resumed.
+     *
+     * @param sourceKey where the image comes from, may be null
+     * @return a file in the pending directory which does not belong to any entry
+     */
+    public File newPendingFile(String sourceKey) {
+        String name = sourceKey != null
+                ? "src_" + toHex(newDigest().digest(sourceKey.getBytes(UTF8)))
+                : UUID.randomUUID().toString();
+        return new File(pending, name);
+    }
+
+    /**
+     * Hashes a finished pending file and moves it into the store.
+     *
+     * @param file      file from {@link #newPendingFile(String)}
+     * @param sourceKey where the image came from, may be null
+     * @return the entry holding the content of the file
+     * @throws IOException if the file cannot be read or moved
+     */
+    public StoreEntry commit(File file, String sourceKey) throws IOException {
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        InputStream in = new FileInputStream(file);
+        try {
+            int count;
+            while ((count = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, count);
+            }
+        } finally {
+            in.close();
+        }
+        return commit(file, digest.digest(), sourceKey);
+    }
+
+    /**
+     * Moves a finished pending file into the store under a hash which was computed while it was
+     * written. If the content is stored already, the file is deleted.
+     *
+     * @param file      file from {@link #newPendingFile(String)}
+     * @param hash      {@link #HASH_ALGORITHM} digest of the file
+     * @param sourceKey where the image came from, may be null
+     * @return the entry holding the content of the file
+     * @throws IOException if the file cannot be moved
+     */
+    public synchronized StoreEntry commit(File file, byte[] hash, String sourceKey) throws IOException {
+        String hex = toHex(hash);
+        StoreEntry entry = entries.get(hex);
+        if (entry != null && entry.getFile().exists()) {
+            file.delete();
+        } else {
+            File target = objectFile(hex);
+            File directory = target.getParentFile();
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Could not create " + directory);
+            }
+            long length = file.length();
+            if (!file.renameTo(target)) {
+                throw new IOException("Could not move " + file + " to " + target);
+            }
+            entry = new StoreEntry(hex, target, length, System.currentTimeMillis());
+            entries.put(hex, entry);
+            append("P " + hex + " " + length + " " + entry.getCreated());
+        }
+        addSourceKey(sourceKey, hex);
+        return entry;
+    }
+
+    /**
+     * Downloads source into the store on a worker thread of the engine. The bytes are hashed while
+     * they are written and the file is committed on the worker thread, so listener gets the file of
+     * the entry in {@link TransferListener#onComplete(File, long)}. A download which failed earlier
+     * for the same source key is resumed.
+     *
+     * @param engine    engine running the copy
+     * @param source    where the bytes come from
+     * @param sourceKey identifies the source, may be null
+     * @param listener  receives progress and the final result on the worker thread
+     * @return handle which can be used to cancel the download
+     */
+    public Transfer download(TransferEngine engine, TransferSource source, final String sourceKey,
+                             final TransferListener listener) {
+        final MessageDigest digest = newDigest();
+        return engine.submit(source, newPendingFile(sourceKey), new TransferListener() {
+            @Override
+            public void onProgress(long bytesTransferred, long totalBytes) {
+                listener.onProgress(bytesTransferred, totalBytes);
+            }
+
+            @Override
+            public void onComplete(File target, long totalBytes) {
+                StoreEntry entry;
+                try {
+                    entry = commit(target, digest.digest(), sourceKey);
+                } catch (IOException e) {
+                    listener.onFailed(e);
+                    return;
+                }
+                listener.onComplete(entry.getFile(), totalBytes);
+            }
+
+            @Override
+            public void onCancelled() {
+                listener.onCancelled();
+            }
+
+            @Override
+            public void onFailed(IOException e) {
+                listener.onFailed(e);
+            }
+        }, digest);
+    }
+
+    /**
+     * Imports a source which usually is a local file, like an image picked from the gallery, on a
+     * worker thread of the engine. If the source opens as a FileInputStream, it is hashed first with
+     * positional reads. When the content is stored already that is all, otherwise it is copied
+     * through FileChannel.transferTo without passing through the Java heap. Other sources are hashed
+     * while they are copied. Imports are not resumed, a failed import starts from scratch.
+     *
+     * @param engine    engine running the copy
+     * @param source    where the bytes come from, opened on the worker thread
+     * @param sourceKey identifies the source, may be null
+     * @param listener  receives progress and the final result on the worker thread
+     * @return handle which can be used to cancel the import
+     */
+    public Transfer importFile(final TransferEngine engine, final TransferSource source,
+                               final String sourceKey, final TransferListener listener) {
+        final Transfer transfer = new Transfer(newPendingFile(null));
+        engine.execute(new Runnable() {
+            @Override
+            public void run() {
+                StoreEntry entry;
+                try {
+                    entry = importFile(engine, source, sourceKey, transfer, listener);
+                } catch (IOException e) {
+                    transfer.getTarget().delete();
+                    if (transfer.isCancelled()) {
+                        listener.onCancelled();
+                    } else {
+                        listener.onFailed(e);
+                    }
+                    return;
+                }
+                listener.onComplete(entry.getFile(), entry.getLength());
+            }
+        });
+        return transfer;
+    }
+
+    private StoreEntry importFile(TransferEngine engine, TransferSource source, String sourceKey,
+                                  Transfer transfer, TransferListener listener) throws IOException {
+        InputStream in = source.open(0);
+        try {
+            if (in instanceof FileInputStream) {
+                FileChannel channel = ((FileInputStream) in).getChannel();
+                long position = channel.position();
+                long size = channel.size() - position;
+                // pipes report no size, they are streamed like any other source
+                if (size > 0) {
+                    byte[] hash = hash(channel, position, size, transfer);
+                    StoreEntry stored = reuse(hash, sourceKey);
+                    if (stored != null) {
+                        return stored;
+                    }
+                    engine.copy(new StreamSource(in, size), transfer, listener);
+                    return commit(transfer.getTarget(), hash, sourceKey);
+                }
+            }
+            MessageDigest digest = newDigest();
+            engine.copy(new StreamSource(new DigestInputStream(in, digest), -1), transfer, listener);
+            return commit(transfer.getTarget(), digest.digest(), sourceKey);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Hashes size bytes of the channel starting at position, without moving the channel.
+     */
+    private static byte[] hash(FileChannel channel, long position, long size, Transfer transfer)
+            throws IOException {
+        MessageDigest digest = newDigest();
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        long end = position + size;
+        while (position < end) {
+            if (transfer.isCancelled()) {
+                throw new InterruptedIOException("Import cancelled");
+            }
+            buffer.clear();
+            int count = channel.read(buffer, position);
+            if (count <= 0) {
+                throw new EOFException("File ended while hashing");
+            }
+            digest.update(buffer.array(), 0, count);
+            position += count;
+        }
+        return digest.digest();
+    }
+
+    /**
+     * @return the stored entry with the hash, with the source key now pointing at it, or null if
+     * the content is not stored yet
+     */
+    private synchronized StoreEntry reuse(byte[] hash, String sourceKey) throws IOException {
+        String hex = toHex(hash);
+        StoreEntry entry = entries.get(hex);
+        if (entry == null || !entry.getFile().exists()) {
+            return null;
+        }
+        addSourceKey(sourceKey, hex);
+        return entry;
+    }
+
+    private void addSourceKey(String sourceKey, String hex) throws IOException {
+        if (sourceKey != null && !hex.equals(sourceKeys.put(sourceKey, hex))) {
+            append("K " + hex + " " + sourceKey);
+        }
+    }
+
+    /**
+     * Removes an entry and its file. Source keys pointing at it are dropped.
+     *
+     * @param hash hex content address
+     * @return whether the entry existed
+     * @throws IOException if the index cannot be written
+     */
+    public synchronized boolean delete(String hash) throws IOException {
+        StoreEntry entry = entries.remove(hash);
+        if (entry == null) {
+            return false;
+        }
+        entry.getFile().delete();
+        sourceKeys.values().removeAll(Collections.singleton(hash));
+        append("D " + hash);
+        return true;
+    }
+
+    /**
+     * Deletes pending files which have not been written to for maxAgeMillis, for example captures
+     * the user abandoned or downloads which were never resumed.
+     *
+     * @param maxAgeMillis age in milliseconds
+     * @return number of deleted files
+     */
+    public int purgePending(long maxAgeMillis) {
+        File[] files = pending.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        long limit = System.currentTimeMillis() - maxAgeMillis;
+        int deleted = 0;
+        for (File file : files) {
+            if (file.lastModified() < limit && file.delete()) {
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * @return the root directory of the store
+     */
+    public File getRoot() {
+        return root;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (index != null) {
+            index.close();
+            index = null;
+        }
+    }
+
+    private File objectFile(String hex) {
+        return new File(new File(objects, hex.substring(0, 2)), hex);
+    }
+
+    private void append(String line) throws IOException {
+        if (index == null) {
+            throw new IOException("Store is closed");
+        }
+        index.write(line);
+        index.write('\n');
+        index.flush();
+    }
+
+    /**
+     * @return number of lines in the index
+     */
+    private int readIndex() throws IOException {
+        File file = new File(root, INDEX);
+        if (!file.exists()) {
+            return 0;
+        }
+        // appending after a torn last line would spoil the next line as well
+        LogFiles.dropTornTail(file);
+        int lines = 0;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines++;
+                String[] fields = line.split(" ", 3);
+                try {
+                    if (fields[0].equals("P") && fields.length == 3) {
+                        String[] values = fields[2].split(" ");
+                        long length = Long.parseLong(values[0]);
+                        long created = Long.parseLong(values[1]);
+                        entries.put(fields[1], new StoreEntry(fields[1], objectFile(fields[1]), length, created));
+                    } else if (fields[0].equals("K") && fields.length == 3) {
+                        sourceKeys.put(fields[2], fields[1]);
+                    } else if (fields[0].equals("D") && fields.length == 2) {
+                        entries.remove(fields[1]);
+                        sourceKeys.values().removeAll(Collections.singleton(fields[1]));
+                    }
+                } catch (RuntimeException e) {
+                    // a line which was only partly written, skip it
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        // keys whose entry is gone are only kept while they lead somewhere
+        sourceKeys.values().retainAll(entries.keySet());
+        return lines;
+    }
+
+    private void rewriteIndex() throws IOException {
+        File rewritten = new File(root, INDEX + ".new");
+        index = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(rewritten), UTF8));
+        try {
+            for (StoreEntry entry : entries.values()) {
+                index.write("P " + entry.getHash() + " " + entry.getLength() + " " + entry.getCreated() + "\n");
+            }
+            for (Map.Entry<String, String> key : sourceKeys.entrySet()) {
+                index.write("K " + key.getValue() + " " + key.getKey() + "\n");
+            }
+        } finally {
+            index.close();
+            index = null;
+        }
+        if (!rewritten.renameTo(new File(root, INDEX))) {
+            throw new IOException("Could not replace " + INDEX);
+        }
+    }
+
+    private Writer openIndex() throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(root, INDEX), true), UTF8));
+    }
+}
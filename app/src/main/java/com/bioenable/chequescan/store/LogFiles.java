@@ -0,0 +1,58 @@
+package com.bioenable.chequescan.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Helpers for the append-only, line based logs the app keeps: the index of the store, the upload
+ * journal and the index of the fingerprints.
+ */
+public final class LogFiles {
+
+    private static final int BLOCK_SIZE = 4096;
+
+    private LogFiles() {
+    }
+
+    /**
+     * Cuts off a last line which has no line feed, because the process died while writing it. The
+     * next line appended would otherwise be glued to it and both would be lost.
+     *
+     * @param file the log, which does not have to exist
+     * @return number of bytes cut off
+     * @throws IOException if the file cannot be read or truncated
+     */
+    public static long dropTornTail(File file) throws IOException {
+        if (!file.exists()) {
+            return 0;
+        }
+        RandomAccessFile log = new RandomAccessFile(file, "rw");
+        try {
+            long length = log.length();
+            byte[] block = new byte[BLOCK_SIZE];
+            long end = length;
+            while (end > 0) {
+                int count = (int) Math.min(block.length, end);
+                long start = end - count;
+                log.seek(start);
+                log.readFully(block, 0, count);
+                for (int i = count - 1; i >= 0; i--) {
+                    if (block[i] == '\n') {
+                        long kept = start + i + 1;
+                        if (kept < length) {
+                            log.setLength(kept);
+                        }
+                        return length - kept;
+                    }
+                }
+                end = start;
+            }
+            // not one complete line
+            log.setLength(0);
+            return length;
+        } finally {
+            log.close();
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package com.bioenable.chequescan.store;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Keeps a {@link ContentStore} within a {@link StorageQuota} by deleting images on a background
+ * thread of its own.
+ * <p>
+ * A {@link Retention} tells how much every image is still needed:
+ * <pre>
+ *   FIRST   a copy is kept elsewhere, uploaded or archived; evicted once older than the age quota
+ *           and first when the store is over its byte quota
+ *   LAST    the store has the only copy; only evicted when the byte quota cannot be met otherwise
+ *   NEVER   still in use, for example waiting for its upload
+ * </pre>
+ * Within each class the oldest images go first. Once the store is over its byte quota, images are
+ * evicted down to {@link #LOW_WATER_PERCENT} of it, so that the next few captures do not start
+ * another run each.
+ * <p>
+ * Eviction never blocks a capture for long: the retention is asked outside the store and the store
+ * is only locked for one delete at a time. The thread runs at the lowest priority.
+ * <p>
+ * All methods are thread safe.
+ */
+public class StorageManager implements Closeable {
+
+    /**
+     * How much an image of the store is still needed
+     */
+    public enum Eviction {
+        FIRST, LAST, NEVER
+    }
+
+    /**
+     * Decides what may be evicted. Called on the thread of the manager.
+     */
+    public interface Retention {
+
+        Eviction classify(StoreEntry entry);
+    }
+
+    /**
+     * Share of the byte quota the store is brought down to when it is over it
+     */
+    public static final int LOW_WATER_PERCENT = 90;
+
+    private final ContentStore store;
+    private final Retention retention;
+    private final ScheduledThreadPoolExecutor executor;
+    private final AtomicBoolean requested = new AtomicBoolean();
+    private final Runnable run = new Runnable() {
+        @Override
+        public void run() {
+            requested.set(false);
+            evict(System.currentTimeMillis());
+        }
+    };
+
+    // guarded by this
+    private StorageQuota quota;
+    private int evictedFiles;
+    private long evictedBytes;
+    private int runs;
+    private int failedRuns;
+    private long lastRunAt;
+    private long lastRunMillis;
+
+    /**
+     * Nothing is evicted before {@link #start(long)} or {@link #requestEviction()}.
+     *
+     * @param store     store to keep within the quota
+     * @param quota     the limits
+     * @param retention decides which images may go
+     */
+    public StorageManager(ContentStore store, StorageQuota quota, Retention retention) {
+        this.store = store;
+        this.quota = quota;
+        this.retention = retention;
+        this.executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "storage");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Runs the eviction now and then every periodMillis.
+     *
+     * @param periodMillis time between the end of one run and the start of the next
+     */
+    public void start(long periodMillis) {
+        executor.scheduleWithFixedDelay(run, 0, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Runs the eviction soon, for example after new images were stored. Requests which come while
+     * one is waiting are merged. Returns at once.
+     */
+    public void requestEviction() {
+        if (!requested.getAndSet(true)) {
+            executor.execute(run);
+        }
+    }
+
+    /**
+     * @param quota the limits from the next run on
+     */
+    public synchronized void setQuota(StorageQuota quota) {
+        this.quota = quota;
+    }
+
+    public synchronized StorageQuota getQuota() {
+        return quota;
+    }
+
+    /**
+     * @return the current usage of the store and the evictions so far
+     */
+    public StorageStats getStats() {
+        List<StoreEntry> entries = store.getEntries();
+        long bytes = 0;
+        for (StoreEntry entry : entries) {
+            bytes += entry.getLength();
+        }
+        synchronized (this) {
+            return new StorageStats(entries.size(), bytes, evictedFiles, evictedBytes, runs, failedRuns, lastRunAt,
+                    lastRunMillis);
+        }
+    }
+
+    /**
+     * Stops the thread. A run which is under way finishes the delete it is in.
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Evicts what the quota asks for, on the calling thread.
+     *
+     * @param now current time in milliseconds since the epoch
+     * @return number of evicted images
+     */
+    int evict(long now) {
+        long start = System.nanoTime();
+        StorageQuota quota = getQuota();
+        int evicted = 0;
+        boolean failed = false;
+        try {
+            List<StoreEntry> entries = store.getEntries();
+            long bytes = 0;
+            List<StoreEntry> first = new ArrayList<>();
+            List<StoreEntry> last = new ArrayList<>();
+            for (StoreEntry entry : entries) {
+                bytes += entry.getLength();
+                Eviction eviction = retention.classify(entry);
+                if (eviction == Eviction.FIRST) {
+                    first.add(entry);
+                } else if (eviction == Eviction.LAST) {
+                    last.add(entry);
+                }
+            }
+            // entries come oldest first, so the ones past the age quota are at the front
+            int aged = 0;
+            while (aged < first.size() && quota.getMaxAgeMillis() != StorageQuota.UNLIMITED
+                    && now - first.get(aged).getCreated() > quota.getMaxAgeMillis()) {
+                aged++;
+            }
+            long target = bytes > quota.getMaxBytes() ? quota.getMaxBytes() / 100 * LOW_WATER_PERCENT : bytes;
+            first.addAll(last);
+            for (int i = 0; i < first.size() && (i < aged || bytes > target); i++) {
+                if (Thread.currentThread().isInterrupted()) {
+                    break;
+                }
+                StoreEntry entry = first.get(i);
+                if (store.delete(entry.getHash())) {
+                    bytes -= entry.getLength();
+                    evicted++;
+                    synchronized (this) {
+                        evictedFiles++;
+                        evictedBytes += entry.getLength();
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // the next run starts over, the failure shows in the stats
+            failed = true;
+        }
+        synchronized (this) {
+            runs++;
+            failedRuns += failed ? 1 : 0;
+            lastRunAt = now;
+            lastRunMillis = (System.nanoTime() - start) / 1000000;
+        }
+        return evicted;
+    }
+}
@@ -0,0 +1,41 @@
+package com.bioenable.chequescan.store;
+
+/**
+ * Limits of a {@link ContentStore} enforced by a {@link StorageManager}.
+ */
+public final class StorageQuota {
+
+    /**
+     * No limit
+     */
+    public static final long UNLIMITED = Long.MAX_VALUE;
+
+    private final long maxBytes;
+    private final long maxAgeMillis;
+
+    /**
+     * @param maxBytes     bytes the stored images may take, {@link #UNLIMITED} for no limit
+     * @param maxAgeMillis how long images which are kept elsewhere stay, {@link #UNLIMITED} for ever
+     */
+    public StorageQuota(long maxBytes, long maxAgeMillis) {
+        if (maxBytes < 0 || maxAgeMillis < 0) {
+            throw new IllegalArgumentException("Quota must not be negative");
+        }
+        this.maxBytes = maxBytes;
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getMaxAgeMillis() {
+        return maxAgeMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "StorageQuota{" + (maxBytes == UNLIMITED ? "unlimited" : maxBytes / (1024 * 1024) + " MB") + ", "
+                + (maxAgeMillis == UNLIMITED ? "for ever" : maxAgeMillis / (60 * 60 * 1000L) + " h") + "}";
+    }
+}
@@ -0,0 +1,82 @@
+package com.bioenable.chequescan.store;
+
+import java.util.Locale;
+
+/**
+ * Snapshot of the usage of a {@link ContentStore} and of what its {@link StorageManager} has
+ * evicted since it was created.
+ */
+public final class StorageStats {
+
+    private final int storedFiles;
+    private final long storedBytes;
+    private final int evictedFiles;
+    private final long evictedBytes;
+    private final int runs;
+    private final int failedRuns;
+    private final long lastRunAt;
+    private final long lastRunMillis;
+
+    StorageStats(int storedFiles, long storedBytes, int evictedFiles, long evictedBytes, int runs, int failedRuns,
+                 long lastRunAt, long lastRunMillis) {
+        this.storedFiles = storedFiles;
+        this.storedBytes = storedBytes;
+        this.evictedFiles = evictedFiles;
+        this.evictedBytes = evictedBytes;
+        this.runs = runs;
+        this.failedRuns = failedRuns;
+        this.lastRunAt = lastRunAt;
+        this.lastRunMillis = lastRunMillis;
+    }
+
+    public int getStoredFiles() {
+        return storedFiles;
+    }
+
+    public long getStoredBytes() {
+        return storedBytes;
+    }
+
+    public int getEvictedFiles() {
+        return evictedFiles;
+    }
+
+    public long getEvictedBytes() {
+        return evictedBytes;
+    }
+
+    /**
+     * @return number of eviction runs, including the failed ones
+     */
+    public int getRuns() {
+        return runs;
+    }
+
+    /**
+     * @return number of runs which stopped on an error
+     */
+    public int getFailedRuns() {
+        return failedRuns;
+    }
+
+    /**
+     * @return start of the last run in milliseconds since the epoch, 0 if there was none
+     */
+    public long getLastRunAt() {
+        return lastRunAt;
+    }
+
+    /**
+     * @return how long the last run took
+     */
+    public long getLastRunMillis() {
+        return lastRunMillis;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+                "%d files, %d KB stored, %d files, %d KB evicted in %d runs (%d failed), last took %d ms",
+                storedFiles, storedBytes / 1024, evictedFiles, evictedBytes / 1024, runs, failedRuns, lastRunMillis);
+    }
+}
@@ -0,0 +1,49 @@
+package com.bioenable.chequescan.store;
+
+import java.io.File;
+
+/**
+ * An image held by a {@link ContentStore}. The hash is the SHA-256 of the file content in hex and
+ * at the same time its name in the store.
+ */
+public final class StoreEntry {
+
+    private final String hash;
+    private final File file;
+    private final long length;
+    private final long created;
+
+    StoreEntry(String hash, File file, long length, long created) {
+        this.hash = hash;
+        this.file = file;
+        this.length = length;
+        this.created = created;
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return size of the file in bytes
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * @return time the content was first stored in milliseconds since the epoch
+     */
+    public long getCreated() {
+        return created;
+    }
+
+    @Override
+    public String toString() {
+        return hash + " (" + length + " bytes)";
+    }
+}
@@ -0,0 +1,178 @@
+package com.bioenable.chequescan.tiles;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Decoded tiles of all levels of one image, keyed by {@link TileGrid#key(int, int, int)}. The
+ * cache holds at most maxBytes worth of tiles and evicts the least recently used ones first. Tiles
+ * of coarser levels stay in the cache next to the finer ones, so that after a zoom the view can
+ * stretch them over the gaps until the tiles of the new level are decoded.
+ * <p>
+ * Every tile the view draws is looked up with {@link #get(long)} on every frame, which keeps the
+ * visible tiles the most recently used. The budget should hold the visible tiles and their
+ * prefetched neighbours at least twice over, otherwise prefetching pushes out what is on screen.
+ * <p>
+ * Like {@link com.bioenable.chequescan.cache.BucketedLruPool} this class has no Android dependency,
+ * subclasses tell the size of a tile and release the evicted ones. All methods are thread safe.
+ *
+ * @param <T> type of the tiles
+ */
+public abstract class TileCache<T> {
+
+    private final long maxBytes;
+    // access order, the eldest entry is the least recently used
+    private final LinkedHashMap<Long, Entry<T>> tiles = new LinkedHashMap<>(64, 0.75f, true);
+    private long currentBytes;
+
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
+
+    /**
+     * @param maxBytes total size of the tiles the cache may hold
+     */
+    protected TileCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @param tile cached tile
+     * @return size of the tile in bytes
+     */
+    protected abstract int sizeOf(T tile);
+
+    /**
+     * Called for every tile which leaves the cache because of the byte budget, a replacement or
+     * clear(). The tile is not handed out anymore, so this is the place to release it.
+     *
+     * @param tile evicted tile
+     */
+    protected abstract void onEvicted(T tile);
+
+    /**
+     * Looks a tile up and marks it as the most recently used.
+     *
+     * @param key key of the tile
+     * @return the tile or null if it is not cached (a miss)
+     */
+    public synchronized T get(long key) {
+        Entry<T> entry = tiles.get(key);
+        if (entry == null) {
+            missCount++;
+            return null;
+        }
+        hitCount++;
+        return entry.tile;
+    }
+
+    /**
+     * @param key key of the tile
+     * @return whether the tile is cached, without counting a hit or a miss or touching its age
+     */
+    public synchronized boolean contains(long key) {
+        return tiles.containsKey(key);
+    }
+
+    /**
+     * Adds a tile as the most recently used one and evicts the least recently used ones while the
+     * cache is over its budget. A tile larger than the whole budget is evicted right away.
+     *
+     * @param key  key of the tile
+     * @param tile decoded tile
+     */
+    public synchronized void put(long key, T tile) {
+        int size = sizeOf(tile);
+        if (size > maxBytes) {
+            evictionCount++;
+            onEvicted(tile);
+            return;
+        }
+        Entry<T> replaced = tiles.put(key, new Entry<>(tile, size));
+        currentBytes += size;
+        if (replaced != null) {
+            currentBytes -= replaced.size;
+            if (replaced.tile != tile) {
+                onEvicted(replaced.tile);
+            }
+        }
+        trimToSize(maxBytes);
+    }
+
+    /**
+     * Evicts tiles until the cache holds at most the given number of bytes.
+     *
+     * @param bytes size to trim the cache down to
+     */
+    public synchronized void trimToSize(long bytes) {
+        Iterator<Entry<T>> eldest = tiles.values().iterator();
+        while (currentBytes > bytes && eldest.hasNext()) {
+            Entry<T> entry = eldest.next();
+            eldest.remove();
+            currentBytes -= entry.size;
+            evictionCount++;
+            onEvicted(entry.tile);
+        }
+    }
+
+    /**
+     * Evicts everything.
+     */
+    public void clear() {
+        trimToSize(0);
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized long getCurrentBytes() {
+        return currentBytes;
+    }
+
+    public synchronized int getCount() {
+        return tiles.size();
+    }
+
+    /**
+     * @return number of get calls which found their tile
+     */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * @return number of get calls which did not
+     */
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * @return number of tiles which were evicted because of the byte budget
+     */
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        long requests = hitCount + missCount;
+        return getClass().getSimpleName() + "[size=" + currentBytes + "/" + maxBytes
+                + ", tiles=" + tiles.size() + ", hits=" + hitCount + ", misses=" + missCount
+                + ", evictions=" + evictionCount + ", hitRate="
+                + (requests == 0 ? 0 : hitCount * 100 / requests) + "%]";
+    }
+
+    private static final class Entry<T> {
+
+        final T tile;
+        final int size;
+
+        Entry(T tile, int size) {
+            this.tile = tile;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package com.bioenable.chequescan.tiles;
+
+/**
+ * Splits a large image into square tiles on several levels of detail. Level n is the image
+ * downsampled by 2^n, the sample size BitmapRegionDecoder is given, and its tiles are
+ * {@link #getTileSize()} pixels per side after downsampling, so they cover tileSize * 2^n pixels of
+ * the image. The tiles at the right and bottom border are smaller.
+ * <p>
+ * A tile is identified by a long from {@link #key(int, int, int)}, which is what the
+ * {@link TileCache} is keyed by. Nothing here allocates, so the view can ask for the visible tiles
+ * on every frame.
+ */
+public final class TileGrid {
+
+    /**
+     * Highest level, 2^MAX_LEVEL is the largest sample size
+     */
+    public static final int MAX_LEVEL = 15;
+
+    private final int imageWidth;
+    private final int imageHeight;
+    private final int tileSize;
+
+    /**
+     * @param imageWidth  width of the full resolution image
+     * @param imageHeight height of the full resolution image
+     * @param tileSize    side of a tile in decoded pixels
+     */
+    public TileGrid(int imageWidth, int imageHeight, int tileSize) {
+        if (imageWidth <= 0 || imageHeight <= 0 || tileSize <= 0) {
+            throw new IllegalArgumentException("Invalid grid " + imageWidth + "x" + imageHeight + ", " + tileSize);
+        }
+        this.imageWidth = imageWidth;
+        this.imageHeight = imageHeight;
+        this.tileSize = tileSize;
+    }
+
+    public int getImageWidth() {
+        return imageWidth;
+    }
+
+    public int getImageHeight() {
+        return imageHeight;
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    /**
+     * @param level level of detail
+     * @return number of tile columns of the level
+     */
+    public int columns(int level) {
+        return divideRoundingUp(imageWidth, tileSize << level);
+    }
+
+    /**
+     * @param level level of detail
+     * @return number of tile rows of the level
+     */
+    public int rows(int level) {
+        return divideRoundingUp(imageHeight, tileSize << level);
+    }
+
+    /**
+     * Picks the level whose pixels are at least as fine as the screen's: the largest sample size
+     * which still gives one decoded pixel or more per screen pixel.
+     *
+     * @param scale screen pixels per image pixel
+     * @return level of detail, at most {@link #MAX_LEVEL}
+     */
+    public static int levelFor(float scale) {
+        int level = 0;
+        while (level < MAX_LEVEL && scale * (2 << level) <= 1) {
+            level++;
+        }
+        return level;
+    }
+
+    /**
+     * Finds the tiles which intersect a rectangle of the image. The rectangle is clipped to the
+     * image; if nothing remains the range is empty, last column and row below the first.
+     *
+     * @param level  level of detail
+     * @param left   left edge in image pixels
+     * @param top    top edge in image pixels
+     * @param right  right edge in image pixels, exclusive
+     * @param bottom bottom edge in image pixels, exclusive
+     * @param margin tiles to add around the range on every side, for prefetching
+     * @param range  receives first column, first row, last column, last row, all inclusive
+     */
+    public void tilesIn(int level, float left, float top, float right, float bottom, int margin, int[] range) {
+        float span = tileSize << level;
+        int columns = columns(level);
+        int rows = rows(level);
+        if (right <= 0 || bottom <= 0 || left >= imageWidth || top >= imageHeight || right <= left || bottom <= top) {
+            range[0] = 0;
+            range[1] = 0;
+            range[2] = -1;
+            range[3] = -1;
+            return;
+        }
+        range[0] = Math.max(0, (int) Math.floor(Math.max(0, left) / span) - margin);
+        range[1] = Math.max(0, (int) Math.floor(Math.max(0, top) / span) - margin);
+        range[2] = Math.min(columns - 1, (int) Math.ceil(Math.min(imageWidth, right) / span) - 1 + margin);
+        range[3] = Math.min(rows - 1, (int) Math.ceil(Math.min(imageHeight, bottom) / span) - 1 + margin);
+    }
+
+    /**
+     * @param level  level of detail
+     * @param column column of the tile
+     * @param row    row of the tile
+     * @param bounds receives left, top, right, bottom of the tile in image pixels, right and bottom
+     *               exclusive
+     */
+    public void bounds(int level, int column, int row, int[] bounds) {
+        int span = tileSize << level;
+        bounds[0] = column * span;
+        bounds[1] = row * span;
+        bounds[2] = Math.min(imageWidth, bounds[0] + span);
+        bounds[3] = Math.min(imageHeight, bounds[1] + span);
+    }
+
+    /**
+     * @param level  level of detail, 0 - {@link #MAX_LEVEL}
+     * @param column column of the tile, below 2^24
+     * @param row    row of the tile, below 2^24
+     * @return key of the tile
+     */
+    public static long key(int level, int column, int row) {
+        return (long) level << 48 | (long) row << 24 | column;
+    }
+
+    public static int level(long key) {
+        return (int) (key >>> 48);
+    }
+
+    public static int column(long key) {
+        return (int) (key & 0xFFFFFF);
+    }
+
+    public static int row(long key) {
+        return (int) (key >>> 24 & 0xFFFFFF);
+    }
+
+    private static int divideRoundingUp(int value, int divisor) {
+        return (value + divisor - 1) / divisor;
+    }
+}
@@ -0,0 +1,52 @@
+package com.bioenable.chequescan.transfer;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Adapts an already opened InputStream (for example the stream of a DriveContents object) to a
+ * {@link TransferSource}. The stream can only be opened once, resuming is done by skipping the bytes
+ * which are already present locally.
+ */
+public class StreamSource implements TransferSource {
+
+    private final InputStream in;
+    private final long length;
+    private boolean opened;
+
+    /**
+     * @param in     stream positioned at the start of the data
+     * @param length size of the data or -1 if unknown
+     */
+    public StreamSource(InputStream in, long length) {
+        this.in = in;
+        this.length = length;
+    }
+
+    @Override
+    public synchronized InputStream open(long offset) throws IOException {
+        if (opened) {
+            throw new IOException("Stream source can only be opened once");
+        }
+        opened = true;
+        long remaining = offset;
+        while (remaining > 0) {
+            long skipped = in.skip(remaining);
+            if (skipped <= 0) {
+                // skip() is allowed to give up early, read() tells us whether we are at the end
+                if (in.read() < 0) {
+                    throw new EOFException("Source is shorter than the partial file");
+                }
+                skipped = 1;
+            }
+            remaining -= skipped;
+        }
+        return in;
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+}
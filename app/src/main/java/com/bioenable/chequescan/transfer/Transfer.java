@@ -0,0 +1,85 @@
+package com.bioenable.chequescan.transfer;
+
+import java.io.File;
+import java.security.MessageDigest;
+
+/**
+ * Handle of a transfer submitted to a {@link TransferEngine}. It can be used to follow the progress
+ * from any thread and to cancel the transfer.
+ */
+public final class Transfer {
+
+    private final File target;
+    private final MessageDigest digest;
+    private volatile boolean cancelled;
+    private volatile boolean done;
+    private volatile long bytesTransferred;
+    private volatile long totalBytes = -1;
+
+    /**
+     * @param target file which holds the complete copy at the end
+     */
+    public Transfer(File target) {
+        this(target, null);
+    }
+
+    /**
+     * @param target file which holds the complete copy at the end
+     * @param digest digest which is updated with every byte of the target, may be null. It is reset
+     *               when the transfer starts.
+     */
+    public Transfer(File target, MessageDigest digest) {
+        this.target = target;
+        this.digest = digest;
+    }
+
+    /**
+     * Asks the transfer to stop. The worker notices this between two chunks, deletes the partial
+     * file and reports {@link TransferListener#onCancelled()}.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @return true once the listener has received its final event
+     */
+    public boolean isDone() {
+        return done;
+    }
+
+    public File getTarget() {
+        return target;
+    }
+
+    /**
+     * @return the digest of the target file once the transfer is complete, null if none was given
+     */
+    public MessageDigest getDigest() {
+        return digest;
+    }
+
+    public long getBytesTransferred() {
+        return bytesTransferred;
+    }
+
+    /**
+     * @return total size of the source or -1 if it is not known
+     */
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    void setProgress(long bytesTransferred, long totalBytes) {
+        this.bytesTransferred = bytesTransferred;
+        this.totalBytes = totalBytes;
+    }
+
+    void setDone() {
+        done = true;
+    }
+}
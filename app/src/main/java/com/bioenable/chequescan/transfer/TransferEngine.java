@@ -0,0 +1,301 @@
+package com.bioenable.chequescan.transfer;
+
+import com.bioenable.chequescan.metrics.ScanCounter;
+import com.bioenable.chequescan.metrics.ScanMetrics;
+import com.bioenable.chequescan.metrics.ScanStage;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Copies images from a {@link TransferSource} into local files on background threads. This class
+ * has no Android dependency so that it can be tested and benchmarked on the JVM.
+ * <p>
+ * Every transfer writes into a partial file next to the target (target name + ".part") and renames
+ * it when the copy has finished. If a transfer fails, the partial file stays on disk and the next
+ * transfer to the same target only copies the missing bytes.
+ * <p>
+ * Bytes are moved in large chunks. If the source is a file (which is the case for Drive contents,
+ * they are backed by a ParcelFileDescriptor) the copy goes through FileChannel.transferTo and never
+ * touches the Java heap. Otherwise a small pool of reusable heap buffers is used, so back to back
+ * transfers do not allocate new buffers.
+ * <p>
+ * A transfer can hash the file while it is written (see {@link Transfer#getDigest()}), which saves
+ * reading it a second time to find its content address. Such transfers always go through the heap
+ * buffers. When a partial file is resumed, its bytes are read into the digest first.
+ */
+public class TransferEngine implements Closeable {
+
+    /**
+     * Suffix of the file a transfer writes into until it is complete
+     */
+    public static final String PARTIAL_SUFFIX = ".part";
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final long CHANNEL_CHUNK_SIZE = 1024 * 1024;
+
+    private final ExecutorService executor;
+    private final BlockingQueue<byte[]> buffers;
+
+    /**
+     * @param threads number of transfers which may run at the same time
+     */
+    public TransferEngine(int threads) {
+        this.executor = Executors.newFixedThreadPool(threads, new TransferThreadFactory());
+        this.buffers = new ArrayBlockingQueue<>(threads);
+    }
+
+    /**
+     * Starts copying source into target on a worker thread.
+     *
+     * @param source   where the bytes come from
+     * @param target   file which holds the complete copy at the end
+     * @param listener receives progress and the final result on the worker thread
+     * @return handle which can be used to cancel the transfer
+     */
+    public Transfer submit(TransferSource source, File target, TransferListener listener) {
+        return submit(source, target, listener, null);
+    }
+
+    /**
+     * Starts copying source into target on a worker thread, hashing the bytes on the way.
+     *
+     * @param source   where the bytes come from
+     * @param target   file which holds the complete copy at the end
+     * @param listener receives progress and the final result on the worker thread
+     * @param digest   updated with the content of target, may be null
+     * @return handle which can be used to cancel the transfer
+     */
+    public Transfer submit(final TransferSource source, File target, final TransferListener listener,
+                           MessageDigest digest) {
+        final Transfer transfer = new Transfer(target, digest);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    long total = copy(source, transfer, listener);
+                    transfer.setDone();
+                    listener.onComplete(transfer.getTarget(), total);
+                } catch (IOException e) {
+                    transfer.setDone();
+                    // a read timeout is an InterruptedIOException too, only a cancel is a cancel
+                    if (transfer.isCancelled()) {
+                        new File(transfer.getTarget().getPath() + PARTIAL_SUFFIX).delete();
+                        listener.onCancelled();
+                    } else {
+                        listener.onFailed(e);
+                    }
+                }
+            }
+        });
+        return transfer;
+    }
+
+    /**
+     * Copies source into the target of the transfer on the calling thread. This is what the worker
+     * threads run, it is public for callers which already are on a background thread.
+     *
+     * @param source   where the bytes come from
+     * @param transfer handle holding the target, checked for cancellation between chunks
+     * @param listener receives progress, may be null
+     * @return size of the finished file
+     * @throws InterruptedIOException if the transfer was cancelled, the partial file is deleted
+     * @throws IOException            if reading or writing failed, the partial file is kept
+     */
+    public long copy(TransferSource source, Transfer transfer, TransferListener listener)
+            throws IOException {
+        File target = transfer.getTarget();
+        long start = ScanMetrics.start();
+        File partial = new File(target.getPath() + PARTIAL_SUFFIX);
+        long total = source.length();
+        long offset = partial.exists() ? partial.length() : 0;
+        if (total >= 0 && offset > total) {
+            // the partial file belongs to something else, start over
+            offset = 0;
+        }
+
+        MessageDigest digest = transfer.getDigest();
+        if (digest != null) {
+            digest.reset();
+            if (offset > 0) {
+                offset = digestPrefix(partial, offset, digest);
+            }
+        }
+
+        long written;
+        InputStream in = source.open(offset);
+        try {
+            FileOutputStream out = new FileOutputStream(partial, offset > 0);
+            try {
+                if (in instanceof FileInputStream && digest == null) {
+                    written = copyChannel(((FileInputStream) in).getChannel(), out.getChannel(),
+                            offset, total, transfer, listener);
+                } else {
+                    written = copyBuffered(in, out, offset, total, transfer, listener, digest);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+
+        if (transfer.isCancelled()) {
+            partial.delete();
+            throw new InterruptedIOException("Transfer cancelled");
+        }
+        if (total >= 0 && written != total) {
+            throw new IOException("Expected " + total + " bytes but got " + written);
+        }
+        if (target.exists() && !target.delete()) {
+            throw new IOException("Could not replace " + target);
+        }
+        if (!partial.renameTo(target)) {
+            throw new IOException("Could not rename " + partial + " to " + target);
+        }
+        ScanMetrics.record(ScanStage.COPY, start);
+        ScanMetrics.add(ScanCounter.BYTES_COPIED, written - offset);
+        return written;
+    }
+
+    /**
+     * Runs a task on one of the transfer threads. This is meant for work around a
+     * {@link #copy(TransferSource, Transfer, TransferListener)} which should share the limit on
+     * concurrent transfers, like hashing a source before deciding whether to copy it.
+     *
+     * @param task task which reports its own result
+     */
+    public void execute(Runnable task) {
+        executor.execute(task);
+    }
+
+    /**
+     * Stops accepting transfers. Running transfers are finished.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+
+    private long copyChannel(FileChannel in, FileChannel out, long offset, long total,
+                             Transfer transfer, TransferListener listener) throws IOException {
+        long position = in.position();
+        long size = in.size();
+        if (total < 0) {
+            total = offset + size - position;
+        }
+        long written = offset;
+        while (position < size && !transfer.isCancelled()) {
+            long count = in.transferTo(position, Math.min(CHANNEL_CHUNK_SIZE, size - position), out);
+            if (count <= 0) {
+                break;
+            }
+            position += count;
+            written += count;
+            reportProgress(transfer, listener, written, total);
+        }
+        return written;
+    }
+
+    private long copyBuffered(InputStream in, FileOutputStream out, long offset, long total,
+                              Transfer transfer, TransferListener listener, MessageDigest digest)
+            throws IOException {
+        byte[] buffer = takeBuffer();
+        try {
+            long written = offset;
+            while (!transfer.isCancelled()) {
+                // fill the whole buffer before writing so the disk sees few, large writes
+                int filled = 0;
+                int count;
+                try {
+                    while (filled < buffer.length
+                            && (count = in.read(buffer, filled, buffer.length - filled)) >= 0) {
+                        filled += count;
+                    }
+                } catch (IOException e) {
+                    // keep what arrived before the failure, the next attempt resumes after it
+                    out.write(buffer, 0, filled);
+                    throw e;
+                }
+                if (filled == 0) {
+                    break;
+                }
+                out.write(buffer, 0, filled);
+                if (digest != null) {
+                    digest.update(buffer, 0, filled);
+                }
+                written += filled;
+                reportProgress(transfer, listener, written, total);
+                if (filled < buffer.length) {
+                    break;
+                }
+            }
+            return written;
+        } finally {
+            buffers.offer(buffer);
+        }
+    }
+
+    /**
+     * Reads the first length bytes of the partial file into the digest.
+     *
+     * @return number of bytes read, less than length if the file is shorter
+     */
+    private long digestPrefix(File partial, long length, MessageDigest digest) throws IOException {
+        byte[] buffer = takeBuffer();
+        try {
+            InputStream in = new FileInputStream(partial);
+            try {
+                long read = 0;
+                int count;
+                while (read < length
+                        && (count = in.read(buffer, 0, (int) Math.min(buffer.length, length - read))) > 0) {
+                    digest.update(buffer, 0, count);
+                    read += count;
+                }
+                return read;
+            } finally {
+                in.close();
+            }
+        } finally {
+            buffers.offer(buffer);
+        }
+    }
+
+    private byte[] takeBuffer() {
+        byte[] buffer = buffers.poll();
+        return buffer != null ? buffer : new byte[BUFFER_SIZE];
+    }
+
+    private static void reportProgress(Transfer transfer, TransferListener listener,
+                                       long written, long total) {
+        transfer.setProgress(written, total);
+        if (listener != null) {
+            listener.onProgress(written, total);
+        }
+    }
+
+    private static class TransferThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "transfer-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
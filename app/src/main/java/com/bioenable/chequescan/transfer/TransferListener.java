@@ -0,0 +1,44 @@
+package com.bioenable.chequescan.transfer;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Receives the events of a single transfer started with {@link TransferEngine#submit}. All methods
+ * are called on the engine's worker thread, so implementations that touch the UI have to hand the
+ * event over to the main thread themselves.
+ * <p>
+ * Exactly one of onComplete, onCancelled or onFailed is called at the end of every transfer.
+ */
+public interface TransferListener {
+
+    /**
+     * Called after every chunk that was written to the local file.
+     *
+     * @param bytesTransferred bytes present in the local file so far, including resumed bytes
+     * @param totalBytes       total size of the source or -1 if it is not known
+     */
+    void onProgress(long bytesTransferred, long totalBytes);
+
+    /**
+     * Called once the complete source has been written to the target file.
+     *
+     * @param target     the finished file
+     * @param totalBytes size of the finished file
+     */
+    void onComplete(File target, long totalBytes);
+
+    /**
+     * Called when the transfer was stopped with {@link Transfer#cancel()}. The partial file is
+     * deleted before this is called.
+     */
+    void onCancelled();
+
+    /**
+     * Called when reading the source or writing the target failed. The partial file is kept so
+     * that the next transfer to the same target resumes from where this one stopped.
+     *
+     * @param e cause of the failure
+     */
+    void onFailed(IOException e);
+}
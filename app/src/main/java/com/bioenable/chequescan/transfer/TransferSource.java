@@ -0,0 +1,26 @@
+package com.bioenable.chequescan.transfer;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Something a {@link TransferEngine} can copy bytes from. A source has to be able to start reading
+ * at an offset so that interrupted transfers can be resumed instead of restarted.
+ */
+public interface TransferSource {
+
+    /**
+     * Opens the source positioned at the given offset.
+     *
+     * @param offset number of bytes which are already present locally and have to be skipped
+     * @return stream positioned at offset. If this is a FileInputStream the engine copies through
+     * its FileChannel instead of the heap buffers.
+     * @throws IOException if the source cannot be opened or is shorter than offset
+     */
+    InputStream open(long offset) throws IOException;
+
+    /**
+     * @return size of the source in bytes or -1 if it is not known up front
+     */
+    long length();
+}
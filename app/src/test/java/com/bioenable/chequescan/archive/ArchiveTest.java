@@ -0,0 +1,254 @@
+package com.bioenable.chequescan.archive;
+
+import com.bioenable.chequescan.micr.E13BFont;
+import com.bioenable.chequescan.processing.ChequePreprocessor;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Local unit tests for the Group 4 codec and the archive file: images go through the encoder and
+ * decoder and have to come back bit for bit.
+ */
+public class ArchiveTest {
+
+    private static final int WIDTH = 2400;
+    private static final int HEIGHT = 1100;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void roundTripsEdgeCases() throws IOException {
+        Random random = new Random(1);
+        int[] widths = {1, 7, 8, 9, 63, 64, 65, 1729, 2561, 3000};
+        for (int width : widths) {
+            int height = 13;
+            byte[] image = new byte[width * height];
+            // white, black, alternating pixels, random noise, long runs around the make up limits
+            for (int x = 0; x < width; x++) {
+                image[width + x] = 1;
+                image[2 * width + x] = (byte) (x & 1);
+                image[3 * width + x] = (byte) ((x >> 1) & 1);
+                image[5 * width + x] = (byte) (x < width - 1 ? 1 : 0);
+                image[6 * width + x] = (byte) (x == 0 || x == width - 1 ? 1 : 0);
+                image[8 * width + x] = (byte) (x >= 1792 && x < 2560 ? 1 : 0);
+            }
+            for (int i = 9 * width; i < image.length; i++) {
+                image[i] = (byte) (random.nextInt(7) == 0 ? 1 : 0);
+            }
+            assertRoundTrip(image, width, height);
+        }
+    }
+
+    @Test
+    public void roundTripsRandomImages() throws IOException {
+        Random random = new Random(2);
+        for (int n = 0; n < 50; n++) {
+            int width = 1 + random.nextInt(300);
+            int height = 1 + random.nextInt(40);
+            int density = 1 + random.nextInt(20);
+            byte[] image = new byte[width * height];
+            for (int i = 0; i < image.length; i++) {
+                image[i] = (byte) (random.nextInt(density) == 0 ? 1 : 0);
+            }
+            // some blobs, so that most rows continue the edges of the row above
+            for (int b = 0; b < 5; b++) {
+                int left = random.nextInt(width);
+                int top = random.nextInt(height);
+                for (int y = top; y < Math.min(height, top + 10); y++) {
+                    for (int x = left + y - top; x < Math.min(width, left + 20 + y - top); x++) {
+                        image[y * width + x] = 1;
+                    }
+                }
+            }
+            assertRoundTrip(image, width, height);
+        }
+    }
+
+    @Test
+    public void archiveKeepsChequeAndThumbnail() throws IOException {
+        byte[] gray = cheque();
+        byte[] binary = binarize(gray);
+        File file = folder.newFile("cheque.tif");
+
+        long size = new ArchiveWriter().write(binary, gray, WIDTH, HEIGHT, 400, file);
+
+        assertEquals(file.length(), size);
+        ArchiveReader reader = new ArchiveReader(file);
+        assertEquals(WIDTH, reader.getWidth());
+        assertEquals(HEIGHT, reader.getHeight());
+        int stride = G4Decoder.stride(WIDTH);
+        byte[] all = new byte[HEIGHT * stride];
+        reader.readRows(0, HEIGHT, all);
+        assertArrayEquals(pack(binary, WIDTH, HEIGHT), all);
+        // rows across a strip boundary, read after other strips were decoded
+        byte[] some = new byte[100 * stride];
+        reader.readRows(1000, 100, some);
+        reader.readRows(100, 100, some);
+        byte[] expected = new byte[100 * stride];
+        System.arraycopy(all, 100 * stride, expected, 0, expected.length);
+        assertArrayEquals(expected, some);
+
+        assertEquals(240, reader.getThumbnailWidth());
+        assertEquals(110, reader.getThumbnailHeight());
+        byte[] thumbnail = reader.readThumbnail();
+        assertEquals(ArchiveWriter.shrink(gray, WIDTH, 240, 110, 10)[55 * 240 + 120], thumbnail[55 * 240 + 120]);
+        reader.close();
+    }
+
+    @Test
+    public void pageHoldsTheChequeInOneStrip() throws IOException {
+        byte[] gray = cheque();
+        byte[] binary = binarize(gray);
+        File archive = folder.newFile("cheque.tif");
+        new ArchiveWriter().write(binary, gray, WIDTH, HEIGHT, 400, archive);
+        File page = new File(folder.getRoot(), "page.tif");
+
+        long size = new ArchiveWriter().writePage(archive, page);
+
+        assertEquals(page.length(), size);
+        ArchiveReader reader = new ArchiveReader(page);
+        assertEquals(HEIGHT, reader.getRowsPerStrip());
+        assertEquals(400, reader.getDpi());
+        assertEquals(0, reader.getThumbnailWidth());
+        byte[] all = new byte[HEIGHT * G4Decoder.stride(WIDTH)];
+        reader.readRows(0, HEIGHT, all);
+        assertArrayEquals(pack(binary, WIDTH, HEIGHT), all);
+        reader.close();
+    }
+
+    /**
+     * The archive has to be at least ten times smaller than a JPEG of the straightened gray cheque
+     * at the quality of the camera, which is itself far smaller than the colour photo it was cut
+     * from.
+     */
+    @Test
+    public void archiveIsTenTimesSmallerThanJpeg() throws IOException {
+        byte[] gray = cheque();
+        File file = folder.newFile("cheque.tif");
+
+        long archive = new ArchiveWriter().write(binarize(gray), gray, WIDTH, HEIGHT, 400, file);
+        long jpeg = jpegSize(gray);
+
+        assertTrue(archive * 10 <= jpeg);
+    }
+
+    private void assertRoundTrip(byte[] image, int width, int height) throws IOException {
+        byte[] data = new G4Encoder().encode(image, width, 0, height);
+        byte[] packed = new byte[height * G4Decoder.stride(width)];
+        new G4Decoder().decode(data, data.length, width, height, packed, 0);
+        assertArrayEquals("width " + width, pack(image, width, height), packed);
+    }
+
+    static byte[] pack(byte[] image, int width, int height) {
+        int stride = G4Decoder.stride(width);
+        byte[] packed = new byte[height * stride];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if (image[y * width + x] == ChequePreprocessor.INK) {
+                    packed[y * stride + (x >> 3)] |= (byte) (0x80 >>> (x & 7));
+                }
+            }
+        }
+        return packed;
+    }
+
+    private static byte[] binarize(byte[] gray) {
+        byte[] binary = new byte[gray.length];
+        ChequePreprocessor preprocessor = new ChequePreprocessor(2);
+        preprocessor.binarizeSauvola(gray, WIDTH, HEIGHT, binary);
+        preprocessor.close();
+        return binary;
+    }
+
+    /**
+     * A straightened cheque: unevenly lit paper with a printed pattern, sensor noise, printed and
+     * handwritten lines and a code line.
+     */
+    static byte[] cheque() {
+        Random random = new Random(3);
+        int[] pixels = new int[WIDTH * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                double pattern = 8 * Math.sin(x / 40.0) * Math.sin(y / 30.0);
+                pixels[y * WIDTH + x] = (int) (200 + 30 * x / WIDTH - 20 * y / HEIGHT + pattern
+                        + random.nextGaussian() * 4);
+            }
+        }
+        // printed labels
+        for (int line = 0; line < 8; line++) {
+            int y = 120 + line * 100;
+            for (int x = 150; x < 1500; ) {
+                int w = 10 + random.nextInt(30);
+                fill(pixels, x, y, w, 28, 40);
+                x += w + 8 + random.nextInt(20);
+            }
+        }
+        // handwriting: wandering strokes
+        for (int stroke = 0; stroke < 40; stroke++) {
+            double x = 300 + random.nextInt(1800);
+            double y = 150 + random.nextInt(700);
+            double angle = random.nextDouble() * Math.PI * 2;
+            for (int step = 0; step < 120; step++) {
+                angle += random.nextGaussian() * 0.3;
+                x += 3 * Math.cos(angle);
+                y += 3 * Math.sin(angle);
+                fill(pixels, (int) x, (int) y, 5, 5, 50);
+            }
+        }
+        byte[] gray = new byte[pixels.length];
+        for (int i = 0; i < pixels.length; i++) {
+            gray[i] = (byte) Math.max(0, Math.min(255, pixels[i]));
+        }
+        byte[] code = new byte[WIDTH * HEIGHT];
+        E13BFont.render("C000123C 400002012A 123456C 31", code, WIDTH, 300, HEIGHT - 110, 5f, (byte) 1);
+        for (int i = 0; i < code.length; i++) {
+            if (code[i] == 1) {
+                gray[i] = 30;
+            }
+        }
+        return gray;
+    }
+
+    private static void fill(int[] pixels, int left, int top, int width, int height, int value) {
+        for (int y = Math.max(0, top); y < Math.min(HEIGHT, top + height); y++) {
+            for (int x = Math.max(0, left); x < Math.min(WIDTH, left + width); x++) {
+                pixels[y * WIDTH + x] = value;
+            }
+        }
+    }
+
+    private static long jpegSize(byte[] gray) throws IOException {
+        BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_BYTE_GRAY);
+        image.getRaster().setDataElements(0, 0, WIDTH, HEIGHT, gray);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpg").next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(0.9f);
+        ImageOutputStream stream = ImageIO.createImageOutputStream(out);
+        writer.setOutput(stream);
+        writer.write(null, new IIOImage(image, null, null), param);
+        stream.close();
+        writer.dispose();
+        return out.size();
+    }
+}
@@ -0,0 +1,172 @@
+package com.bioenable.chequescan.batch;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Local unit tests for {@link BatchPipeline} with stages which sleep instead of working.
+ */
+public class BatchPipelineTest {
+
+    private final List<Integer> completed = Collections.synchronizedList(new ArrayList<Integer>());
+    private final List<String> failures = Collections.synchronizedList(new ArrayList<String>());
+    private BatchPipeline<Integer> pipeline;
+
+    @After
+    public void tearDown() {
+        if (pipeline != null) {
+            pipeline.close();
+        }
+    }
+
+    @Test
+    public void stagesOverlap() throws InterruptedException {
+        int items = 12;
+        long stageMillis = 20;
+        pipeline = new BatchPipeline<>(BatchPipeline.DEFAULT_QUEUE_CAPACITY, new RecordingListener())
+                .addStage("store", sleep(stageMillis))
+                .addStage("decode", sleep(stageMillis))
+                .addStage("process", sleep(stageMillis))
+                .start();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < items; i++) {
+            pipeline.submit(i);
+        }
+        pipeline.finish();
+        assertTrue(pipeline.awaitTermination(10, TimeUnit.SECONDS));
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertEquals(items, completed.size());
+        // one after the other would take 3 * 12 * 20 ms
+        assertTrue("took " + elapsedMillis + " ms", elapsedMillis < 2 * items * stageMillis);
+        for (int stage = 0; stage < 3; stage++) {
+            assertTrue(pipeline.getBusyNanos(stage) >= TimeUnit.MILLISECONDS.toNanos(items * stageMillis));
+        }
+    }
+
+    @Test
+    public void keepsSubmissionOrder() throws InterruptedException {
+        pipeline = new BatchPipeline<>(1, new RecordingListener())
+                .addStage("a", sleep(1))
+                .addStage("b", sleep(0))
+                .start();
+
+        for (int i = 0; i < 50; i++) {
+            pipeline.submit(i);
+        }
+        pipeline.finish();
+        assertTrue(pipeline.awaitTermination(10, TimeUnit.SECONDS));
+
+        for (int i = 0; i < 50; i++) {
+            assertEquals(Integer.valueOf(i), completed.get(i));
+        }
+    }
+
+    @Test
+    public void slowStagePushesBackOnSubmit() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        pipeline = new BatchPipeline<>(2, new RecordingListener())
+                .addStage("fast", sleep(0))
+                .addStage("blocked", new BatchPipeline.Stage<Integer>() {
+                    @Override
+                    public void process(Integer item) throws InterruptedException {
+                        release.await();
+                    }
+                })
+                .start();
+
+        // one item in the blocked stage, two in its queue, one in the fast stage and two in its queue
+        int accepted = 0;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (accepted < 6 && System.nanoTime() < deadline) {
+            if (pipeline.offer(accepted)) {
+                accepted++;
+            } else {
+                Thread.sleep(5);
+            }
+        }
+        assertEquals(6, accepted);
+        Thread.sleep(50);
+        assertFalse(pipeline.offer(6));
+        assertEquals(6, pipeline.getInFlight());
+
+        release.countDown();
+        pipeline.finish();
+        assertTrue(pipeline.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(6, completed.size());
+        assertEquals(0, pipeline.getInFlight());
+    }
+
+    @Test
+    public void failedItemSkipsLaterStages() throws InterruptedException {
+        final List<Integer> reachedLast = Collections.synchronizedList(new ArrayList<Integer>());
+        pipeline = new BatchPipeline<>(2, new RecordingListener())
+                .addStage("process", new BatchPipeline.Stage<Integer>() {
+                    @Override
+                    public void process(Integer item) throws ChequeRejectedException {
+                        if (item == 2) {
+                            throw new ChequeRejectedException("No cheque found in the photo");
+                        }
+                    }
+                })
+                .addStage("persist", new BatchPipeline.Stage<Integer>() {
+                    @Override
+                    public void process(Integer item) {
+                        reachedLast.add(item);
+                    }
+                })
+                .start();
+
+        for (int i = 0; i < 5; i++) {
+            pipeline.submit(i);
+        }
+        pipeline.finish();
+        assertTrue(pipeline.awaitTermination(10, TimeUnit.SECONDS));
+
+        assertEquals(4, pipeline.getCompleted());
+        assertEquals(1, pipeline.getFailed());
+        assertFalse(reachedLast.contains(2));
+        assertEquals(Collections.singletonList("2 process No cheque found in the photo"), failures);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsItemsAfterFinish() throws InterruptedException {
+        pipeline = new BatchPipeline<>(2, new RecordingListener()).addStage("a", sleep(0)).start();
+        pipeline.finish();
+
+        pipeline.submit(1);
+    }
+
+    private static BatchPipeline.Stage<Integer> sleep(final long millis) {
+        return new BatchPipeline.Stage<Integer>() {
+            @Override
+            public void process(Integer item) throws InterruptedException {
+                Thread.sleep(millis);
+            }
+        };
+    }
+
+    private class RecordingListener implements BatchPipeline.Listener<Integer> {
+
+        @Override
+        public void onCompleted(Integer item) {
+            completed.add(item);
+        }
+
+        @Override
+        public void onFailed(Integer item, String stage, Exception e) {
+            failures.add(item + " " + stage + " " + e.getMessage());
+        }
+    }
+}
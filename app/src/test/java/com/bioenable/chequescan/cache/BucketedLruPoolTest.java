@@ -0,0 +1,112 @@
+package com.bioenable.chequescan.cache;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Local unit tests for {@link BucketedLruPool}, using byte arrays in place of bitmaps.
+ */
+public class BucketedLruPoolTest {
+
+    private ByteArrayPool pool;
+
+    @Before
+    public void setUp() {
+        pool = new ByteArrayPool(1000);
+    }
+
+    @Test
+    public void servesSmallestSuitableBucket() {
+        byte[] small = new byte[100];
+        byte[] large = new byte[300];
+        pool.release(large);
+        pool.release(small);
+
+        assertSame(small, pool.acquire(80));
+        assertSame(large, pool.acquire(80));
+        assertNull(pool.acquire(80));
+        assertEquals(2, pool.getHitCount());
+        assertEquals(1, pool.getMissCount());
+        assertEquals(0, pool.getCurrentBytes());
+    }
+
+    @Test
+    public void doesNotHandOutMuchLargerObjects() {
+        pool.release(new byte[500]);
+
+        assertNull(pool.acquire(100));
+        assertEquals(1, pool.getMissCount());
+        assertEquals(500, pool.getCurrentBytes());
+    }
+
+    @Test
+    public void evictsEldestWhenOverBudget() {
+        byte[] first = new byte[400];
+        byte[] second = new byte[400];
+        byte[] third = new byte[400];
+        pool.release(first);
+        pool.release(second);
+        pool.release(third);
+
+        assertEquals(1, pool.getEvictionCount());
+        assertSame(first, pool.evicted.get(0));
+        assertEquals(800, pool.getCurrentBytes());
+        assertSame(third, pool.acquire(400));
+        assertSame(second, pool.acquire(400));
+    }
+
+    @Test
+    public void rejectsObjectsLargerThanBudget() {
+        byte[] huge = new byte[2000];
+        pool.release(huge);
+
+        assertEquals(0, pool.getCount());
+        assertSame(huge, pool.evicted.get(0));
+    }
+
+    @Test
+    public void ignoresDoubleRelease() {
+        byte[] item = new byte[100];
+        pool.release(item);
+        pool.release(item);
+
+        assertEquals(1, pool.getCount());
+        assertEquals(100, pool.getCurrentBytes());
+    }
+
+    @Test
+    public void clearEvictsEverything() {
+        pool.release(new byte[100]);
+        pool.release(new byte[200]);
+        pool.clear();
+
+        assertEquals(0, pool.getCount());
+        assertEquals(0, pool.getCurrentBytes());
+        assertEquals(2, pool.evicted.size());
+    }
+
+    private static class ByteArrayPool extends BucketedLruPool<byte[]> {
+        final List<byte[]> evicted = new ArrayList<>();
+
+        ByteArrayPool(long maxBytes) {
+            super(maxBytes);
+        }
+
+        @Override
+        protected int sizeOf(byte[] item) {
+            return item.length;
+        }
+
+        @Override
+        protected void onEvicted(byte[] item) {
+            evicted.add(item);
+        }
+    }
+}
@@ -0,0 +1,305 @@
+package com.bioenable.chequescan.capture;
+
+import com.bioenable.chequescan.geometry.Homography;
+import com.bioenable.chequescan.geometry.Quad;
+import com.bioenable.chequescan.quality.QualityReport;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Local unit tests for {@link PreviewFrameAnalyzer}, driven by synthetic 1280 x 720 NV21 frames of
+ * a photographed cheque.
+ */
+public class PreviewFrameAnalyzerTest {
+
+    private static final int WIDTH = 1280;
+    private static final int HEIGHT = 720;
+    private static final int CHEQUE_WIDTH = 960;
+    private static final int CHEQUE_HEIGHT = 440;
+    private static final int PAPER = 205;
+    private static final int BACKGROUND = 70;
+    private static final Quad CHEQUE = new Quad(140, 150, 1150, 130, 1130, 590, 160, 610);
+
+    private final AtomicInteger triggers = new AtomicInteger();
+    private PreviewFrameAnalyzer analyzer;
+
+    @After
+    public void tearDown() {
+        if (analyzer != null) {
+            analyzer.close();
+        }
+    }
+
+    @Test
+    public void allocatesRingOfNv21Buffers() {
+        analyzer = new PreviewFrameAnalyzer(WIDTH, HEIGHT, new CountingListener());
+
+        byte[][] buffers = analyzer.getBuffers();
+
+        assertEquals(PreviewFrameAnalyzer.DEFAULT_RING_SIZE, buffers.length);
+        for (byte[] buffer : buffers) {
+            assertEquals(WIDTH * HEIGHT * 3 / 2, buffer.length);
+        }
+        assertEquals(7 * 5 + 2 * 4 * 3, PreviewFrameAnalyzer.frameSize(7, 5));
+    }
+
+    @Test
+    public void triggersOnceWhenChequeIsStill() throws InterruptedException {
+        analyzer = new PreviewFrameAnalyzer(WIDTH, HEIGHT, new CountingListener());
+        byte[] frame = frame(CHEQUE, false);
+
+        for (int i = 0; i < PreviewFrameAnalyzer.DEFAULT_STABLE_FRAMES; i++) {
+            assertEquals(0, triggers.get());
+            analyzeOne(frame);
+        }
+        assertEquals(1, triggers.get());
+        // everything is dropped until the analyzer is rearmed
+        assertFalse(analyzer.offer(frame));
+        analyzer.rearm();
+        for (int i = 0; i < PreviewFrameAnalyzer.DEFAULT_STABLE_FRAMES; i++) {
+            analyzeOne(frame);
+        }
+
+        assertEquals(2, triggers.get());
+        assertEquals(1, analyzer.getFramesDropped());
+    }
+
+    @Test
+    public void reportsCornersInFramePixels() throws InterruptedException {
+        final AtomicReference<Quad> stable = new AtomicReference<>();
+        analyzer = new PreviewFrameAnalyzer(WIDTH, HEIGHT, new CountingListener() {
+            @Override
+            public void onChequeStable(Quad corners) {
+                stable.set(corners);
+            }
+        });
+        byte[] frame = frame(CHEQUE, false);
+
+        for (int i = 0; i < PreviewFrameAnalyzer.DEFAULT_STABLE_FRAMES; i++) {
+            analyzeOne(frame);
+        }
+
+        assertTrue(stable.get() + " vs " + CHEQUE, stable.get().distanceTo(CHEQUE) < 8);
+    }
+
+    @Test
+    public void keepsAnalysingAfterListenerThrows() throws InterruptedException {
+        final AtomicInteger calls = new AtomicInteger();
+        analyzer = new PreviewFrameAnalyzer(WIDTH, HEIGHT, new CountingListener() {
+            @Override
+            public void onFrameAnalyzed(byte[] frame, QualityReport report) {
+                if (calls.incrementAndGet() == 1) {
+                    throw new IllegalStateException("listener failed");
+                }
+            }
+        });
+        byte[][] buffers = analyzer.getBuffers();
+
+        assertTrue(analyzer.offer(buffers[0]));
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        // the failed frame is not counted, the analyzer takes frames again once it is done with it
+        while (!analyzer.offer(buffers[1])) {
+            assertTrue("analyzer stays busy", System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+        waitForAnalyzed(1);
+
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void waitsWhileChequeMoves() throws InterruptedException {
+        analyzer = new PreviewFrameAnalyzer(WIDTH, HEIGHT, new CountingListener());
+        byte[] here = frame(CHEQUE, false);
+        byte[] there = frame(shift(CHEQUE, 40, 25), false);
+
+        for (int i = 0; i < 10; i++) {
+            analyzeOne(i % 2 == 0 ? here : there);
+        }
+
+        assertEquals(0, triggers.get());
+    }
+
+    @Test
+    public void waitsWhileChequeIsBlurred() throws InterruptedException {
+        analyzer = new PreviewFrameAnalyzer(WIDTH, HEIGHT, new CountingListener());
+        byte[] frame = frame(CHEQUE, true);
+
+        for (int i = 0; i < 2 * PreviewFrameAnalyzer.DEFAULT_STABLE_FRAMES; i++) {
+            analyzeOne(frame);
+        }
+
+        assertEquals(0, triggers.get());
+    }
+
+    @Test
+    public void dropsFramesWhileBusy() throws InterruptedException {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        analyzer = new PreviewFrameAnalyzer(WIDTH, HEIGHT, new CountingListener() {
+            @Override
+            public void onFrameAnalyzed(byte[] frame, QualityReport report) {
+                entered.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        byte[][] buffers = analyzer.getBuffers();
+
+        assertTrue(analyzer.offer(buffers[0]));
+        assertTrue(entered.await(5, TimeUnit.SECONDS));
+        assertFalse(analyzer.offer(buffers[1]));
+        assertFalse(analyzer.offer(buffers[2]));
+        release.countDown();
+        waitForAnalyzed(1);
+        assertTrue(analyzer.offer(buffers[1]));
+        waitForAnalyzed(2);
+
+        assertEquals(2, analyzer.getFramesDropped());
+        assertEquals(4, analyzer.getFramesOffered());
+    }
+
+    @Test
+    public void keepsUpWithThirtyFramesPerSecond() throws InterruptedException {
+        analyzer = new PreviewFrameAnalyzer(WIDTH, HEIGHT, new CountingListener());
+        byte[][] buffers = analyzer.getBuffers();
+        byte[] frame = frame(CHEQUE, false);
+        for (byte[] buffer : buffers) {
+            System.arraycopy(frame, 0, buffer, 0, frame.length);
+        }
+
+        // a camera delivering 30 frames per second for one second, cycling through the ring
+        long offeredBefore = analyzer.getFramesOffered();
+        long droppedBefore = analyzer.getFramesDropped();
+        long analyzedBefore = analyzer.getFramesAnalyzed();
+        for (int i = 0; i < 30; i++) {
+            analyzer.offer(buffers[i % buffers.length]);
+            analyzer.rearm();
+            Thread.sleep(33);
+        }
+        waitForAnalyzed(analyzer.getFramesOffered() - analyzer.getFramesDropped());
+        long offered = analyzer.getFramesOffered() - offeredBefore;
+        long dropped = analyzer.getFramesDropped() - droppedBefore;
+        long analyzedFrames = analyzer.getFramesAnalyzed() - analyzedBefore;
+
+        assertEquals(offered, dropped + analyzedFrames);
+    }
+
+    private void analyzeOne(byte[] frame) throws InterruptedException {
+        long before = analyzer.getFramesAnalyzed();
+        assertTrue(analyzer.offer(frame));
+        waitForAnalyzed(before + 1);
+    }
+
+    private void waitForAnalyzed(long frames) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (analyzer.getFramesAnalyzed() < frames) {
+            assertTrue("analysis timed out", System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    private static Quad shift(Quad quad, float dx, float dy) {
+        float[] points = quad.toArray();
+        for (int i = 0; i < points.length; i += 2) {
+            points[i] += dx;
+            points[i + 1] += dy;
+        }
+        return new Quad(points);
+    }
+
+    /**
+     * Renders an NV21 frame of a cheque with small print, its corners at quad, optionally blurred.
+     */
+    private static byte[] frame(Quad quad, boolean blurred) {
+        byte[] cheque = new byte[CHEQUE_WIDTH * CHEQUE_HEIGHT];
+        Arrays.fill(cheque, (byte) PAPER);
+        Random random = new Random(13);
+        for (int y = 30; y + 10 < CHEQUE_HEIGHT - 30; y += 24) {
+            int x = 40 + random.nextInt(60);
+            while (x < CHEQUE_WIDTH - 100) {
+                int w = 15 + random.nextInt(50);
+                for (int xx = x; xx < x + w; xx++) {
+                    for (int yy = y; yy < y + 9; yy++) {
+                        if ((xx + yy) % 4 == 0 || yy == y || yy == y + 8) {
+                            cheque[yy * CHEQUE_WIDTH + xx] = (byte) (PAPER / 4);
+                        }
+                    }
+                }
+                x += w + 10 + random.nextInt(30);
+            }
+        }
+        Homography toCheque = Homography.between(quad,
+                new Quad(0, 0, CHEQUE_WIDTH - 1, 0, CHEQUE_WIDTH - 1, CHEQUE_HEIGHT - 1, 0, CHEQUE_HEIGHT - 1));
+        byte[] frame = new byte[PreviewFrameAnalyzer.frameSize(WIDTH, HEIGHT)];
+        float[] point = new float[2];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                toCheque.map(x, y, point);
+                int u = Math.round(point[0]);
+                int v = Math.round(point[1]);
+                int value = u >= 0 && v >= 0 && u < CHEQUE_WIDTH && v < CHEQUE_HEIGHT
+                        ? cheque[v * CHEQUE_WIDTH + u] & 0xFF : BACKGROUND;
+                frame[y * WIDTH + x] = (byte) Math.max(0, Math.min(255, value + random.nextInt(9) - 4));
+            }
+        }
+        if (blurred) {
+            for (int pass = 0; pass < 2; pass++) {
+                boxBlur(frame, 3);
+            }
+        }
+        // neutral chroma
+        Arrays.fill(frame, WIDTH * HEIGHT, frame.length, (byte) 128);
+        return frame;
+    }
+
+    private static void boxBlur(byte[] image, int radius) {
+        byte[] source = Arrays.copyOf(image, WIDTH * HEIGHT);
+        int[] rows = new int[WIDTH * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int sum = 0;
+                for (int xx = Math.max(0, x - radius); xx <= Math.min(WIDTH - 1, x + radius); xx++) {
+                    sum += source[y * WIDTH + xx] & 0xFF;
+                }
+                rows[y * WIDTH + x] = sum / (Math.min(WIDTH - 1, x + radius) - Math.max(0, x - radius) + 1);
+            }
+        }
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int sum = 0;
+                for (int yy = Math.max(0, y - radius); yy <= Math.min(HEIGHT - 1, y + radius); yy++) {
+                    sum += rows[yy * WIDTH + x];
+                }
+                image[y * WIDTH + x] = (byte) (sum / (Math.min(HEIGHT - 1, y + radius) - Math.max(0, y - radius) + 1));
+            }
+        }
+    }
+
+    private class CountingListener implements PreviewFrameAnalyzer.Listener {
+
+        @Override
+        public void onFrameAnalyzed(byte[] frame, QualityReport report) {
+        }
+
+        @Override
+        public void onChequeStable(Quad corners) {
+            triggers.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package com.bioenable.chequescan.duplicate;
+
+import com.bioenable.chequescan.store.ContentStore;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Local unit tests for {@link HammingIndex}, checked against a linear scan, and for the log of
+ * {@link DuplicateIndex}.
+ */
+public class HammingIndexTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void findsWhatLinearScanFinds() {
+        Random random = new Random(1);
+        long[] stored = new long[20000];
+        HammingIndex index = new HammingIndex();
+        for (int i = 0; i < stored.length; i++) {
+            stored[i] = random.nextLong();
+            assertEquals(i, index.add(stored[i]));
+        }
+        for (int distance = 0; distance <= HammingIndex.MAX_DISTANCE; distance++) {
+            for (int q = 0; q < 200; q++) {
+                // half of the queries are near a stored hash, the other half anywhere
+                long query = q % 2 == 0
+                        ? flip(stored[random.nextInt(stored.length)], random.nextInt(distance + 2), random)
+                        : random.nextLong();
+                assertEquals(linearNearest(stored, query, distance), index.nearest(query, distance));
+            }
+        }
+    }
+
+    @Test
+    public void prefersClosestThenOldest() {
+        HammingIndex index = new HammingIndex();
+        index.add(0b1111L);
+        index.add(0b0111L);
+        index.add(0b0011L);
+        index.add(0b0011L);
+
+        assertEquals(2, index.nearest(0b0001L, 7));
+        assertEquals(1, index.nearest(0b0111L, 0));
+        assertEquals(-1, index.nearest(0b11110000L, 3));
+    }
+
+    @Test
+    public void removedHashesAreNotFound() {
+        HammingIndex index = new HammingIndex();
+        int first = index.add(42L);
+        int second = index.add(43L);
+
+        assertTrue(index.remove(first));
+        assertFalse(index.remove(first));
+        assertEquals(second, index.nearest(42L, 1));
+        assertTrue(index.remove(second));
+        assertEquals(-1, index.nearest(42L, 7));
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void queriesMillionHashes() {
+        Random random = new Random(2);
+        int count = 1000000;
+        HammingIndex index = new HammingIndex(count);
+        for (int i = 0; i < count; i++) {
+            index.add(random.nextLong());
+        }
+        int queries = 20000;
+        int found = 0;
+        for (int q = 0; q < queries; q++) {
+            long query = q % 2 == 0 ? flip(index.get(random.nextInt(count)), 6, random) : random.nextLong();
+            if (index.nearest(query, PerceptualHash.DUPLICATE_DISTANCE) >= 0) {
+                found++;
+            }
+        }
+
+        assertTrue(found >= queries / 2);
+    }
+
+    @Test
+    public void duplicateIndexSurvivesReopen() throws IOException {
+        File log = new File(folder.getRoot(), "fingerprints.log");
+        DuplicateIndex duplicates = new DuplicateIndex(log);
+        duplicates.add(key(1), 0x00FF00FF00FF00FFL, 0x0F0F0F0F0F0F0F0FL);
+        duplicates.add(key(2), 0x1234567812345678L, 0L);
+        duplicates.add(key(3), 0x7777777777777777L, 0L);
+        assertTrue(duplicates.remove(key(3)));
+        duplicates.close();
+        // a line cut off by a crash
+        FileOutputStream out = new FileOutputStream(log, true);
+        out.write(("F " + key(4) + " 12").getBytes("UTF-8"));
+        out.close();
+
+        DuplicateIndex reopened = new DuplicateIndex(log);
+
+        assertEquals(2, reopened.size());
+        assertEquals(key(1), reopened.findDuplicate(key(5), 0x00FF00FF00FF00FEL, 0x0F0F0F0F0F0F0F0EL));
+        // the same layout with other writing
+        assertNull(reopened.findDuplicate(key(5), 0x00FF00FF00FF00FEL, 0xF0F0F0F0F0F0F0F0L));
+        assertEquals(key(2), reopened.findDuplicate(key(2), 0, -1));
+        assertNull(reopened.findDuplicate(key(5), 0x7777777777777777L, 0L));
+        reopened.close();
+    }
+
+    @Test
+    public void duplicateIndexKeepsLineAppendedAfterTornLine() throws IOException {
+        File log = new File(folder.getRoot(), "fingerprints.log");
+        DuplicateIndex duplicates = new DuplicateIndex(log);
+        duplicates.add(key(1), 0x00FF00FF00FF00FFL, 0x0F0F0F0F0F0F0F0FL);
+        duplicates.close();
+        FileOutputStream out = new FileOutputStream(log, true);
+        out.write(("F " + key(2)).getBytes("UTF-8"));
+        out.close();
+
+        duplicates = new DuplicateIndex(log);
+        duplicates.add(key(3), 0x1234567812345678L, 0L);
+        duplicates.close();
+        DuplicateIndex reopened = new DuplicateIndex(log);
+
+        assertEquals(2, reopened.size());
+        assertEquals(key(3), reopened.findDuplicate(key(5), 0x1234567812345678L, 0L));
+        reopened.close();
+    }
+
+    @Test
+    public void duplicateIndexFindsKeysAfterGrowingAndRemoving() throws IOException {
+        File log = new File(folder.getRoot(), "fingerprints.log");
+        DuplicateIndex duplicates = new DuplicateIndex(log);
+        int count = 5000;
+        for (int i = 0; i < count; i++) {
+            duplicates.add(key(i), i * 0x9E3779B97F4A7C15L, i);
+        }
+        for (int i = 0; i < count; i += 2) {
+            assertTrue(duplicates.remove(key(i)));
+        }
+        for (int i = count; i < count + 1000; i++) {
+            duplicates.add(key(i), i * 0x9E3779B97F4A7C15L, i);
+        }
+
+        assertEquals(count / 2 + 1000, duplicates.size());
+        for (int i = 0; i < count + 1000; i++) {
+            boolean kept = i % 2 == 1 || i >= count;
+            assertEquals(kept ? key(i) : null, duplicates.findDuplicate(key(i), i * 0x9E3779B97F4A7C15L, i));
+        }
+        duplicates.close();
+    }
+
+    /**
+     * @return a key like the ones of the ContentStore, 64 hex digits
+     */
+    private static String key(int n) {
+        return ContentStore.toHex(ContentStore.newDigest().digest(Integer.toString(n).getBytes()));
+    }
+
+    private static long flip(long hash, int bits, Random random) {
+        for (int i = 0; i < bits; i++) {
+            hash ^= 1L << random.nextInt(64);
+        }
+        return hash;
+    }
+
+    private static int linearNearest(long[] stored, long query, int maxDistance) {
+        int best = -1;
+        int bestDistance = maxDistance + 1;
+        for (int i = 0; i < stored.length; i++) {
+            int distance = Long.bitCount(stored[i] ^ query);
+            if (distance < bestDistance) {
+                best = i;
+                bestDistance = distance;
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,238 @@
+package com.bioenable.chequescan.duplicate;
+
+import com.bioenable.chequescan.geometry.Homography;
+import com.bioenable.chequescan.geometry.Quad;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Local unit tests for {@link PerceptualHash} on synthetic cheques: the same cheque changed the way
+ * a second capture changes it, and different cheques.
+ */
+public class PerceptualHashTest {
+
+    private static final int WIDTH = 600;
+    private static final int HEIGHT = 275;
+
+    private final PerceptualHash hasher = new PerceptualHash();
+
+    @Test
+    public void sameImageGivesSameHash() {
+        byte[] cheque = cheque(1);
+
+        assertEquals(hasher.hash(cheque, WIDTH, HEIGHT), hasher.hash(cheque, WIDTH, HEIGHT));
+    }
+
+    @Test
+    public void recapturedChequeStaysClose() {
+        byte[] cheque = cheque(2);
+        long hash = hasher.hash(cheque, WIDTH, HEIGHT);
+        long detail = hasher.detail();
+
+        int half = PerceptualHash.distance(hash, hasher.hash(halfSize(cheque), WIDTH / 2, HEIGHT / 2));
+        assertTrue(PerceptualHash.distance(detail, hasher.detail()) <= PerceptualHash.DETAIL_DISTANCE);
+        int exposure = PerceptualHash.distance(hash, hasher.hash(exposure(cheque, 0.7f, 50), WIDTH, HEIGHT));
+        assertTrue(PerceptualHash.distance(detail, hasher.detail()) <= PerceptualHash.DETAIL_DISTANCE);
+        int noise = PerceptualHash.distance(hash, hasher.hash(noise(cheque, 12), WIDTH, HEIGHT));
+        assertTrue(PerceptualHash.distance(detail, hasher.detail()) <= PerceptualHash.DETAIL_DISTANCE);
+        int blur = PerceptualHash.distance(hash, hasher.hash(blur(cheque), WIDTH, HEIGHT));
+        assertTrue(PerceptualHash.distance(detail, hasher.detail()) <= PerceptualHash.DETAIL_DISTANCE);
+
+        assertTrue(half <= PerceptualHash.DUPLICATE_DISTANCE);
+        assertTrue(exposure <= PerceptualHash.DUPLICATE_DISTANCE);
+        assertTrue(noise <= PerceptualHash.DUPLICATE_DISTANCE);
+        assertTrue(blur <= PerceptualHash.DUPLICATE_DISTANCE);
+    }
+
+    @Test
+    public void chequeInPhotoHashesLikeStraightCheque() {
+        byte[] cheque = cheque(3);
+        long straight = hasher.hash(cheque, WIDTH, HEIGHT);
+        long detail = hasher.detail();
+        Quad first = new Quad(110, 140, 690, 120, 700, 420, 95, 400);
+        Quad second = new Quad(60, 190, 560, 210, 590, 470, 40, 430);
+
+        int firstDistance = PerceptualHash.distance(straight,
+                hasher.hash(photo(cheque, first), 800, 600, first));
+        assertTrue(PerceptualHash.distance(detail, hasher.detail()) <= PerceptualHash.DETAIL_DISTANCE);
+        int secondDistance = PerceptualHash.distance(straight,
+                hasher.hash(photo(cheque, second), 800, 600, second));
+        assertTrue(PerceptualHash.distance(detail, hasher.detail()) <= PerceptualHash.DETAIL_DISTANCE);
+
+        assertTrue(firstDistance <= PerceptualHash.DUPLICATE_DISTANCE);
+        assertTrue(secondDistance <= PerceptualHash.DUPLICATE_DISTANCE);
+    }
+
+    @Test
+    public void differentChequesAreFarApart() {
+        int cheques = 24;
+        long[] hashes = new long[cheques];
+        for (int i = 0; i < cheques; i++) {
+            hashes[i] = hasher.hash(cheque(100 + i), WIDTH, HEIGHT);
+        }
+        int closest = 64;
+        for (int i = 0; i < cheques; i++) {
+            for (int j = i + 1; j < cheques; j++) {
+                closest = Math.min(closest, PerceptualHash.distance(hashes[i], hashes[j]));
+            }
+        }
+        assertTrue(closest > PerceptualHash.DUPLICATE_DISTANCE);
+    }
+
+    @Test
+    public void leavesOfOneChequebookAreRarelyTakenForDuplicates() {
+        // the same printed leaf, filled in with other writing and serial numbers
+        int books = 4;
+        int leaves = 20;
+        int pairs = 0;
+        int closeLayouts = 0;
+        int duplicates = 0;
+        long[] hashes = new long[leaves];
+        long[] details = new long[leaves];
+        for (int book = 0; book < books; book++) {
+            for (int i = 0; i < leaves; i++) {
+                hashes[i] = hasher.hash(cheque(book, 1000 + i), WIDTH, HEIGHT);
+                details[i] = hasher.detail();
+            }
+            for (int i = 0; i < leaves; i++) {
+                for (int j = i + 1; j < leaves; j++) {
+                    pairs++;
+                    if (PerceptualHash.distance(hashes[i], hashes[j]) <= PerceptualHash.DUPLICATE_DISTANCE) {
+                        closeLayouts++;
+                        if (PerceptualHash.distance(details[i], details[j]) <= PerceptualHash.DETAIL_DISTANCE) {
+                            duplicates++;
+                        }
+                    }
+                }
+            }
+        }
+        // the layout alone takes a few percent of the pairs for the same cheque, the detail most of them apart
+        assertTrue("close layouts " + closeLayouts + " of " + pairs, closeLayouts * 100 > pairs);
+        assertTrue("duplicates " + duplicates + " of " + pairs, duplicates * 100 < pairs);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTinyImages() {
+        hasher.hash(new byte[16 * 16], 16, 16);
+    }
+
+    /**
+     * A light, unevenly lit paper with a border, printed fields and dark writing placed by seed.
+     */
+    static byte[] cheque(long seed) {
+        return cheque(seed, seed);
+    }
+
+    /**
+     * A cheque of the chequebook printed by book, with the writing and serial number of leaf.
+     */
+    static byte[] cheque(long book, long leaf) {
+        Random random = new Random(book);
+        int[] pixels = new int[WIDTH * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                pixels[y * WIDTH + x] = 215 + 25 * x / WIDTH - 10 * y / HEIGHT;
+            }
+        }
+        // the printed background pattern differs between banks
+        int bands = 2 + random.nextInt(4);
+        for (int b = 0; b < bands; b++) {
+            fill(pixels, random.nextInt(WIDTH / 2), random.nextInt(HEIGHT / 2),
+                    80 + random.nextInt(WIDTH / 2), 20 + random.nextInt(HEIGHT / 3), 150 + random.nextInt(50));
+        }
+        random = new Random(leaf);
+        int strokes = 6 + random.nextInt(4);
+        for (int s = 0; s < strokes; s++) {
+            fill(pixels, random.nextInt(WIDTH - 120), 20 + random.nextInt(HEIGHT - 60),
+                    20 + random.nextInt(100), 2 + random.nextInt(3), 20 + random.nextInt(60));
+        }
+        // code line, its serial number differs between the leaves of a book
+        fill(pixels, 60, HEIGHT - 30, WIDTH - 160, 12, 30);
+        for (int digit = 0; digit < 6; digit++) {
+            fill(pixels, 70 + 10 * digit, HEIGHT - 30, 4, 12, random.nextBoolean() ? 30 : 200);
+        }
+        byte[] gray = new byte[pixels.length];
+        for (int i = 0; i < pixels.length; i++) {
+            gray[i] = (byte) Math.max(0, Math.min(255, pixels[i]));
+        }
+        return gray;
+    }
+
+    private static void fill(int[] pixels, int left, int top, int width, int height, int value) {
+        for (int y = top; y < Math.min(HEIGHT, top + height); y++) {
+            for (int x = left; x < Math.min(WIDTH, left + width); x++) {
+                pixels[y * WIDTH + x] = value;
+            }
+        }
+    }
+
+    private static byte[] halfSize(byte[] gray) {
+        byte[] half = new byte[(WIDTH / 2) * (HEIGHT / 2)];
+        for (int y = 0; y < HEIGHT / 2; y++) {
+            for (int x = 0; x < WIDTH / 2; x++) {
+                int i = 2 * y * WIDTH + 2 * x;
+                half[y * (WIDTH / 2) + x] = (byte) (((gray[i] & 0xFF) + (gray[i + 1] & 0xFF)
+                        + (gray[i + WIDTH] & 0xFF) + (gray[i + WIDTH + 1] & 0xFF) + 2) / 4);
+            }
+        }
+        return half;
+    }
+
+    private static byte[] exposure(byte[] gray, float contrast, int brightness) {
+        byte[] out = new byte[gray.length];
+        for (int i = 0; i < gray.length; i++) {
+            out[i] = (byte) Math.min(255, Math.round((gray[i] & 0xFF) * contrast) + brightness);
+        }
+        return out;
+    }
+
+    private static byte[] noise(byte[] gray, int amplitude) {
+        Random random = new Random(7);
+        byte[] out = new byte[gray.length];
+        for (int i = 0; i < gray.length; i++) {
+            int value = (gray[i] & 0xFF) + (int) Math.round(random.nextGaussian() * amplitude);
+            out[i] = (byte) Math.max(0, Math.min(255, value));
+        }
+        return out;
+    }
+
+    private static byte[] blur(byte[] gray) {
+        byte[] out = gray.clone();
+        for (int y = 1; y < HEIGHT - 1; y++) {
+            for (int x = 1; x < WIDTH - 1; x++) {
+                int sum = 0;
+                for (int dy = -1; dy <= 1; dy++) {
+                    for (int dx = -1; dx <= 1; dx++) {
+                        sum += gray[(y + dy) * WIDTH + x + dx] & 0xFF;
+                    }
+                }
+                out[y * WIDTH + x] = (byte) (sum / 9);
+            }
+        }
+        return out;
+    }
+
+    /**
+     * An 800 x 600 photo of the cheque lying on a dark table, with its corners at quad.
+     */
+    private static byte[] photo(byte[] cheque, Quad quad) {
+        Homography toCheque = Homography.between(quad, new Quad(0, 0, WIDTH, 0, WIDTH, HEIGHT, 0, HEIGHT));
+        byte[] photo = new byte[800 * 600];
+        float[] point = new float[2];
+        for (int y = 0; y < 600; y++) {
+            for (int x = 0; x < 800; x++) {
+                toCheque.map(x, y, point);
+                int cx = (int) Math.floor(point[0]);
+                int cy = (int) Math.floor(point[1]);
+                photo[y * 800 + x] = cx >= 0 && cy >= 0 && cx < WIDTH && cy < HEIGHT
+                        ? cheque[cy * WIDTH + cx] : 40;
+            }
+        }
+        return photo;
+    }
+}
@@ -0,0 +1,235 @@
+package com.bioenable.chequescan.export;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Local unit tests for {@link CashLetterWriter}: the files are read back record by record and the
+ * fields are checked at their X9.37 positions, decoded with the JDK's own code page 037.
+ */
+public class CashLetterWriterTest {
+
+    private static final Charset EBCDIC = Charset.forName("Cp037");
+    // 2017-07-14 02:40 UTC
+    private static final long CREATED = 1500000000000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void writesRecordsInOrder() throws IOException {
+        File first = image(3000, 1);
+        File second = image(70000, 2);
+        File third = image(10, 3);
+        File out = folder.newFile("letter.x937");
+
+        CashLetterWriter writer = new CashLetterWriter(new FileOutputStream(out), header(), 2);
+        writer.add(new CashLetterItem("021000021", "1234567890", "0101", 12500, true, first, ImageFormat.JPEG));
+        writer.add(new CashLetterItem("111000025", "86?7530912", "2001", 990, false, second, ImageFormat.JPEG));
+        writer.add(new CashLetterItem("021000021", null, null, 0, true, third, ImageFormat.TIFF_G4));
+        writer.close();
+
+        List<byte[]> records = read(out);
+        StringBuilder types = new StringBuilder();
+        for (byte[] record : records) {
+            types.append(text(record, 1, 2)).append(' ');
+        }
+        assertEquals("01 10 20 25 50 52 25 50 52 70 20 25 50 52 70 90 99 ", types.toString());
+        for (byte[] record : records) {
+            if (!text(record, 1, 2).equals("52")) {
+                assertEquals(80, record.length);
+            }
+        }
+
+        String fileHeader = text(records.get(0), 1, 80);
+        assertEquals("0103T021000021091000019", fileHeader.substring(0, 23));
+        assertEquals("N", text(records.get(0), 36, 36));
+        assertEquals("FEDERAL RESERVE   ", text(records.get(0), 37, 54));
+        assertEquals("FIRST DEPOSIT BANK", text(records.get(0), 55, 72));
+
+        byte[] check = records.get(3);
+        assertEquals("02100002", text(check, 19, 26));
+        assertEquals("1", text(check, 27, 27));
+        assertEquals("     1234567890/0101", text(check, 28, 47));
+        assertEquals("0000012500", text(check, 48, 57));
+        assertEquals("000000000000001", text(check, 58, 72));
+        assertEquals("G", text(check, 73, 73));
+        assertEquals("1", text(check, 75, 75));
+        assertEquals("2", text(records.get(6), 75, 75));
+        assertEquals("000000000000003", text(records.get(11), 58, 72));
+
+        byte[] view = records.get(4);
+        assertEquals("2101", text(view, 21, 24));
+        assertEquals("0003000", text(view, 25, 31));
+        assertEquals("0000", text(records.get(12), 21, 24));
+
+        byte[] data = records.get(8);
+        assertEquals("000000000000002", text(data, 22, 36));
+        assertEquals("0070000", text(data, 111, 117));
+        assertEquals(117 + 70000, data.length);
+        assertArrayEquals(Files.readAllBytes(second.toPath()), Arrays.copyOfRange(data, 117, data.length));
+
+        byte[] bundle = records.get(9);
+        assertEquals("0002", text(bundle, 3, 6));
+        assertEquals("000000013490", text(bundle, 7, 18));
+        assertEquals("000000012500", text(bundle, 19, 30));
+        assertEquals("00002", text(bundle, 31, 35));
+
+        byte[] cashLetter = records.get(15);
+        assertEquals("000002", text(cashLetter, 3, 8));
+        assertEquals("00000003", text(cashLetter, 9, 16));
+        assertEquals("00000000013490", text(cashLetter, 17, 30));
+
+        byte[] fileControl = records.get(16);
+        assertEquals("000001", text(fileControl, 3, 8));
+        assertEquals("00000017", text(fileControl, 9, 16));
+        assertEquals("00000003", text(fileControl, 17, 24));
+        assertEquals("0000000000013490", text(fileControl, 25, 40));
+    }
+
+    @Test
+    public void emptyLetterIsValid() throws IOException {
+        File out = folder.newFile("empty.x937");
+
+        new CashLetterWriter(new FileOutputStream(out), header()).close();
+
+        List<byte[]> records = read(out);
+        assertEquals(4, records.size());
+        assertEquals("00000004", text(records.get(3), 9, 16));
+    }
+
+    @Test
+    public void missingImageLeavesNothingBehind() throws IOException {
+        File out = folder.newFile("letter.x937");
+        CashLetterWriter writer = new CashLetterWriter(new FileOutputStream(out), header());
+        writer.add(new CashLetterItem("021000021", "1", "2", 100, true, image(500, 4), ImageFormat.JPEG));
+        try {
+            writer.add(new CashLetterItem("021000021", "1", "3", 100, true, new File(folder.getRoot(), "gone"),
+                    ImageFormat.JPEG));
+            fail("An item without image was written");
+        } catch (FileNotFoundException e) {
+            // expected
+        }
+        writer.close();
+
+        assertEquals(9, read(out).size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAmountWhichDoesNotFit() throws IOException {
+        CashLetterWriter writer = new CashLetterWriter(new NullOutputStream(), header());
+        writer.add(new CashLetterItem("021000021", "1", "2", 100000000000L, true, image(10, 5), ImageFormat.JPEG));
+    }
+
+    /**
+     * Items past the bundle size open new bundles, each with its own control record, and the file
+     * ends with totals over all of them.
+     */
+    @Test
+    public void splitsItemsIntoBundles() throws IOException {
+        File image = image(100, 6);
+        File out = folder.newFile("bundles.x937");
+
+        CashLetterWriter writer = new CashLetterWriter(new FileOutputStream(out), header(), 3);
+        for (int i = 0; i < 7; i++) {
+            writer.add(new CashLetterItem("021000021", "1234567890", Integer.toString(i), 100 + i, true, image,
+                    ImageFormat.TIFF_G4));
+        }
+        writer.close();
+
+        List<byte[]> records = read(out);
+        int bundles = 0;
+        int items = 0;
+        for (byte[] record : records) {
+            String type = text(record, 1, 2);
+            if (type.equals("20")) {
+                bundles++;
+            } else if (type.equals("25")) {
+                items++;
+            } else if (type.equals("70")) {
+                assertEquals(bundles < 3 ? "0003" : "0001", text(record, 3, 6));
+            }
+        }
+        assertEquals(7, writer.getItemCount());
+        assertEquals(3, bundles);
+        assertEquals(7, items);
+        assertEquals(2 + 3 * 2 + 7 * 3 + 2, records.size());
+        assertEquals("00000007", text(records.get(records.size() - 1), 17, 24));
+        assertEquals("0000000000000721", text(records.get(records.size() - 1), 25, 40));
+    }
+
+    private static CashLetterHeader header() {
+        return new CashLetterHeader("021000021", "FEDERAL RESERVE", "091000019", "FIRST DEPOSIT BANK", CREATED, true);
+    }
+
+    private File image(int length, long seed) throws IOException {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        File file = folder.newFile("image" + seed + ".jpg");
+        OutputStream out = new FileOutputStream(file);
+        out.write(bytes);
+        out.close();
+        return file;
+    }
+
+    /**
+     * Splits the file at the 4 byte lengths in front of the records.
+     */
+    private static List<byte[]> read(File file) throws IOException {
+        List<byte[]> records = new ArrayList<>();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    return records;
+                }
+                byte[] record = new byte[length];
+                in.readFully(record);
+                records.add(record);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return the field from position first to last, counted from 1 as in the standard
+     */
+    private static String text(byte[] record, int first, int last) {
+        return new String(record, first - 1, last - first + 1, EBCDIC);
+    }
+
+    private static class NullOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+}
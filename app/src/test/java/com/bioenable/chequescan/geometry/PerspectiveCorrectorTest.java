@@ -0,0 +1,179 @@
+package com.bioenable.chequescan.geometry;
+
+import com.bioenable.chequescan.micr.E13BFont;
+import com.bioenable.chequescan.micr.MicrLine;
+import com.bioenable.chequescan.micr.MicrRecognizer;
+import com.bioenable.chequescan.processing.ChequePreprocessor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Local unit tests for {@link PerspectiveCorrector} and {@link Homography}. The photos are rendered
+ * from a flat synthetic cheque through a known homography.
+ */
+public class PerspectiveCorrectorTest {
+
+    private static final String CODE_LINE = "C004512C 110002005A 000421C 29";
+    private static final int CHEQUE_WIDTH = 1200;
+    private static final int CHEQUE_HEIGHT = 550;
+    private static final int PAPER = 205;
+    private static final int BACKGROUND = 70;
+
+    private PerspectiveCorrector corrector;
+
+    @Before
+    public void setUp() {
+        corrector = new PerspectiveCorrector(Runtime.getRuntime().availableProcessors());
+    }
+
+    @After
+    public void tearDown() {
+        corrector.close();
+    }
+
+    @Test
+    public void homographyMapsCorners() {
+        Quad from = new Quad(0, 0, 100, 0, 100, 50, 0, 50);
+        Quad to = new Quad(12, 7, 130, 20, 118, 90, 3, 70);
+
+        Quad mapped = Homography.between(from, to).map(from);
+
+        assertTrue(mapped.toString(), mapped.distanceTo(to) < 1e-3);
+    }
+
+    @Test
+    public void findsCornersOfTiltedCheque() {
+        Quad truth = new Quad(260, 330, 1790, 250, 1700, 1120, 330, 1210);
+        byte[] photo = photograph(chequeGray(), 2000, 1500, truth);
+
+        Quad found = corrector.findCheque(photo, 2000, 1500);
+
+        assertNotNull(found);
+        assertTrue(found + " vs " + truth, found.distanceTo(truth) < 6);
+    }
+
+    @Test
+    public void correctedChequeMatchesFlatChequeAndCodeLineReads() {
+        byte[] cheque = chequeGray();
+        Quad truth = new Quad(180, 420, 1840, 310, 1810, 1260, 240, 1190);
+        byte[] photo = photograph(cheque, 2000, 1500, truth);
+        byte[] corrected = new byte[CHEQUE_WIDTH * CHEQUE_HEIGHT];
+
+        Quad found = corrector.correct(photo, 2000, 1500, corrected, CHEQUE_WIDTH, CHEQUE_HEIGHT);
+
+        assertNotNull(found);
+        long difference = 0;
+        int count = 0;
+        for (int y = 20; y < CHEQUE_HEIGHT - 20; y++) {
+            for (int x = 20; x < CHEQUE_WIDTH - 20; x++) {
+                difference += Math.abs((corrected[y * CHEQUE_WIDTH + x] & 0xFF) - (cheque[y * CHEQUE_WIDTH + x] & 0xFF));
+                count++;
+            }
+        }
+        assertTrue("mean difference " + (double) difference / count, difference < 12L * count);
+
+        ChequePreprocessor preprocessor = new ChequePreprocessor(1);
+        byte[] binary = new byte[corrected.length];
+        preprocessor.binarizeSauvola(corrected, CHEQUE_WIDTH, CHEQUE_HEIGHT, binary);
+        preprocessor.close();
+        // corners which are a pixel off leave a sliver of the background along the edges
+        clearBorder(binary, CHEQUE_WIDTH, CHEQUE_HEIGHT, 8);
+        MicrLine line = new MicrRecognizer().recognize(binary, CHEQUE_WIDTH, CHEQUE_HEIGHT);
+        assertEquals(CODE_LINE, line.getText());
+    }
+
+    @Test
+    public void blankPhotoHasNoCheque() {
+        byte[] photo = new byte[1600 * 1200];
+        Random random = new Random(2);
+        for (int i = 0; i < photo.length; i++) {
+            photo[i] = (byte) (BACKGROUND + random.nextInt(9) - 4);
+        }
+
+        assertNull(corrector.findCheque(photo, 1600, 1200));
+    }
+
+    @Test
+    public void correctsTwelveMegapixelPhoto() {
+        int width = 4000;
+        int height = 3000;
+        Quad truth = new Quad(450, 700, 3600, 520, 3480, 2350, 560, 2480);
+        byte[] photo = photograph(chequeGray(), width, height, truth);
+        byte[] out = new byte[PerspectiveCorrector.CANONICAL_WIDTH * PerspectiveCorrector.CANONICAL_HEIGHT];
+
+        Quad found = corrector.correct(photo, width, height, out,
+                PerspectiveCorrector.CANONICAL_WIDTH, PerspectiveCorrector.CANONICAL_HEIGHT);
+
+        assertTrue(found + " vs " + truth, found.distanceTo(truth) < 12);
+    }
+
+    private static void clearBorder(byte[] binary, int width, int height, int border) {
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if (x < border || y < border || x >= width - border || y >= height - border) {
+                    binary[y * width + x] = ChequePreprocessor.PAPER;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return flat cheque: paper, a few lines of text blocks and the code line at the bottom
+     */
+    private static byte[] chequeGray() {
+        byte[] ink = new byte[CHEQUE_WIDTH * CHEQUE_HEIGHT];
+        Random random = new Random(4);
+        for (int line = 0; line < 6; line++) {
+            int y = 60 + line * 55;
+            int x = 80 + random.nextInt(40);
+            while (x < CHEQUE_WIDTH * 3 / 4) {
+                int w = 6 + random.nextInt(30);
+                for (int yy = y; yy < y + 14; yy++) {
+                    for (int xx = x; xx < x + w; xx++) {
+                        ink[yy * CHEQUE_WIDTH + xx] = 1;
+                    }
+                }
+                x += w + 5 + random.nextInt(20);
+            }
+        }
+        float cell = 2.2f;
+        E13BFont.render(CODE_LINE, ink, CHEQUE_WIDTH, 150,
+                CHEQUE_HEIGHT - 40 - Math.round(E13BFont.GRID_HEIGHT * cell), cell, (byte) 1);
+        byte[] gray = new byte[ink.length];
+        for (int i = 0; i < ink.length; i++) {
+            gray[i] = (byte) (ink[i] != 0 ? PAPER / 4 : PAPER);
+        }
+        return gray;
+    }
+
+    /**
+     * Renders the flat cheque into a photo of the given size with its corners at quad.
+     */
+    private static byte[] photograph(byte[] cheque, int width, int height, Quad quad) {
+        Homography toCheque = Homography.between(quad,
+                new Quad(0, 0, CHEQUE_WIDTH - 1, 0, CHEQUE_WIDTH - 1, CHEQUE_HEIGHT - 1, 0, CHEQUE_HEIGHT - 1));
+        byte[] photo = new byte[width * height];
+        Random random = new Random(width);
+        float[] point = new float[2];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                toCheque.map(x, y, point);
+                int u = Math.round(point[0]);
+                int v = Math.round(point[1]);
+                int value = u >= 0 && v >= 0 && u < CHEQUE_WIDTH && v < CHEQUE_HEIGHT
+                        ? cheque[v * CHEQUE_WIDTH + u] & 0xFF : BACKGROUND;
+                photo[y * width + x] = (byte) Math.max(0, Math.min(255, value + random.nextInt(9) - 4));
+            }
+        }
+        return photo;
+    }
+}
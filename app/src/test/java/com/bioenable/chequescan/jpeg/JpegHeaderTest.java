@@ -0,0 +1,171 @@
+package com.bioenable.chequescan.jpeg;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Local unit tests for {@link JpegHeader} on JPEGs written by ImageIO, with EXIF segments built
+ * here.
+ */
+public class JpegHeaderTest {
+
+    @Test
+    public void readsSizeOrientationAndThumbnailInBothByteOrders() throws IOException {
+        byte[] thumbnail = jpeg(160, 120);
+        for (ByteOrder order : new ByteOrder[]{ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN}) {
+            byte[] file = withExif(jpeg(640, 480), exif(order, 6, thumbnail));
+            CountingStream in = new CountingStream(file);
+
+            JpegHeader header = JpegHeader.read(in);
+
+            assertEquals(640, header.getWidth());
+            assertEquals(480, header.getHeight());
+            assertEquals(Orientation.ROTATE_90, header.getOrientation());
+            assertArrayEquals(thumbnail, header.getThumbnail());
+            // only the segments in front of the image data were read
+            assertTrue(in.read < file.length / 2);
+        }
+    }
+
+    @Test
+    public void readsFilesWithoutExif() throws IOException {
+        JpegHeader header = JpegHeader.read(new ByteArrayInputStream(jpeg(300, 200)));
+
+        assertEquals(300, header.getWidth());
+        assertEquals(200, header.getHeight());
+        assertEquals(Orientation.NORMAL, header.getOrientation());
+        assertNull(header.getThumbnail());
+    }
+
+    @Test
+    public void ignoresBrokenExif() throws IOException {
+        byte[] segment = exif(ByteOrder.BIG_ENDIAN, 3, jpeg(16, 16));
+        // the thumbnail runs past the end of the segment
+        byte[] truncated = Arrays.copyOf(segment, segment.length - 40);
+        JpegHeader header = JpegHeader.read(new ByteArrayInputStream(withExif(jpeg(64, 64), truncated)));
+        assertEquals(Orientation.ROTATE_180, header.getOrientation());
+        assertNull(header.getThumbnail());
+
+        // not even a TIFF header
+        byte[] garbage = Arrays.copyOf(segment, 12);
+        garbage[7] = 'X';
+        header = JpegHeader.read(new ByteArrayInputStream(withExif(jpeg(64, 64), garbage)));
+        assertEquals(64, header.getWidth());
+        assertEquals(Orientation.NORMAL, header.getOrientation());
+    }
+
+    @Test
+    public void rejectsOtherFiles() throws IOException {
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(8, 8, BufferedImage.TYPE_INT_RGB), "png", png);
+        try {
+            JpegHeader.read(new ByteArrayInputStream(png.toByteArray()));
+            fail();
+        } catch (IOException expected) {
+            // a PNG import is shown without a thumbnail
+        }
+        try {
+            JpegHeader.read(new ByteArrayInputStream(Arrays.copyOf(jpeg(64, 64), 30)));
+            fail();
+        } catch (IOException expected) {
+            // truncated before the frame header
+        }
+    }
+
+    private static byte[] jpeg(int width, int height) throws IOException {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, (x * 7) << 16 | (y * 5) << 8 | (x ^ y));
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpeg", out);
+        return out.toByteArray();
+    }
+
+    /**
+     * @return APP1 payload: Exif header, TIFF header, IFD0 with the orientation, IFD1 with the
+     * thumbnail, the thumbnail
+     */
+    private static byte[] exif(ByteOrder order, int orientation, byte[] thumbnail) {
+        int ifd0 = 8;
+        int ifd1 = ifd0 + 2 + 12 + 4;
+        int data = ifd1 + 2 + 2 * 12 + 4;
+        ByteBuffer tiff = ByteBuffer.allocate(data + thumbnail.length).order(order);
+        tiff.put(order == ByteOrder.BIG_ENDIAN ? (byte) 'M' : (byte) 'I');
+        tiff.put(order == ByteOrder.BIG_ENDIAN ? (byte) 'M' : (byte) 'I');
+        tiff.putShort((short) 42).putInt(ifd0);
+        tiff.putShort((short) 1);
+        tiff.putShort((short) 0x0112).putShort((short) 3).putInt(1).putShort((short) orientation).putShort((short) 0);
+        tiff.putInt(ifd1);
+        tiff.putShort((short) 2);
+        tiff.putShort((short) 0x0201).putShort((short) 4).putInt(1).putInt(data);
+        tiff.putShort((short) 0x0202).putShort((short) 4).putInt(1).putInt(thumbnail.length);
+        tiff.putInt(0);
+        tiff.put(thumbnail);
+        byte[] segment = new byte[6 + tiff.capacity()];
+        System.arraycopy(new byte[]{'E', 'x', 'i', 'f', 0, 0}, 0, segment, 0, 6);
+        System.arraycopy(tiff.array(), 0, segment, 6, tiff.capacity());
+        return segment;
+    }
+
+    private static byte[] withExif(byte[] jpeg, byte[] segment) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(jpeg, 0, 2);
+        out.write(0xFF);
+        out.write(0xE1);
+        out.write((segment.length + 2) >> 8);
+        out.write(segment.length + 2);
+        out.write(segment, 0, segment.length);
+        out.write(jpeg, 2, jpeg.length - 2);
+        return out.toByteArray();
+    }
+
+    private static final class CountingStream extends ByteArrayInputStream {
+
+        int read;
+
+        CountingStream(byte[] bytes) {
+            super(bytes);
+        }
+
+        @Override
+        public synchronized int read() {
+            int b = super.read();
+            if (b >= 0) {
+                read++;
+            }
+            return b;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            int n = super.read(b, off, len);
+            read += Math.max(0, n);
+            return n;
+        }
+
+        @Override
+        public synchronized long skip(long n) {
+            long skipped = super.skip(n);
+            read += skipped;
+            return skipped;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.bioenable.chequescan.jpeg;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Local unit tests for {@link Orientation}.
+ */
+public class OrientationTest {
+
+    private static final float WIDTH = 400;
+    private static final float HEIGHT = 300;
+
+    @Test
+    public void turnsTheCornersAsTheExifSpecificationSays() {
+        // where the stored top left corner ends up
+        assertCorner(Orientation.NORMAL, 0, 0);
+        assertCorner(Orientation.FLIP_HORIZONTAL, WIDTH, 0);
+        assertCorner(Orientation.ROTATE_180, WIDTH, HEIGHT);
+        assertCorner(Orientation.FLIP_VERTICAL, 0, HEIGHT);
+        assertCorner(Orientation.TRANSPOSE, 0, 0);
+        assertCorner(Orientation.ROTATE_90, HEIGHT, 0);
+        assertCorner(Orientation.TRANSVERSE, HEIGHT, WIDTH);
+        assertCorner(Orientation.ROTATE_270, 0, WIDTH);
+
+        assertEquals(Orientation.ROTATE_90, Orientation.fromExif(6));
+        assertEquals(Orientation.NORMAL, Orientation.fromExif(0));
+        assertEquals(Orientation.NORMAL, Orientation.fromExif(9));
+    }
+
+    @Test
+    public void mapsTheStoredImageOntoTheDisplayedOne() {
+        float[] values = new float[9];
+        for (Orientation orientation : Orientation.values()) {
+            orientation.toDisplay(WIDTH, HEIGHT, values);
+            float displayWidth = orientation.displayWidth((int) WIDTH, (int) HEIGHT);
+            float displayHeight = orientation.displayHeight((int) WIDTH, (int) HEIGHT);
+            float[] corners = {0, 0, WIDTH, HEIGHT};
+            float minX = Float.MAX_VALUE;
+            float minY = Float.MAX_VALUE;
+            float maxX = -Float.MAX_VALUE;
+            float maxY = -Float.MAX_VALUE;
+            for (int i = 0; i < 4; i++) {
+                float x = corners[(i & 1) * 2];
+                float y = corners[(i >> 1) * 2 + 1];
+                float displayX = values[0] * x + values[1] * y + values[2];
+                float displayY = values[3] * x + values[4] * y + values[5];
+                minX = Math.min(minX, displayX);
+                minY = Math.min(minY, displayY);
+                maxX = Math.max(maxX, displayX);
+                maxY = Math.max(maxY, displayY);
+            }
+            assertArrayEquals(orientation.name(), new float[]{0, 0, displayWidth, displayHeight},
+                    new float[]{minX, minY, maxX, maxY}, 0);
+            assertEquals(orientation.getRotation() % 180 != 0, orientation.isTransposed());
+        }
+    }
+
+    @Test
+    public void mapsTheVisibleRectangleBackToTheStoredImage() {
+        // the top left quarter of a portrait shot is the bottom left quarter of the stored image
+        float[] rect = {0, 0, HEIGHT / 2, WIDTH / 2};
+        Orientation.ROTATE_90.toStored(WIDTH, HEIGHT, rect);
+        assertArrayEquals(new float[]{0, HEIGHT / 2, WIDTH / 2, HEIGHT}, rect, 0);
+
+        float[] values = new float[9];
+        for (Orientation orientation : Orientation.values()) {
+            orientation.toDisplay(WIDTH, HEIGHT, values);
+            float x = 37;
+            float y = 211;
+            float displayX = values[0] * x + values[1] * y + values[2];
+            float displayY = values[3] * x + values[4] * y + values[5];
+            float[] point = {displayX, displayY, displayX, displayY};
+
+            orientation.toStored(WIDTH, HEIGHT, point);
+
+            assertArrayEquals(orientation.name(), new float[]{x, y, x, y}, point, 0);
+        }
+    }
+
+    private static void assertCorner(Orientation orientation, float x, float y) {
+        float[] values = new float[9];
+        orientation.toDisplay(WIDTH, HEIGHT, values);
+        assertEquals(orientation.name(), x, values[2], 0);
+        assertEquals(orientation.name(), y, values[5], 0);
+    }
+}
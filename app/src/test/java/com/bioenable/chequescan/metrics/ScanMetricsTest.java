@@ -0,0 +1,108 @@
+package com.bioenable.chequescan.metrics;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.StringWriter;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Local unit tests for {@link LatencyHistogram} and {@link ScanMetrics}.
+ */
+public class ScanMetricsTest {
+
+    @Before
+    public void setUp() {
+        ScanMetrics.reset();
+        ScanMetrics.setEnabled(true);
+    }
+
+    @After
+    public void tearDown() {
+        ScanMetrics.setEnabled(false);
+        ScanMetrics.reset();
+    }
+
+    @Test
+    public void bucketsCoverEveryValue() {
+        for (long micros = 0; micros < 100000; micros++) {
+            int bucket = LatencyHistogram.bucketOf(micros);
+            assertTrue(micros + " above bucket", micros <= LatencyHistogram.upperBound(bucket));
+            assertTrue(micros + " below bucket", bucket == 0 || micros > LatencyHistogram.upperBound(bucket - 1));
+        }
+    }
+
+    @Test
+    public void percentilesAreWithinBucketPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        // 1 to 1000 ms in order, shuffled
+        long[] values = new long[1000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (i + 1) * 1000000L;
+        }
+        Random random = new Random(5);
+        for (int i = values.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            long swap = values[i];
+            values[i] = values[j];
+            values[j] = swap;
+        }
+        for (long value : values) {
+            histogram.record(value);
+        }
+
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000000, histogram.getMaxMicros());
+        assertWithin(500000, histogram.getPercentileMicros(50));
+        assertWithin(950000, histogram.getPercentileMicros(95));
+        assertWithin(990000, histogram.getPercentileMicros(99));
+        assertEquals(1000000, histogram.getPercentileMicros(100));
+    }
+
+    @Test
+    public void disabledMetricsRecordNothing() {
+        ScanMetrics.setEnabled(false);
+        long start = ScanMetrics.start();
+        ScanMetrics.record(ScanStage.DECODE, start);
+        ScanMetrics.record(ScanStage.DECODE, System.nanoTime() - 1000000);
+        ScanMetrics.add(ScanCounter.BYTES_COPIED, 100);
+
+        assertEquals(0, start);
+        assertEquals(0, ScanMetrics.histogram(ScanStage.DECODE).getCount());
+        assertEquals(0, ScanMetrics.get(ScanCounter.BYTES_COPIED));
+    }
+
+    @Test
+    public void stageStartedWhileDisabledIsNotRecorded() {
+        ScanMetrics.setEnabled(false);
+        long start = ScanMetrics.start();
+        ScanMetrics.setEnabled(true);
+
+        ScanMetrics.record(ScanStage.TOTAL, start);
+
+        assertEquals(0, ScanMetrics.histogram(ScanStage.TOTAL).getCount());
+    }
+
+    @Test
+    public void dumpListsStagesAndCounters() throws Exception {
+        ScanMetrics.record(ScanStage.COPY, System.nanoTime() - 3000000);
+        ScanMetrics.add(ScanCounter.BYTES_COPIED, 4096);
+        StringWriter out = new StringWriter();
+
+        ScanMetrics.dump(out);
+
+        String dump = out.toString();
+        for (ScanStage stage : ScanStage.values()) {
+            assertTrue(dump, dump.contains(stage.name()));
+        }
+        assertTrue(dump, dump.contains("BYTES_COPIED     4096"));
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue(expected + " vs " + actual, actual >= expected && actual <= expected * 1.25);
+    }
+}
@@ -0,0 +1,42 @@
+package com.bioenable.chequescan.metrics;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Local unit tests for {@link StartupTrace}.
+ */
+public class StartupTraceTest {
+
+    @Test
+    public void measuresFromTheProcessStart() {
+        StartupTrace trace = new StartupTrace(1000);
+        trace.setCachedAccount(true);
+
+        assertTrue(trace.firstFrame(1350));
+        assertFalse(trace.isComplete());
+        assertTrue(trace.signInResolved(2200, true));
+
+        assertTrue(trace.isComplete());
+        assertEquals(350, trace.getFirstFrameMillis());
+        assertEquals(1200, trace.getSignInMillis());
+        assertEquals("350,1200,true,true", trace.toCsvLine());
+        assertEquals(StartupTrace.CSV_HEADER.split(",").length, trace.toCsvLine().split(",").length);
+    }
+
+    @Test
+    public void keepsTheFirstTimeOfEveryMilestone() {
+        StartupTrace trace = new StartupTrace(0);
+
+        // the sign in can end before the first frame when Play services has the result cached
+        assertTrue(trace.signInResolved(100, false));
+        assertTrue(trace.firstFrame(300));
+        assertFalse(trace.firstFrame(500));
+        assertFalse(trace.signInResolved(700, true));
+
+        assertEquals("300,100,false,false", trace.toCsvLine());
+    }
+}
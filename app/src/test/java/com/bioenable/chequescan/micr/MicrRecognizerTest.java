@@ -0,0 +1,150 @@
+package com.bioenable.chequescan.micr;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Local unit tests for {@link MicrRecognizer} on synthetic cheques: a code line rendered with
+ * {@link E13BFont} under random blobs standing in for the printed and handwritten parts.
+ */
+public class MicrRecognizerTest {
+
+    private static final String[] CORPUS = {
+            "A021000021A 1234567890C 0101",
+            "C000123C 400002012A 123456C 31",
+            "A111000025A 86D7530912C 2001",
+            "C987654C 110240001A 004455C 10 B0000125000B",
+            "A322271627A 9876D54D321C 5555",
+    };
+
+    private MicrRecognizer recognizer;
+
+    @Before
+    public void setUp() {
+        recognizer = new MicrRecognizer();
+    }
+
+    @Test
+    public void readsCorpusAtDifferentResolutions() {
+        float[] cellSizes = {1.6f, 2f, 3f, 4.5f};
+        for (float cellSize : cellSizes) {
+            for (int i = 0; i < CORPUS.length; i++) {
+                SyntheticCheque cheque = new SyntheticCheque(CORPUS[i], cellSize, new Random(i), 0);
+
+                MicrLine line = recognizer.recognize(cheque.image, cheque.width, cheque.height);
+
+                assertEquals("cell " + cellSize, CORPUS[i], line.getText());
+                assertTrue(line.isComplete());
+            }
+        }
+    }
+
+    @Test
+    public void ignoresSaltNoise() {
+        for (int i = 0; i < CORPUS.length; i++) {
+            SyntheticCheque cheque = new SyntheticCheque(CORPUS[i], 3f, new Random(100 + i), 0.002);
+
+            MicrLine line = recognizer.recognize(cheque.image, cheque.width, cheque.height);
+
+            assertEquals(CORPUS[i], line.getText());
+        }
+    }
+
+    @Test
+    public void returnsEmptyLineWithoutCodeLine() {
+        byte[] blank = new byte[800 * 400];
+
+        MicrLine line = recognizer.recognize(blank, 800, 400);
+
+        assertEquals("", line.getText());
+        assertTrue(!line.isComplete());
+    }
+
+    @Test
+    public void splitsUsLayout() {
+        MicrLine line = new MicrLine("A021000021A 1234567890C 0101", new int[28]);
+
+        assertEquals("021000021", line.getRoutingNumber());
+        assertEquals("1234567890", line.getAccountNumber());
+        assertEquals("0101", line.getChequeNumber());
+        assertNull(line.getAmount());
+    }
+
+    @Test
+    public void splitsSerialFirstLayout() {
+        MicrLine line = new MicrLine("C000123C 400002012A 123456C 31 B0000125000B", new int[43]);
+
+        assertEquals("400002012", line.getRoutingNumber());
+        assertEquals("123456", line.getAccountNumber());
+        assertEquals("000123", line.getChequeNumber());
+        assertEquals("0000125000", line.getAmount());
+    }
+
+    @Test
+    public void keepsDashesInAccountNumber() {
+        MicrLine line = new MicrLine("A111000025A 86D7530912C 2001", new int[28]);
+
+        assertEquals("86-7530912", line.getAccountNumber());
+    }
+
+    /**
+     * The count characters per second are worked out from. The rate itself is measured by
+     * MicrBenchmark, a timed loop in a unit test only adds noise.
+     */
+    @Test
+    public void countsRecognizedCharacters() {
+        long expected = 0;
+        for (int i = 0; i < CORPUS.length; i++) {
+            SyntheticCheque cheque = new SyntheticCheque(CORPUS[i], 3f, new Random(i), 0.001);
+            recognizer.recognize(cheque.image, cheque.width, cheque.height);
+            expected += CORPUS[i].length();
+        }
+        recognizer.recognize(new byte[800 * 400], 800, 400);
+
+        assertEquals(expected, recognizer.getCharactersRecognized());
+    }
+
+    /**
+     * A binarized cheque of roughly the proportions of a real one with the code line 1/4 inch from
+     * the bottom edge.
+     */
+    private static class SyntheticCheque {
+        final int width;
+        final int height;
+        final byte[] image;
+
+        SyntheticCheque(String codeLine, float cellSize, Random random, double noise) {
+            // the grid square is 0.013 inch, a cheque is about 8 x 3.5 inch
+            float pixelsPerInch = cellSize / 0.013f;
+            width = Math.round(8f * pixelsPerInch);
+            height = Math.round(3.5f * pixelsPerInch);
+            image = new byte[width * height];
+
+            // printed text and handwriting in the upper two thirds
+            for (int blob = 0; blob < 60; blob++) {
+                int w = 5 + random.nextInt(width / 10);
+                int h = 2 + random.nextInt(height / 20);
+                int x = random.nextInt(width - w);
+                int y = random.nextInt(height * 2 / 3 - h);
+                for (int yy = y; yy < y + h; yy++) {
+                    for (int xx = x; xx < x + w; xx++) {
+                        image[yy * width + xx] = 1;
+                    }
+                }
+            }
+            E13BFont.render(codeLine, image, width, Math.round(0.6f * pixelsPerInch),
+                    height - Math.round(0.25f * pixelsPerInch) - Math.round(9 * cellSize), cellSize, (byte) 1);
+            for (int i = 0; i < image.length; i++) {
+                if (random.nextDouble() < noise) {
+                    image[i] = (byte) (1 - image[i]);
+                }
+            }
+        }
+    }
+}
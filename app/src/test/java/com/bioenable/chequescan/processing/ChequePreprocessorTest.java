@@ -0,0 +1,163 @@
+package com.bioenable.chequescan.processing;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static com.bioenable.chequescan.processing.ChequePreprocessor.INK;
+import static com.bioenable.chequescan.processing.ChequePreprocessor.PAPER;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Local unit tests for {@link ChequePreprocessor} on synthetic images.
+ */
+public class ChequePreprocessorTest {
+
+    private ChequePreprocessor preprocessor;
+
+    @Before
+    public void setUp() {
+        preprocessor = new ChequePreprocessor(Runtime.getRuntime().availableProcessors());
+    }
+
+    @After
+    public void tearDown() {
+        preprocessor.close();
+    }
+
+    @Test
+    public void grayscaleKeepsBlackAndWhite() {
+        int[] argb = {0xFF000000, 0xFFFFFFFF, 0xFFFF0000, 0xFF00FF00, 0xFF0000FF, 0xFF808080};
+        byte[] gray = new byte[argb.length];
+
+        preprocessor.toGrayscale(argb, 3, 2, gray);
+
+        assertEquals(0, gray[0] & 0xFF);
+        assertEquals(255, gray[1] & 0xFF);
+        assertEquals(77, gray[2] & 0xFF);
+        assertEquals(149, gray[3] & 0xFF);
+        assertEquals(29, gray[4] & 0xFF);
+        assertEquals(128, gray[5] & 0xFF);
+    }
+
+    @Test
+    public void otsuSplitsBimodalImage() {
+        int width = 300;
+        int height = 200;
+        byte[] gray = new byte[width * height];
+        Random random = new Random(1);
+        for (int i = 0; i < gray.length; i++) {
+            int mode = i % 7 == 0 ? 60 : 200;
+            gray[i] = (byte) (mode + random.nextInt(21) - 10);
+        }
+
+        int threshold = preprocessor.otsuThreshold(gray, width, height);
+
+        assertTrue("threshold " + threshold, threshold >= 70 && threshold < 190);
+    }
+
+    @Test
+    public void sauvolaFindsTextUnderShadowWhereOtsuFails() {
+        int width = 600;
+        int height = 300;
+        // paper darkens from 230 on the left to 90 on the right, ink reflects a third of the light
+        byte[] gray = new byte[width * height];
+        byte[] text = new byte[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int paper = 230 - 140 * x / width;
+                boolean stroke = (y % 40) >= 15 && (y % 40) < 19 && (x % 30) < 20;
+                text[y * width + x] = stroke ? INK : PAPER;
+                gray[y * width + x] = (byte) (stroke ? paper / 3 : paper);
+            }
+        }
+        byte[] sauvola = new byte[gray.length];
+        byte[] otsu = new byte[gray.length];
+
+        preprocessor.binarizeSauvola(gray, width, height, sauvola);
+        preprocessor.binarizeOtsu(gray, width, height, otsu);
+
+        double sauvolaError = errorRate(text, sauvola);
+        double otsuError = errorRate(text, otsu);
+        assertTrue("sauvola error " + sauvolaError, sauvolaError < 0.01);
+        assertTrue("otsu error " + otsuError, otsuError > 0.1);
+    }
+
+    @Test
+    public void tiledSauvolaMatchesDirectComputation() {
+        // odd sizes so that the last row and column of tiles are partial
+        int width = 611;
+        int height = 297;
+        int window = 15;
+        byte[] gray = new byte[width * height];
+        new Random(7).nextBytes(gray);
+        byte[] tiled = new byte[gray.length];
+        ChequePreprocessor small = new ChequePreprocessor(2, window, 0.3);
+
+        small.binarizeSauvola(gray, width, height, tiled);
+        small.close();
+
+        assertArrayEquals(directSauvola(gray, width, height, window, 0.3), tiled);
+    }
+
+    @Test
+    public void reusesScratchBuffersBetweenImages() {
+        int width = 1200;
+        int height = 900;
+        byte[] gray = new byte[width * height];
+        byte[] binary = new byte[gray.length];
+
+        preprocessor.binarizeSauvola(gray, width, height, binary);
+        int scratchAfterFirst = preprocessor.getScratchCount();
+        for (int i = 0; i < 3; i++) {
+            preprocessor.binarizeSauvola(gray, width, height, binary);
+        }
+
+        assertTrue(scratchAfterFirst > 0);
+        assertTrue(scratchAfterFirst <= Runtime.getRuntime().availableProcessors() + 1);
+        assertEquals(scratchAfterFirst, preprocessor.getScratchCount());
+    }
+
+    private static double errorRate(byte[] expected, byte[] actual) {
+        int wrong = 0;
+        for (int i = 0; i < expected.length; i++) {
+            if (expected[i] != actual[i]) {
+                wrong++;
+            }
+        }
+        return (double) wrong / expected.length;
+    }
+
+    /**
+     * Sauvola straight from the definition, summing every window pixel by pixel.
+     */
+    private static byte[] directSauvola(byte[] gray, int width, int height, int window, double k) {
+        int r = window / 2;
+        byte[] out = new byte[gray.length];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                long sum = 0;
+                long squares = 0;
+                int count = 0;
+                for (int wy = Math.max(0, y - r); wy <= Math.min(height - 1, y + r); wy++) {
+                    for (int wx = Math.max(0, x - r); wx <= Math.min(width - 1, x + r); wx++) {
+                        int v = gray[wy * width + wx] & 0xFF;
+                        sum += v;
+                        squares += v * v;
+                        count++;
+                    }
+                }
+                float mean = (float) sum / count;
+                float variance = Math.max(0f, (float) squares / count - mean * mean);
+                float lhs = ((gray[y * width + x] & 0xFF) - mean * (1 - (float) k)) * 128f;
+                float mk = mean * (float) k;
+                out[y * width + x] = (lhs <= 0 || lhs * lhs <= mk * mk * variance) ? INK : PAPER;
+            }
+        }
+        return out;
+    }
+}
@@ -0,0 +1,99 @@
+package com.bioenable.chequescan.processing;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Local unit tests for {@link CircleCrop}.
+ */
+public class CircleCropTest {
+
+    @Test
+    public void masksTheCentreSquareLikeADrawnCircle() {
+        CircleCrop crop = new CircleCrop();
+        for (int[] dimensions : new int[][]{{1, 1}, {2, 3}, {7, 7}, {40, 31}, {64, 101}, {300, 200}}) {
+            int width = dimensions[0];
+            int height = dimensions[1];
+            int[] source = random(width * height, width);
+            int size = CircleCrop.size(width, height);
+            // garbage from an earlier image has to be overwritten
+            int[] out = new int[size * size + 3];
+            Arrays.fill(out, 0x12345678);
+
+            assertEquals(size, crop.crop(source, width, height, out, 3));
+
+            int x = (width - size) / 2;
+            int y = (height - size) / 2;
+            float r = size / 2f;
+            for (int row = 0; row < size; row++) {
+                for (int column = 0; column < size; column++) {
+                    float dx = column + 0.5f - r;
+                    float dy = row + 0.5f - r;
+                    float coverage = Math.max(0, Math.min(1, r - (float) Math.sqrt(dx * dx + dy * dy) + 0.5f));
+                    int pixel = source[(y + row) * width + x + column];
+                    int masked = out[3 + row * size + column];
+                    int alpha = Math.round((pixel >>> 24) * coverage);
+                    assertTrue(size + " " + row + "," + column, Math.abs((masked >>> 24) - alpha) <= 1);
+                    if (alpha > 1) {
+                        assertEquals(pixel & 0xFFFFFF, masked & 0xFFFFFF);
+                    }
+                }
+            }
+            assertEquals(0x12345678, out[2]);
+        }
+    }
+
+    @Test
+    public void cropsSquaresInPlace() {
+        CircleCrop crop = new CircleCrop();
+        int[] source = random(57 * 57, 57);
+        int[] expected = new int[source.length];
+        crop.crop(source, 57, 57, expected, 0);
+
+        crop.crop(source, 57, 57, source, 0);
+
+        assertArrayEquals(expected, source);
+    }
+
+    @Test
+    public void cropsAGridLikeSingleImages() {
+        int count = 12;
+        int width = 48;
+        int height = 36;
+        int[] grid = random(count * width * height, width);
+        int size = CircleCrop.size(width, height);
+        int[] out = new int[count * size * size];
+
+        CircleCrop crop = new CircleCrop();
+        assertEquals(size, crop.cropAll(grid, count, width, height, out));
+
+        CircleCrop single = new CircleCrop();
+        int[] expected = new int[size * size];
+        for (int i = 0; i < count; i++) {
+            single.crop(Arrays.copyOfRange(grid, i * width * height, (i + 1) * width * height),
+                    width, height, expected, 0);
+            assertArrayEquals(expected, Arrays.copyOfRange(out, i * size * size, (i + 1) * size * size));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAShortOutput() {
+        new CircleCrop().crop(new int[20 * 10], 20, 10, new int[99], 0);
+    }
+
+    private static int[] random(int length, int seed) {
+        Random random = new Random(seed);
+        int[] pixels = new int[length];
+        for (int i = 0; i < length; i++) {
+            // mostly opaque, like photos, with some translucent pixels
+            pixels[i] = random.nextInt(4) == 0 ? random.nextInt() : random.nextInt() | 0xFF000000;
+        }
+        return pixels;
+    }
+}
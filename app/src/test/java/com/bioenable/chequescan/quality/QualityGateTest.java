@@ -0,0 +1,180 @@
+package com.bioenable.chequescan.quality;
+
+import com.bioenable.chequescan.geometry.Homography;
+import com.bioenable.chequescan.geometry.Quad;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Local unit tests for {@link QualityGate} on synthetic 640 x 480 proxies of photographed cheques,
+ * degraded the way real photos go wrong.
+ */
+public class QualityGateTest {
+
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+    private static final int CHEQUE_WIDTH = 480;
+    private static final int CHEQUE_HEIGHT = 220;
+    private static final int PAPER = 205;
+    private static final int BACKGROUND = 70;
+    private static final Quad FILLING = new Quad(60, 110, 590, 90, 575, 370, 70, 390);
+
+    private QualityGate gate;
+
+    @Before
+    public void setUp() {
+        gate = new QualityGate();
+    }
+
+    @After
+    public void tearDown() {
+        gate.close();
+    }
+
+    @Test
+    public void acceptsSharpCheque() {
+        QualityReport report = gate.assess(photograph(FILLING), WIDTH, HEIGHT);
+
+        assertTrue(report.toString(), report.isAcceptable());
+        assertTrue(report.toString(), report.getCoverage() > 0.4f && report.getCoverage() < 0.5f);
+        assertTrue(report.toString(), report.getCorners().distanceTo(FILLING) < 5);
+    }
+
+    @Test
+    public void rejectsBlurredCheque() {
+        byte[] photo = photograph(FILLING);
+        boxBlur(photo, 2);
+        boxBlur(photo, 2);
+
+        QualityReport report = gate.assess(photo, WIDTH, HEIGHT);
+
+        assertEquals(report.toString(), QualityIssue.BLURRY, single(report));
+    }
+
+    @Test
+    public void rejectsGlare() {
+        byte[] photo = photograph(FILLING);
+        // a reflection of a lamp on the middle of the cheque
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                float dx = (x - 330) / 60f;
+                float dy = (y - 230) / 35f;
+                if (dx * dx + dy * dy < 1) {
+                    photo[y * WIDTH + x] = (byte) 255;
+                }
+            }
+        }
+
+        QualityReport report = gate.assess(photo, WIDTH, HEIGHT);
+
+        assertEquals(report.toString(), QualityIssue.GLARE, single(report));
+    }
+
+    @Test
+    public void rejectsDistantCheque() {
+        QualityReport report = gate.assess(photograph(new Quad(190, 180, 450, 175, 448, 300, 192, 305)),
+                WIDTH, HEIGHT);
+
+        assertEquals(report.toString(), QualityIssue.TOO_SMALL, single(report));
+    }
+
+    @Test
+    public void rejectsPhotoWithoutCheque() {
+        byte[] photo = new byte[WIDTH * HEIGHT];
+        Random random = new Random(5);
+        for (int i = 0; i < photo.length; i++) {
+            photo[i] = (byte) (BACKGROUND + random.nextInt(9) - 4);
+        }
+
+        QualityReport report = gate.assess(photo, WIDTH, HEIGHT);
+
+        assertFalse(report.isAcceptable());
+        assertTrue(report.getIssues().contains(QualityIssue.NO_DOCUMENT));
+    }
+
+    @Test
+    public void acceptsArgbProxy() {
+        byte[] photo = photograph(FILLING);
+        int[] argb = new int[photo.length];
+        for (int i = 0; i < photo.length; i++) {
+            int v = photo[i] & 0xFF;
+            argb[i] = 0xFF000000 | (v << 16) | (v << 8) | v;
+        }
+
+        assertTrue(gate.assess(argb, WIDTH, HEIGHT).isAcceptable());
+    }
+
+    private static QualityIssue single(QualityReport report) {
+        assertEquals(report.toString(), 1, report.getIssues().size());
+        return report.getIssues().iterator().next();
+    }
+
+    /**
+     * Renders a cheque with lines of small print into a proxy with its corners at quad.
+     */
+    private static byte[] photograph(Quad quad) {
+        byte[] cheque = new byte[CHEQUE_WIDTH * CHEQUE_HEIGHT];
+        Random random = new Random(11);
+        for (int i = 0; i < cheque.length; i++) {
+            cheque[i] = (byte) PAPER;
+        }
+        for (int y = 20; y + 5 < CHEQUE_HEIGHT - 15; y += 14) {
+            int x = 20 + random.nextInt(40);
+            while (x < CHEQUE_WIDTH - 60) {
+                // words of one pixel strokes
+                int w = 8 + random.nextInt(30);
+                for (int xx = x; xx < x + w; xx++) {
+                    for (int yy = y; yy < y + 5; yy++) {
+                        if ((xx + yy) % 3 == 0 || yy == y || yy == y + 4) {
+                            cheque[yy * CHEQUE_WIDTH + xx] = (byte) (PAPER / 4);
+                        }
+                    }
+                }
+                x += w + 6 + random.nextInt(20);
+            }
+        }
+        Homography toCheque = Homography.between(quad,
+                new Quad(0, 0, CHEQUE_WIDTH - 1, 0, CHEQUE_WIDTH - 1, CHEQUE_HEIGHT - 1, 0, CHEQUE_HEIGHT - 1));
+        byte[] photo = new byte[WIDTH * HEIGHT];
+        float[] point = new float[2];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                toCheque.map(x, y, point);
+                int u = Math.round(point[0]);
+                int v = Math.round(point[1]);
+                int value = u >= 0 && v >= 0 && u < CHEQUE_WIDTH && v < CHEQUE_HEIGHT
+                        ? cheque[v * CHEQUE_WIDTH + u] & 0xFF : BACKGROUND;
+                photo[y * WIDTH + x] = (byte) Math.max(0, Math.min(255, value + random.nextInt(9) - 4));
+            }
+        }
+        return photo;
+    }
+
+    /**
+     * Blurs the proxy in place with a (2 radius + 1) square box, as a defocused lens would.
+     */
+    private static void boxBlur(byte[] image, int radius) {
+        byte[] source = image.clone();
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int sum = 0;
+                int count = 0;
+                for (int yy = Math.max(0, y - radius); yy <= Math.min(HEIGHT - 1, y + radius); yy++) {
+                    for (int xx = Math.max(0, x - radius); xx <= Math.min(WIDTH - 1, x + radius); xx++) {
+                        sum += source[yy * WIDTH + xx] & 0xFF;
+                        count++;
+                    }
+                }
+                image[y * WIDTH + x] = (byte) (sum / count);
+            }
+        }
+    }
+}
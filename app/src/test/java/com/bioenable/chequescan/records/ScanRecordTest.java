@@ -0,0 +1,48 @@
+package com.bioenable.chequescan.records;
+
+import com.bioenable.chequescan.micr.MicrLine;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Local unit tests for {@link ScanRecord}.
+ */
+public class ScanRecordTest {
+
+    @Test
+    public void takesFieldsFromCodeLine() {
+        MicrLine line = new MicrLine("C000123C 400002012A 123456C 31 B0000125000B", new int[43]);
+
+        ScanRecord record = ScanRecord.of("abc", line, ScanStatus.PROCESSED, 1000L);
+
+        assertEquals("400002012", record.getRoutingNumber());
+        assertEquals("123456", record.getAccountNumber());
+        assertEquals("000123", record.getChequeNumber());
+        assertEquals(Long.valueOf(125000L), record.getAmount());
+        assertEquals(1000L, record.getScannedAt());
+        assertEquals(1000L, record.getUpdatedAt());
+    }
+
+    @Test
+    public void unreadableAmountIsUnknown() {
+        MicrLine line = new MicrLine("A021000021A 1234567890C 0101 B00001?5000B", new int[41]);
+
+        assertNull(ScanRecord.of("abc", line, ScanStatus.PROCESSED, 0L).getAmount());
+        assertNull(ScanRecord.of("abc", null, ScanStatus.SCANNED, 0L).getAmount());
+    }
+
+    @Test
+    public void statusChangeKeepsScanTime() {
+        ScanRecord record = ScanRecord.of("abc", null, ScanStatus.SCANNED, 1000L);
+
+        ScanRecord uploaded = record.withStatus(ScanStatus.UPLOADED, 5000L);
+
+        assertEquals(ScanStatus.UPLOADED, uploaded.getStatus());
+        assertEquals(1000L, uploaded.getScannedAt());
+        assertEquals(5000L, uploaded.getUpdatedAt());
+        assertEquals(ScanStatus.SCANNED, record.getStatus());
+    }
+}
@@ -0,0 +1,346 @@
+package com.bioenable.chequescan.remote;
+
+import com.bioenable.chequescan.store.ContentStore;
+import com.bioenable.chequescan.store.StoreEntry;
+import com.bioenable.chequescan.transfer.TransferEngine;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Local unit tests for {@link BulkImport} and {@link HttpTransport}, against an in-process HTTP
+ * server standing in for Drive. The server can fail requests, cut responses short and stall them.
+ */
+public class BulkImportTest {
+
+    private static final int FILE_SIZE = 256 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Map<String, byte[]> files = new LinkedHashMap<>();
+    // failures still to serve per file name: positive counts are 503s, negative ones cut bodies
+    private final Map<String, AtomicInteger> failures = new ConcurrentHashMap<>();
+    // responses still to stall half way per file name, for longer than the read timeout
+    private final Map<String, AtomicInteger> stalls = new ConcurrentHashMap<>();
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger concurrent = new AtomicInteger();
+    private final AtomicInteger maxConcurrent = new AtomicInteger();
+    private final List<String> ranges = Collections.synchronizedList(new ArrayList<String>());
+    private HttpServer server;
+    private ContentStore store;
+    private TransferEngine engine;
+    private HttpTransport transport;
+
+    @Before
+    public void setUp() throws IOException {
+        Random random = new Random(4);
+        for (int i = 0; i < 8; i++) {
+            byte[] content = new byte[FILE_SIZE + i];
+            random.nextBytes(content);
+            files.put("cheque " + i + ".jpg", content);
+        }
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/scans/", new FolderHandler());
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        store = new ContentStore(folder.newFolder("store"));
+        engine = new TransferEngine(8);
+        transport = new HttpTransport("http://127.0.0.1:" + server.getAddress().getPort(), "Bearer token");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.stop(0);
+        engine.close();
+        store.close();
+    }
+
+    @Test
+    public void listsFolder() throws IOException {
+        List<RemoteFile> listed = transport.list("scans/branch");
+
+        assertEquals(files.size(), listed.size());
+        assertEquals("cheque 0.jpg", listed.get(0).getName());
+        assertEquals(FILE_SIZE, listed.get(0).getSize());
+        assertTrue(listed.get(0).getKey(), listed.get(0).getKey().endsWith("/scans/branch/cheque%200.jpg"));
+    }
+
+    @Test
+    public void importsFolderWithBoundedConcurrency() throws Exception {
+        Recorder recorder = new Recorder();
+        BulkImport bulk = new BulkImport(store, engine, transport, transport.list("scans/branch"),
+                3, 3, 10, recorder);
+
+        bulk.start();
+        assertTrue(recorder.finished.await(20, TimeUnit.SECONDS));
+
+        assertEquals(files.size(), recorder.imported.get());
+        assertEquals(0, recorder.failed.get());
+        assertTrue("max concurrent " + maxConcurrent.get(), maxConcurrent.get() <= 3);
+        assertEquals(files.size(), store.getEntries().size());
+        for (byte[] content : files.values()) {
+            assertStored(content);
+        }
+        assertEquals(recorder.lastBytesTotal, recorder.lastBytesDone);
+    }
+
+    @Test
+    public void retriesWithBackoffAndResumes() throws Exception {
+        failures.put("cheque 1.jpg", new AtomicInteger(2));
+        failures.put("cheque 2.jpg", new AtomicInteger(-1));
+        Recorder recorder = new Recorder();
+        BulkImport bulk = new BulkImport(store, engine, transport, transport.list("scans/branch"),
+                2, 4, 20, recorder);
+
+        bulk.start();
+        assertTrue(recorder.finished.await(20, TimeUnit.SECONDS));
+
+        assertEquals(files.size(), recorder.imported.get());
+        assertStored(files.get("cheque 1.jpg"));
+        assertStored(files.get("cheque 2.jpg"));
+        // the cut response is resumed from where it stopped, not downloaded again
+        assertEquals(Collections.singletonList("bytes=" + (FILE_SIZE + 2) / 2 + "-"), ranges);
+    }
+
+    @Test
+    public void retriesDownloadWhichTimesOut() throws Exception {
+        stalls.put("cheque 4.jpg", new AtomicInteger(1));
+        HttpTransport impatient = new HttpTransport("http://127.0.0.1:" + server.getAddress().getPort(),
+                "Bearer token", 200);
+        Recorder recorder = new Recorder();
+        BulkImport bulk = new BulkImport(store, engine, impatient, impatient.list("scans/branch"),
+                3, 3, 10, recorder);
+
+        bulk.start();
+        assertTrue(recorder.finished.await(20, TimeUnit.SECONDS));
+
+        assertEquals(files.size(), recorder.imported.get());
+        assertEquals(0, recorder.failed.get());
+        assertStored(files.get("cheque 4.jpg"));
+        // the timed out response is resumed like a dropped one
+        assertEquals(Collections.singletonList("bytes=" + (FILE_SIZE + 4) / 2 + "-"), ranges);
+    }
+
+    @Test
+    public void countsDownloadWhichKeepsTimingOutAsFailed() throws Exception {
+        stalls.put("cheque 5.jpg", new AtomicInteger(100));
+        HttpTransport impatient = new HttpTransport("http://127.0.0.1:" + server.getAddress().getPort(),
+                "Bearer token", 200);
+        Recorder recorder = new Recorder();
+        BulkImport bulk = new BulkImport(store, engine, impatient, impatient.list("scans/branch"),
+                3, 2, 10, recorder);
+
+        bulk.start();
+        assertTrue(recorder.finished.await(20, TimeUnit.SECONDS));
+
+        assertEquals(files.size() - 1, recorder.imported.get());
+        assertEquals(1, recorder.failed.get());
+        assertEquals(1, bulk.getFailed());
+        assertTrue(recorder.failures.get("cheque 5.jpg") instanceof SocketTimeoutException);
+    }
+
+    @Test
+    public void givesUpOnMissingAndFailingFiles() throws Exception {
+        failures.put("cheque 3.jpg", new AtomicInteger(100));
+        List<RemoteFile> listed = new ArrayList<>(transport.list("scans/branch"));
+        listed.add(new RemoteFile("http:missing", listed.get(0).getId().replace("cheque%200", "missing"),
+                "missing.jpg", 10));
+        Recorder recorder = new Recorder();
+        BulkImport bulk = new BulkImport(store, engine, transport, listed, 3, 3, 5, recorder);
+
+        bulk.start();
+        assertTrue(recorder.finished.await(20, TimeUnit.SECONDS));
+
+        assertEquals(files.size() - 1, recorder.imported.get());
+        assertEquals(2, recorder.failed.get());
+        assertTrue(recorder.failures.get("missing.jpg") instanceof FileNotFoundException);
+        assertTrue(recorder.failures.get("cheque 3.jpg").getMessage().contains("503"));
+        // three attempts for the failing file, one for the missing one
+        assertEquals(files.size() - 1 + 3 + 1, requests.get() - 1);
+    }
+
+    @Test
+    public void skipsFilesWhichAreStored() throws Exception {
+        List<RemoteFile> listed = transport.list("scans/branch");
+        Recorder first = new Recorder();
+        new BulkImport(store, engine, transport, listed, first).start();
+        assertTrue(first.finished.await(20, TimeUnit.SECONDS));
+        int requestsAfterFirst = requests.get();
+
+        Recorder second = new Recorder();
+        new BulkImport(store, engine, transport, listed, second).start();
+        assertTrue(second.finished.await(20, TimeUnit.SECONDS));
+
+        assertEquals(files.size(), second.imported.get());
+        assertEquals(requestsAfterFirst, requests.get());
+    }
+
+    @Test
+    public void cancelStopsImport() throws Exception {
+        failures.put("cheque 0.jpg", new AtomicInteger(100));
+        Recorder recorder = new Recorder();
+        BulkImport bulk = new BulkImport(store, engine, transport, transport.list("scans/branch"),
+                1, 10, 200, recorder);
+
+        bulk.start();
+        bulk.cancel();
+        assertTrue(recorder.finished.await(20, TimeUnit.SECONDS));
+
+        assertTrue(bulk.isCancelled());
+        assertEquals(0, recorder.imported.get());
+    }
+
+    private void assertStored(byte[] content) throws IOException {
+        StoreEntry entry = store.get(ContentStore.toHex(ContentStore.newDigest().digest(content)));
+        assertArrayEquals(content, Files.readAllBytes(entry.getFile().toPath()));
+    }
+
+    /**
+     * Serves the listing of /scans/branch/ and the files in it, with Range support.
+     */
+    private class FolderHandler implements HttpHandler {
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            requests.incrementAndGet();
+            int now = concurrent.incrementAndGet();
+            synchronized (maxConcurrent) {
+                maxConcurrent.set(Math.max(maxConcurrent.get(), now));
+            }
+            try {
+                serve(exchange);
+            } finally {
+                concurrent.decrementAndGet();
+                exchange.close();
+            }
+        }
+
+        private void serve(HttpExchange exchange) throws IOException {
+            String path = exchange.getRequestURI().getPath();
+            if (!"Bearer token".equals(exchange.getRequestHeaders().getFirst("Authorization"))) {
+                exchange.sendResponseHeaders(401, -1);
+                return;
+            }
+            if (path.equals("/scans/branch/")) {
+                StringBuilder listing = new StringBuilder();
+                for (Map.Entry<String, byte[]> file : files.entrySet()) {
+                    listing.append(file.getKey()).append('\t').append(file.getValue().length).append('\n');
+                }
+                byte[] body = listing.toString().getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, body.length);
+                exchange.getResponseBody().write(body);
+                return;
+            }
+            String name = path.substring("/scans/branch/".length());
+            byte[] content = files.get(name);
+            if (content == null) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            // a little time on the wire so that downloads overlap
+            sleep(20);
+            AtomicInteger failing = failures.get(name);
+            if (failing != null && failing.get() > 0) {
+                failing.decrementAndGet();
+                exchange.sendResponseHeaders(503, -1);
+                return;
+            }
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            int offset = 0;
+            if (range != null) {
+                ranges.add(range);
+                offset = Integer.parseInt(range.substring("bytes=".length(), range.length() - 1));
+                exchange.getResponseHeaders().add("Content-Range",
+                        "bytes " + offset + "-" + (content.length - 1) + "/" + content.length);
+            }
+            exchange.sendResponseHeaders(range != null ? 206 : 200, content.length - offset);
+            OutputStream out = exchange.getResponseBody();
+            if (failing != null && failing.get() < 0) {
+                // send half and drop the connection
+                failing.incrementAndGet();
+                out.write(content, 0, content.length / 2);
+                out.flush();
+                throw new IOException("connection dropped");
+            }
+            AtomicInteger stalling = stalls.get(name);
+            if (stalling != null && stalling.getAndDecrement() > 0) {
+                // send half and go quiet until the client gave up
+                out.write(content, offset, content.length / 2 - offset);
+                out.flush();
+                sleep(1000);
+                return;
+            }
+            out.write(content, offset, content.length - offset);
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class Recorder implements BulkImport.Listener {
+
+        final AtomicInteger imported = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        final Map<String, IOException> failures = new ConcurrentHashMap<>();
+        final CountDownLatch finished = new CountDownLatch(1);
+        volatile long lastBytesDone;
+        volatile long lastBytesTotal;
+
+        @Override
+        public void onProgress(int filesDone, int filesTotal, long bytesDone, long bytesTotal) {
+            lastBytesDone = bytesDone;
+            lastBytesTotal = bytesTotal;
+        }
+
+        @Override
+        public void onFileImported(RemoteFile file, StoreEntry entry) {
+            imported.incrementAndGet();
+        }
+
+        @Override
+        public void onFileFailed(RemoteFile file, IOException e) {
+            failed.incrementAndGet();
+            failures.put(file.getName(), e);
+        }
+
+        @Override
+        public void onFinished(int imported, int failed) {
+            finished.countDown();
+        }
+    }
+}
@@ -0,0 +1,635 @@
+package com.bioenable.chequescan.remote;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Local unit tests for {@link UploadQueue} and {@link HttpUploadTransport}, against an in-process
+ * HTTP server speaking the Drive upload protocol. The server can fail and hold chunks.
+ */
+public class UploadQueueTest {
+
+    private static final int CHUNK = 64 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // uploaded files by name
+    private final Map<String, byte[]> uploaded = new ConcurrentHashMap<>();
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    // Content-Range headers of the chunk PUTs, in order
+    private final List<String> chunkRanges = Collections.synchronizedList(new ArrayList<String>());
+    private final AtomicInteger singleUploads = new AtomicInteger();
+    private final AtomicInteger queries = new AtomicInteger();
+    private final AtomicInteger failChunks = new AtomicInteger();
+    // single uploads still to refuse with a rate limit 403
+    private final AtomicInteger throttles = new AtomicInteger();
+    // chunk PUT number which waits for holdRelease before it fails, 0 for none
+    private volatile int holdChunk;
+    private final CountDownLatch holdReached = new CountDownLatch(1);
+    private final CountDownLatch holdRelease = new CountDownLatch(1);
+    private HttpServer server;
+    private HttpUploadTransport transport;
+    private File journal;
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/upload", new UploadHandler());
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        transport = new HttpUploadTransport("http://127.0.0.1:" + server.getAddress().getPort() + "/upload",
+                "folder", new HttpUploadTransport.Authorizer() {
+            @Override
+            public String getAuthorization() {
+                return "Bearer token";
+            }
+
+            @Override
+            public void invalidate(String authorization) {
+            }
+        });
+        journal = new File(folder.getRoot(), "uploads.log");
+    }
+
+    @After
+    public void tearDown() {
+        holdRelease.countDown();
+        server.stop(0);
+    }
+
+    @Test
+    public void sendsSmallFilesInSingleRequests() throws Exception {
+        Recorder recorder = new Recorder(6);
+        UploadQueue queue = new UploadQueue(journal, transport, 2, CHUNK, 10, recorder);
+        List<byte[]> contents = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            contents.add(randomBytes(i, 5000 + i));
+            queue.enqueue(write("small" + i + ".jpg", contents.get(i)), "small" + i + ".jpg");
+        }
+
+        queue.start();
+        assertTrue(recorder.done.await(20, TimeUnit.SECONDS));
+        queue.close();
+
+        assertEquals(6, singleUploads.get());
+        assertEquals(0, sessions.size());
+        for (int i = 0; i < 6; i++) {
+            assertArrayEquals(contents.get(i), uploaded.get("small" + i + ".jpg"));
+        }
+        assertEquals(0, new UploadQueue(journal, transport, recorder).getPendingCount());
+    }
+
+    @Test
+    public void sendsLargeFilesInChunks() throws Exception {
+        byte[] content = randomBytes(1, 4 * CHUNK + 100);
+        Recorder recorder = new Recorder(1);
+        UploadQueue queue = new UploadQueue(journal, transport, 2, CHUNK, 10, recorder);
+        queue.enqueue(write("large.jpg", content), "large.jpg");
+
+        queue.start();
+        assertTrue(recorder.done.await(20, TimeUnit.SECONDS));
+        queue.close();
+
+        assertArrayEquals(content, uploaded.get("large.jpg"));
+        assertEquals(Arrays.asList(
+                "bytes 0-65535/262244",
+                "bytes 65536-131071/262244",
+                "bytes 131072-196607/262244",
+                "bytes 196608-262143/262244",
+                "bytes 262144-262243/262244"), chunkRanges);
+    }
+
+    @Test
+    public void backsOffAndResumesAfterFailures() throws Exception {
+        byte[] content = randomBytes(2, 3 * CHUNK);
+        failChunks.set(2);
+        Recorder recorder = new Recorder(1);
+        UploadQueue queue = new UploadQueue(journal, transport, 1, CHUNK, 20, recorder);
+        queue.enqueue(write("retried.jpg", content), "retried.jpg");
+
+        queue.start();
+        assertTrue(recorder.done.await(20, TimeUnit.SECONDS));
+        queue.close();
+
+        assertArrayEquals(content, uploaded.get("retried.jpg"));
+        assertEquals(1, sessions.size());
+        // the offset is asked after each failure
+        assertEquals(2, queries.get());
+        assertEquals(3 + 2, chunkRanges.size());
+    }
+
+    @Test
+    public void keepsItemQueuedAfterTornJournalLine() throws Exception {
+        Recorder recorder = new Recorder(2);
+        UploadQueue queue = new UploadQueue(journal, transport, 1, CHUNK, 10, recorder);
+        queue.enqueue(write("first.jpg", randomBytes(8, 100)), "first.jpg");
+        queue.close();
+        // the process died while it wrote an acknowledgement
+        Files.write(journal.toPath(), "A\t1\t6".getBytes("UTF-8"), StandardOpenOption.APPEND);
+
+        queue = new UploadQueue(journal, transport, 1, CHUNK, 10, recorder);
+        queue.enqueue(write("second.jpg", randomBytes(9, 200)), "second.jpg");
+        queue.close();
+
+        UploadQueue reopened = new UploadQueue(journal, transport, recorder);
+        assertEquals(2, reopened.getPendingCount());
+        assertEquals(300, reopened.getPendingBytes());
+        reopened.close();
+    }
+
+    @Test
+    public void resumesFromJournalAfterRestart() throws Exception {
+        byte[] content = randomBytes(3, 5 * CHUNK);
+        holdChunk = 3;
+        Recorder first = new Recorder(1);
+        UploadQueue queue = new UploadQueue(journal, transport, 1, CHUNK, 10, first);
+        queue.enqueue(write("resumed.jpg", content), "resumed.jpg");
+        queue.start();
+        assertTrue(holdReached.await(20, TimeUnit.SECONDS));
+        // the process dies while the third chunk is on the wire
+        queue.close();
+        holdRelease.countDown();
+
+        Recorder second = new Recorder(1);
+        UploadQueue reopened = new UploadQueue(journal, transport, 1, CHUNK, 10, second);
+        assertEquals(1, reopened.getPendingCount());
+        assertEquals(3 * CHUNK, reopened.getPendingBytes());
+        reopened.start();
+        assertTrue(second.done.await(20, TimeUnit.SECONDS));
+        reopened.close();
+
+        assertArrayEquals(content, uploaded.get("resumed.jpg"));
+        assertEquals(1, sessions.size());
+        assertEquals(1, queries.get());
+        // two chunks before the restart, the lost one again, and the last two
+        assertEquals(5 + 1, chunkRanges.size());
+        assertEquals("bytes " + 2 * CHUNK + "-" + (3 * CHUNK - 1) + "/" + content.length, chunkRanges.get(3));
+    }
+
+    @Test
+    public void capsConcurrency() throws Exception {
+        Recorder recorder = new Recorder(6);
+        // counted on the client, the server may still be closing the last exchange
+        final AtomicInteger calls = new AtomicInteger();
+        final AtomicInteger maxCalls = new AtomicInteger();
+        UploadTransport counting = new UploadTransport() {
+            @Override
+            public void upload(UploadItem item, InputStream content) throws IOException {
+                enter();
+                try {
+                    transport.upload(item, content);
+                } finally {
+                    calls.decrementAndGet();
+                }
+            }
+
+            @Override
+            public String startSession(UploadItem item) throws IOException {
+                enter();
+                try {
+                    return transport.startSession(item);
+                } finally {
+                    calls.decrementAndGet();
+                }
+            }
+
+            @Override
+            public long uploadChunk(String session, UploadItem item, long offset, byte[] chunk, int count)
+                    throws IOException {
+                enter();
+                try {
+                    return transport.uploadChunk(session, item, offset, chunk, count);
+                } finally {
+                    calls.decrementAndGet();
+                }
+            }
+
+            @Override
+            public long queryOffset(String session, UploadItem item) throws IOException {
+                enter();
+                try {
+                    return transport.queryOffset(session, item);
+                } finally {
+                    calls.decrementAndGet();
+                }
+            }
+
+            private void enter() {
+                int now = calls.incrementAndGet();
+                synchronized (maxCalls) {
+                    maxCalls.set(Math.max(maxCalls.get(), now));
+                }
+            }
+        };
+        UploadQueue queue = new UploadQueue(journal, counting, 2, CHUNK, 10, recorder);
+        for (int i = 0; i < 6; i++) {
+            queue.enqueue(write("large" + i + ".jpg", randomBytes(10 + i, 2 * CHUNK)), "large" + i + ".jpg");
+        }
+
+        queue.start();
+        assertTrue(recorder.done.await(20, TimeUnit.SECONDS));
+        queue.close();
+
+        assertEquals(6, uploaded.size());
+        assertTrue("max concurrent " + maxCalls.get(), maxCalls.get() <= 2);
+    }
+
+    @Test
+    public void dropsFilesTheServerRefuses() throws Exception {
+        Recorder recorder = new Recorder(2);
+        UploadQueue queue = new UploadQueue(journal, transport, 1, CHUNK, 10, recorder);
+        queue.enqueue(write("refused.jpg", randomBytes(5, 100)), "refused.jpg");
+        queue.enqueue(write("fine.jpg", randomBytes(6, 100)), "fine.jpg");
+
+        queue.start();
+        assertTrue(recorder.done.await(20, TimeUnit.SECONDS));
+        queue.close();
+
+        assertEquals(1, recorder.rejected.size());
+        assertTrue(recorder.rejected.get(0) instanceof UploadRejectedException);
+        assertTrue(recorder.rejected.get(0).getMessage().contains("insufficientFilePermissions"));
+        assertEquals(Collections.singleton("fine.jpg"), uploaded.keySet());
+        assertEquals(2, singleUploads.get());
+        assertEquals(0, new UploadQueue(journal, transport, recorder).getPendingCount());
+    }
+
+    @Test
+    public void retriesFilesRefusedByRateLimit() throws Exception {
+        throttles.set(2);
+        byte[] content = randomBytes(7, 100);
+        Recorder recorder = new Recorder(1);
+        UploadQueue queue = new UploadQueue(journal, transport, 1, CHUNK, 10, recorder);
+        queue.enqueue(write("throttled.jpg", content), "throttled.jpg");
+
+        queue.start();
+        assertTrue(recorder.done.await(20, TimeUnit.SECONDS));
+        queue.close();
+
+        assertEquals(0, recorder.rejected.size());
+        assertArrayEquals(content, uploaded.get("throttled.jpg"));
+        assertEquals(3, singleUploads.get());
+    }
+
+    @Test
+    public void retriesFilesAfterUnexpectedExceptions() throws Exception {
+        final AtomicInteger throwing = new AtomicInteger(2);
+        UploadTransport failing = new UploadTransport() {
+            @Override
+            public void upload(UploadItem item, InputStream content) throws IOException {
+                if (throwing.getAndDecrement() > 0) {
+                    throw new SecurityException("Permission denied (missing INTERNET permission?)");
+                }
+                transport.upload(item, content);
+            }
+
+            @Override
+            public String startSession(UploadItem item) throws IOException {
+                return transport.startSession(item);
+            }
+
+            @Override
+            public long uploadChunk(String session, UploadItem item, long offset, byte[] chunk, int count)
+                    throws IOException {
+                return transport.uploadChunk(session, item, offset, chunk, count);
+            }
+
+            @Override
+            public long queryOffset(String session, UploadItem item) throws IOException {
+                return transport.queryOffset(session, item);
+            }
+        };
+        byte[] content = randomBytes(8, 100);
+        Recorder recorder = new Recorder(1);
+        UploadQueue queue = new UploadQueue(journal, failing, 1, CHUNK, 10, recorder);
+        queue.enqueue(write("unlucky.jpg", content), "unlucky.jpg");
+
+        queue.start();
+        assertTrue(recorder.done.await(20, TimeUnit.SECONDS));
+        queue.close();
+
+        assertEquals(0, recorder.rejected.size());
+        assertArrayEquals(content, uploaded.get("unlucky.jpg"));
+        assertEquals(1, singleUploads.get());
+    }
+
+    @Test
+    public void recordsUploadsWhichFinishWhileClosing() throws Exception {
+        final CountDownLatch sending = new CountDownLatch(1);
+        final CountDownLatch closed = new CountDownLatch(1);
+        UploadTransport slow = new UploadTransport() {
+            @Override
+            public void upload(UploadItem item, InputStream content) throws IOException {
+                sending.countDown();
+                // close() interrupts the worker, the request is on the wire already and goes through
+                boolean interrupted = false;
+                while (true) {
+                    try {
+                        closed.await();
+                        break;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                transport.upload(item, content);
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            @Override
+            public String startSession(UploadItem item) throws IOException {
+                return transport.startSession(item);
+            }
+
+            @Override
+            public long uploadChunk(String session, UploadItem item, long offset, byte[] chunk, int count)
+                    throws IOException {
+                return transport.uploadChunk(session, item, offset, chunk, count);
+            }
+
+            @Override
+            public long queryOffset(String session, UploadItem item) throws IOException {
+                return transport.queryOffset(session, item);
+            }
+        };
+        Recorder recorder = new Recorder(1);
+        UploadQueue queue = new UploadQueue(journal, slow, 1, CHUNK, 10, recorder);
+        queue.enqueue(write("late.jpg", randomBytes(9, 100)), "late.jpg");
+
+        queue.start();
+        assertTrue(sending.await(20, TimeUnit.SECONDS));
+        queue.close();
+        closed.countDown();
+        assertTrue(recorder.done.await(20, TimeUnit.SECONDS));
+
+        assertEquals(1, singleUploads.get());
+        UploadQueue reopened = new UploadQueue(journal, transport, recorder);
+        assertEquals(0, reopened.getPendingCount());
+        reopened.close();
+    }
+
+    @Test
+    public void stopsUntilStartedAgainWhenNotAuthorized() throws Exception {
+        final AtomicInteger requests = new AtomicInteger();
+        final AtomicInteger authorized = new AtomicInteger();
+        HttpUploadTransport consenting = new HttpUploadTransport(
+                "http://127.0.0.1:" + server.getAddress().getPort() + "/upload", "folder",
+                new HttpUploadTransport.Authorizer() {
+                    @Override
+                    public String getAuthorization() throws IOException {
+                        requests.incrementAndGet();
+                        if (authorized.get() == 0) {
+                            throw new UploadAuthorizationException("Consent needed", null);
+                        }
+                        return "Bearer token";
+                    }
+
+                    @Override
+                    public void invalidate(String authorization) {
+                    }
+                });
+        byte[] content = randomBytes(10, 100);
+        Recorder recorder = new Recorder(1);
+        UploadQueue queue = new UploadQueue(journal, consenting, 1, CHUNK, 10, recorder);
+        queue.enqueue(write("consent.jpg", content), "consent.jpg");
+
+        queue.start();
+        Thread.sleep(200);
+        // asked once, then neither retried nor dropped
+        assertEquals(1, requests.get());
+        assertEquals(1, queue.getPendingCount());
+        assertEquals(0, recorder.rejected.size());
+
+        authorized.set(1);
+        queue.start();
+        assertTrue(recorder.done.await(20, TimeUnit.SECONDS));
+        queue.close();
+
+        assertArrayEquals(content, uploaded.get("consent.jpg"));
+    }
+
+    private File write(String name, byte[] content) throws IOException {
+        File file = new File(folder.getRoot(), name);
+        Files.write(file.toPath(), content);
+        return file;
+    }
+
+    private static byte[] randomBytes(long seed, int length) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int count;
+        while ((count = in.read(buffer)) > 0) {
+            out.write(buffer, 0, count);
+        }
+        return out.toByteArray();
+    }
+
+    private static class Session {
+
+        final String name;
+        final long length;
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+
+        Session(String name, long length) {
+            this.name = name;
+            this.length = length;
+        }
+    }
+
+    /**
+     * The part of the Drive upload protocol the transport uses: multipart uploads, starting a
+     * resumable session, chunk PUTs and offset queries.
+     */
+    private class UploadHandler implements HttpHandler {
+
+        private final AtomicInteger chunkPuts = new AtomicInteger();
+        private final AtomicInteger sessionIds = new AtomicInteger();
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                if (!"Bearer token".equals(exchange.getRequestHeaders().getFirst("Authorization"))) {
+                    exchange.sendResponseHeaders(401, -1);
+                    return;
+                }
+                String query = exchange.getRequestURI().getQuery();
+                byte[] body = readAll(exchange.getRequestBody());
+                if (query.contains("upload_id=")) {
+                    chunk(exchange, sessions.get(query.substring(query.indexOf("upload_id=") + 10)), body);
+                } else if (query.contains("uploadType=resumable")) {
+                    String name = name(new String(body, "UTF-8"));
+                    String id = Integer.toString(sessionIds.incrementAndGet());
+                    sessions.put(id, new Session(name,
+                            Long.parseLong(exchange.getRequestHeaders().getFirst("X-Upload-Content-Length"))));
+                    exchange.getResponseHeaders().add("Location", "http://127.0.0.1:"
+                            + server.getAddress().getPort() + "/upload?uploadType=resumable&upload_id=" + id);
+                    exchange.sendResponseHeaders(200, -1);
+                } else if (query.contains("uploadType=multipart")) {
+                    singleUploads.incrementAndGet();
+                    multipart(exchange, body);
+                } else {
+                    exchange.sendResponseHeaders(400, -1);
+                }
+            } finally {
+                exchange.close();
+            }
+        }
+
+        private void multipart(HttpExchange exchange, byte[] body) throws IOException {
+            String type = exchange.getRequestHeaders().getFirst("Content-Type");
+            String boundary = "--" + type.substring(type.indexOf("boundary=") + 9);
+            // ISO-8859-1 keeps one char per byte, so indexes are byte offsets
+            String text = new String(body, "ISO-8859-1");
+            int metadataStart = text.indexOf("\r\n\r\n") + 4;
+            String name = name(text.substring(metadataStart, text.indexOf(boundary, metadataStart)));
+            int contentStart = text.indexOf("\r\n\r\n", text.indexOf(boundary, metadataStart)) + 4;
+            int contentEnd = text.lastIndexOf("\r\n" + boundary + "--");
+            if (name.equals("refused.jpg")) {
+                error(exchange, 403, "insufficientFilePermissions");
+                return;
+            }
+            if (name.equals("throttled.jpg") && throttles.getAndDecrement() > 0) {
+                error(exchange, 403, "userRateLimitExceeded");
+                return;
+            }
+            uploaded.put(name, Arrays.copyOfRange(body, contentStart, contentEnd));
+            exchange.sendResponseHeaders(200, -1);
+        }
+
+        private void chunk(HttpExchange exchange, Session session, byte[] body) throws IOException {
+            if (session == null) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            String range = exchange.getRequestHeaders().getFirst("Content-Range");
+            if (range.startsWith("bytes */")) {
+                queries.incrementAndGet();
+                incomplete(exchange, session);
+                return;
+            }
+            chunkRanges.add(range);
+            int put = chunkPuts.incrementAndGet();
+            if (put == holdChunk) {
+                holdReached.countDown();
+                try {
+                    holdRelease.await(20, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                // the chunk is lost with the connection
+                exchange.sendResponseHeaders(500, -1);
+                return;
+            }
+            if (failChunks.get() > 0) {
+                failChunks.decrementAndGet();
+                exchange.sendResponseHeaders(503, -1);
+                return;
+            }
+            // a little time on the wire so that uploads overlap
+            sleep(5);
+            long start = Long.parseLong(range.substring(6, range.indexOf('-')));
+            synchronized (session) {
+                if (start != session.received.size()) {
+                    incomplete(exchange, session);
+                    return;
+                }
+                session.received.write(body);
+                if (session.received.size() < session.length) {
+                    incomplete(exchange, session);
+                    return;
+                }
+                uploaded.put(session.name, session.received.toByteArray());
+            }
+            exchange.sendResponseHeaders(201, -1);
+        }
+
+        private void error(HttpExchange exchange, int code, String reason) throws IOException {
+            byte[] body = ("{\"error\":{\"errors\":[{\"domain\":\"global\",\"reason\":\"" + reason
+                    + "\",\"message\":\"" + reason + "\"}],\"code\":" + code + "}}").getBytes("UTF-8");
+            exchange.getResponseHeaders().add("Content-Type", "application/json; charset=UTF-8");
+            exchange.sendResponseHeaders(code, body.length);
+            exchange.getResponseBody().write(body);
+        }
+
+        private void incomplete(HttpExchange exchange, Session session) throws IOException {
+            synchronized (session) {
+                if (session.received.size() > 0) {
+                    exchange.getResponseHeaders().add("Range", "bytes=0-" + (session.received.size() - 1));
+                }
+            }
+            exchange.sendResponseHeaders(308, -1);
+        }
+
+        private String name(String json) {
+            int start = json.indexOf("\"name\":\"") + 8;
+            return json.substring(start, json.indexOf('"', start));
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class Recorder implements UploadQueue.Listener {
+
+        final CountDownLatch done;
+        final List<IOException> rejected = Collections.synchronizedList(new ArrayList<IOException>());
+
+        Recorder(int files) {
+            done = new CountDownLatch(files);
+        }
+
+        @Override
+        public void onUploaded(UploadItem item) {
+            done.countDown();
+        }
+
+        @Override
+        public void onRejected(UploadItem item, IOException e) {
+            rejected.add(e);
+            done.countDown();
+        }
+    }
+}
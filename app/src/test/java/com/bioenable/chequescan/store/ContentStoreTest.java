@@ -0,0 +1,309 @@
+package com.bioenable.chequescan.store;
+
+import com.bioenable.chequescan.transfer.StreamSource;
+import com.bioenable.chequescan.transfer.TransferEngine;
+import com.bioenable.chequescan.transfer.TransferListener;
+import com.bioenable.chequescan.transfer.TransferSource;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Local unit tests for {@link ContentStore}.
+ */
+public class ContentStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File root;
+    private ContentStore store;
+    private TransferEngine engine;
+    private byte[] image;
+
+    @Before
+    public void setUp() throws IOException {
+        root = folder.newFolder("store");
+        store = new ContentStore(root);
+        engine = new TransferEngine(1);
+        image = new byte[3 * 1024 * 1024 + 17];
+        new Random(8).nextBytes(image);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        engine.close();
+        store.close();
+    }
+
+    @Test
+    public void identicalContentIsStoredOnce() throws IOException {
+        StoreEntry first = store.commit(pendingWith(image, null), "gallery:1");
+        File second = pendingWith(image, null);
+        StoreEntry again = store.commit(second, "gallery:2");
+
+        assertEquals(first.getHash(), again.getHash());
+        assertEquals(first.getFile(), again.getFile());
+        assertFalse(second.exists());
+        assertEquals(1, store.getEntries().size());
+        assertEquals(image.length, store.getTotalBytes());
+        assertSame(store.get(first.getHash()), store.findBySourceKey("gallery:2"));
+        assertEquals(ContentStore.toHex(ContentStore.newDigest().digest(image)), first.getHash());
+    }
+
+    @Test
+    public void indexSurvivesReopen() throws IOException {
+        StoreEntry kept = store.commit(pendingWith(image, null), "drive:kept");
+        byte[] other = image.clone();
+        other[0]++;
+        StoreEntry deleted = store.commit(pendingWith(other, null), "drive:deleted");
+        assertTrue(store.delete(deleted.getHash()));
+        store.close();
+
+        store = new ContentStore(root);
+
+        assertEquals(1, store.getEntries().size());
+        assertEquals(kept.getHash(), store.findBySourceKey("drive:kept").getHash());
+        assertEquals(kept.getCreated(), store.get(kept.getHash()).getCreated());
+        assertNull(store.findBySourceKey("drive:deleted"));
+        assertFalse(deleted.getFile().exists());
+    }
+
+    @Test
+    public void truncatedIndexLineIsIgnored() throws IOException {
+        StoreEntry entry = store.commit(pendingWith(image, null), null);
+        store.close();
+        OutputStream index = new FileOutputStream(new File(root, "index.log"), true);
+        index.write("P 12ab 10".getBytes("UTF-8"));
+        index.close();
+
+        store = new ContentStore(root);
+
+        assertEquals(1, store.getEntries().size());
+        assertNotNull(store.get(entry.getHash()));
+    }
+
+    @Test
+    public void lineAppendedAfterTornLineIsKept() throws IOException {
+        StoreEntry first = store.commit(pendingWith(image, null), "gallery:1");
+        store.close();
+        OutputStream index = new FileOutputStream(new File(root, "index.log"), true);
+        index.write("K 12ab gallery:".getBytes("UTF-8"));
+        index.close();
+
+        store = new ContentStore(root);
+        byte[] other = image.clone();
+        other[0]++;
+        StoreEntry second = store.commit(pendingWith(other, null), "gallery:2");
+        store.close();
+        store = new ContentStore(root);
+
+        assertEquals(2, store.getEntries().size());
+        assertNotNull(store.get(first.getHash()));
+        assertNotNull(store.get(second.getHash()));
+        assertEquals(second.getHash(), store.findBySourceKey("gallery:2").getHash());
+    }
+
+    @Test
+    public void obsoleteIndexLinesAreCompacted() throws IOException {
+        byte[] small = new byte[100];
+        for (int i = 0; i < 200; i++) {
+            small[0] = (byte) i;
+            store.delete(store.commit(pendingWith(small, null), "key" + i).getHash());
+        }
+        StoreEntry kept = store.commit(pendingWith(image, null), "kept");
+        File index = new File(root, "index.log");
+        long before = index.length();
+        store.close();
+
+        store = new ContentStore(root);
+
+        assertTrue(index.length() < before / 10);
+        assertEquals(kept.getHash(), store.findBySourceKey("kept").getHash());
+        assertEquals(1, store.getEntries().size());
+    }
+
+    @Test
+    public void downloadHashesWhileWriting() throws Exception {
+        RecordingListener listener = new RecordingListener();
+
+        store.download(engine, new StreamSource(new ByteArrayInputStream(image), image.length),
+                "drive:abc", listener);
+        listener.await();
+
+        StoreEntry entry = store.findBySourceKey("drive:abc");
+        assertEquals(entry.getFile(), listener.file);
+        assertEquals(ContentStore.toHex(ContentStore.newDigest().digest(image)), entry.getHash());
+        assertEquals(0, new File(root, "pending").list().length);
+    }
+
+    @Test
+    public void resumedDownloadHashesWholeFile() throws Exception {
+        RecordingListener failed = new RecordingListener();
+        InputStream breaking = new FilterInputStream(new ByteArrayInputStream(image)) {
+            private int read;
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                if (read > image.length / 2) {
+                    throw new IOException("Connection lost");
+                }
+                int count = super.read(buffer, offset, length);
+                read += Math.max(0, count);
+                return count;
+            }
+        };
+        store.download(engine, new StreamSource(breaking, image.length), "drive:resume", failed);
+        failed.await();
+        assertNotNull(failed.error);
+
+        RecordingListener resumed = new RecordingListener();
+        store.download(engine, new StreamSource(new ByteArrayInputStream(image), image.length),
+                "drive:resume", resumed);
+        resumed.await();
+
+        assertEquals(ContentStore.toHex(ContentStore.newDigest().digest(image)),
+                store.findBySourceKey("drive:resume").getHash());
+        assertEquals(image.length, resumed.file.length());
+    }
+
+    @Test
+    public void importsFileThroughChannel() throws Exception {
+        File gallery = folder.newFile("gallery.jpg");
+        writeFile(gallery, image);
+        RecordingListener listener = new RecordingListener();
+
+        store.importFile(engine, fileSource(gallery), null, listener);
+        listener.await();
+
+        StoreEntry entry = store.get(ContentStore.toHex(ContentStore.newDigest().digest(image)));
+        assertEquals(entry.getFile(), listener.file);
+        assertEquals(image.length, listener.progress);
+        assertEquals(image.length, entry.getFile().length());
+        assertEquals(0, new File(root, "pending").list().length);
+    }
+
+    @Test
+    public void reimportOnlyHashesFile() throws Exception {
+        File gallery = folder.newFile("gallery.jpg");
+        writeFile(gallery, image);
+        RecordingListener first = new RecordingListener();
+        store.importFile(engine, fileSource(gallery), null, first);
+        first.await();
+
+        RecordingListener second = new RecordingListener();
+        store.importFile(engine, fileSource(gallery), "content://media/1", second);
+        second.await();
+
+        assertEquals(first.file, second.file);
+        // nothing was copied the second time
+        assertEquals(0, second.progress);
+        assertEquals(first.file, store.findBySourceKey("content://media/1").getFile());
+    }
+
+    @Test
+    public void importsStreamWhenNoFileIsAvailable() throws Exception {
+        RecordingListener listener = new RecordingListener();
+        InputStream stream = new ByteArrayInputStream(image);
+
+        store.importFile(engine, new StreamSource(stream, -1), null, listener);
+        listener.await();
+
+        assertEquals(ContentStore.toHex(ContentStore.newDigest().digest(image)),
+                store.getEntries().get(0).getHash());
+        assertEquals(listener.file, store.getEntries().get(0).getFile());
+    }
+
+    @Test
+    public void purgesOldPendingFiles() throws IOException {
+        File old = pendingWith(image, "old");
+        assertTrue(old.setLastModified(System.currentTimeMillis() - 2 * 24 * 3600 * 1000L));
+        File fresh = pendingWith(image, "fresh");
+
+        assertEquals(1, store.purgePending(24 * 3600 * 1000L));
+
+        assertFalse(old.exists());
+        assertTrue(fresh.exists());
+    }
+
+    private static TransferSource fileSource(final File file) {
+        return new TransferSource() {
+            @Override
+            public InputStream open(long offset) throws IOException {
+                return new FileInputStream(file);
+            }
+
+            @Override
+            public long length() {
+                return -1;
+            }
+        };
+    }
+
+    private static void writeFile(File file, byte[] content) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        out.write(content);
+        out.close();
+    }
+
+    private File pendingWith(byte[] content, String sourceKey) throws IOException {
+        File file = store.newPendingFile(sourceKey);
+        writeFile(file, content);
+        return file;
+    }
+
+    private static class RecordingListener implements TransferListener {
+        private final CountDownLatch done = new CountDownLatch(1);
+        volatile long progress;
+        File file;
+        IOException error;
+
+        @Override
+        public void onProgress(long bytesTransferred, long totalBytes) {
+            progress = bytesTransferred;
+        }
+
+        @Override
+        public void onComplete(File target, long totalBytes) {
+            file = target;
+            done.countDown();
+        }
+
+        @Override
+        public void onCancelled() {
+            done.countDown();
+        }
+
+        @Override
+        public void onFailed(IOException e) {
+            error = e;
+            done.countDown();
+        }
+
+        void await() throws InterruptedException {
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+        }
+    }
+}
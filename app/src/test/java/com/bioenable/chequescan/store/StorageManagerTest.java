@@ -0,0 +1,168 @@
+package com.bioenable.chequescan.store;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Local unit tests for {@link StorageManager}.
+ */
+public class StorageManagerTest {
+
+    private static final int SIZE = 1000;
+    private static final long HOUR = 60 * 60 * 1000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ContentStore store;
+    // written by the test while the manager reads it
+    private final Map<String, StorageManager.Eviction> classes = new ConcurrentHashMap<>();
+    private final StorageManager.Retention retention = new StorageManager.Retention() {
+        @Override
+        public StorageManager.Eviction classify(StoreEntry entry) {
+            StorageManager.Eviction eviction = classes.get(entry.getHash());
+            return eviction != null ? eviction : StorageManager.Eviction.LAST;
+        }
+    };
+    private int next;
+
+    @Before
+    public void setUp() throws IOException {
+        store = new ContentStore(folder.newFolder("store"));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        store.close();
+    }
+
+    @Test
+    public void byteQuotaEvictsKeptCopiesFirst() throws IOException {
+        List<StoreEntry> only = add(4, StorageManager.Eviction.LAST);
+        List<StoreEntry> uploaded = add(4, StorageManager.Eviction.FIRST);
+        List<StoreEntry> queued = add(2, StorageManager.Eviction.NEVER);
+        StorageManager manager = new StorageManager(store, new StorageQuota(5 * SIZE, StorageQuota.UNLIMITED),
+                retention);
+
+        // 10 images, 5 allowed, evicted down to 4.5: the 4 uploaded ones and the 2 oldest of the others
+        assertEquals(6, manager.evict(System.currentTimeMillis()));
+
+        for (StoreEntry entry : uploaded) {
+            assertNull(store.get(entry.getHash()));
+        }
+        assertNull(store.get(only.get(0).getHash()));
+        assertNull(store.get(only.get(1).getHash()));
+        assertNotNull(store.get(only.get(2).getHash()));
+        for (StoreEntry entry : queued) {
+            assertNotNull(store.get(entry.getHash()));
+        }
+        StorageStats stats = manager.getStats();
+        assertEquals(4, stats.getStoredFiles());
+        assertEquals(4 * SIZE, stats.getStoredBytes());
+        assertEquals(6, stats.getEvictedFiles());
+        assertEquals(6 * SIZE, stats.getEvictedBytes());
+        manager.close();
+    }
+
+    @Test
+    public void ageQuotaOnlyEvictsKeptCopies() throws IOException {
+        List<StoreEntry> uploaded = add(3, StorageManager.Eviction.FIRST);
+        List<StoreEntry> only = add(3, StorageManager.Eviction.LAST);
+        StorageManager manager = new StorageManager(store, new StorageQuota(StorageQuota.UNLIMITED, 24 * HOUR),
+                retention);
+
+        assertEquals(0, manager.evict(System.currentTimeMillis()));
+        assertEquals(3, manager.evict(System.currentTimeMillis() + 25 * HOUR));
+
+        for (StoreEntry entry : uploaded) {
+            assertNull(store.get(entry.getHash()));
+        }
+        for (StoreEntry entry : only) {
+            assertNotNull(store.get(entry.getHash()));
+        }
+        manager.close();
+    }
+
+    @Test
+    public void imagesInUseAreNeverEvicted() throws IOException {
+        add(3, StorageManager.Eviction.NEVER);
+        StorageManager manager = new StorageManager(store, new StorageQuota(0, 0), retention);
+
+        assertEquals(0, manager.evict(System.currentTimeMillis() + HOUR));
+        assertEquals(3, store.getEntries().size());
+        manager.close();
+    }
+
+    @Test
+    public void evictsInTheBackgroundWhileImagesAreStored() throws Exception {
+        add(2000, StorageManager.Eviction.FIRST);
+        StorageManager manager = new StorageManager(store, new StorageQuota(100 * SIZE, StorageQuota.UNLIMITED),
+                retention);
+
+        manager.requestEviction();
+        // captures go on while the manager deletes
+        List<StoreEntry> captured = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            StoreEntry entry = store.commit(pending(), null);
+            classes.put(entry.getHash(), StorageManager.Eviction.NEVER);
+            captured.add(entry);
+        }
+        while (manager.getStats().getRuns() == 0) {
+            Thread.sleep(10);
+        }
+
+        StorageStats stats = manager.getStats();
+        assertEquals(0, stats.getFailedRuns());
+        assertTrue(stats.getEvictedFiles() >= 2000 - 90);
+        for (StoreEntry entry : captured) {
+            assertNotNull(store.get(entry.getHash()));
+        }
+        manager.close();
+    }
+
+    private List<StoreEntry> add(int count, StorageManager.Eviction eviction) throws IOException {
+        List<StoreEntry> entries = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            StoreEntry entry = store.commit(pending(), null);
+            classes.put(entry.getHash(), eviction);
+            entries.add(entry);
+        }
+        return entries;
+    }
+
+    /**
+     * @return a pending file of SIZE bytes which differs from all others
+     */
+    private File pending() throws IOException {
+        byte[] content = new byte[SIZE];
+        int id = next++;
+        content[0] = (byte) id;
+        content[1] = (byte) (id >> 8);
+        content[2] = (byte) (id >> 16);
+        File file = store.newPendingFile(null);
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+}
@@ -0,0 +1,126 @@
+package com.bioenable.chequescan.tiles;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Local unit tests for {@link TileCache}, using byte arrays in place of bitmaps.
+ */
+public class TileCacheTest {
+
+    private ByteArrayTileCache cache;
+
+    @Before
+    public void setUp() {
+        cache = new ByteArrayTileCache(1000);
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyDrawnTiles() {
+        long a = TileGrid.key(0, 0, 0);
+        long b = TileGrid.key(0, 1, 0);
+        long c = TileGrid.key(1, 0, 0);
+        byte[] first = new byte[400];
+        cache.put(a, first);
+        cache.put(b, new byte[400]);
+        // drawn again, so b is the eldest now
+        assertSame(first, cache.get(a));
+
+        cache.put(c, new byte[400]);
+
+        assertTrue(cache.contains(a));
+        assertFalse(cache.contains(b));
+        assertTrue(cache.contains(c));
+        assertEquals(1, cache.evicted.size());
+        assertEquals(800, cache.getCurrentBytes());
+        assertEquals(1, cache.getEvictionCount());
+    }
+
+    @Test
+    public void releasesReplacedAndOversizedTiles() {
+        long key = TileGrid.key(2, 3, 4);
+        byte[] old = new byte[100];
+        cache.put(key, old);
+        cache.put(key, new byte[200]);
+        cache.put(TileGrid.key(0, 0, 0), new byte[2000]);
+
+        assertEquals(2, cache.evicted.size());
+        assertSame(old, cache.evicted.get(0));
+        assertEquals(200, cache.getCurrentBytes());
+        assertEquals(1, cache.getCount());
+    }
+
+    @Test
+    public void countsHitsAndMissesOfGetOnly() {
+        long key = TileGrid.key(0, 5, 5);
+        assertNull(cache.get(key));
+        cache.put(key, new byte[10]);
+        assertTrue(cache.contains(key));
+        cache.get(key);
+        cache.get(key);
+
+        assertEquals(2, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+
+        cache.clear();
+        assertEquals(0, cache.getCurrentBytes());
+        assertEquals(1, cache.evicted.size());
+    }
+
+    @Test
+    public void looksUpAScreenOfTiles() {
+        TileGrid grid = new TileGrid(4000, 3000, 256);
+        byte[] tile = new byte[256 * 256 * 4];
+        ByteArrayTileCache tiles = new ByteArrayTileCache((long) grid.columns(0) * grid.rows(0) * tile.length);
+        for (int row = 0; row < grid.rows(0); row++) {
+            for (int column = 0; column < grid.columns(0); column++) {
+                tiles.put(TileGrid.key(0, column, row), tile);
+            }
+        }
+        int[] range = new int[4];
+        int frames = 100000;
+        long found = 0;
+        for (int frame = 0; frame < frames; frame++) {
+            // panning across the image at 1:1 on a 1080 x 1920 screen
+            float left = frame % 2920;
+            grid.tilesIn(0, left, 500, left + 1080, 2420, 0, range);
+            for (int row = range[1]; row <= range[3]; row++) {
+                for (int column = range[0]; column <= range[2]; column++) {
+                    if (tiles.get(TileGrid.key(0, column, row)) != null) {
+                        found++;
+                    }
+                }
+            }
+        }
+        assertEquals(tiles.getHitCount(), found);
+        assertEquals(0, tiles.getMissCount());
+    }
+
+    private static final class ByteArrayTileCache extends TileCache<byte[]> {
+
+        final List<byte[]> evicted = new ArrayList<>();
+
+        ByteArrayTileCache(long maxBytes) {
+            super(maxBytes);
+        }
+
+        @Override
+        protected int sizeOf(byte[] tile) {
+            return tile.length;
+        }
+
+        @Override
+        protected void onEvicted(byte[] tile) {
+            evicted.add(tile);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.bioenable.chequescan.tiles;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Local unit tests for {@link TileGrid} on the size of a 12 MP photo.
+ */
+public class TileGridTest {
+
+    private final TileGrid grid = new TileGrid(4000, 3000, 256);
+
+    @Test
+    public void coversTheImageOnEveryLevel() {
+        assertEquals(16, grid.columns(0));
+        assertEquals(12, grid.rows(0));
+        assertEquals(8, grid.columns(1));
+        assertEquals(1, grid.columns(4));
+        assertEquals(1, grid.rows(4));
+
+        int[] bounds = new int[4];
+        grid.bounds(0, 15, 11, bounds);
+        assertArrayEquals(new int[]{3840, 2816, 4000, 3000}, bounds);
+        grid.bounds(2, 1, 0, bounds);
+        assertArrayEquals(new int[]{1024, 0, 2048, 1024}, bounds);
+    }
+
+    @Test
+    public void picksTheLevelWithAtLeastOnePixelPerScreenPixel() {
+        assertEquals(0, TileGrid.levelFor(4));
+        assertEquals(0, TileGrid.levelFor(1));
+        assertEquals(0, TileGrid.levelFor(0.6f));
+        assertEquals(1, TileGrid.levelFor(0.5f));
+        assertEquals(1, TileGrid.levelFor(0.3f));
+        assertEquals(3, TileGrid.levelFor(0.125f));
+        assertEquals(TileGrid.MAX_LEVEL, TileGrid.levelFor(0));
+    }
+
+    @Test
+    public void findsVisibleAndPrefetchedTiles() {
+        int[] range = new int[4];
+        // a 1080 x 1920 screen at 1:1 over the MICR line
+        grid.tilesIn(0, 500, 2000, 1580, 3920, 0, range);
+        assertArrayEquals(new int[]{1, 7, 6, 11}, range);
+
+        grid.tilesIn(0, 500, 2000, 1580, 3920, 1, range);
+        assertArrayEquals(new int[]{0, 6, 7, 11}, range);
+
+        // edges on tile borders do not touch the next tile
+        grid.tilesIn(1, 0, 0, 1024, 512, 0, range);
+        assertArrayEquals(new int[]{0, 0, 1, 0}, range);
+
+        grid.tilesIn(0, -300, -300, -1, -1, 1, range);
+        assertEquals(-1, range[2]);
+        assertEquals(-1, range[3]);
+    }
+
+    @Test
+    public void packsLevelColumnAndRowIntoTheKey() {
+        long key = TileGrid.key(3, 4095, 17);
+
+        assertEquals(3, TileGrid.level(key));
+        assertEquals(4095, TileGrid.column(key));
+        assertEquals(17, TileGrid.row(key));
+        assertEquals(TileGrid.MAX_LEVEL, TileGrid.level(TileGrid.key(TileGrid.MAX_LEVEL, 0, 0)));
+    }
+}
@@ -0,0 +1,267 @@
+package com.bioenable.chequescan.transfer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Local unit tests for {@link TransferEngine}. A ByteArrayInputStream stands in for the stream of a
+ * DriveContents object.
+ */
+public class TransferEngineTest {
+
+    private static final int IMAGE_SIZE = 10 * 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private TransferEngine engine;
+    private byte[] image;
+
+    @Before
+    public void setUp() {
+        engine = new TransferEngine(2);
+        image = new byte[IMAGE_SIZE];
+        new Random(42).nextBytes(image);
+    }
+
+    @After
+    public void tearDown() {
+        engine.close();
+    }
+
+    @Test
+    public void copiesStreamIntoTarget() throws Exception {
+        File target = folder.newFile("image.jpg");
+        RecordingListener listener = new RecordingListener();
+
+        engine.submit(new StreamSource(new ByteArrayInputStream(image), image.length), target, listener);
+        listener.await();
+
+        assertEquals(image.length, listener.completedBytes);
+        assertEquals(image.length, listener.lastProgress);
+        assertArrayEquals(image, readFile(target));
+        assertFalse(new File(target.getPath() + TransferEngine.PARTIAL_SUFFIX).exists());
+    }
+
+    @Test
+    public void copiesFileSourceThroughChannel() throws Exception {
+        final File source = folder.newFile("source.jpg");
+        writeFile(source, image, image.length);
+        File target = new File(folder.getRoot(), "image.jpg");
+
+        long copied = engine.copy(new StreamSource(new FileInputStream(source), -1),
+                new Transfer(target), null);
+
+        assertEquals(image.length, copied);
+        assertArrayEquals(image, readFile(target));
+    }
+
+    @Test
+    public void resumesPartialFile() throws Exception {
+        File target = new File(folder.getRoot(), "image.jpg");
+        int alreadyThere = IMAGE_SIZE / 3;
+        writeFile(new File(target.getPath() + TransferEngine.PARTIAL_SUFFIX), image, alreadyThere);
+        CountingInputStream in = new CountingInputStream(new ByteArrayInputStream(image));
+
+        engine.copy(new StreamSource(in, image.length), new Transfer(target), null);
+
+        assertArrayEquals(image, readFile(target));
+        assertEquals(IMAGE_SIZE - alreadyThere, in.bytesRead);
+    }
+
+    @Test
+    public void keepsPartialFileWhenSourceFails() throws Exception {
+        File target = new File(folder.getRoot(), "image.jpg");
+        final int failAfter = 3 * 1024 * 1024;
+        InputStream broken = new CountingInputStream(new ByteArrayInputStream(image)) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (bytesRead >= failAfter) {
+                    throw new IOException("connection lost");
+                }
+                return super.read(b, off, Math.min(len, (int) (failAfter - bytesRead)));
+            }
+        };
+
+        try {
+            engine.copy(new StreamSource(broken, image.length), new Transfer(target), null);
+            fail("copy should fail");
+        } catch (IOException expected) {
+            // the partial file is what the next attempt resumes from
+        }
+        File partial = new File(target.getPath() + TransferEngine.PARTIAL_SUFFIX);
+        assertTrue(partial.length() > 0);
+        assertFalse(target.exists());
+
+        engine.copy(new StreamSource(new ByteArrayInputStream(image), image.length), new Transfer(target), null);
+        assertArrayEquals(image, readFile(target));
+    }
+
+    @Test
+    public void readTimeoutIsReportedAsFailure() throws Exception {
+        File target = new File(folder.getRoot(), "image.jpg");
+        final int failAfter = 1024 * 1024 + 1000;
+        InputStream stalled = new CountingInputStream(new ByteArrayInputStream(image)) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (bytesRead >= failAfter) {
+                    throw new SocketTimeoutException("Read timed out");
+                }
+                return super.read(b, off, Math.min(len, (int) (failAfter - bytesRead)));
+            }
+        };
+        RecordingListener listener = new RecordingListener();
+
+        engine.submit(new StreamSource(stalled, image.length), target, listener);
+        listener.await();
+
+        assertTrue(listener.failure instanceof SocketTimeoutException);
+        assertFalse(listener.cancelled);
+        assertEquals(failAfter, new File(target.getPath() + TransferEngine.PARTIAL_SUFFIX).length());
+    }
+
+    @Test
+    public void cancelDeletesPartialFile() throws Exception {
+        File target = new File(folder.getRoot(), "image.jpg");
+        final Transfer transfer = new Transfer(target);
+        RecordingListener listener = new RecordingListener() {
+            @Override
+            public void onProgress(long bytesTransferred, long totalBytes) {
+                super.onProgress(bytesTransferred, totalBytes);
+                transfer.cancel();
+            }
+        };
+
+        try {
+            engine.copy(new StreamSource(new ByteArrayInputStream(image), image.length), transfer, listener);
+            fail("copy should be cancelled");
+        } catch (InterruptedIOException expected) {
+            // cancellation is reported as an interrupted copy
+        }
+        assertTrue(listener.lastProgress < image.length);
+        assertFalse(target.exists());
+        assertFalse(new File(target.getPath() + TransferEngine.PARTIAL_SUFFIX).exists());
+    }
+
+    /**
+     * The buffered copy writes the same bytes as the loop it replaced. How much faster it is
+     * is measured by StreamCopyBenchmark.
+     */
+    @Test
+    public void bufferedCopyMatchesByteByByteCopy() throws Exception {
+        File slowTarget = new File(folder.getRoot(), "slow.jpg");
+        File fastTarget = new File(folder.getRoot(), "fast.jpg");
+
+        copyByteByByte(new ByteArrayInputStream(image), slowTarget);
+        engine.copy(new StreamSource(new ByteArrayInputStream(image), image.length), new Transfer(fastTarget), null);
+
+        assertArrayEquals(readFile(slowTarget), readFile(fastTarget));
+    }
+
+    /**
+     * The copy loop ImageProvider used before the TransferEngine existed.
+     */
+    private static void copyByteByByte(InputStream in, File target) throws IOException {
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(target));
+        int b;
+        while ((b = in.read()) >= 0) {
+            out.write(b);
+        }
+        in.close();
+        out.close();
+    }
+
+    private static void writeFile(File file, byte[] data, int length) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        out.write(data, 0, length);
+        out.close();
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        InputStream in = new FileInputStream(file);
+        int read = 0;
+        while (read < data.length) {
+            read += in.read(data, read, data.length - read);
+        }
+        in.close();
+        return Arrays.copyOf(data, read);
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        long bytesRead;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int count = super.read(b, off, len);
+            if (count > 0) {
+                bytesRead += count;
+            }
+            return count;
+        }
+    }
+
+    private static class RecordingListener implements TransferListener {
+        private final CountDownLatch done = new CountDownLatch(1);
+        volatile long lastProgress;
+        volatile long completedBytes = -1;
+        volatile boolean cancelled;
+        volatile IOException failure;
+
+        @Override
+        public void onProgress(long bytesTransferred, long totalBytes) {
+            lastProgress = bytesTransferred;
+        }
+
+        @Override
+        public void onComplete(File target, long totalBytes) {
+            completedBytes = totalBytes;
+            done.countDown();
+        }
+
+        @Override
+        public void onCancelled() {
+            cancelled = true;
+            done.countDown();
+        }
+
+        @Override
+        public void onFailed(IOException e) {
+            failure = e;
+            done.countDown();
+        }
+
+        void await() throws InterruptedException {
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+        }
+    }
+}
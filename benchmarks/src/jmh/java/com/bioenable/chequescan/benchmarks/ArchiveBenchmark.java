@@ -0,0 +1,89 @@
+package com.bioenable.chequescan.benchmarks;
+
+import com.bioenable.chequescan.archive.ArchiveReader;
+import com.bioenable.chequescan.archive.ArchiveWriter;
+import com.bioenable.chequescan.archive.G4Decoder;
+import com.bioenable.chequescan.archive.G4Encoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Group 4 archive of a 2400 x 1100 cheque: coding the whole cheque, decoding it, and reading one
+ * band of rows out of an archive file the way the review screen does. The binary cheque gets a
+ * sprinkle of single pixel specks, which binarization of real paper leaves behind.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ArchiveBenchmark {
+
+    private static final int WIDTH = 2400;
+    private static final int HEIGHT = 1100;
+    private static final int BAND = 100;
+
+    private final G4Encoder encoder = new G4Encoder();
+    private final G4Decoder decoder = new G4Decoder();
+    private byte[] binary;
+    private byte[] coded;
+    private byte[] packed;
+    private File file;
+    private ArchiveReader reader;
+    private int band;
+
+    @Setup
+    public void setUp() throws IOException {
+        binary = SyntheticImages.chequeBinary(WIDTH, HEIGHT);
+        Random random = new Random(1);
+        for (int i = 0; i < 2000; i++) {
+            binary[random.nextInt(binary.length)] = 1;
+        }
+        coded = encoder.encode(binary, WIDTH, 0, HEIGHT);
+        packed = new byte[HEIGHT * G4Decoder.stride(WIDTH)];
+        file = File.createTempFile("cheque", ".tif");
+        byte[] gray = new byte[WIDTH * HEIGHT];
+        for (int i = 0; i < gray.length; i++) {
+            gray[i] = (byte) (binary[i] == 1 ? 30 : 220);
+        }
+        new ArchiveWriter().write(binary, gray, WIDTH, HEIGHT, 400, file);
+        reader = new ArchiveReader(file);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        reader.close();
+        file.delete();
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return encoder.encode(binary, WIDTH, 0, HEIGHT);
+    }
+
+    @Benchmark
+    public byte[] decode() throws IOException {
+        decoder.decode(coded, coded.length, WIDTH, HEIGHT, packed, 0);
+        return packed;
+    }
+
+    /**
+     * A band of rows at a different place every time, so the reader cannot reuse its last strip.
+     */
+    @Benchmark
+    public byte[] readBand() throws IOException {
+        band = (band + 3) % (HEIGHT / BAND);
+        reader.readRows(band * BAND, BAND, packed);
+        return packed;
+    }
+}
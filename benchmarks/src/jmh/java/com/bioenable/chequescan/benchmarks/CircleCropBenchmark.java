@@ -0,0 +1,143 @@
+package com.bioenable.chequescan.benchmarks;
+
+import com.bioenable.chequescan.processing.CircleCrop;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The crop and circle math of CircleTransformation, ported to plain ARGB buffers: the centre square
+ * is copied into a bitmap of its own (Bitmap.createBitmap(source, x, y, size, size)), then drawn
+ * into a second bitmap through an anti-aliased circular mask. This is the baseline for
+ * thumbnail work on cheque images.
+ * <p>
+ * {@link #singlePass()} is the same crop through {@link CircleCrop}, which reads the centre square
+ * once into a reused buffer. {@link Grid} compares both on a grid of small thumbnails.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class CircleCropBenchmark {
+
+    @Param({"1", "5", "13"})
+    public int megapixels;
+
+    private int width;
+    private int height;
+    private int[] source;
+    private int[] out;
+    private final CircleCrop crop = new CircleCrop();
+
+    @Setup
+    public void setUp() {
+        width = SyntheticImages.width(megapixels);
+        height = SyntheticImages.height(megapixels);
+        source = SyntheticImages.chequeArgb(megapixels);
+        int size = CircleCrop.size(width, height);
+        out = new int[size * size];
+    }
+
+    @Benchmark
+    public int[] cropThenCircle() {
+        return cropThenCircle(source, 0, width, height);
+    }
+
+    @Benchmark
+    public int[] singlePass() {
+        crop.crop(source, width, height, out, 0);
+        return out;
+    }
+
+    static int[] cropThenCircle(int[] source, int offset, int width, int height) {
+        int size = Math.min(width, height);
+        int x = (width - size) / 2;
+        int y = (height - size) / 2;
+
+        int[] squared = new int[size * size];
+        for (int row = 0; row < size; row++) {
+            System.arraycopy(source, offset + (y + row) * width + x, squared, row * size, size);
+        }
+
+        int[] circle = new int[size * size];
+        float r = size / 2f;
+        for (int row = 0; row < size; row++) {
+            float dy = row + 0.5f - r;
+            for (int column = 0; column < size; column++) {
+                float dx = column + 0.5f - r;
+                float coverage = r - (float) Math.sqrt(dx * dx + dy * dy) + 0.5f;
+                if (coverage <= 0) {
+                    continue;
+                }
+                int pixel = squared[row * size + column];
+                if (coverage >= 1) {
+                    circle[row * size + column] = pixel;
+                } else {
+                    circle[row * size + column] = premultiply(pixel, coverage);
+                }
+            }
+        }
+        return circle;
+    }
+
+    /**
+     * A screen of thumbnails, 48 crops of 160 x 120 pixels which follow each other in one buffer
+     */
+    @State(Scope.Benchmark)
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public static class Grid {
+
+        private static final int COUNT = 48;
+        private static final int WIDTH = 160;
+        private static final int HEIGHT = 120;
+
+        private int[] thumbnails;
+        private int[] out;
+        private final CircleCrop crop = new CircleCrop();
+
+        @Setup
+        public void setUp() {
+            int[] cheque = SyntheticImages.chequeArgb(1);
+            int chequeWidth = SyntheticImages.width(1);
+            thumbnails = new int[COUNT * WIDTH * HEIGHT];
+            for (int i = 0; i < COUNT; i++) {
+                for (int row = 0; row < HEIGHT; row++) {
+                    System.arraycopy(cheque, (row + i) * chequeWidth + i * 8,
+                            thumbnails, (i * HEIGHT + row) * WIDTH, WIDTH);
+                }
+            }
+            out = new int[COUNT * HEIGHT * HEIGHT];
+        }
+
+        @Benchmark
+        public int gridCropThenCircle() {
+            int sum = 0;
+            for (int i = 0; i < COUNT; i++) {
+                sum += cropThenCircle(thumbnails, i * WIDTH * HEIGHT, WIDTH, HEIGHT)[HEIGHT * HEIGHT / 2];
+            }
+            return sum;
+        }
+
+        @Benchmark
+        public int[] gridSinglePass() {
+            crop.cropAll(thumbnails, COUNT, WIDTH, HEIGHT, out);
+            return out;
+        }
+    }
+
+    private static int premultiply(int pixel, float coverage) {
+        int a = Math.round(((pixel >>> 24) & 0xFF) * coverage);
+        int r = Math.round(((pixel >> 16) & 0xFF) * coverage);
+        int g = Math.round(((pixel >> 8) & 0xFF) * coverage);
+        int b = Math.round((pixel & 0xFF) * coverage);
+        return (a << 24) | (r << 16) | (g << 8) | b;
+    }
+}
@@ -0,0 +1,101 @@
+package com.bioenable.chequescan.benchmarks;
+
+import com.bioenable.chequescan.duplicate.HammingIndex;
+import com.bioenable.chequescan.duplicate.PerceptualHash;
+import com.bioenable.chequescan.geometry.Quad;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Duplicate detection: inserts into and queries of a {@link HammingIndex} holding up to a million
+ * cheques, and the perceptual hash of a photographed cheque. A query has to stay well below a
+ * millisecond at a million hashes. Half of the queries are near a stored hash, half are new.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class DuplicateBenchmark {
+
+    private static final int QUERIES = 1024;
+
+    @Param({"100000", "1000000"})
+    public int hashes;
+
+    private HammingIndex index;
+    private HammingIndex insertIndex;
+    private final long[] queries = new long[QUERIES];
+    private long[] inserts;
+    private int next;
+    private PerceptualHash hasher;
+    private byte[] photo;
+    private int width;
+    private int height;
+    private Quad corners;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(1);
+        index = new HammingIndex(hashes);
+        for (int i = 0; i < hashes; i++) {
+            index.add(random.nextLong());
+        }
+        for (int i = 0; i < QUERIES; i++) {
+            if (i % 2 == 1) {
+                queries[i] = random.nextLong();
+                continue;
+            }
+            long query = index.get(random.nextInt(hashes));
+            for (int bit = 0; bit < PerceptualHash.DUPLICATE_DISTANCE; bit++) {
+                query ^= 1L << random.nextInt(64);
+            }
+            queries[i] = query;
+        }
+        inserts = new long[hashes];
+        for (int i = 0; i < hashes; i++) {
+            inserts[i] = random.nextLong();
+        }
+        hasher = new PerceptualHash();
+        width = SyntheticImages.width(1);
+        height = SyntheticImages.height(1);
+        photo = SyntheticImages.photographedCheque(1);
+        corners = SyntheticImages.photographedCorners(1);
+    }
+
+    /**
+     * Every iteration fills a new index, so that inserts see the same sizes in every iteration.
+     */
+    @Setup(Level.Iteration)
+    public void newInsertIndex() {
+        insertIndex = new HammingIndex(hashes);
+        next = 0;
+    }
+
+    @Benchmark
+    public int insert() {
+        if (next == hashes) {
+            newInsertIndex();
+        }
+        return insertIndex.add(inserts[next++]);
+    }
+
+    @Benchmark
+    public int query() {
+        return index.nearest(queries[next++ & (QUERIES - 1)], PerceptualHash.DUPLICATE_DISTANCE);
+    }
+
+    @Benchmark
+    public long hashPhoto() {
+        return hasher.hash(photo, width, height, corners);
+    }
+}
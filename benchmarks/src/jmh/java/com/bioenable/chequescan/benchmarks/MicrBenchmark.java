@@ -0,0 +1,50 @@
+package com.bioenable.chequescan.benchmarks;
+
+import com.bioenable.chequescan.micr.MicrLine;
+import com.bioenable.chequescan.micr.MicrRecognizer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Code line recognition on binarized camera frames. Divide the operations per second by the length
+ * of {@link SyntheticImages#CODE_LINE} for characters per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class MicrBenchmark {
+
+    @Param({"1", "5", "13"})
+    public int megapixels;
+
+    private MicrRecognizer recognizer;
+    private int width;
+    private int height;
+    private byte[] binary;
+
+    @Setup
+    public void setUp() {
+        recognizer = new MicrRecognizer();
+        width = SyntheticImages.width(megapixels);
+        height = SyntheticImages.height(megapixels);
+        binary = SyntheticImages.chequeBinary(width, height);
+        String text = recognizer.recognize(binary, width, height).getText();
+        if (!SyntheticImages.CODE_LINE.equals(text)) {
+            throw new IllegalStateException("Synthetic code line misread as " + text);
+        }
+    }
+
+    @Benchmark
+    public MicrLine recognize() {
+        return recognizer.recognize(binary, width, height);
+    }
+}
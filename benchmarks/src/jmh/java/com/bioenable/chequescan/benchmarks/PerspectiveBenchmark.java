@@ -0,0 +1,69 @@
+package com.bioenable.chequescan.benchmarks;
+
+import com.bioenable.chequescan.geometry.PerspectiveCorrector;
+import com.bioenable.chequescan.geometry.Quad;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Edge detection and warp of a cheque photographed at an angle, into the canonical 2400 x 1100
+ * output. The budget for a 12 MP photo on 4 cores is 150 ms for both together.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class PerspectiveBenchmark {
+
+    @Param({"5", "12"})
+    public int megapixels;
+
+    private PerspectiveCorrector corrector;
+    private int width;
+    private int height;
+    private byte[] photo;
+    private Quad corners;
+    private byte[] out;
+
+    @Setup
+    public void setUp() {
+        corrector = new PerspectiveCorrector(Runtime.getRuntime().availableProcessors());
+        width = SyntheticImages.width(megapixels);
+        height = SyntheticImages.height(megapixels);
+        photo = SyntheticImages.photographedCheque(megapixels);
+        corners = SyntheticImages.photographedCorners(megapixels);
+        out = new byte[PerspectiveCorrector.CANONICAL_WIDTH * PerspectiveCorrector.CANONICAL_HEIGHT];
+    }
+
+    @TearDown
+    public void tearDown() {
+        corrector.close();
+    }
+
+    @Benchmark
+    public Quad findCheque() {
+        return corrector.findCheque(photo, width, height);
+    }
+
+    @Benchmark
+    public byte[] warp() {
+        corrector.warp(photo, width, height, corners, out,
+                PerspectiveCorrector.CANONICAL_WIDTH, PerspectiveCorrector.CANONICAL_HEIGHT);
+        return out;
+    }
+
+    @Benchmark
+    public Quad correct() {
+        return corrector.correct(photo, width, height, out,
+                PerspectiveCorrector.CANONICAL_WIDTH, PerspectiveCorrector.CANONICAL_HEIGHT);
+    }
+}
@@ -0,0 +1,68 @@
+package com.bioenable.chequescan.benchmarks;
+
+import com.bioenable.chequescan.processing.ChequePreprocessor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Grayscale conversion and binarization of full camera frames with all available cores. The gc
+ * profiler should report close to zero bytes per operation, the scratch buffers are reused.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class PreprocessBenchmark {
+
+    @Param({"1", "5", "13"})
+    public int megapixels;
+
+    private ChequePreprocessor preprocessor;
+    private int width;
+    private int height;
+    private int[] argb;
+    private byte[] gray;
+    private byte[] binary;
+
+    @Setup
+    public void setUp() {
+        preprocessor = new ChequePreprocessor(Runtime.getRuntime().availableProcessors());
+        width = SyntheticImages.width(megapixels);
+        height = SyntheticImages.height(megapixels);
+        argb = SyntheticImages.chequeArgb(megapixels);
+        gray = SyntheticImages.toGray(argb);
+        binary = new byte[argb.length];
+    }
+
+    @TearDown
+    public void tearDown() {
+        preprocessor.close();
+    }
+
+    @Benchmark
+    public byte[] grayscale() {
+        preprocessor.toGrayscale(argb, width, height, gray);
+        return gray;
+    }
+
+    @Benchmark
+    public byte[] otsu() {
+        preprocessor.binarizeOtsu(gray, width, height, binary);
+        return binary;
+    }
+
+    @Benchmark
+    public byte[] sauvola() {
+        preprocessor.binarizeSauvola(gray, width, height, binary);
+        return binary;
+    }
+}
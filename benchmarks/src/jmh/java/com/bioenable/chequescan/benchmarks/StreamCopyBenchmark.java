@@ -0,0 +1,89 @@
+package com.bioenable.chequescan.benchmarks;
+
+import com.bioenable.chequescan.transfer.StreamSource;
+import com.bioenable.chequescan.transfer.Transfer;
+import com.bioenable.chequescan.transfer.TransferEngine;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The copy of a downloaded Drive image into local storage. Compares the byte by byte loop
+ * ImageProvider used to have with the two paths of the TransferEngine. JPEG sizes correspond to
+ * 1, 5 and 13 MP camera images.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class StreamCopyBenchmark {
+
+    @Param({"1", "4", "12"})
+    public int megabytes;
+
+    private byte[] image;
+    private File sourceFile;
+    private File target;
+    private TransferEngine engine;
+
+    @Setup
+    public void setUp() throws IOException {
+        image = new byte[megabytes * 1024 * 1024];
+        new Random(megabytes).nextBytes(image);
+        sourceFile = File.createTempFile("source", ".jpg");
+        OutputStream out = new FileOutputStream(sourceFile);
+        out.write(image);
+        out.close();
+        target = File.createTempFile("target", ".jpg");
+        engine = new TransferEngine(1);
+    }
+
+    @TearDown
+    public void tearDown() {
+        engine.close();
+        sourceFile.delete();
+        target.delete();
+    }
+
+    @Benchmark
+    public long byteByByte() throws IOException {
+        InputStream in = new ByteArrayInputStream(image);
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(target));
+        int b;
+        while ((b = in.read()) >= 0) {
+            out.write(b);
+        }
+        in.close();
+        out.close();
+        return target.length();
+    }
+
+    @Benchmark
+    public long transferEngineBuffered() throws IOException {
+        return engine.copy(new StreamSource(new ByteArrayInputStream(image), image.length),
+                new Transfer(target), null);
+    }
+
+    @Benchmark
+    public long transferEngineChannel() throws IOException {
+        return engine.copy(new StreamSource(new FileInputStream(sourceFile), image.length),
+                new Transfer(target), null);
+    }
+}
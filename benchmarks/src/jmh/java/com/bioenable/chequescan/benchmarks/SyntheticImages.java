@@ -0,0 +1,139 @@
+package com.bioenable.chequescan.benchmarks;
+
+import com.bioenable.chequescan.geometry.Homography;
+import com.bioenable.chequescan.geometry.Quad;
+import com.bioenable.chequescan.micr.E13BFont;
+
+import java.util.Random;
+
+/**
+ * Generates cheque like test images of the sizes the camera delivers. The images are 4:3 frames
+ * with a cheque covering most of the frame: paper with a light gradient, blocks of text and a code
+ * line at the bottom. The content is random but seeded, so every run measures the same pixels.
+ */
+final class SyntheticImages {
+
+    static final String CODE_LINE = "C000123C 400002012A 123456C 31";
+
+    private SyntheticImages() {
+    }
+
+    /**
+     * @param megapixels size of the image
+     * @return width of a 4:3 frame of that size
+     */
+    static int width(int megapixels) {
+        return (int) Math.round(Math.sqrt(megapixels * 1e6 * 4 / 3));
+    }
+
+    /**
+     * @param megapixels size of the image
+     * @return height of a 4:3 frame of that size
+     */
+    static int height(int megapixels) {
+        return width(megapixels) * 3 / 4;
+    }
+
+    /**
+     * @param megapixels size of the image
+     * @return ARGB pixels of a photographed cheque
+     */
+    static int[] chequeArgb(int megapixels) {
+        int width = width(megapixels);
+        int height = height(megapixels);
+        byte[] ink = chequeBinary(width, height);
+        Random random = new Random(megapixels);
+        int[] argb = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                // light falls off towards the bottom right corner
+                int paper = 235 - 60 * (x + y) / (width + height);
+                int v = ink[y * width + x] != 0 ? paper / 3 : paper;
+                v = Math.max(0, Math.min(255, v + random.nextInt(9) - 4));
+                argb[y * width + x] = 0xFF000000 | (v << 16) | (v << 8) | v;
+            }
+        }
+        return argb;
+    }
+
+    /**
+     * @param megapixels size of the image
+     * @return corners of the cheque in {@link #photographedCheque(int)}
+     */
+    static Quad photographedCorners(int megapixels) {
+        int width = width(megapixels);
+        int height = height(megapixels);
+        return new Quad(0.11f * width, 0.23f * height, 0.9f * width, 0.17f * height,
+                0.87f * width, 0.78f * height, 0.14f * width, 0.83f * height);
+    }
+
+    /**
+     * @param megapixels size of the image
+     * @return 8 bit gray pixels of a cheque photographed at an angle on a dark desk
+     */
+    static byte[] photographedCheque(int megapixels) {
+        int width = width(megapixels);
+        int height = height(megapixels);
+        // the flat cheque is rendered at the size it has in the photo
+        int chequeWidth = width * 3 / 4;
+        int chequeHeight = chequeWidth * 11 / 24;
+        byte[] ink = chequeBinary(chequeWidth, chequeHeight);
+        Homography toCheque = Homography.between(photographedCorners(megapixels), new Quad(
+                0, 0, chequeWidth - 1, 0, chequeWidth - 1, chequeHeight - 1, 0, chequeHeight - 1));
+        Random random = new Random(megapixels);
+        byte[] gray = new byte[width * height];
+        float[] point = new float[2];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                toCheque.map(x, y, point);
+                int u = Math.round(point[0]);
+                int v = Math.round(point[1]);
+                int value = 60;
+                if (u >= 0 && v >= 0 && u < chequeWidth && v < chequeHeight) {
+                    value = ink[v * chequeWidth + u] != 0 ? 70 : 210;
+                }
+                gray[y * width + x] = (byte) (value + random.nextInt(9) - 4);
+            }
+        }
+        return gray;
+    }
+
+    /**
+     * @param argb ARGB pixels
+     * @return 8 bit gray pixels of the same image
+     */
+    static byte[] toGray(int[] argb) {
+        byte[] gray = new byte[argb.length];
+        for (int i = 0; i < argb.length; i++) {
+            gray[i] = (byte) (argb[i] & 0xFF);
+        }
+        return gray;
+    }
+
+    /**
+     * @return binary image (1 = ink) of a cheque with text blocks and a code line
+     */
+    static byte[] chequeBinary(int width, int height) {
+        byte[] image = new byte[width * height];
+        Random random = new Random(width);
+        for (int line = 0; line < 12; line++) {
+            int y = height / 10 + line * height / 20;
+            int x = width / 12;
+            while (x < width * 3 / 4) {
+                int w = 4 + random.nextInt(width / 60 + 1);
+                int h = height / 60 + 1;
+                for (int yy = y; yy < y + h; yy++) {
+                    for (int xx = x; xx < x + w; xx++) {
+                        image[yy * width + xx] = 1;
+                    }
+                }
+                x += w + 3 + random.nextInt(width / 80 + 1);
+            }
+        }
+        // code line over about two thirds of the width
+        float cellSize = (width * 2f / 3) / E13BFont.renderedWidth(CODE_LINE.length(), 1f);
+        E13BFont.render(CODE_LINE, image, width, width / 8,
+                height - height / 12 - Math.round(E13BFont.GRID_HEIGHT * cellSize), cellSize, (byte) 1);
+        return image;
+    }
+}